@@ -15,6 +15,7 @@ import org.datavaultplatform.broker.queue.Sender;
 
 import org.jsondoc.core.annotation.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -36,6 +37,7 @@ public class DepositsController {
     private UsersService usersService;
     private ArchiveStoreService archiveStoreService;
     private JobsService jobsService;
+    private JobStateService jobStateService;
     private Sender sender;
 
     private static final Logger logger = LoggerFactory.getLogger(VaultsController.class);
@@ -80,6 +82,10 @@ public class DepositsController {
         this.jobsService = jobsService;
     }
 
+    public void setJobStateService(JobStateService jobStateService) {
+        this.jobStateService = jobStateService;
+    }
+
     public void setSender(Sender sender) {
         this.sender = sender;
     }
@@ -103,6 +109,19 @@ public class DepositsController {
         deposit.setNote(createDeposit.getNote());
         deposit.setDepositPaths(new ArrayList<DepositPath>());
         
+        // An incremental deposit only stores the changes since the last completed deposit to the vault
+        Deposit baseDeposit = null;
+        if (createDeposit.isIncremental()) {
+            for (Deposit vaultDeposit : vault.getDeposits()) {
+                if (vaultDeposit.getStatus() == Deposit.Status.COMPLETE) {
+                    baseDeposit = vaultDeposit;
+                }
+            }
+            if (baseDeposit != null) {
+                deposit.setBaseDepositId(baseDeposit.getID());
+            }
+        }
+        
         List<FileStore> userStores = user.getFileStores();
         
         Map<String, String> userFileStoreClasses = new HashMap<>();
@@ -184,6 +203,9 @@ public class DepositsController {
             depositProperties.put("depositId", deposit.getID());
             depositProperties.put("bagId", deposit.getBagId());
             depositProperties.put("userId", user.getID());
+            if (baseDeposit != null) {
+                depositProperties.put("baseBagId", baseDeposit.getBagId());
+            }
             
             // Deposit and Vault metadata
             // TODO: at the moment we're just serialising the objects to JSON.
@@ -270,7 +292,18 @@ public class DepositsController {
         Deposit deposit = depositsService.getUserDeposit(user, depositID);
 
         List<Job> jobs = deposit.getJobs();
-        return jobs;
+        return jobStateService.apply(jobs);
+    }
+
+    @RequestMapping(value = "/deposits/{depositid}/jobs/stream", method = RequestMethod.GET)
+    public SseEmitter streamDepositJobs(@RequestHeader(value = "X-UserID", required = true) String userID,
+                                        @PathVariable("depositid") String depositID) throws Exception {
+
+        User user = usersService.getUser(userID);
+        Deposit deposit = depositsService.getUserDeposit(user, depositID);
+
+        // Sends the current jobs, followed by each change to them
+        return jobStateService.subscribe(deposit.getID(), deposit.getJobs());
     }
 
     @RequestMapping(value = "/deposits/{depositid}/retrieve", method = RequestMethod.POST)
@@ -308,9 +341,11 @@ public class DepositsController {
 
         // Find the Archive that matches the ArchiveStore.
         String archiveID = null;
+        Archive retrieveArchive = null;
         for (Archive archive : deposit.getArchives()) {
             if (archive.getArchiveStore().getID().equals(archiveStore.getID())) {
                 archiveID = archive.getArchiveId();
+                retrieveArchive = archive;
             }
         }
 
@@ -341,8 +376,9 @@ public class DepositsController {
             throw new IllegalArgumentException("Path '" + retrievePath + "' is invalid");
         }
 
-        // Create a job to track this retrieve
-        Job job = new Job("org.datavaultplatform.worker.tasks.Retrieve");
+        // Create a job to track this retrieve, which only reads the selected files if there are any
+        boolean partial = retrieve.getSelectedPaths() != null && !retrieve.getSelectedPaths().isEmpty();
+        Job job = new Job(partial ? "org.datavaultplatform.worker.tasks.PartialRetrieve" : "org.datavaultplatform.worker.tasks.Retrieve");
         jobsService.addJob(deposit, job);
 
         // Add the retrieve object
@@ -350,6 +386,7 @@ public class DepositsController {
 
         // Ask the worker to process the data retrieve
         try {
+            ObjectMapper mapper = new ObjectMapper();
             HashMap<String, String> retrieveProperties = new HashMap<>();
             retrieveProperties.put("depositId", deposit.getID());
             retrieveProperties.put("retrieveId", retrieve.getID());
@@ -360,6 +397,21 @@ public class DepositsController {
             retrieveProperties.put("userId", user.getID());
             retrieveProperties.put("archiveDigest", deposit.getArchiveDigest());
             retrieveProperties.put("archiveDigestAlgorithm", deposit.getArchiveDigestAlgorithm());
+            if (retrieveArchive != null && retrieveArchive.isSegmented()) {
+                retrieveProperties.put("archiveSegments", mapper.writeValueAsString(retrieveArchive.getSegments()));
+                retrieveProperties.put("archiveSegmentSize", Long.toString(retrieveArchive.getSegmentSize()));
+            }
+            if (deposit.getArchiveCompression() != null) {
+                retrieveProperties.put("archiveCompression", deposit.getArchiveCompression());
+            }
+            if (partial) {
+                retrieveProperties.put("selectedPaths", mapper.writeValueAsString(retrieve.getSelectedPaths()));
+            }
+            
+            // An incremental deposit also needs the archives of the deposits it is based on
+            if (deposit.getBaseDepositId() != null) {
+                retrieveProperties.put("baseArchives", mapper.writeValueAsString(getBaseArchives(deposit, archiveStore, mapper)));
+            }
             
             // Add a single entry for the user file storage
             Map<String, String> userFileStoreClasses = new HashMap<>();
@@ -368,7 +420,6 @@ public class DepositsController {
             userFileStoreProperties.put(storageID, userStore.getProperties());
             
             Task retrieveTask = new Task(job, retrieveProperties, archiveStores, userFileStoreProperties, userFileStoreClasses, null, null);
-            ObjectMapper mapper = new ObjectMapper();
             String jsonRetrieve = mapper.writeValueAsString(retrieveTask);
             sender.send(jsonRetrieve);
         } catch (Exception e) {
@@ -380,4 +431,51 @@ public class DepositsController {
 
         return true;
     }
+
+    /**
+     * Get the archives of the chain of deposits which an incremental deposit is based on
+     * @param deposit The incremental deposit
+     * @param archiveStore The archive store to retrieve from
+     * @param mapper
+     * @return The archive properties of each base deposit, in the same form as the retrieve properties
+     * @throws Exception if a base deposit has no archive in the archive store
+     */
+    private List<Map<String, String>> getBaseArchives(Deposit deposit, ArchiveStore archiveStore, ObjectMapper mapper) throws Exception {
+        
+        List<Map<String, String>> baseArchives = new ArrayList<>();
+        String baseDepositId = deposit.getBaseDepositId();
+        
+        while (baseDepositId != null) {
+            Deposit baseDeposit = depositsService.getDeposit(baseDepositId);
+            
+            Archive baseArchive = null;
+            for (Archive archive : baseDeposit.getArchives()) {
+                if (archive.getArchiveStore().getID().equals(archiveStore.getID())) {
+                    baseArchive = archive;
+                }
+            }
+            if (baseArchive == null) {
+                throw new Exception("No valid archive for retrieval of base deposit " + baseDepositId);
+            }
+            
+            HashMap<String, String> baseProperties = new HashMap<>();
+            baseProperties.put("bagId", baseDeposit.getBagId());
+            baseProperties.put("archiveId", baseArchive.getArchiveId());
+            baseProperties.put("archiveSize", Long.toString(baseDeposit.getArchiveSize()));
+            baseProperties.put("archiveDigest", baseDeposit.getArchiveDigest());
+            baseProperties.put("archiveDigestAlgorithm", baseDeposit.getArchiveDigestAlgorithm());
+            if (baseArchive.isSegmented()) {
+                baseProperties.put("archiveSegments", mapper.writeValueAsString(baseArchive.getSegments()));
+                baseProperties.put("archiveSegmentSize", Long.toString(baseArchive.getSegmentSize()));
+            }
+            if (baseDeposit.getArchiveCompression() != null) {
+                baseProperties.put("archiveCompression", baseDeposit.getArchiveCompression());
+            }
+            baseArchives.add(baseProperties);
+            
+            baseDepositId = baseDeposit.getBaseDepositId();
+        }
+        
+        return baseArchives;
+    }
 }
@@ -69,10 +69,10 @@ public class FileStoreController {
     public ResponseEntity<List<FileStore>> getFileStores(@RequestHeader(value = "X-UserID", required = true) String userID) {
         User user = usersService.getUser(userID);
         
-        List<FileStore> userStores = user.getFileStores();
-        for (FileStore store : userStores) {
+        List<FileStore> userStores = new ArrayList<>();
+        for (FileStore store : user.getFileStores()) {
             // For now - strip out config information
-            store.setProperties(null);
+            userStores.add(new FileStore(store, null));
         }
         
         return new ResponseEntity<>(userStores, HttpStatus.OK);
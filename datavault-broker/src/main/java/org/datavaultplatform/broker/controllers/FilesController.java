@@ -63,6 +63,9 @@ public class FilesController {
                                          userStore.getLabel(),
                                          true);
             files.add(info);
+            
+            // Get the top level of the storage ready for when it is opened
+            filesService.prefetch("", userStore);
         }
         
         // "GET /files/" will display a list of configured user storage systems.
@@ -95,10 +98,15 @@ public class FilesController {
         String requestPath = (String)request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
         String filePath = requestPath.replaceFirst("^/files/" + storageID, "");
         
-        List<FileInfo> files = filesService.getFilesListing(filePath, store);
+        List<FileInfo> listing = filesService.getFilesListing(filePath, store);
+        
+        if (listing == null) {
+            throw new Exception("Storage device '" + storageID + "' could not be listed");
+        }
         
-        // Add the storage key to the start of the returned path/key
-        for (FileInfo file : files) {
+        // Add the storage key to the start of the returned path/key, on a copy as the listing is cached
+        List<FileInfo> files = new ArrayList<>();
+        for (FileInfo file : listing) {
             String fullKey = file.getKey();
             
             if (!fullKey.startsWith("/")) {
@@ -106,7 +114,14 @@ public class FilesController {
             }
             
             fullKey = storageID + fullKey;
-            file.setKey(fullKey);
+            
+            FileInfo info = new FileInfo(fullKey,
+                                         file.getAbsolutePath(),
+                                         file.getName(),
+                                         file.getIsDirectory());
+            info.setSize(file.getSize());
+            info.setModified(file.getModified());
+            files.add(info);
         }
         
         return files;
@@ -10,6 +10,7 @@ import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
 import org.datavaultplatform.broker.services.UsersService;
+import org.datavaultplatform.broker.services.VaultsService;
 import org.datavaultplatform.common.model.User;
 import org.datavaultplatform.common.model.Vault;
 import org.datavaultplatform.common.response.VaultInfo;
@@ -20,6 +21,7 @@ public class GroupsController {
     
     private GroupsService groupsService;
     private UsersService usersService;
+    private VaultsService vaultsService;
 
     public void setGroupsService(GroupsService groupsService) {
         this.groupsService = groupsService;
@@ -29,6 +31,10 @@ public class GroupsController {
         this.usersService = usersService;
     }
 
+    public void setVaultsService(VaultsService vaultsService) {
+        this.vaultsService = vaultsService;
+    }
+
     @ApiMethod(
             path = "/groups",
             verb = ApiVerb.GET,
@@ -133,12 +139,11 @@ public class GroupsController {
         }
         
         Group group = groupsService.getGroup(groupId);
-        List<User> owners = group.getOwners();
-        
-        if (!owners.contains(ownerUser)) {
-            owners.add(ownerUser);
-            groupsService.updateGroup(group);
+        if (group == null) {
+            throw new Exception("Group '" + groupId + "' does not exist");
         }
+        
+        groupsService.addGroupOwner(groupId, ownerUser);
     }
 
     @ApiHeaders(headers={
@@ -165,8 +170,11 @@ public class GroupsController {
         }
         
         Group group = groupsService.getGroup(groupId);
-        group.getOwners().remove(ownerUser);
-        groupsService.updateGroup(group);
+        if (group == null) {
+            throw new Exception("Group '" + groupId + "' does not exist");
+        }
+        
+        groupsService.removeGroupOwner(groupId, ownerUser);
     }
     
     @ApiMethod(
@@ -213,7 +221,7 @@ public class GroupsController {
     @RequestMapping(value = "/groups/{groupid}/count", method = RequestMethod.GET)
     public int getGroupVaultCount(@RequestHeader(value = "X-UserID", required = true) String userID,
                                   @PathVariable("groupid") @ApiPathParam(name = "Group ID", description = "The Group ID to retrieve") String groupID) {
-        return groupsService.getGroup(groupID).getVaults().size();
+        return vaultsService.getVaultsForGroup(groupID).size();
     }
 
     @ApiMethod(
@@ -231,7 +239,7 @@ public class GroupsController {
                                           @PathVariable("groupid") String groupID) throws Exception {
 
         List<VaultInfo> vaultResponses = new ArrayList<>();
-        for (Vault vault : groupsService.getGroup(groupID).getVaults()) {
+        for (Vault vault : vaultsService.getVaultsForGroup(groupID)) {
             vaultResponses.add(vault.convertToResponse());
         }
         return vaultResponses;
@@ -253,7 +261,7 @@ public class GroupsController {
 
         Group group = groupsService.getGroup(groupID);
         // Only attempt to delete if there are no associated vaults or group owners
-        if ((group.getVaults().size() == 0) && (group.getOwners().size() == 0)) {
+        if (vaultsService.getVaultsForGroup(groupID).isEmpty() && (group.getOwners().size() == 0)) {
             groupsService.deleteGroup(group);
             return true;
         }
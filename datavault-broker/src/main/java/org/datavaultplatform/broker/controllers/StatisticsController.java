@@ -2,9 +2,12 @@ package org.datavaultplatform.broker.controllers;
 
 import org.datavaultplatform.broker.services.*;
 import org.datavaultplatform.common.model.*;
+import org.datavaultplatform.common.response.StatisticsInfo;
 import org.jsondoc.core.annotation.*;
+import org.jsondoc.core.pojo.ApiVerb;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
@@ -20,6 +23,7 @@ public class StatisticsController {
     private GroupsService groupsService;
     private UsersService usersService;
     private EventService eventService;
+    private StatisticsService statisticsService;
 
     private static final Logger logger = LoggerFactory.getLogger(StatisticsController.class);
 
@@ -51,6 +55,26 @@ public class StatisticsController {
         this.eventService = eventService;
     }
 
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
+    @ApiMethod(
+            path = "/statistics/snapshot",
+            verb = ApiVerb.GET,
+            description = "Gets all of the system statistics at once, from totals kept in memory",
+            produces = { MediaType.APPLICATION_JSON_VALUE },
+            responsestatuscode = "200 - OK"
+    )
+    @ApiHeaders(headers={
+            @ApiHeader(name="X-UserID", description="DataVault Broker User ID")
+    })
+    @RequestMapping(value = "/statistics/snapshot", method = RequestMethod.GET)
+    public StatisticsInfo getSnapshot(@RequestHeader(value = "X-UserID", required = true) String userID) throws Exception {
+
+        return statisticsService.getSnapshot();
+    }
+
     @RequestMapping(value = "/statistics/count", method = RequestMethod.GET)
     public int getVaultsCount(@RequestHeader(value = "X-UserID", required = true) String userID) throws Exception {
 
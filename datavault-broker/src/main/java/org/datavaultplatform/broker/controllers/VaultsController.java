@@ -108,8 +108,7 @@ public class VaultsController {
     public List<VaultInfo> getVaults(@RequestHeader(value = "X-UserID", required = true) String userID) {
 
         List<VaultInfo> vaultResponses = new ArrayList<>();
-        User user = usersService.getUser(userID);
-        for (Vault vault : user.getVaults()) {
+        for (Vault vault : vaultsService.getVaultsForUser(userID)) {
             vaultResponses.add(vault.convertToResponse());
         }
         return vaultResponses;
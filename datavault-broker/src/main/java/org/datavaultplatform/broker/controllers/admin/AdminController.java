@@ -10,6 +10,7 @@ import org.datavaultplatform.common.event.Event;
 import org.datavaultplatform.common.response.DepositInfo;
 import org.datavaultplatform.common.response.VaultInfo;
 import org.datavaultplatform.common.response.EventInfo;
+import org.datavaultplatform.common.response.Page;
 import org.jsondoc.core.annotation.*;
 import org.jsondoc.core.pojo.ApiVerb;
 import org.springframework.http.MediaType;
@@ -28,6 +29,10 @@ import org.datavaultplatform.broker.services.EventService;
 @Api(name="Admin", description = "Administrator functions")
 public class AdminController {
 
+    // The number of items in a page if the client does not ask for a number, and the most it may ask for
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private VaultsService vaultsService;
     private DepositsService depositsService;
     private RetrievesService retrievesService;
@@ -60,6 +65,30 @@ public class AdminController {
         return depositResponses;
     }
 
+    @ApiMethod(
+            path = "/admin/deposits/page",
+            verb = ApiVerb.GET,
+            description = "Gets a page of Deposits, starting after the last Deposit of the previous page",
+            produces = { MediaType.APPLICATION_JSON_VALUE },
+            responsestatuscode = "200 - OK"
+    )
+    @ApiHeaders(headers={
+            @ApiHeader(name="X-UserID", description="DataVault Broker User ID")
+    })
+    @RequestMapping(value = "/admin/deposits/page", method = RequestMethod.GET)
+    public Page<DepositInfo> getDepositsPage(@RequestHeader(value = "X-UserID", required = true) String userID,
+                                             @RequestParam(value = "sort", required = false)
+                                             @ApiQueryParam(name = "sort", description = "Deposit sort field", allowedvalues = {"id", "creationTime"}, defaultvalue = "creationTime", required = false) String sort,
+                                             @RequestParam(value = "order", required = false)
+                                             @ApiQueryParam(name = "order", description = "Deposit sort order", allowedvalues = {"asc", "dec"}, defaultvalue = "asc", required = false) String order,
+                                             @RequestParam(value = "after", required = false)
+                                             @ApiQueryParam(name = "after", description = "The 'next' cursor of the previous page", required = false) String after,
+                                             @RequestParam(value = "limit", required = false)
+                                             @ApiQueryParam(name = "limit", description = "The maximum number of Deposits", defaultvalue = "100", required = false) Integer limit) throws Exception {
+
+        return depositsService.getDepositsPage(sort, order, after, pageSize(limit));
+    }
+
     @RequestMapping(value = "/admin/retrieves", method = RequestMethod.GET)
     public List<Retrieve> getRetrievesAll(@RequestHeader(value = "X-UserID", required = true) String userID) throws Exception {
 
@@ -93,6 +122,30 @@ public class AdminController {
         return vaultResponses;
     }
     
+    @ApiMethod(
+            path = "/admin/vaults/page",
+            verb = ApiVerb.GET,
+            description = "Gets a page of Vaults, starting after the last Vault of the previous page",
+            produces = { MediaType.APPLICATION_JSON_VALUE },
+            responsestatuscode = "200 - OK"
+    )
+    @ApiHeaders(headers={
+            @ApiHeader(name="X-UserID", description="DataVault Broker User ID")
+    })
+    @RequestMapping(value = "/admin/vaults/page", method = RequestMethod.GET)
+    public Page<VaultInfo> getVaultsPage(@RequestHeader(value = "X-UserID", required = true) String userID,
+                                         @RequestParam(value = "sort", required = false)
+                                         @ApiQueryParam(name = "sort", description = "Vault sort field", allowedvalues = {"id", "creationTime"}, defaultvalue = "creationTime", required = false) String sort,
+                                         @RequestParam(value = "order", required = false)
+                                         @ApiQueryParam(name = "order", description = "Vault sort order", allowedvalues = {"asc", "dec"}, defaultvalue = "asc", required = false) String order,
+                                         @RequestParam(value = "after", required = false)
+                                         @ApiQueryParam(name = "after", description = "The 'next' cursor of the previous page", required = false) String after,
+                                         @RequestParam(value = "limit", required = false)
+                                         @ApiQueryParam(name = "limit", description = "The maximum number of Vaults", defaultvalue = "100", required = false) Integer limit) throws Exception {
+
+        return vaultsService.getVaultsPage(sort, order, after, pageSize(limit));
+    }
+    
     @RequestMapping(value = "/admin/events", method = RequestMethod.GET)
     public List<EventInfo> getEventsAll(@RequestHeader(value = "X-UserID", required = true) String userID,
                                         @RequestParam(value = "sort", required = false) String sort) throws Exception {
@@ -103,4 +156,35 @@ public class AdminController {
         }
         return events;
     }
+    
+    @ApiMethod(
+            path = "/admin/events/page",
+            verb = ApiVerb.GET,
+            description = "Gets a page of Events, starting after the last Event of the previous page",
+            produces = { MediaType.APPLICATION_JSON_VALUE },
+            responsestatuscode = "200 - OK"
+    )
+    @ApiHeaders(headers={
+            @ApiHeader(name="X-UserID", description="DataVault Broker User ID")
+    })
+    @RequestMapping(value = "/admin/events/page", method = RequestMethod.GET)
+    public Page<EventInfo> getEventsPage(@RequestHeader(value = "X-UserID", required = true) String userID,
+                                         @RequestParam(value = "sort", required = false)
+                                         @ApiQueryParam(name = "sort", description = "Event sort field", allowedvalues = {"id", "timestamp"}, defaultvalue = "timestamp", required = false) String sort,
+                                         @RequestParam(value = "order", required = false)
+                                         @ApiQueryParam(name = "order", description = "Event sort order", allowedvalues = {"asc", "dec"}, defaultvalue = "asc", required = false) String order,
+                                         @RequestParam(value = "after", required = false)
+                                         @ApiQueryParam(name = "after", description = "The 'next' cursor of the previous page", required = false) String after,
+                                         @RequestParam(value = "limit", required = false)
+                                         @ApiQueryParam(name = "limit", description = "The maximum number of Events", defaultvalue = "100", required = false) Integer limit) throws Exception {
+
+        return eventService.getEventsPage(sort, order, after, pageSize(limit));
+    }
+    
+    private int pageSize(Integer limit) {
+        if (limit == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+    }
 }
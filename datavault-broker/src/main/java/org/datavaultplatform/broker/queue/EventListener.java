@@ -7,14 +7,38 @@ import org.datavaultplatform.common.event.Error;
 import org.datavaultplatform.common.event.deposit.*;
 import org.datavaultplatform.common.event.retrieve.*;
 import org.datavaultplatform.common.model.*;
+import com.rabbitmq.client.Channel;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-public class EventListener implements MessageListener {
+/**
+ * Receives events from the workers and applies them to the database.
+ *
+ * Messages are decoded as they arrive and put on a bounded queue. A single ingestion thread takes
+ * them off the queue in micro-batches, so events are applied in the order they were received. Only
+ * the latest progress update of each job in a batch is applied, and it is kept by the
+ * JobStateService and only written to the database every so often. Progress updates which change
+ * the state of a job are always applied. The changes made by the batch are written in one
+ * transaction. If another update conflicts with the batch, the batch is applied again from fresh
+ * copies of the entities, a bounded number of times, before falling back to applying the events
+ * one at a time.
+ *
+ * Messages are acknowledged manually, once the changes of their batch have been saved, so the
+ * events which are queued when the broker stops or fails are redelivered by the message queue.
+ * As with any redelivery, an event whose changes were saved but whose message was not yet
+ * acknowledged (e.g. because the listener container closed its channel during shutdown) is
+ * applied again.
+ */
+public class EventListener implements ChannelAwareMessageListener {
 
     private JobsService jobsService;
     private EventService eventService;
@@ -25,6 +49,18 @@ public class EventListener implements MessageListener {
     private RetrievesService retrievesService;
     private UsersService usersService;
     private EmailService emailService;
+    private JobStateService jobStateService;
+    private StatisticsService statisticsService;
+    
+    private int batchSize = 100;
+    private long batchWait = 50;
+    private int queueCapacity = 10000;
+    private int maxAttempts = 5;
+    
+    private final ObjectMapper mapper = new ObjectMapper();
+    private BlockingQueue<Received> received = null;
+    private Thread ingester = null;
+    private volatile boolean stopping = false;
 
     private static final Logger logger = LoggerFactory.getLogger(EventListener.class);
     
@@ -37,206 +73,467 @@ public class EventListener implements MessageListener {
     public void setRetrievesService(RetrievesService retrievesService) { this.retrievesService = retrievesService; }
     public void setUsersService(UsersService usersService) { this.usersService = usersService; }
     public void setEmailService(EmailService emailService) { this.emailService = emailService; }
+    public void setJobStateService(JobStateService jobStateService) { this.jobStateService = jobStateService; }
+    public void setStatisticsService(StatisticsService statisticsService) { this.statisticsService = statisticsService; }
+    public void setBatchSize(int batchSize) { this.batchSize = Math.max(1, batchSize); }
+    public void setBatchWait(long batchWait) { this.batchWait = batchWait; }
+    public void setQueueCapacity(int queueCapacity) { this.queueCapacity = Math.max(1, queueCapacity); }
+    public void setMaxAttempts(int maxAttempts) { this.maxAttempts = Math.max(1, maxAttempts); }
+    
+    // A received message and its decoded event
+    private class Received {
+        
+        final String body;
+        final Channel channel;
+        final long deliveryTag;
+        Event event;
+        
+        Received(String body, Channel channel, long deliveryTag) throws Exception {
+            this.body = body;
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.event = decode();
+        }
+        
+        // Decode the event again, e.g. after a failed transaction has given it an ID
+        Event decode() throws Exception {
+            Event commonEvent = mapper.readValue(body, Event.class);
+            Class<?> clazz = Class.forName(commonEvent.getEventClass());
+            return (Event)(mapper.readValue(body, clazz));
+        }
+    }
+    
+    // The entities loaded and changed while applying a batch, one instance of each
+    private class Batch {
+        
+        final Map<String, Job> jobs = new HashMap<>();
+        final Map<String, Deposit> deposits = new HashMap<>();
+        final Map<String, Vault> vaults = new HashMap<>();
+        final Map<String, Retrieve> retrieves = new HashMap<>();
+        final Map<String, User> users = new HashMap<>();
+        final Map<String, ArchiveStore> archiveStores = new HashMap<>();
+        
+        final List<Object> updated = new ArrayList<>();
+        final List<Object> created = new ArrayList<>();
+        final List<Runnable> afterCommit = new ArrayList<>();
+        
+        // The deposit of each job affected by the batch, whose subscribers are told of the change
+        final Map<String, String> jobDeposits = new HashMap<>();
+        
+        Job job(String id) {
+            if (id == null) {
+                return null;
+            }
+            if (!jobs.containsKey(id)) {
+                jobs.put(id, jobStateService.apply(jobsService.getJob(id)));
+            }
+            return jobs.get(id);
+        }
+        
+        Deposit deposit(String id) {
+            if (id == null) {
+                return null;
+            }
+            if (!deposits.containsKey(id)) {
+                deposits.put(id, depositsService.getDeposit(id));
+            }
+            return deposits.get(id);
+        }
+        
+        Vault vault(Deposit deposit) {
+            Vault vault = deposit.getVault();
+            if (!vaults.containsKey(vault.getID())) {
+                vaults.put(vault.getID(), vault);
+            }
+            return vaults.get(vault.getID());
+        }
+        
+        Retrieve retrieve(String id) {
+            if (!retrieves.containsKey(id)) {
+                retrieves.put(id, retrievesService.getRetrieve(id));
+            }
+            return retrieves.get(id);
+        }
+        
+        User user(String id) {
+            if (id == null) {
+                return null;
+            }
+            if (!users.containsKey(id)) {
+                users.put(id, usersService.getUser(id));
+            }
+            return users.get(id);
+        }
+        
+        ArchiveStore archiveStore(String id) {
+            if (!archiveStores.containsKey(id)) {
+                archiveStores.put(id, archiveStoreService.getArchiveStore(id));
+            }
+            return archiveStores.get(id);
+        }
+        
+        void update(Object entity) {
+            for (Object other : updated) {
+                if (other == entity) {
+                    return;
+                }
+            }
+            updated.add(entity);
+        }
+    }
 
+    /**
+     * Start the ingestion thread
+     */
+    public synchronized void start() {
+        
+        if (ingester != null) {
+            return;
+        }
+        
+        received = new LinkedBlockingQueue<>(queueCapacity);
+        ingester = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ingest();
+            }
+        }, "event-ingester");
+        ingester.setDaemon(true);
+        ingester.start();
+    }
+    
+    /**
+     * Apply all of the events which have been received and stop the ingestion thread
+     */
+    public void stop() {
+        
+        Thread stopped;
+        synchronized (this) {
+            stopped = ingester;
+        }
+        if (stopped == null) {
+            return;
+        }
+        
+        stopping = true;
+        stopped.interrupt();
+        try {
+            // Wait for the queue to be drained, however long it takes
+            while (stopped.isAlive()) {
+                stopped.join(30000);
+                if (stopped.isAlive()) {
+                    logger.info("Waiting for " + received.size() + " events to be applied");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted with " + received.size() + " events still to be applied, they will be redelivered");
+        }
+    }
+    
     @Override
-    public void onMessage(Message msg) {
+    public void onMessage(Message msg, Channel channel) {
         
         String messageBody = new String(msg.getBody());
+        long deliveryTag = msg.getMessageProperties().getDeliveryTag();
         logger.info("Received '" + messageBody + "'");
         
+        Received message;
         try {
-            // Decode the event
-            ObjectMapper mapper = new ObjectMapper();
-            Event commonEvent = mapper.readValue(messageBody, Event.class);
-
-            Class<?> clazz = Class.forName(commonEvent.getEventClass());
-            Event concreteEvent = (Event)(mapper.readValue(messageBody, clazz));
-            
-            // Get the related deposit
-            Deposit deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-            concreteEvent.setDeposit(deposit);
-
-            // Get the related job
-            Job job = jobsService.getJob(concreteEvent.getJobId());
-            concreteEvent.setJob(job);
+            message = new Received(messageBody, channel, deliveryTag);
+        } catch (Exception e) {
+            // The event can never be applied, so it is not redelivered
+            logger.error("Error decoding event", e);
+            acknowledge(channel, deliveryTag);
+            return;
+        }
+        
+        try {
+            // Queue the event, waiting for room if the ingestion thread is behind. It is acknowledged
+            // once it has been applied.
+            start();
+            received.put(message);
             
-            // Get the related User
-            User user = usersService.getUser(concreteEvent.getUserId());
-            concreteEvent.setUser(user);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while queueing event, it will be redelivered", e);
+        }
+    }
+    
+    private void acknowledge(Channel channel, long deliveryTag) {
+        try {
+            channel.basicAck(deliveryTag, false);
+        } catch (Exception e) {
+            logger.warn("Error acknowledging event, it will be redelivered", e);
+        }
+    }
+    
+    // Take batches of events off the queue and apply them, until stopped
+    private void ingest() {
+        
+        List<Received> batch = new ArrayList<>();
+        
+        while (true) {
+            try {
+                if (stopping) {
+                    received.drainTo(batch, batchSize);
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                } else {
+                    // Wait for an event, then for up to batchWait for more to join it
+                    batch.add(received.take());
+                    long deadline = System.currentTimeMillis() + batchWait;
+                    while (batch.size() < batchSize) {
+                        received.drainTo(batch, batchSize - batch.size());
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (batch.size() >= batchSize || remaining <= 0) {
+                            break;
+                        }
+                        Received next = received.poll(remaining, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Apply what has been received before stopping
+                stopping = true;
+            }
             
-            if (concreteEvent.getPersistent()) {
-                // Persist the event properties in the database ...
-                eventService.addEvent(concreteEvent);
+            if (batch.isEmpty()) {
+                continue;
             }
             
-            // Update with next state information (if present)
-            if (concreteEvent.nextState != null) {
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        if (job.getState() == null || (job.getState() < concreteEvent.nextState)) {
-                            job.setState(concreteEvent.nextState);
-                            jobsService.updateJob(job);
-                        }
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        job = jobsService.getJob(concreteEvent.getJobId());
+            try {
+                if (!apply(batch) && batch.size() > 1) {
+                    logger.warn("Applying " + batch.size() + " events one at a time");
+                    for (Received message : batch) {
+                        List<Received> single = new ArrayList<>();
+                        single.add(message);
+                        apply(single);
                     }
                 }
+            } catch (Exception e) {
+                logger.error("Error applying events", e);
             }
             
-            // Maybe perform an action based on the event type ...
+            // The messages are only acknowledged once their changes have been saved (or given up on)
+            for (Received message : batch) {
+                acknowledge(message.channel, message.deliveryTag);
+            }
+            batch.clear();
+        }
+    }
+    
+    // Apply a batch of events in one transaction, returns false if the transaction failed
+    private boolean apply(List<Received> batch) throws Exception {
+        
+        // The position of the latest progress update of each job, the earlier ones are superseded unless
+        // they change the state of the job
+        Map<String, Integer> latestProgress = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).event instanceof UpdateProgress) {
+                latestProgress.put(batch.get(i).event.getJobId(), i);
+            }
+        }
+        
+        for (int attempt = 1; ; attempt++) {
             
-            if (concreteEvent instanceof InitStates) {
-                
-                // Update the Job state information
-                InitStates initStatesEvent = (InitStates)concreteEvent;
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        job.setStates(initStatesEvent.getStates());
-                        jobsService.updateJob(job);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        job = jobsService.getJob(concreteEvent.getJobId());
-                    }
+            Batch changes = new Batch();
+            
+            for (int i = 0; i < batch.size(); i++) {
+                Received message = batch.get(i);
+                if (message.event instanceof UpdateProgress && message.event.nextState == null &&
+                        latestProgress.get(message.event.getJobId()) != i) {
+                    continue;
+                }
+                if (attempt > 1) {
+                    message.event = message.decode();
                 }
+                try {
+                    apply(message.event, changes);
+                } catch (Exception e) {
+                    logger.error("Error applying event '" + message.body + "'", e);
+                }
+            }
             
-            } else if (concreteEvent instanceof UpdateProgress) {
-                
-                // Update the Job state
-                UpdateProgress updateStateEvent = (UpdateProgress)concreteEvent;
+            try {
+                eventService.saveBatch(changes.updated, changes.created);
                 
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        job.setProgress(updateStateEvent.getProgress());
-                        job.setProgressMax(updateStateEvent.getProgressMax());
-                        job.setProgressMessage(updateStateEvent.getProgressMessage());
-                        jobsService.updateJob(job);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        job = jobsService.getJob(concreteEvent.getJobId());
-                    }
+            } catch (org.hibernate.StaleStateException e) {
+                if (attempt < maxAttempts) {
+                    // Apply the batch again to fresh copies of the entities
+                    logger.debug("Conflicting update while applying " + batch.size() + " events, retrying");
+                    continue;
                 }
+                logger.error("Conflicting updates, gave up applying " + batch.size() + " events after " + attempt + " attempts", e);
+                return false;
                 
-            } else if (concreteEvent instanceof Start) {
-                
-                // Update the deposit status
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        if (deposit.getStatus() == null || (deposit.getStatus() != Deposit.Status.COMPLETE)) {
-                            deposit.setStatus(Deposit.Status.IN_PROGRESS);
-                            depositsService.updateDeposit(deposit);
-                        }
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-                    }
+            } catch (RuntimeException e) {
+                logger.error("Error saving " + batch.size() + " events", e);
+                return false;
+            }
+            
+            // Subscribers are only told of changes once they have been saved
+            for (Map.Entry<String, String> jobDeposit : changes.jobDeposits.entrySet()) {
+                try {
+                    jobStateService.changed(jobDeposit.getValue(), changes.jobs.get(jobDeposit.getKey()));
+                } catch (Exception e) {
+                    logger.error("Error publishing job change", e);
                 }
-                
-            } else if (concreteEvent instanceof ComputedSize) {
-                
-                // Update the deposit with the computed size
-                ComputedSize computedSizeEvent = (ComputedSize)concreteEvent;
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        deposit.setSize(computedSizeEvent.getBytes());
-                        depositsService.updateDeposit(deposit);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-                    }
+            }
+            
+            // Notifications are only sent (and statistics updated) once the changes have been saved
+            for (Runnable action : changes.afterCommit) {
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    logger.error("Error sending notification", e);
                 }
+            }
+            
+            return true;
+        }
+    }
+    
+    // Apply the changes of an event to the entities of a batch
+    private void apply(Event concreteEvent, Batch changes) {
+        
+        // Get the related deposit
+        Deposit deposit = changes.deposit(concreteEvent.getDepositId());
+        concreteEvent.setDeposit(deposit);
 
-                // Add to the cumulative vault size
-                Vault vault = deposit.getVault();
-                
-                success = false;
-                while (!success) {
-                    try {
-                        long vaultSize = vault.getSize();
-                        vault.setSize(vaultSize + computedSizeEvent.getBytes());
-                        vaultsService.updateVault(vault);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        vault = vaultsService.getVault(vault.getID());
-                    }
-                }
+        // Get the related job
+        Job job = changes.job(concreteEvent.getJobId());
+        concreteEvent.setJob(job);
+        if (job != null) {
+            changes.jobDeposits.put(job.getID(), concreteEvent.getDepositId());
+        }
+        
+        // Get the related User
+        User user = changes.user(concreteEvent.getUserId());
+        concreteEvent.setUser(user);
+        
+        if (concreteEvent.getPersistent()) {
+            // Persist the event properties in the database ...
+            changes.created.add(concreteEvent);
+        }
+        
+        // Update with next state information (if present)
+        if (concreteEvent.nextState != null) {
+            if (job.getState() == null || (job.getState() < concreteEvent.nextState)) {
+                job.setState(concreteEvent.nextState);
+                changes.update(job);
+            }
+        }
+        
+        // Maybe perform an action based on the event type ...
+        
+        if (concreteEvent instanceof InitStates) {
+            
+            // Update the Job state information
+            InitStates initStatesEvent = (InitStates)concreteEvent;
+            
+            job.setStates(initStatesEvent.getStates());
+            changes.update(job);
+        
+        } else if (concreteEvent instanceof UpdateProgress) {
+            
+            // Update the Job state
+            UpdateProgress updateStateEvent = (UpdateProgress)concreteEvent;
+            
+            job.setProgress(updateStateEvent.getProgress());
+            job.setProgressMax(updateStateEvent.getProgressMax());
+            job.setProgressMessage(updateStateEvent.getProgressMessage());
+            
+            // Progress is kept in memory, and only written to the database every so often
+            if (jobStateService.update(updateStateEvent)) {
+                changes.update(job);
+            }
+            
+        } else if (concreteEvent instanceof Start) {
+            
+            // Update the deposit status
+            if (deposit.getStatus() == null || (deposit.getStatus() != Deposit.Status.COMPLETE)) {
+                Deposit.Status previous = deposit.getStatus();
+                deposit.setStatus(Deposit.Status.IN_PROGRESS);
+                changes.update(deposit);
+                changes.afterCommit.add(() -> statisticsService.depositStatusChanged(previous, Deposit.Status.IN_PROGRESS));
+            }
+            
+        } else if (concreteEvent instanceof ComputedSize) {
+            
+            // Update the deposit with the computed size
+            ComputedSize computedSizeEvent = (ComputedSize)concreteEvent;
+            
+            long added = computedSizeEvent.getBytes() - deposit.getSize();
+            deposit.setSize(computedSizeEvent.getBytes());
+            changes.update(deposit);
+            changes.afterCommit.add(() -> statisticsService.depositSizeChanged(added));
 
-            } else if (concreteEvent instanceof ComputedDigest) {
-                
-                // Update the deposit with the computed digest
-                ComputedDigest computedDigestEvent = (ComputedDigest)concreteEvent;
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        deposit.setArchiveDigest(computedDigestEvent.getDigest());
-                        deposit.setArchiveDigestAlgorithm(computedDigestEvent.getDigestAlgorithm());
-                        depositsService.updateDeposit(deposit);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-                    }
-                }
-                
-            } else if (concreteEvent instanceof Complete) {
+            // Add to the cumulative vault size
+            Vault vault = changes.vault(deposit);
+            long vaultSize = vault.getSize();
+            vault.setSize(vaultSize + computedSizeEvent.getBytes());
+            changes.update(vault);
 
-                // Update the deposit status and add archives
-                Complete completeEvent = (Complete)concreteEvent;
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        deposit.setStatus(Deposit.Status.COMPLETE);
-                        deposit.setArchiveSize(completeEvent.getArchiveSize());
-                        depositsService.updateDeposit(deposit);
+        } else if (concreteEvent instanceof ComputedDigest) {
+            
+            // Update the deposit with the computed digest
+            ComputedDigest computedDigestEvent = (ComputedDigest)concreteEvent;
+            
+            deposit.setArchiveDigest(computedDigestEvent.getDigest());
+            deposit.setArchiveDigestAlgorithm(computedDigestEvent.getDigestAlgorithm());
+            changes.update(deposit);
+            
+        } else if (concreteEvent instanceof ComputedCompression) {
+            
+            // Update the deposit with the archive compression
+            ComputedCompression computedCompressionEvent = (ComputedCompression)concreteEvent;
+            
+            deposit.setArchiveCompression(computedCompressionEvent.getCompression());
+            deposit.setArchiveCompressionLevel(computedCompressionEvent.getCompressionLevel());
+            changes.update(deposit);
+            
+        } else if (concreteEvent instanceof Complete) {
 
-                        // Add the archive objects, one for each archiveStore
-                        for (String archiveStoreId : completeEvent.getArchiveIds().keySet()) {
-                            ArchiveStore archiveStore = archiveStoreService.getArchiveStore(archiveStoreId);
-                            archivesService.addArchive(deposit, archiveStore, completeEvent.getArchiveIds().get(archiveStoreId));
-                        }
+            // Update the deposit status and add archives
+            Complete completeEvent = (Complete)concreteEvent;
+            
+            Deposit.Status previous = deposit.getStatus();
+            changes.afterCommit.add(() -> statisticsService.depositStatusChanged(previous, Deposit.Status.COMPLETE));
+            deposit.setStatus(Deposit.Status.COMPLETE);
+            deposit.setArchiveSize(completeEvent.getArchiveSize());
+            changes.update(deposit);
 
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-                    }
-                }
-                
-                // Get related information for emails
-                Vault vault = deposit.getVault();
-                Group group = vault.getGroup();
-                User depositUser = usersService.getUser(completeEvent.getUserId());
-                
-                HashMap model = new HashMap();
-                model.put("group-name", group.getName());
-                model.put("deposit-note", deposit.getNote());
-                model.put("deposit-id", deposit.getID());
-                model.put("vault-name", vault.getName());
-                model.put("vault-id", vault.getID());
-                model.put("vault-retention-expiry", vault.getRetentionPolicyExpiry());
-                model.put("user-id", depositUser.getID());
-                model.put("user-firstname", depositUser.getFirstname());
-                model.put("user-lastname", depositUser.getLastname());
-                model.put("size-bytes", deposit.getArchiveSize());
-                model.put("timestamp", completeEvent.getTimestamp());
-                
+            // Add the archive objects, one for each archiveStore
+            for (String archiveStoreId : completeEvent.getArchiveIds().keySet()) {
+                ArchiveStore archiveStore = changes.archiveStore(archiveStoreId);
+                changes.created.add(archivesService.newArchive(deposit, archiveStore, completeEvent.getArchiveIds().get(archiveStoreId),
+                        completeEvent.getArchiveSegments().get(archiveStoreId), completeEvent.getSegmentSize()));
+            }
+            
+            // Get related information for emails
+            Vault vault = deposit.getVault();
+            Group group = vault.getGroup();
+            User depositUser = changes.user(completeEvent.getUserId());
+            
+            HashMap model = new HashMap();
+            model.put("group-name", group.getName());
+            model.put("deposit-note", deposit.getNote());
+            model.put("deposit-id", deposit.getID());
+            model.put("vault-name", vault.getName());
+            model.put("vault-id", vault.getID());
+            model.put("vault-retention-expiry", vault.getRetentionPolicyExpiry());
+            model.put("user-id", depositUser.getID());
+            model.put("user-firstname", depositUser.getFirstname());
+            model.put("user-lastname", depositUser.getLastname());
+            model.put("size-bytes", deposit.getArchiveSize());
+            model.put("timestamp", completeEvent.getTimestamp());
+            
+            changes.afterCommit.add(() -> {
                 // Send email to group owners
                 for (User groupAdmin : group.getOwners()) {
                     if (groupAdmin.getEmail() != null) {
@@ -254,57 +551,43 @@ public class EventListener implements MessageListener {
                             "user-deposit-complete.vm",
                             model);
                 }
-                
-            } else if (concreteEvent instanceof Error) {
+            });
+            
+        } else if (concreteEvent instanceof Error) {
 
-                // Update the deposit status and job properties
-                
-                Error errorEvent = (Error)concreteEvent;
-                
-                if (deposit.getStatus() != Deposit.Status.COMPLETE) {
-                    Boolean success = false;
-                    while (!success) {
-                        try {
-                            deposit.setStatus(Deposit.Status.FAILED);
-                            depositsService.updateDeposit(deposit);
-                            success = true;
-                        } catch (org.hibernate.StaleObjectStateException e) {
-                            // Refresh from database and retry
-                            deposit = depositsService.getDeposit(concreteEvent.getDepositId());
-                        }
-                    }
-                }
-                
-                Boolean success = false;
-                while (!success) {
-                    try {
-                        job.setError(true);
-                        job.setErrorMessage(errorEvent.getMessage());
-                        jobsService.updateJob(job);
-                        success = true;
-                    } catch (org.hibernate.StaleObjectStateException e) {
-                        // Refresh from database and retry
-                        job = jobsService.getJob(concreteEvent.getJobId());
-                    }
-                }
-                
-                // Get related information for emails
-                Vault vault = deposit.getVault();
-                Group group = vault.getGroup();
-                User depositUser = usersService.getUser(errorEvent.getUserId());
-                
-                HashMap model = new HashMap();
-                model.put("group-name", group.getName());
-                model.put("deposit-note", deposit.getNote());
-                model.put("deposit-id", deposit.getID());
-                model.put("vault-name", vault.getName());
-                model.put("vault-id", vault.getID());
-                model.put("user-id", depositUser.getID());
-                model.put("user-firstname", depositUser.getFirstname());
-                model.put("user-lastname", depositUser.getLastname());
-                model.put("timestamp", errorEvent.getTimestamp());
-                model.put("error-message", errorEvent.getMessage());
-                
+            // Update the deposit status and job properties
+            
+            Error errorEvent = (Error)concreteEvent;
+            
+            if (deposit.getStatus() != Deposit.Status.COMPLETE) {
+                Deposit.Status previous = deposit.getStatus();
+                deposit.setStatus(Deposit.Status.FAILED);
+                changes.update(deposit);
+                changes.afterCommit.add(() -> statisticsService.depositStatusChanged(previous, Deposit.Status.FAILED));
+            }
+            
+            job.setError(true);
+            job.setErrorMessage(errorEvent.getMessage());
+            changes.update(job);
+            
+            // Get related information for emails
+            Vault vault = deposit.getVault();
+            Group group = vault.getGroup();
+            User depositUser = changes.user(errorEvent.getUserId());
+            
+            HashMap model = new HashMap();
+            model.put("group-name", group.getName());
+            model.put("deposit-note", deposit.getNote());
+            model.put("deposit-id", deposit.getID());
+            model.put("vault-name", vault.getName());
+            model.put("vault-id", vault.getID());
+            model.put("user-id", depositUser.getID());
+            model.put("user-firstname", depositUser.getFirstname());
+            model.put("user-lastname", depositUser.getLastname());
+            model.put("timestamp", errorEvent.getTimestamp());
+            model.put("error-message", errorEvent.getMessage());
+            
+            changes.afterCommit.add(() -> {
                 // Send email to group owners
                 for (User groupAdmin : group.getOwners()) {
                     if (groupAdmin.getEmail() != null) {
@@ -322,23 +605,24 @@ public class EventListener implements MessageListener {
                             "user-deposit-error.vm",
                             model);
                 }
-                
-            } else if (concreteEvent instanceof RetrieveStart) {
+            });
+            
+        } else if (concreteEvent instanceof RetrieveStart) {
 
-                // Update the Retrieve status
-                Retrieve retrieve = retrievesService.getRetrieve(concreteEvent.getRetrieveId());
-                retrieve.setStatus(Retrieve.Status.IN_PROGRESS);
-                retrievesService.updateRetrieve(retrieve);
-            } else if (concreteEvent instanceof RetrieveComplete) {
+            // Update the Retrieve status
+            Retrieve retrieve = changes.retrieve(concreteEvent.getRetrieveId());
+            Retrieve.Status previous = retrieve.getStatus();
+            retrieve.setStatus(Retrieve.Status.IN_PROGRESS);
+            changes.update(retrieve);
+            changes.afterCommit.add(() -> statisticsService.retrieveStatusChanged(previous, Retrieve.Status.IN_PROGRESS));
+        } else if (concreteEvent instanceof RetrieveComplete) {
 
-                // Update the Retrieve status
-                Retrieve retrieve = retrievesService.getRetrieve(concreteEvent.getRetrieveId());
-                retrieve.setStatus(Retrieve.Status.COMPLETE);
-                retrievesService.updateRetrieve(retrieve);
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Update the Retrieve status
+            Retrieve retrieve = changes.retrieve(concreteEvent.getRetrieveId());
+            Retrieve.Status previous = retrieve.getStatus();
+            retrieve.setStatus(Retrieve.Status.COMPLETE);
+            changes.update(retrieve);
+            changes.afterCommit.add(() -> statisticsService.retrieveStatusChanged(previous, Retrieve.Status.COMPLETE));
         }
     }
-}
+}
\ No newline at end of file
@@ -4,20 +4,47 @@ import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Publishes tasks to the worker queue.
+ *
+ * The sender keeps one long-lived connection and a small pool of channels, each with publisher
+ * confirms enabled, so a burst of tasks does not open a connection per task. A send only returns
+ * once the queue server has confirmed the tasks. Several tasks can be sent together, in which case
+ * they are published on one channel and confirmed together.
+ */
 public class Sender {
 
     private String queueServer;
     private String queueName;
     private String queueUser;
     private String queuePassword;
+    private int channels = 4;
+    private long confirmTimeout = 30000;
 
     private static final Logger logger = LoggerFactory.getLogger(Sender.class);
     
+    private Connection connection = null;
+    private final BlockingQueue<Channel> idleChannels = new LinkedBlockingQueue<>();
+    private Semaphore channelLimit = null;
+    
+    // Publish latency metrics
+    private final AtomicLong publishCount = new AtomicLong(0);
+    private final AtomicLong taskCount = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);
+    private final AtomicLong maxLatency = new AtomicLong(0);
+    
     public void setQueueServer(String queueServer) {
         this.queueServer = queueServer;
     }
@@ -34,26 +61,171 @@ public class Sender {
         this.queuePassword = queuePassword;
     }
 
+    public void setChannels(int channels) {
+        this.channels = Math.max(1, channels);
+    }
+
+    public void setConfirmTimeout(long confirmTimeout) {
+        this.confirmTimeout = confirmTimeout;
+    }
+
     //private final static String QUEUE_SERVER = "debian-rabbitmq.local";
     //private final static String QUEUE_NAME = "datavaultplatform";
     //private final static String QUEUE_USER = "datavaultplatform";
     //private final static String QUEUE_PASSWORD = "datavaultplatform";
 
     public void send(String message) throws IOException, TimeoutException {
+        send(Collections.singletonList(message));
+    }
 
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(queueServer);
-        factory.setUsername(queueUser);
-        factory.setPassword(queuePassword);
+    public void send(List<String> messages) throws IOException, TimeoutException {
 
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+        if (messages.isEmpty()) {
+            return;
+        }
         
-        channel.queueDeclare(queueName, false, false, false, null);
-        channel.basicPublish("", queueName, null, message.getBytes());
-        logger.info("Sent '" + message + "'");
+        long start = System.nanoTime();
+        Channel channel = borrowChannel();
+        boolean confirmed = false;
+        
+        try {
+            for (String message : messages) {
+                channel.basicPublish("", queueName, null, message.getBytes());
+                logger.info("Sent '" + message + "'");
+            }
+            channel.waitForConfirmsOrDie(confirmTimeout);
+            confirmed = true;
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the queue server to confirm " + messages.size() + " tasks", e);
+        } finally {
+            returnChannel(channel, confirmed);
+        }
+        
+        long latency = (System.nanoTime() - start) / 1000000;
+        publishCount.incrementAndGet();
+        taskCount.addAndGet(messages.size());
+        totalLatency.addAndGet(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+        logger.debug("Published " + messages.size() + " tasks in " + latency + " ms");
+    }
+    
+    /**
+     * @return The number of confirmed publishes (each of one or more tasks)
+     */
+    public long getPublishCount() {
+        return publishCount.get();
+    }
+    
+    /**
+     * @return The number of confirmed tasks
+     */
+    public long getTaskCount() {
+        return taskCount.get();
+    }
+    
+    /**
+     * @return The mean time to publish and confirm, in milliseconds
+     */
+    public long getMeanLatency() {
+        long count = publishCount.get();
+        return (count > 0) ? totalLatency.get() / count : 0;
+    }
+    
+    /**
+     * @return The longest time to publish and confirm, in milliseconds
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+    
+    /**
+     * Close the channels and the connection
+     */
+    public synchronized void close() {
+        
+        logger.info("Published " + getTaskCount() + " tasks in " + getPublishCount() + " publishes, mean latency "
+                + getMeanLatency() + " ms, max latency " + getMaxLatency() + " ms");
+        
+        idleChannels.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                logger.debug("Error closing connection", e);
+            }
+            connection = null;
+        }
+    }
+    
+    // Take an open channel from the pool, or open a new one if there is room in the pool
+    private Channel borrowChannel() throws IOException, TimeoutException {
+        
+        Semaphore limit;
+        synchronized (this) {
+            if (channelLimit == null) {
+                channelLimit = new Semaphore(channels, true);
+            }
+            limit = channelLimit;
+        }
+        
+        try {
+            if (!limit.tryAcquire(confirmTimeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("Timed out waiting for a channel to the queue server");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a channel to the queue server", e);
+        }
         
-        channel.close();
-        connection.close();
+        try {
+            Channel channel;
+            while ((channel = idleChannels.poll()) != null) {
+                if (channel.isOpen()) {
+                    return channel;
+                }
+            }
+            return openChannel();
+            
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            limit.release();
+            throw e;
+        }
+    }
+    
+    // Put a channel back in the pool, unless it may be in a bad state
+    private void returnChannel(Channel channel, boolean healthy) {
+        
+        if (healthy && channel.isOpen()) {
+            idleChannels.offer(channel);
+        } else {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                logger.debug("Error closing channel", e);
+            }
+        }
+        channelLimit.release();
+    }
+    
+    private synchronized Channel openChannel() throws IOException, TimeoutException {
+        
+        if (connection == null || !connection.isOpen()) {
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setHost(queueServer);
+            factory.setUsername(queueUser);
+            factory.setPassword(queuePassword);
+            
+            connection = factory.newConnection();
+            idleChannels.clear();
+        }
+        
+        Channel channel = connection.createChannel();
+        channel.queueDeclare(queueName, false, false, false, null);
+        channel.confirmSelect();
+        return channel;
     }
 }
\ No newline at end of file
@@ -1,7 +1,8 @@
 package org.datavaultplatform.broker.scheduled;
 
 import org.datavaultplatform.broker.services.VaultsService;
-import org.datavaultplatform.common.model.Vault;
+import org.datavaultplatform.common.retentionpolicy.RetentionPolicyStatus;
+import org.datavaultplatform.common.retentionpolicy.VaultRetention;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -23,35 +24,24 @@ public class CheckRetentionPolicies {
 
     private static final Logger log = LoggerFactory.getLogger(CheckRetentionPolicies.class);
 
+    private static final String[] STATUS_NAMES = { "UNCHECKED", "OK", "REVIEW", "ERROR" };
+
     @Scheduled(cron = "${cron.expression}")
     public void checkAll() throws Exception {
         // Start the check
         Date start = new Date();
         log.info("Initiating check of retention policies at " + start);
 
-        // Get all the vaults
-        List<Vault> vaults = vaultsService.getVaults();
-        for (Vault v : vaults) {
-            // Process each vault
-            log.info("Checking retention policiy of vault: " + v.getID() + " (" + v.getName() + ") with policy " + v.getRetentionPolicy().getID());
-            vaultsService.checkRetentionPolicy(v.getID());
-            Vault checked = vaultsService.getVault(v.getID());
-            int status = checked.getRetentionPolicyStatus();
-            switch (status) {
-                case 0:
-                    log.info("Status of vault " + v.getID() + " is " + "UNCHECKED");
-                    break;
-                case 1:
-                    log.info("Status of vault " + v.getID() + " is " + "OK");
-                    break;
-                case 2:
-                    log.info("Status of vault " + v.getID() + " is " + "REVIEW");
-                    break;
-                case 3:
-                    log.info("Status of vault " + v.getID() + " is " + "ERROR");
-                    break;
-            }
+        // Check the vaults whose review date or status may have changed
+        List<VaultRetention> vaults = vaultsService.checkRetentionPolicies();
+        int[] counts = new int[4];
+        for (VaultRetention v : vaults) {
+            int status = v.getStatus();
+            log.debug("Status of vault " + v.getVaultID() + " with policy " + v.getEngine() + " is " + STATUS_NAMES[status]);
+            counts[status]++;
         }
+        log.info("Checked " + vaults.size() + " vaults: " + counts[RetentionPolicyStatus.OK] + " OK, " +
+                counts[RetentionPolicyStatus.REVIEW] + " REVIEW, " + counts[RetentionPolicyStatus.ERROR] + " ERROR");
 
         // End the check
         Date end = new Date();
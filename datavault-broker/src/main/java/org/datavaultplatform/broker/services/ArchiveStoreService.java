@@ -3,39 +3,70 @@ package org.datavaultplatform.broker.services;
 import org.datavaultplatform.common.model.ArchiveStore;
 import org.datavaultplatform.common.model.dao.ArchiveStoreDAO;
 
+import java.util.Collections;
 import java.util.List;
 
 public class ArchiveStoreService {
 
+    // There are only a few archive stores, so they are cached (and evicted) together
+    private static final String ALL = "all";
+
     private ArchiveStoreDAO archiveStoreDAO;
+    private EntityCache<String, List<ArchiveStore>> archiveStoreCache;
 
     public List<ArchiveStore> getArchiveStores() {
-        return archiveStoreDAO.list();
+        return archiveStoreCache.get(ALL, key -> Collections.unmodifiableList(archiveStoreDAO.list()));
     }
 
     public void addArchiveStore(ArchiveStore archiveStore) {
 
-        archiveStoreDAO.save(archiveStore);
+        try {
+            archiveStoreDAO.save(archiveStore);
+        } finally {
+            archiveStoreCache.clear();
+        }
     }
 
     public void updateArchiveStore(ArchiveStore archiveStore) {
-        archiveStoreDAO.update(archiveStore);
+        try {
+            archiveStoreDAO.update(archiveStore);
+        } finally {
+            archiveStoreCache.clear();
+        }
     }
 
     public ArchiveStore getArchiveStore(String archiveStoreID) {
-        return archiveStoreDAO.findById(archiveStoreID);
+        for (ArchiveStore archiveStore : getArchiveStores()) {
+            if (archiveStore.getID().equals(archiveStoreID)) {
+                return archiveStore;
+            }
+        }
+        return null;
     }
 
     public ArchiveStore getForRetrieval() {
-        return archiveStoreDAO.findForRetrieval();
+        for (ArchiveStore archiveStore : getArchiveStores()) {
+            if (archiveStore.isRetrieveEnabled()) {
+                return archiveStore;
+            }
+        }
+        return null;
     }
 
     public void deleteArchiveStore(String archiveStoreID) {
-        archiveStoreDAO.deleteById(archiveStoreID);
+        try {
+            archiveStoreDAO.deleteById(archiveStoreID);
+        } finally {
+            archiveStoreCache.clear();
+        }
     }
 
     public void setArchiveStoreDAO(ArchiveStoreDAO archiveStoreDAO) {
         this.archiveStoreDAO = archiveStoreDAO;
     }
+
+    public void setArchiveStoreCache(EntityCache<String, List<ArchiveStore>> archiveStoreCache) {
+        this.archiveStoreCache = archiveStoreCache;
+    }
 }
 
@@ -5,6 +5,7 @@ import org.datavaultplatform.common.model.ArchiveStore;
 import org.datavaultplatform.common.model.Deposit;
 import org.datavaultplatform.common.model.dao.ArchiveDAO;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -26,6 +27,14 @@ public class ArchivesService {
     }
 
     public void addArchive(Deposit deposit, ArchiveStore archiveStore, String archiveId) {
+        addArchive(deposit, archiveStore, archiveId, null, 0);
+    }
+
+    public void addArchive(Deposit deposit, ArchiveStore archiveStore, String archiveId, ArrayList<String> segments, long segmentSize) {
+        archiveDAO.save(newArchive(deposit, archiveStore, archiveId, segments, segmentSize));
+    }
+
+    public Archive newArchive(Deposit deposit, ArchiveStore archiveStore, String archiveId, ArrayList<String> segments, long segmentSize) {
 
         Archive archive = new Archive();
 
@@ -35,8 +44,10 @@ public class ArchivesService {
         archive.setDeposit(deposit);
         archive.setArchiveStore(archiveStore);
         archive.setArchiveId(archiveId);
+        archive.setSegments(segments);
+        archive.setSegmentSize(segmentSize);
 
-        archiveDAO.save(archive);
+        return archive;
     }
 
     public void updateArchive(Archive archive) {
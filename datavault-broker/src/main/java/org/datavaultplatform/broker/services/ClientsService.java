@@ -8,13 +8,19 @@ import java.util.List;
 public class ClientsService {
 
     private ClientDAO clientDAO;
+    private EntityCache<String, Client> clientCache;
     
     public List<Client> getClients() {
         return clientDAO.list();
     }
 
     public void updateClient(Client client) {
-        clientDAO.update(client);
+        try {
+            clientDAO.update(client);
+        } finally {
+            // The API key may have changed
+            clientCache.clear();
+        }
     }
     
     public Client getClient(String clientID) {
@@ -22,13 +28,17 @@ public class ClientsService {
     }
 
     public Client getClientByApiKey(String key) {
-        return clientDAO.findByApiKey(key);
+        return clientCache.get(key, clientDAO::findByApiKey);
     }
     
     public void setClientDAO(ClientDAO clientDAO) {
         this.clientDAO = clientDAO;
     }
 
+    public void setClientCache(EntityCache<String, Client> clientCache) {
+        this.clientCache = clientCache;
+    }
+
     public int count() { return clientDAO.count(); }
 
     public void addClient(Client client) {
@@ -0,0 +1,98 @@
+package org.datavaultplatform.broker.services;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the metrics of the database connection pool: how long it takes to get a connection,
+ * how long connections are held, how often none became free in time, and how much of the pool
+ * is in use. The totals since the last report are logged on a schedule.
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPoolMetrics.class);
+
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireNanos = new AtomicLong();
+    private final AtomicLong acquireMaxNanos = new AtomicLong();
+    private final AtomicLong usageCount = new AtomicLong();
+    private final AtomicLong usageMillis = new AtomicLong();
+    private final AtomicLong usageMaxMillis = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private volatile String poolName = null;
+    private volatile PoolStats poolStats = null;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquireCount.incrementAndGet();
+                acquireNanos.addAndGet(elapsedAcquiredNanos);
+                max(acquireMaxNanos, elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageCount.incrementAndGet();
+                usageMillis.addAndGet(elapsedBorrowedMillis);
+                max(usageMaxMillis, elapsedBorrowedMillis);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Log the metrics since the last report, and reset them
+     */
+    public void report() {
+
+        PoolStats stats = poolStats;
+        if (stats == null) {
+            return;
+        }
+
+        long acquired = acquireCount.getAndSet(0);
+        long acquireTotal = acquireNanos.getAndSet(0);
+        long acquireMax = acquireMaxNanos.getAndSet(0);
+        long used = usageCount.getAndSet(0);
+        long usageTotal = usageMillis.getAndSet(0);
+        long usageMax = usageMaxMillis.getAndSet(0);
+        long timedOut = timeouts.getAndSet(0);
+
+        String message = "Connection pool " + poolName +
+                ": " + stats.getActiveConnections() + " active, " + stats.getIdleConnections() + " idle, " +
+                stats.getTotalConnections() + " total, " + stats.getPendingThreads() + " waiting; " +
+                acquired + " acquired (mean " + (acquired > 0 ? TimeUnit.NANOSECONDS.toMicros(acquireTotal / acquired) : 0) +
+                " us, max " + TimeUnit.NANOSECONDS.toMicros(acquireMax) + " us), " +
+                used + " returned (mean " + (used > 0 ? usageTotal / used : 0) + " ms, max " + usageMax + " ms), " +
+                timedOut + " timeouts";
+
+        if (timedOut > 0 || stats.getPendingThreads() > 0) {
+            logger.warn(message);
+        } else {
+            logger.info(message);
+        }
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+}
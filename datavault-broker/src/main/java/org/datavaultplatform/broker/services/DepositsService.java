@@ -5,6 +5,8 @@ import org.datavaultplatform.common.model.User;
 import org.datavaultplatform.common.model.Deposit;
 import org.datavaultplatform.common.model.Vault;
 import org.datavaultplatform.common.model.dao.DepositDAO;
+import org.datavaultplatform.common.response.DepositInfo;
+import org.datavaultplatform.common.response.Page;
 
 import java.util.UUID;
 import java.util.List;
@@ -12,11 +14,16 @@ import java.util.List;
 public class DepositsService {
 
     private DepositDAO depositDAO;
+    private StatisticsService statisticsService;
     
     public List<Deposit> getDeposits(String sort) {
         return depositDAO.list(sort);
     }
     
+    public Page<DepositInfo> getDepositsPage(String sort, String order, String after, int limit) {
+        return depositDAO.page(sort, order, after, limit);
+    }
+    
     public void addDeposit(Vault vault,
                            Deposit deposit,
                            String shortPath,
@@ -36,6 +43,7 @@ public class DepositsService {
         deposit.setBagId(UUID.randomUUID().toString());
         
         depositDAO.save(deposit);
+        statisticsService.depositAdded();
     }
     
     public void updateDeposit(Deposit deposit) {
@@ -48,6 +56,8 @@ public class DepositsService {
     
     public void setDepositDAO(DepositDAO depositDAO) { this.depositDAO = depositDAO; }
 
+    public void setStatisticsService(StatisticsService statisticsService) { this.statisticsService = statisticsService; }
+
     public int count() { return depositDAO.count(); }
 
     public int queueCount() { return depositDAO.queueCount(); }
@@ -0,0 +1,178 @@
+package org.datavaultplatform.broker.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Holds recently read entities for a limited time so that repeated lookups do not go to the database.
+ *
+ * Entries expire after the TTL and the least recently used entries are evicted once the cache is full.
+ * The services evict entries when the entities are changed, so the TTL only limits how long changes
+ * made elsewhere (e.g. directly in the database) go unnoticed. Cached entities are shared between
+ * requests and must not be modified by callers. The hits and misses since the last report are logged
+ * on a schedule.
+ */
+public class EntityCache<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(EntityCache.class);
+
+    private String name = "entities";
+    private long ttl = 300000;
+    private int maxSize = 1000;
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > maxSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Incremented whenever entries are evicted so that a value loaded before a change is not cached after it
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long expirations = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    private static class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get an entity, loading it if it is not cached or has expired
+     * @param key The key of the entity
+     * @param loader Loads the entity from the database, returning null if there is no such entity
+     * @return The entity, or null if there is no such entity (which is not cached)
+     */
+    public V get(K key, Function<K, V> loader) {
+
+        long loadedGeneration;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expires > System.currentTimeMillis()) {
+                    hits++;
+                    return entry.value;
+                }
+                entries.remove(key);
+                expirations++;
+            }
+            misses++;
+            loadedGeneration = generation;
+        }
+
+        // Load outside the lock so that a slow query does not hold up other lookups
+        V value = loader.apply(key);
+
+        if (value != null) {
+            synchronized (this) {
+                if (generation == loadedGeneration) {
+                    entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttl));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Check whether an entity is cached, without counting it as a lookup
+     * @param key The key of the entity
+     * @return True if the entity is cached and has not expired
+     */
+    public synchronized boolean contains(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && entry.expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Add an entity, e.g. one loaded in the background
+     * @param key The key of the entity
+     * @param value The entity, which is not cached if it is null
+     */
+    public synchronized void put(K key, V value) {
+        if (value != null) {
+            entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Remove an entity, e.g. after it has been changed
+     * @param key The key of the entity
+     */
+    public synchronized void evict(K key) {
+        generation++;
+        if (entries.remove(key) != null) {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Remove all entities, e.g. after a change which may affect any of them
+     */
+    public synchronized void clear() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * Log the hits and misses since the last report, and reset them, dropping any expired entries
+     */
+    public void report() {
+
+        long now = System.currentTimeMillis();
+        long hit, missed, expired, evicted, invalidated;
+        int size;
+
+        synchronized (this) {
+            for (Iterator<Entry<V>> i = entries.values().iterator(); i.hasNext(); ) {
+                if (i.next().expires <= now) {
+                    i.remove();
+                    expirations++;
+                }
+            }
+
+            hit = hits;
+            missed = misses;
+            expired = expirations;
+            evicted = evictions;
+            invalidated = invalidations;
+            size = entries.size();
+            hits = misses = expirations = evictions = invalidations = 0;
+        }
+
+        long lookups = hit + missed;
+        logger.info("Cache " + name + ": " + size + "/" + maxSize + " entries; " +
+                lookups + " lookups, " + hit + " hits (" + (lookups > 0 ? (100 * hit / lookups) : 0) + "%), " +
+                missed + " misses; " + expired + " expired, " + evicted + " evicted, " + invalidated + " invalidated");
+    }
+}
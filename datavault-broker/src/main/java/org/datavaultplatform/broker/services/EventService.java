@@ -2,12 +2,16 @@ package org.datavaultplatform.broker.services;
 
 import org.datavaultplatform.common.event.Event;
 import org.datavaultplatform.common.model.dao.EventDAO;
+import org.datavaultplatform.common.response.EventInfo;
+import org.datavaultplatform.common.response.Page;
 
+import java.util.Collection;
 import java.util.List;
 
 public class EventService {
 
     private EventDAO eventDAO;
+    private StatisticsService statisticsService;
     
     public List<Event> getEvents() {
         return eventDAO.list();
@@ -17,8 +21,25 @@ public class EventService {
         return eventDAO.list(sort);
     }
     
+    public Page<EventInfo> getEventsPage(String sort, String order, String after, int limit) {
+        return eventDAO.page(sort, order, after, limit);
+    }
+    
     public void addEvent(Event event) {
         eventDAO.save(event);
+        statisticsService.eventsAdded(1);
+    }
+    
+    public void saveBatch(Collection<?> updated, Collection<?> created) {
+        eventDAO.saveBatch(updated, created);
+        
+        int events = 0;
+        for (Object entity : created) {
+            if (entity instanceof Event) {
+                events++;
+            }
+        }
+        statisticsService.eventsAdded(events);
     }
     
     public Event getEvent(String eventID) {
@@ -29,6 +50,10 @@ public class EventService {
         this.eventDAO = eventDAO;
     }
     
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+    
     public int count() { return eventDAO.count(); }
 }
 
@@ -8,6 +8,7 @@ import java.util.List;
 public class FileStoreService {
 
     private FileStoreDAO fileStoreDAO;
+    private UsersService usersService;
     
     public List<FileStore> getFileStores() {
         return fileStoreDAO.list();
@@ -15,11 +16,19 @@ public class FileStoreService {
     
     public void addFileStore(FileStore fileStore) {
         
-        fileStoreDAO.save(fileStore);
+        try {
+            fileStoreDAO.save(fileStore);
+        } finally {
+            evictUser(fileStore);
+        }
     }
     
     public void updateFileStore(FileStore fileStore) {
-        fileStoreDAO.update(fileStore);
+        try {
+            fileStoreDAO.update(fileStore);
+        } finally {
+            evictUser(fileStore);
+        }
     }
     
     public FileStore getFileStore(String fileStoreID) {
@@ -27,11 +36,27 @@ public class FileStoreService {
     }
 
     public void deleteFileStore(String fileStoreID) {
-        fileStoreDAO.deleteById(fileStoreID);
+        FileStore fileStore = fileStoreDAO.findById(fileStoreID);
+        try {
+            fileStoreDAO.deleteById(fileStoreID);
+        } finally {
+            evictUser(fileStore);
+        }
     }
     
     public void setFileStoreDAO(FileStoreDAO fileStoreDAO) {
         this.fileStoreDAO = fileStoreDAO;
     }
+
+    public void setUsersService(UsersService usersService) {
+        this.usersService = usersService;
+    }
+
+    // The file stores are cached with their user
+    private void evictUser(FileStore fileStore) {
+        if (fileStore != null && fileStore.getUser() != null) {
+            usersService.evictUser(fileStore.getUser().getID());
+        }
+    }
 }
 
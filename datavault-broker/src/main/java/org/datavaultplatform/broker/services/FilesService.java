@@ -1,84 +1,407 @@
 package org.datavaultplatform.broker.services;
 
 import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.datavaultplatform.common.model.FileInfo;
 import org.datavaultplatform.common.model.FileStore;
+import org.datavaultplatform.common.storage.ConnectedDevice;
 import org.datavaultplatform.common.storage.UserStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * User: Robin Taylor
  * Date: 19/03/2015
  * Time: 13:34
+ *
+ * Browses the user's file stores.
+ *
+ * The storage devices are kept in a pool for each file store and reused, each one used by a single
+ * request at a time. Devices which connect to a server keep their connection open while they are
+ * pooled, until they have been idle for a while, and a device whose operation failed or whose
+ * connection was lost is closed rather than reused. Directory listings and sizes are cached for a short time. When a directory is
+ * listed its sub-directories are listed in the background, so that they are ready when the user
+ * opens them. Sizes are calculated on a shared, bounded set of threads: a calculation which takes
+ * too long carries on in the background and its result is cached for the next request.
  */
 public class FilesService {
 
-    private UserStore userStore;
-    private final long TIMEOUT_SECONDS = 20;
-    
-    private boolean connect(FileStore fileStore) {
-        try {
-            Class<?> clazz = Class.forName(fileStore.getStorageClass());
-            Constructor<?> constructor = clazz.getConstructor(String.class, Map.class);
-            Object instance = constructor.newInstance(fileStore.getStorageClass(), fileStore.getProperties());
-            userStore = (UserStore)instance;
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+    private static final Logger logger = LoggerFactory.getLogger(FilesService.class);
+
+    private int poolSize = 4;
+    private long idleTimeout = 300000;
+    private long sizeTimeout = 20000;
+    private int sizeThreads = 4;
+    private int sizeQueue = 100;
+    private int prefetchThreads = 2;
+    private int prefetchQueue = 500;
+    private int prefetchLimit = 50;
+
+    private EntityCache<String, List<FileInfo>> fileListingCache;
+    private EntityCache<String, Long> fileSizeCache;
+
+    // The idle devices of each file store, by file store ID
+    private final ConcurrentMap<String, Connections> connections = new ConcurrentHashMap<>();
+
+    // The size calculations which are running or waiting to run, by file store ID and path
+    private final ConcurrentMap<String, Future<Long>> pendingSizes = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor sizeExecutor = null;
+    private ThreadPoolExecutor prefetchExecutor = null;
+
+    // An idle device and when it was returned to its pool
+    private static class Idle {
+        final UserStore userStore;
+        final long since;
+
+        Idle(UserStore userStore) {
+            this.userStore = userStore;
+            this.since = System.currentTimeMillis();
         }
     }
-    
-    public List<FileInfo> getFilesListing(String filePath, FileStore fileStore) {
-        if (connect(fileStore)) {
-            return userStore.list(filePath);
-        } else {
-            return null;
+
+    // Idle devices created with the given configuration of a file store, the most recently used first
+    private static class Connections {
+        final String storageClass;
+        final Map<String,String> properties;
+        final BlockingDeque<Idle> idle;
+
+        Connections(FileStore fileStore, int poolSize) {
+            this.storageClass = fileStore.getStorageClass();
+            this.properties = (fileStore.getProperties() != null) ? new HashMap<>(fileStore.getProperties()) : null;
+            this.idle = new LinkedBlockingDeque<>(Math.max(1, poolSize));
+        }
+
+        boolean matches(FileStore fileStore) {
+            return Objects.equals(storageClass, fileStore.getStorageClass()) &&
+                    Objects.equals(properties, fileStore.getProperties());
+        }
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setSizeTimeout(long sizeTimeout) {
+        this.sizeTimeout = sizeTimeout;
+    }
+
+    public void setSizeThreads(int sizeThreads) {
+        this.sizeThreads = Math.max(1, sizeThreads);
+    }
+
+    public void setSizeQueue(int sizeQueue) {
+        this.sizeQueue = Math.max(1, sizeQueue);
+    }
+
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = Math.max(1, prefetchThreads);
+    }
+
+    public void setPrefetchQueue(int prefetchQueue) {
+        this.prefetchQueue = Math.max(1, prefetchQueue);
+    }
+
+    public void setPrefetchLimit(int prefetchLimit) {
+        this.prefetchLimit = prefetchLimit;
+    }
+
+    public void setFileListingCache(EntityCache<String, List<FileInfo>> fileListingCache) {
+        this.fileListingCache = fileListingCache;
+    }
+
+    public void setFileSizeCache(EntityCache<String, Long> fileSizeCache) {
+        this.fileSizeCache = fileSizeCache;
+    }
+
+    /**
+     * Start the threads which calculate sizes and list sub-directories
+     */
+    public synchronized void start() {
+
+        if (sizeExecutor != null) {
+            return;
+        }
+
+        // Size requests beyond the queue are refused rather than left waiting, prefetches are dropped
+        sizeExecutor = new ThreadPoolExecutor(sizeThreads, sizeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(sizeQueue), threads("file-size"), new ThreadPoolExecutor.AbortPolicy());
+        prefetchExecutor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(prefetchQueue), threads("file-prefetch"), new ThreadPoolExecutor.DiscardPolicy());
+        sizeExecutor.allowCoreThreadTimeOut(true);
+        prefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stop the threads, abandoning any calculations which are still running, and close the pooled devices
+     */
+    public synchronized void stop() {
+
+        if (sizeExecutor != null) {
+            sizeExecutor.shutdownNow();
+            prefetchExecutor.shutdownNow();
+            sizeExecutor = null;
+            prefetchExecutor = null;
+        }
+
+        for (Iterator<Connections> i = connections.values().iterator(); i.hasNext(); ) {
+            closeAll(i.next());
+            i.remove();
+        }
+    }
+
+    /**
+     * Close the pooled devices which have been idle for longer than the idle timeout
+     */
+    public void closeIdle() {
+
+        long expired = System.currentTimeMillis() - idleTimeout;
+        int closed = 0;
+
+        for (Connections pool : connections.values()) {
+            // The least recently used devices are at the end of the pool
+            Idle last;
+            while ((last = pool.idle.peekLast()) != null && last.since < expired) {
+                if (pool.idle.removeLastOccurrence(last)) {
+                    close(last.userStore);
+                    closed++;
+                }
+            }
+        }
+
+        if (closed > 0) {
+            logger.debug("Closed " + closed + " idle storage devices");
+        }
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static String key(FileStore fileStore, String filePath) {
+        return fileStore.getID() + ":" + filePath;
+    }
+
+    // Take the most recently used idle device for the file store, or create one if there are none
+    private UserStore borrow(FileStore fileStore) throws Exception {
+
+        Connections pool = connections.get(fileStore.getID());
+        if (pool != null && pool.matches(fileStore)) {
+            Idle idle;
+            while ((idle = pool.idle.pollFirst()) != null) {
+                if (usable(idle.userStore)) {
+                    return idle.userStore;
+                }
+                close(idle.userStore);
+            }
+        }
+
+        Class<?> clazz = Class.forName(fileStore.getStorageClass());
+        Constructor<?> constructor = clazz.getConstructor(String.class, Map.class);
+        Object instance = constructor.newInstance(fileStore.getStorageClass(), fileStore.getProperties());
+        if (instance instanceof ConnectedDevice) {
+            ((ConnectedDevice)instance).setKeepConnected(true);
         }
+        return (UserStore)instance;
     }
-    
-    private class FileSizeTask implements Runnable {
 
-        public Long result = null;
-        private String filePath = null;
-        
-        public FileSizeTask(String filePath) {
-            this.filePath = filePath;
+    // Return a device to the pool of the file store. The device is closed instead if its operation
+    // failed, its connection has been lost, the pool is full or the file store has been changed.
+    private void release(FileStore fileStore, UserStore userStore, boolean failed) {
+
+        if (failed || !usable(userStore)) {
+            close(userStore);
+            return;
         }
 
-        @Override
-        public void run() {
+        // A pool created with an earlier configuration of the file store is replaced, and its devices closed
+        Connections pool = connections.compute(fileStore.getID(), (id, current) -> {
+            if (current != null && current.matches(fileStore)) {
+                return current;
+            }
+            if (current != null) {
+                closeAll(current);
+            }
+            return new Connections(fileStore, poolSize);
+        });
+
+        if (!pool.idle.offerFirst(new Idle(userStore))) {
+            close(userStore);
+        } else if (connections.get(fileStore.getID()) != pool) {
+            // The pool was replaced meanwhile
+            closeAll(pool);
+        }
+    }
+
+    // A device which connects to a server is only reused while its connection is open
+    private static boolean usable(UserStore userStore) {
+        return !(userStore instanceof ConnectedDevice) || ((ConnectedDevice)userStore).isConnected();
+    }
+
+    private static void close(UserStore userStore) {
+        if (userStore instanceof ConnectedDevice) {
             try {
-                result = userStore.getSize(filePath);
+                ((ConnectedDevice)userStore).close();
             } catch (Exception e) {
-                result = null;
+                logger.debug("Error closing storage device", e);
             }
         }
     }
-    
-    public Long getFilesize(String filePath, FileStore fileStore) {
-        
+
+    private static void closeAll(Connections pool) {
+        Idle idle;
+        while ((idle = pool.idle.pollFirst()) != null) {
+            close(idle.userStore);
+        }
+    }
+
+    private List<FileInfo> list(String filePath, FileStore fileStore) {
         try {
-            if (connect(fileStore)) {
-                ExecutorService executor = Executors.newSingleThreadExecutor();
-                FileSizeTask task = new FileSizeTask(filePath);
-                executor.submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-                executor.shutdown();
-                return task.result;
-            } else {
-                return null;
+            UserStore userStore = borrow(fileStore);
+            boolean failed = true;
+            try {
+                List<FileInfo> files = Collections.unmodifiableList(userStore.list(filePath));
+                failed = false;
+                return files;
+            } finally {
+                release(fileStore, userStore, failed);
             }
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
-    
+
+    /**
+     * List a directory in the background, if it is not cached, so that it is ready when the user opens it
+     * @param filePath The path of the directory
+     * @param fileStore The file store
+     */
+    public void prefetch(final String filePath, final FileStore fileStore) {
+
+        ThreadPoolExecutor executor = prefetchExecutor;
+        final String key = key(fileStore, filePath);
+        if (executor == null || fileListingCache.contains(key)) {
+            return;
+        }
+
+        executor.execute(() -> fileListingCache.get(key, k -> list(filePath, fileStore)));
+    }
+
+    public List<FileInfo> getFilesListing(final String filePath, final FileStore fileStore) {
+
+        List<FileInfo> files = fileListingCache.get(key(fileStore, filePath), k -> list(filePath, fileStore));
+
+        if (files != null) {
+            // Get the sub-directories ready, with the same paths as the user would request them
+            int count = 0;
+            for (FileInfo file : files) {
+                if (count >= prefetchLimit) {
+                    break;
+                }
+                if (Boolean.TRUE.equals(file.getIsDirectory())) {
+                    String key = file.getKey();
+                    prefetch(key.startsWith("/") ? key : "/" + key, fileStore);
+                    count++;
+                }
+            }
+        }
+
+        return files;
+    }
+
+    private Long size(String filePath, FileStore fileStore) throws Exception {
+        UserStore userStore = borrow(fileStore);
+        boolean failed = true;
+        try {
+            Long size = userStore.getSize(filePath);
+            failed = false;
+            return size;
+        } finally {
+            release(fileStore, userStore, failed);
+        }
+    }
+
+    public Long getFilesize(final String filePath, final FileStore fileStore) {
+
+        return fileSizeCache.get(key(fileStore, filePath), key -> {
+
+            // Join the calculation of the same size if there is one
+            Future<Long> future = pendingSizes.get(key);
+            if (future == null) {
+                FutureTask<Long> task = new FutureTask<>(() -> {
+                    try {
+                        Long size = size(filePath, fileStore);
+                        fileSizeCache.put(key, size);
+                        return size;
+                    } finally {
+                        pendingSizes.remove(key);
+                    }
+                });
+
+                future = pendingSizes.putIfAbsent(key, task);
+                if (future == null) {
+                    future = task;
+                    ThreadPoolExecutor executor = sizeExecutor;
+                    try {
+                        if (executor == null) {
+                            throw new RejectedExecutionException("Not started");
+                        }
+                        executor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        pendingSizes.remove(key, task);
+                        logger.warn("Too many file sizes are being calculated, not calculating the size of " + filePath);
+                        return null;
+                    }
+                }
+            }
+
+            try {
+                return future.get(sizeTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // The calculation carries on, and its result will be cached
+                logger.info("Still calculating the size of " + filePath + " after " + sizeTimeout + " ms");
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return null;
+            }
+        });
+    }
+
     public boolean validPath(String filePath, FileStore fileStore) {
-        connect(fileStore);
-        return userStore.valid(filePath);
+        try {
+            UserStore userStore = borrow(fileStore);
+            boolean failed = true;
+            try {
+                boolean valid = userStore.valid(filePath);
+                failed = false;
+                return valid;
+            } finally {
+                release(fileStore, userStore, failed);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 }
-
@@ -1,6 +1,7 @@
 package org.datavaultplatform.broker.services;
 
 import org.datavaultplatform.common.model.Group;
+import org.datavaultplatform.common.model.User;
 import org.datavaultplatform.common.model.dao.GroupDAO;
 
 import java.util.List;
@@ -8,6 +9,8 @@ import java.util.List;
 public class GroupsService {
 
     private GroupDAO groupDAO;
+    private StatisticsService statisticsService;
+    private EntityCache<String, Group> groupCache;
 
     public List<Group> getGroups() {
         return groupDAO.list();
@@ -19,24 +22,73 @@ public class GroupsService {
         group.setEnabled(Boolean.TRUE);
         
         groupDAO.save(group);
+        statisticsService.groupAdded();
     }
 
     public void updateGroup(Group group) {
-        groupDAO.update(group);
+        try {
+            groupDAO.update(group);
+        } finally {
+            groupCache.evict(group.getID());
+        }
+    }
+
+    // The owners are changed on a copy of the group read from the database, as the cached group is
+    // shared between requests
+    public void addGroupOwner(String groupID, User owner) {
+        try {
+            Group group = groupDAO.findById(groupID);
+            if (group != null && !group.getOwners().contains(owner)) {
+                group.getOwners().add(owner);
+                groupDAO.update(group);
+            }
+        } finally {
+            groupCache.evict(groupID);
+        }
+    }
+
+    public void removeGroupOwner(String groupID, User owner) {
+        try {
+            Group group = groupDAO.findById(groupID);
+            if (group != null && group.getOwners().remove(owner)) {
+                groupDAO.update(group);
+            }
+        } finally {
+            groupCache.evict(groupID);
+        }
     }
 
     public void deleteGroup(Group group) {
-        groupDAO.delete(group);
+        try {
+            groupDAO.delete(group);
+        } finally {
+            groupCache.evict(group.getID());
+        }
     }
 
     public Group getGroup(String groupID) {
-        return groupDAO.findById(groupID);
+        return groupCache.get(groupID, id -> {
+            Group group = groupDAO.findById(id);
+            if (group != null) {
+                // Load the owners now, as the cached group is shared between requests
+                group.getOwners().size();
+            }
+            return group;
+        });
     }
 
     public void setGroupDAO(GroupDAO groupDAO) {
         this.groupDAO = groupDAO;
     }
 
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
+    public void setGroupCache(EntityCache<String, Group> groupCache) {
+        this.groupCache = groupCache;
+    }
+
     public int count() { return groupDAO.count(); }
 }
 
@@ -0,0 +1,194 @@
+package org.datavaultplatform.broker.services;
+
+import org.datavaultplatform.common.event.UpdateProgress;
+import org.datavaultplatform.common.model.Job;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the live progress of running jobs in memory and pushes job changes to subscribers.
+ *
+ * Progress updates arrive several times a second for each transfer. They are held here and only
+ * written to the database when the job changes state or when the last write of its progress is
+ * older than the persist interval. Jobs read from the database are brought up to date from here.
+ * Clients which subscribe to a deposit are sent each change to its jobs as a server-sent event.
+ */
+public class JobStateService {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobStateService.class);
+
+    // Live progress which has not been cleared for this long is assumed to be abandoned
+    private static final long EXPIRY_MS = 24 * 60 * 60 * 1000L;
+
+    private long persistInterval = 5000;
+    private long subscriptionTimeout = 30 * 60 * 1000L;
+
+    private final ConcurrentMap<String, LiveProgress> progress = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+    private volatile long lastExpiry = System.currentTimeMillis();
+
+    // The latest progress of a job
+    private static class LiveProgress {
+
+        final long progress;
+        final long progressMax;
+        final String progressMessage;
+        final long updated;
+        final long persisted;
+
+        LiveProgress(long progress, long progressMax, String progressMessage, long updated, long persisted) {
+            this.progress = progress;
+            this.progressMax = progressMax;
+            this.progressMessage = progressMessage;
+            this.updated = updated;
+            this.persisted = persisted;
+        }
+    }
+
+    public void setPersistInterval(long persistInterval) {
+        this.persistInterval = persistInterval;
+    }
+
+    public void setSubscriptionTimeout(long subscriptionTimeout) {
+        this.subscriptionTimeout = subscriptionTimeout;
+    }
+
+    /**
+     * Record a progress update
+     * @param event The progress update
+     * @return True if the progress is due to be written to the database
+     */
+    public boolean update(UpdateProgress event) {
+
+        long now = System.currentTimeMillis();
+        LiveProgress previous = progress.get(event.getJobId());
+        long persisted = (previous != null) ? previous.persisted : 0;
+        boolean persist = (now - persisted >= persistInterval);
+
+        progress.put(event.getJobId(), new LiveProgress(event.getProgress(), event.getProgressMax(),
+                event.getProgressMessage(), now, persist ? now : persisted));
+
+        expire(now);
+        return persist;
+    }
+
+    /**
+     * Bring a job read from the database up to date with its live progress
+     * @param job The job, which is changed in place
+     * @return The job
+     */
+    public Job apply(Job job) {
+        if (job != null) {
+            LiveProgress live = progress.get(job.getID());
+            if (live != null) {
+                job.setProgress(live.progress);
+                job.setProgressMax(live.progressMax);
+                job.setProgressMessage(live.progressMessage);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Bring jobs read from the database up to date with their live progress
+     * @param jobs The jobs, which are changed in place
+     * @return The jobs
+     */
+    public List<Job> apply(List<Job> jobs) {
+        if (jobs != null) {
+            for (Job job : jobs) {
+                apply(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Push a changed job to the subscribers of its deposit, once the change has been saved. The live
+     * progress of a job which has finished is dropped, as its final progress is in the database.
+     * @param depositId The deposit ID
+     * @param job The job
+     */
+    public void changed(String depositId, Job job) {
+
+        // A job without states is treated as having none, so it has not finished
+        int states = (job.getStates() != null) ? job.getStates().size() : 0;
+        if (job.isError() || (job.getState() != null && job.getState() == states - 1)) {
+            progress.remove(job.getID());
+        }
+
+        List<SseEmitter> emitters = (depositId != null) ? subscribers.get(depositId) : null;
+        if (emitters == null) {
+            return;
+        }
+
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name("job").data(job));
+            } catch (Exception e) {
+                logger.debug("Dropping subscriber of deposit " + depositId, e);
+                emitters.remove(emitter);
+                emitter.completeWithError(e);
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the changes of the jobs of a deposit
+     * @param depositId The deposit ID
+     * @param jobs The current jobs of the deposit, which are sent first
+     * @return The event stream
+     * @throws Exception if the current jobs could not be sent
+     */
+    public SseEmitter subscribe(final String depositId, List<Job> jobs) throws Exception {
+
+        final SseEmitter emitter = new SseEmitter(subscriptionTimeout);
+
+        List<SseEmitter> emitters = subscribers.get(depositId);
+        if (emitters == null) {
+            subscribers.putIfAbsent(depositId, new CopyOnWriteArrayList<SseEmitter>());
+            emitters = subscribers.get(depositId);
+        }
+        final List<SseEmitter> added = emitters;
+        added.add(emitter);
+
+        Runnable unsubscribe = new Runnable() {
+            @Override
+            public void run() {
+                added.remove(emitter);
+                if (added.isEmpty()) {
+                    subscribers.remove(depositId, added);
+                }
+            }
+        };
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+
+        emitter.send(SseEmitter.event().name("jobs").data(apply(jobs)));
+        return emitter;
+    }
+
+    // Drop live progress which has not been updated for a long time, e.g. of a job whose worker died
+    private void expire(long now) {
+
+        if (now - lastExpiry < EXPIRY_MS / 24) {
+            return;
+        }
+        lastExpiry = now;
+
+        Iterator<Map.Entry<String, LiveProgress>> entries = progress.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().getValue().updated > EXPIRY_MS) {
+                entries.remove();
+            }
+        }
+    }
+}
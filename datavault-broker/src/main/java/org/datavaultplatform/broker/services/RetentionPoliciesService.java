@@ -3,30 +3,52 @@ package org.datavaultplatform.broker.services;
 import org.datavaultplatform.common.model.RetentionPolicy;
 import org.datavaultplatform.common.model.dao.RetentionPolicyDAO;
 
+import java.util.Collections;
 import java.util.List;
 
 public class RetentionPoliciesService {
 
+    // There are only a few policies, so they are cached (and evicted) together
+    private static final String ALL = "all";
+
     private RetentionPolicyDAO retentionPolicyDAO;
+    private EntityCache<String, List<RetentionPolicy>> retentionPolicyCache;
     
     public List<RetentionPolicy> getRetentionPolicies() {
-        return retentionPolicyDAO.list();
+        return retentionPolicyCache.get(ALL, key -> Collections.unmodifiableList(retentionPolicyDAO.list()));
     }
     
     public void addRetentionPolicy(RetentionPolicy retentionPolicy) {
-        retentionPolicyDAO.save(retentionPolicy);
+        try {
+            retentionPolicyDAO.save(retentionPolicy);
+        } finally {
+            retentionPolicyCache.clear();
+        }
     }
     
     public void updateRetentionPolicy(RetentionPolicy retentionPolicy) {
-        retentionPolicyDAO.update(retentionPolicy);
+        try {
+            retentionPolicyDAO.update(retentionPolicy);
+        } finally {
+            retentionPolicyCache.clear();
+        }
     }
     
     public RetentionPolicy getPolicy(String policyID) {
-        return retentionPolicyDAO.findById(policyID);
+        for (RetentionPolicy retentionPolicy : getRetentionPolicies()) {
+            if (retentionPolicy.getID().equals(policyID)) {
+                return retentionPolicy;
+            }
+        }
+        return null;
     }
     
     public void setRetentionPolicyDAO(RetentionPolicyDAO retentionPolicyDAO) {
         this.retentionPolicyDAO = retentionPolicyDAO;
     }
+
+    public void setRetentionPolicyCache(EntityCache<String, List<RetentionPolicy>> retentionPolicyCache) {
+        this.retentionPolicyCache = retentionPolicyCache;
+    }
 }
 
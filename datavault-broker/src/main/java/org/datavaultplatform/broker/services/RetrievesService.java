@@ -10,6 +10,7 @@ import java.util.List;
 public class RetrievesService {
 
     private RetrieveDAO retrieveDAO;
+    private StatisticsService statisticsService;
     
     public List<Retrieve> getRetrieves() {
         return retrieveDAO.list();
@@ -26,6 +27,7 @@ public class RetrievesService {
         retrieve.setRetrievePath(retrievePath);
         
         retrieveDAO.save(retrieve);
+        statisticsService.retrieveAdded();
     }
     
     public void updateRetrieve(Retrieve retrieve) {
@@ -39,6 +41,10 @@ public class RetrievesService {
     public void setRetrieveDAO(RetrieveDAO retrieveDAO) {
         this.retrieveDAO = retrieveDAO;
     }
+    
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
 
     public int count() { return retrieveDAO.count(); }
 
@@ -0,0 +1,207 @@
+package org.datavaultplatform.broker.services;
+
+import org.datavaultplatform.common.model.Deposit;
+import org.datavaultplatform.common.model.Retrieve;
+import org.datavaultplatform.common.model.dao.DepositDAO;
+import org.datavaultplatform.common.model.dao.EventDAO;
+import org.datavaultplatform.common.model.dao.GroupDAO;
+import org.datavaultplatform.common.model.dao.RetrieveDAO;
+import org.datavaultplatform.common.model.dao.UserDAO;
+import org.datavaultplatform.common.model.dao.VaultDAO;
+import org.datavaultplatform.common.response.StatisticsInfo;
+import org.datavaultplatform.common.retentionpolicy.RetentionPolicyStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps running totals of the system statistics so that they can be read without querying the database.
+ *
+ * The totals are adjusted as users, groups, vaults, deposits, retrieves and events are added and as
+ * deposits and retrieves change status. Anything else (e.g. retention reviews) and any drift, e.g. from
+ * changes made directly in the database, is picked up when the totals are reconciled with the database.
+ */
+public class StatisticsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsService.class);
+
+    private VaultDAO vaultDAO;
+    private DepositDAO depositDAO;
+    private RetrieveDAO retrieveDAO;
+    private EventDAO eventDAO;
+    private UserDAO userDAO;
+    private GroupDAO groupDAO;
+
+    private final AtomicLong vaultCount = new AtomicLong();
+    private final AtomicLong vaultSize = new AtomicLong();
+    private final AtomicLong depositCount = new AtomicLong();
+    private final AtomicLong depositQueueCount = new AtomicLong();
+    private final AtomicLong depositInProgressCount = new AtomicLong();
+    private final AtomicLong retrieveCount = new AtomicLong();
+    private final AtomicLong retrieveQueueCount = new AtomicLong();
+    private final AtomicLong retrieveInProgressCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong userCount = new AtomicLong();
+    private final AtomicLong groupCount = new AtomicLong();
+    private final AtomicLong reviewCount = new AtomicLong();
+
+    // When the totals were last reconciled, null if they never have been
+    private volatile Date reconciled = null;
+
+    public void setVaultDAO(VaultDAO vaultDAO) {
+        this.vaultDAO = vaultDAO;
+    }
+
+    public void setDepositDAO(DepositDAO depositDAO) {
+        this.depositDAO = depositDAO;
+    }
+
+    public void setRetrieveDAO(RetrieveDAO retrieveDAO) {
+        this.retrieveDAO = retrieveDAO;
+    }
+
+    public void setEventDAO(EventDAO eventDAO) {
+        this.eventDAO = eventDAO;
+    }
+
+    public void setUserDAO(UserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    public void setGroupDAO(GroupDAO groupDAO) {
+        this.groupDAO = groupDAO;
+    }
+
+    /**
+     * Get the current totals
+     * @return The statistics
+     */
+    public StatisticsInfo getSnapshot() {
+
+        if (reconciled == null) {
+            reconcile();
+        }
+
+        StatisticsInfo snapshot = new StatisticsInfo();
+        snapshot.setVaultCount(vaultCount.get());
+        snapshot.setVaultSize(vaultSize.get());
+        snapshot.setDepositCount(depositCount.get());
+        snapshot.setDepositQueueCount(depositQueueCount.get());
+        snapshot.setDepositInProgressCount(depositInProgressCount.get());
+        snapshot.setRetrieveCount(retrieveCount.get());
+        snapshot.setRetrieveQueueCount(retrieveQueueCount.get());
+        snapshot.setRetrieveInProgressCount(retrieveInProgressCount.get());
+        snapshot.setEventCount(eventCount.get());
+        snapshot.setUserCount(userCount.get());
+        snapshot.setGroupCount(groupCount.get());
+        snapshot.setReviewCount(reviewCount.get());
+        snapshot.setReconciled(reconciled);
+        return snapshot;
+    }
+
+    /**
+     * Replace the totals with the counts from the database. Changes made while the counts are
+     * being read may be counted twice or not at all until the next reconciliation.
+     */
+    public synchronized void reconcile() {
+
+        long start = System.currentTimeMillis();
+
+        vaultCount.set(vaultDAO.count());
+        Long size = depositDAO.size();
+        vaultSize.set(size != null ? size : 0);
+        depositCount.set(depositDAO.count());
+        depositQueueCount.set(depositDAO.queueCount());
+        depositInProgressCount.set(depositDAO.inProgressCount());
+        retrieveCount.set(retrieveDAO.count());
+        retrieveQueueCount.set(retrieveDAO.queueCount());
+        retrieveInProgressCount.set(retrieveDAO.inProgressCount());
+        eventCount.set(eventDAO.count());
+        userCount.set(userDAO.count());
+        groupCount.set(groupDAO.count());
+        reviewCount.set(vaultDAO.getRetentionPolicyCount(RetentionPolicyStatus.REVIEW));
+
+        reconciled = new Date();
+        logger.debug("Reconciled statistics in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public void userAdded() {
+        userCount.incrementAndGet();
+    }
+
+    public void groupAdded() {
+        groupCount.incrementAndGet();
+    }
+
+    public void vaultAdded() {
+        vaultCount.incrementAndGet();
+    }
+
+    public void depositAdded() {
+        depositCount.incrementAndGet();
+        depositQueueCount.incrementAndGet();
+    }
+
+    public void retrieveAdded() {
+        retrieveCount.incrementAndGet();
+        retrieveQueueCount.incrementAndGet();
+    }
+
+    public void eventsAdded(int count) {
+        eventCount.addAndGet(count);
+    }
+
+    /**
+     * Record a change in the size of a deposit
+     * @param bytes The number of bytes added (or removed if negative)
+     */
+    public void depositSizeChanged(long bytes) {
+        vaultSize.addAndGet(bytes);
+    }
+
+    /**
+     * Record a change in the status of a deposit, counted in the same way as the
+     * deposit queries (which do not count deposits without a status)
+     * @param from The previous status
+     * @param to The new status
+     */
+    public void depositStatusChanged(Deposit.Status from, Deposit.Status to) {
+        if (from == to) {
+            return;
+        }
+        if (from == Deposit.Status.NOT_STARTED) {
+            depositQueueCount.decrementAndGet();
+        } else if (from != null && from != Deposit.Status.COMPLETE) {
+            depositInProgressCount.decrementAndGet();
+        }
+        if (to == Deposit.Status.NOT_STARTED) {
+            depositQueueCount.incrementAndGet();
+        } else if (to != null && to != Deposit.Status.COMPLETE) {
+            depositInProgressCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a change in the status of a retrieve, counted in the same way as the
+     * retrieve queries (which do not count retrieves without a status)
+     * @param from The previous status
+     * @param to The new status
+     */
+    public void retrieveStatusChanged(Retrieve.Status from, Retrieve.Status to) {
+        if (from == to) {
+            return;
+        }
+        if (from == Retrieve.Status.NOT_STARTED) {
+            retrieveQueueCount.decrementAndGet();
+        } else if (from != null && from != Retrieve.Status.COMPLETE) {
+            retrieveInProgressCount.decrementAndGet();
+        }
+        if (to == Retrieve.Status.NOT_STARTED) {
+            retrieveQueueCount.incrementAndGet();
+        } else if (to != null && to != Retrieve.Status.COMPLETE) {
+            retrieveInProgressCount.incrementAndGet();
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class UsersService {
     private static final Logger logger = LoggerFactory.getLogger(UsersService.class);
 
     private UserDAO userDAO;
+    private StatisticsService statisticsService;
+    private EntityCache<String, User> userCache;
     
     public List<User> getUsers() {
         return userDAO.list();
@@ -24,27 +26,55 @@ public class UsersService {
     }
     
     public void updateUser(User user) {
-        userDAO.update(user);
+        try {
+            userDAO.update(user);
+        } finally {
+            userCache.evict(user.getID());
+        }
     }
     
     public User getUser(String userID) {
-        return userDAO.findById(userID);
+        return userCache.get(userID, id -> {
+            User user = userDAO.findById(id);
+            if (user != null) {
+                // Load the file stores now, as the cached user is shared between requests
+                user.getFileStores().size();
+            }
+            return user;
+        });
+    }
+
+    /**
+     * Drop a user from the cache, e.g. after a change to their file stores
+     * @param userID The user ID
+     */
+    public void evictUser(String userID) {
+        userCache.evict(userID);
     }
     
     public void setUserDAO(UserDAO userDAO) {
         this.userDAO = userDAO;
     }
 
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
+    public void setUserCache(EntityCache<String, User> userCache) {
+        this.userCache = userCache;
+    }
+
     public int count() { return userDAO.count(); }
 
     public void addUser(User user) {
         userDAO.save(user);
+        statisticsService.userAdded();
     }
 
     public Boolean validateUser(String userID, String password) {
         User user;
 
-        user = userDAO.findById(userID);
+        user = getUser(userID);
 
         if (user == null) {
             // No match was found
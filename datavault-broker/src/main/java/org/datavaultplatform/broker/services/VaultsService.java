@@ -3,23 +3,39 @@ package org.datavaultplatform.broker.services;
 import org.datavaultplatform.common.model.User;
 import org.datavaultplatform.common.model.Vault;
 import org.datavaultplatform.common.model.dao.VaultDAO;
+import org.datavaultplatform.common.response.Page;
+import org.datavaultplatform.common.response.VaultInfo;
 import org.datavaultplatform.common.retentionpolicy.RetentionPolicy;
+import org.datavaultplatform.common.retentionpolicy.RetentionPolicyStatus;
+import org.datavaultplatform.common.retentionpolicy.VaultRetention;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class VaultsService {
 
+    private static final Logger logger = LoggerFactory.getLogger(VaultsService.class);
+
     private VaultDAO vaultDAO;
+    private StatisticsService statisticsService;
 
     public List<Vault> getVaults() { return vaultDAO.list(); }
 
     public List<Vault> getVaults(String sort, String order) { return vaultDAO.list(sort, order); }
 
+    public Page<VaultInfo> getVaultsPage(String sort, String order, String after, int limit) {
+        return vaultDAO.page(sort, order, after, limit);
+    }
+
     public void addVault(Vault vault) {
         Date d = new Date();
         vault.setCreationTime(d);
         vaultDAO.save(vault);
+        statisticsService.vaultAdded();
     }
     
     public void updateVault(Vault vault) {
@@ -29,11 +45,23 @@ public class VaultsService {
     public Vault getVault(String vaultID) {
         return vaultDAO.findById(vaultID);
     }
+
+    public List<Vault> getVaultsForUser(String userID) {
+        return vaultDAO.findByUser(userID);
+    }
+
+    public List<Vault> getVaultsForGroup(String groupID) {
+        return vaultDAO.findByGroup(groupID);
+    }
     
     public void setVaultDAO(VaultDAO vaultDAO) {
         this.vaultDAO = vaultDAO;
     }
 
+    public void setStatisticsService(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
     public List<Vault> search(String query, String sort, String order) { return this.vaultDAO.search(query, sort, order); }
 
     public int count() { return vaultDAO.count(); }
@@ -61,6 +89,51 @@ public class VaultsService {
         vaultDAO.update(vault);
         return vault;
     }
+
+    /**
+     * Check the retention policies of the vaults whose review date or status may have changed since
+     * they were last checked. The review dates are worked out from the dates of the last deposit and
+     * retrieve of each vault, without loading the vaults, and the results are saved in batches.
+     * Vaults which are changed while they are being checked are left for the next check.
+     * @return The vaults which were checked and updated, with their new status and review date
+     */
+    public List<VaultRetention> checkRetentionPolicies() {
+
+        Date now = new Date();
+        List<VaultRetention> vaults = vaultDAO.findRetentionChanges(now);
+
+        // Each policy engine is loaded once for all of its vaults
+        Map<String, RetentionPolicy> policies = new HashMap<>();
+
+        for (VaultRetention vault : vaults) {
+            String engine = vault.getEngine();
+            if (!policies.containsKey(engine)) {
+                RetentionPolicy policy = null;
+                try {
+                    policy = (RetentionPolicy)Class.forName(engine).newInstance();
+                } catch (Exception e) {
+                    logger.error("Could not load retention policy engine " + engine, e);
+                }
+                policies.put(engine, policy);
+            }
+
+            RetentionPolicy policy = policies.get(engine);
+            if (policy == null) {
+                vault.setStatus(RetentionPolicyStatus.ERROR);
+                continue;
+            }
+
+            Date reviewDate = policy.getReviewDate(vault.getCreationTime(), vault.getLastDeposit(), vault.getLastRetrieve());
+            vault.setExpiry(reviewDate);
+            vault.setStatus(reviewDate.before(now) ? RetentionPolicyStatus.REVIEW : RetentionPolicyStatus.OK);
+        }
+
+        List<VaultRetention> updated = vaultDAO.updateRetention(vaults, now);
+        if (updated.size() < vaults.size()) {
+            logger.info((vaults.size() - updated.size()) + " vaults were changed while being checked, they will be checked on the next run");
+        }
+        return updated;
+    }
     
     // Get the specified Vault object and validate it against the current User
     public Vault getUserVault(User user, String vaultID) throws Exception {
@@ -5,6 +5,7 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
@@ -25,7 +26,7 @@ import org.datavaultplatform.common.response.EventInfo;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Entity
-@Table(name="Events")
+@Table(name="Events", indexes = @Index(columnList = "timestamp"))
 @Inheritance(strategy = InheritanceType.SINGLE_TABLE)
 @DiscriminatorColumn(name="eventType", discriminatorType = DiscriminatorType.STRING)
 public class Event {
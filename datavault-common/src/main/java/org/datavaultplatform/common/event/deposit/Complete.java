@@ -1,5 +1,6 @@
 package org.datavaultplatform.common.event.deposit;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import javax.persistence.Entity;
 import javax.persistence.Table;
@@ -10,6 +11,10 @@ public class Complete extends Event {
 
     // Maps the model ArchiveStore Id to the generated Archive Id
     HashMap<String, String> archiveIds = new HashMap<>();
+    
+    // Maps the model ArchiveStore Id to the segment Ids, if the archive was stored in segments
+    HashMap<String, ArrayList<String>> archiveSegments = new HashMap<>();
+    public long segmentSize;
 
     //public String archiveId;
     public long archiveSize;
@@ -25,6 +30,14 @@ public class Complete extends Event {
         this.depositId = depositId;
         this.jobId = jobId;
     }
+    public Complete(String jobId, String depositId, HashMap<String, String> archiveIds,
+                    HashMap<String, ArrayList<String>> archiveSegments, long segmentSize, long archiveSize) {
+        
+        this(jobId, depositId, archiveIds, archiveSize);
+        
+        this.archiveSegments = archiveSegments;
+        this.segmentSize = segmentSize;
+    }
 
     public HashMap<String, String> getArchiveIds() {
         return archiveIds;
@@ -34,6 +47,22 @@ public class Complete extends Event {
         this.archiveIds = archiveIds;
     }
 
+    public HashMap<String, ArrayList<String>> getArchiveSegments() {
+        return archiveSegments;
+    }
+
+    public void setArchiveSegments(HashMap<String, ArrayList<String>> archiveSegments) {
+        this.archiveSegments = archiveSegments;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
     public long getArchiveSize() {
         return archiveSize;
     }
@@ -0,0 +1,37 @@
+package org.datavaultplatform.common.event.deposit;
+
+import javax.persistence.Entity;
+import org.datavaultplatform.common.event.Event;
+
+@Entity
+public class ComputedCompression extends Event {
+    
+    public String compression;
+    public int compressionLevel;
+    
+    ComputedCompression() {};
+    public ComputedCompression(String jobId, String depositId, String compression, int compressionLevel) {
+        super(compression + " level " + compressionLevel);
+        this.eventClass = ComputedCompression.class.getCanonicalName();
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.depositId = depositId;
+        this.jobId = jobId;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+}
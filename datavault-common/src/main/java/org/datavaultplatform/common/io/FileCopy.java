@@ -229,8 +229,7 @@ public class FileCopy {
                 count = size - pos > FILE_COPY_BUFFER_SIZE ? FILE_COPY_BUFFER_SIZE : size - pos;
                 long copied = output.transferFrom(input, pos, count);
                 pos += copied;
-                progress.byteCount += copied;
-                progress.timestamp = System.currentTimeMillis();
+                progress.addBytes(copied);
             }
         } finally {
             IOUtils.closeQuietly(output);
@@ -247,7 +246,7 @@ public class FileCopy {
             destFile.setLastModified(srcFile.lastModified());
         }
         
-        progress.fileCount += 1;
+        progress.addFile();
     }
 
     //-----------------------------------------------------------------------
@@ -529,6 +528,6 @@ public class FileCopy {
             destDir.setLastModified(srcDir.lastModified());
         }
         
-        progress.dirCount += 1;
+        progress.addDir();
     }
 }
\ No newline at end of file
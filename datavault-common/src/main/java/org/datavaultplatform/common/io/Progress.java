@@ -1,9 +1,80 @@
 package org.datavaultplatform.common.io;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the directories, files and bytes transferred by an operation. The counts are
+ * updated by the transfer threads and read by a progress reporter on another thread, so
+ * they are held in atomic counters.
+ */
 public class Progress {
-    public long startTime = 0;
-    public long dirCount = 0;
-    public long fileCount = 0;
-    public long byteCount = 0;
-    public long timestamp = 0;
+    
+    private volatile long startTime = 0;
+    private volatile long timestamp = 0;
+    private final AtomicLong dirCount = new AtomicLong(0);
+    private final AtomicLong fileCount = new AtomicLong(0);
+    private final AtomicLong byteCount = new AtomicLong(0);
+    
+    /**
+     * Mark the start of the transfer
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        timestamp = startTime;
+    }
+    
+    /**
+     * Count a directory
+     */
+    public void addDir() {
+        dirCount.incrementAndGet();
+    }
+    
+    /**
+     * Count a file
+     */
+    public void addFile() {
+        fileCount.incrementAndGet();
+    }
+    
+    /**
+     * Count bytes transferred, or uncount them if negative
+     * @param bytes The number of bytes
+     */
+    public void addBytes(long bytes) {
+        byteCount.addAndGet(bytes);
+        timestamp = System.currentTimeMillis();
+    }
+    
+    /**
+     * Set the number of bytes transferred so far, for transfers which report a running total
+     * @param bytes The number of bytes
+     */
+    public void setByteCount(long bytes) {
+        byteCount.set(bytes);
+        timestamp = System.currentTimeMillis();
+    }
+    
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * @return The time of the last update of the byte count
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    public long getDirCount() {
+        return dirCount.get();
+    }
+    
+    public long getFileCount() {
+        return fileCount.get();
+    }
+    
+    public long getByteCount() {
+        return byteCount.get();
+    }
 }
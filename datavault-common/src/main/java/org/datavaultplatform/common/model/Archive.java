@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.Date;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -36,6 +37,10 @@ public class Archive {
     @Column(columnDefinition = "TEXT")
     private String archiveId;
 
+    // The segments of an archive stored in parts (in which case the archiveId is the segment manifest)
+    @Lob
+    private ArrayList<String> segments;
+    private long segmentSize;
 
     public void setCreationTime(Date creationTime) {
         this.creationTime = creationTime;
@@ -60,4 +65,24 @@ public class Archive {
     public String getArchiveId() {
         return archiveId;
     }
+
+    public ArrayList<String> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(ArrayList<String> segments) {
+        this.segments = segments;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isSegmented() {
+        return segments != null && !segments.isEmpty();
+    }
 }
@@ -14,6 +14,7 @@ import javax.persistence.FetchType;
 import javax.persistence.CascadeType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
@@ -28,7 +29,7 @@ import org.jsondoc.core.annotation.ApiObjectField;
 @JsonIgnoreProperties(ignoreUnknown = true)
 @ApiObject(name = "Deposit")
 @Entity
-@Table(name="Deposits")
+@Table(name="Deposits", indexes = @Index(columnList = "creationTime"))
 public class Deposit {
 
     // Deposit Identifier
@@ -108,6 +109,16 @@ public class Deposit {
     @Column(columnDefinition = "TEXT")
     private String archiveDigestAlgorithm;
     
+    // Compression of the deposit package (null if not compressed)
+    @Column(columnDefinition = "TEXT")
+    private String archiveCompression;
+    private int archiveCompressionLevel;
+    
+    // The deposit which an incremental deposit only stores the changes from (null for a full deposit)
+    @ApiObjectField(description = "The deposit which this incremental deposit is based on")
+    @Column(columnDefinition = "TEXT")
+    private String baseDepositId;
+    
     // Record the file path that the user selected for this deposit.
     @ApiObjectField(description = "Origin of the deposited filepath")
     @Column(columnDefinition = "TEXT")
@@ -192,6 +203,30 @@ public class Deposit {
     public void setArchiveDigestAlgorithm(String archiveDigestAlgorithm) {
         this.archiveDigestAlgorithm = archiveDigestAlgorithm;
     }
+
+    public String getArchiveCompression() {
+        return archiveCompression;
+    }
+
+    public void setArchiveCompression(String archiveCompression) {
+        this.archiveCompression = archiveCompression;
+    }
+
+    public int getArchiveCompressionLevel() {
+        return archiveCompressionLevel;
+    }
+
+    public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+        this.archiveCompressionLevel = archiveCompressionLevel;
+    }
+
+    public String getBaseDepositId() {
+        return baseDepositId;
+    }
+
+    public void setBaseDepositId(String baseDepositId) {
+        this.baseDepositId = baseDepositId;
+    }
     
     public String getFileOrigin() {
         return fileOrigin;
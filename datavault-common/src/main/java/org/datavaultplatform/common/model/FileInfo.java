@@ -9,6 +9,10 @@ public class FileInfo {
     private String absolutePath;
     private String name;
     private Boolean isDirectory;
+    
+    // Size and last modified time (ms) of a file, if the storage provides them when listing
+    private Long size;
+    private Long modified;
 
     public FileInfo() {}
     public FileInfo(String key, String absolutePath, String fileName, Boolean isDirectory) {
@@ -49,4 +53,20 @@ public class FileInfo {
     public void setIsDirectory(Boolean isDirectory) {
         this.isDirectory = isDirectory;
     }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Long getModified() {
+        return modified;
+    }
+
+    public void setModified(Long modified) {
+        this.modified = modified;
+    }
 }
@@ -46,6 +46,20 @@ public class FileStore {
         this.label = label;
     }
 
+    /**
+     * Copy a file store with different properties, e.g. to leave out the configuration in a response
+     * without changing the original (which may be shared)
+     * @param other The file store to copy
+     * @param properties The properties of the copy
+     */
+    public FileStore(FileStore other, HashMap<String,String> properties) {
+        this.id = other.id;
+        this.storageClass = other.storageClass;
+        this.properties = properties;
+        this.label = other.label;
+        this.user = other.user;
+    }
+
     public String getID() { return id; }
 
     public String getStorageClass() { return storageClass; }
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.Date;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -54,6 +55,10 @@ public class Retrieve {
     @Column(columnDefinition = "TEXT")
     String retrievePath;
     
+    // The files or directories to retrieve (relative to the deposit), or null to retrieve the whole deposit
+    @Lob
+    private ArrayList<String> selectedPaths;
+    
     // Additional properties might go here - e.g. format
     
     public Retrieve() {};
@@ -68,6 +73,14 @@ public class Retrieve {
         this.retrievePath = retrievePath;
     }
 
+    public ArrayList<String> getSelectedPaths() {
+        return selectedPaths;
+    }
+
+    public void setSelectedPaths(ArrayList<String> selectedPaths) {
+        this.selectedPaths = selectedPaths;
+    }
+
     public void setTimestamp(Date timestamp) {
         this.timestamp = timestamp;
     }
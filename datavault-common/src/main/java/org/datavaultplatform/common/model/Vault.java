@@ -8,6 +8,7 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.OneToMany;
 import javax.persistence.FetchType;
@@ -33,7 +34,7 @@ import javax.persistence.Version;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Entity
-@Table(name="Vaults")
+@Table(name="Vaults", indexes = @Index(columnList = "creationTime"))
 public class Vault {
 
     // Vault Identifier
@@ -65,7 +66,7 @@ public class Vault {
     
     // A vault can contain a number of deposits
     @JsonIgnore
-    @OneToMany(targetEntity=Deposit.class, mappedBy="vault", fetch=FetchType.EAGER)
+    @OneToMany(targetEntity=Deposit.class, mappedBy="vault", fetch=FetchType.LAZY)
     @OrderBy("creationTime")
     private List<Deposit> deposits;
 
@@ -144,6 +145,11 @@ public class Vault {
     public RetentionPolicy getRetentionPolicy() { return retentionPolicy; }
 
     public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        // A vault whose policy changes is checked again by the next retention policy check
+        if (this.retentionPolicy != null && (retentionPolicy == null ||
+                !this.retentionPolicy.getID().equals(retentionPolicy.getID()))) {
+            this.retentionPolicyLastChecked = null;
+        }
         this.retentionPolicy = retentionPolicy;
     }
 
@@ -79,6 +79,10 @@ public class ClientDAOImpl implements ClientDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Client.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Client.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 }
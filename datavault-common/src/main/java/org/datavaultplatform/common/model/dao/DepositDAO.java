@@ -2,6 +2,8 @@ package org.datavaultplatform.common.model.dao;
 
 import java.util.List;
 import org.datavaultplatform.common.model.Deposit;
+import org.datavaultplatform.common.response.DepositInfo;
+import org.datavaultplatform.common.response.Page;
 
 public interface DepositDAO {
 
@@ -11,6 +13,8 @@ public interface DepositDAO {
     
     public List<Deposit> list(String sort);
 
+    public Page<DepositInfo> page(String sort, String order, String after, int limit);
+
     public Deposit findById(String Id);
 
     public int count();
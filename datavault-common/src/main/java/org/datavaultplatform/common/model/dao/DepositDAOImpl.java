@@ -1,5 +1,7 @@
 package org.datavaultplatform.common.model.dao;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.hibernate.Session;
@@ -11,6 +13,8 @@ import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 
 import org.datavaultplatform.common.model.Deposit;
+import org.datavaultplatform.common.response.DepositInfo;
+import org.datavaultplatform.common.response.Page;
 
 public class DepositDAOImpl implements DepositDAO {
 
@@ -76,6 +80,45 @@ public class DepositDAOImpl implements DepositDAO {
         return deposits;
     }
     
+    /**
+     * Get a page of deposits, built from the columns of the query rather than loading each deposit.
+     * The deposit paths are not included.
+     * @param sort "id" or "creationTime" (the default)
+     * @param order "asc" or "dec"
+     * @param after The cursor of the previous page, or null for the first page
+     * @param limit The maximum number of deposits
+     * @return The page
+     */
+    @Override
+    public Page<DepositInfo> page(String sort, String order, String after, int limit) {
+        String property = "id".equals(sort) ? "id" : "creationTime";
+        Keyset keyset = new Keyset(property, 1, order, after, limit);
+
+        Session session = this.sessionFactory.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Deposit.class);
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("id"))
+                    .add(Projections.property("creationTime"))
+                    .add(Projections.property("status"))
+                    .add(Projections.property("note"))
+                    .add(Projections.property("fileOrigin"))
+                    .add(Projections.property("shortFilePath"))
+                    .add(Projections.property("filePath"))
+                    .add(Projections.property("depositSize"))
+                    .add(Projections.property("vault.id")));
+
+            List<DepositInfo> deposits = new ArrayList<>();
+            for (Object[] row : keyset.list(criteria)) {
+                deposits.add(new DepositInfo((String)row[0], (Date)row[1], (Deposit.Status)row[2], (String)row[3],
+                        (String)row[4], (String)row[5], (String)row[6], (Long)row[7], (String)row[8], null));
+            }
+            return new Page<>(deposits, property, keyset.getOrder(), keyset.getNext());
+        } finally {
+            session.close();
+        }
+    }
+
     @Override
     public Deposit findById(String Id) {
         Session session = this.sessionFactory.openSession();
@@ -89,25 +132,37 @@ public class DepositDAOImpl implements DepositDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Deposit.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Deposit.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
     public int queueCount() {
         Session session = this.sessionFactory.openSession();
-        Criteria criteria = session.createCriteria(Deposit.class);
-        criteria.add(Restrictions.eq("status", Deposit.Status.NOT_STARTED));
-        criteria.setProjection(Projections.rowCount());
-        return (int)(long)(Long)criteria.uniqueResult();
+        try {
+            Criteria criteria = session.createCriteria(Deposit.class);
+            criteria.add(Restrictions.eq("status", Deposit.Status.NOT_STARTED));
+            criteria.setProjection(Projections.rowCount());
+            return (int)(long)(Long)criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
     public int inProgressCount() {
         Session session = this.sessionFactory.openSession();
-        Criteria criteria = session.createCriteria(Deposit.class);
-        criteria.add(Restrictions.and(Restrictions.ne("status", Deposit.Status.NOT_STARTED), Restrictions.ne("status", Deposit.Status.COMPLETE)));
-        criteria.setProjection(Projections.rowCount());
-        return (int)(long)(Long)criteria.uniqueResult();
+        try {
+            Criteria criteria = session.createCriteria(Deposit.class);
+            criteria.add(Restrictions.and(Restrictions.ne("status", Deposit.Status.NOT_STARTED), Restrictions.ne("status", Deposit.Status.COMPLETE)));
+            criteria.setProjection(Projections.rowCount());
+            return (int)(long)(Long)criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
@@ -150,6 +205,10 @@ public class DepositDAOImpl implements DepositDAO {
     @Override
     public Long size() {
         Session session = this.sessionFactory.openSession();
-        return (Long)session.createCriteria(Deposit.class).setProjection(Projections.sum("depositSize")).uniqueResult();
+        try {
+            return (Long)session.createCriteria(Deposit.class).setProjection(Projections.sum("depositSize")).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 }
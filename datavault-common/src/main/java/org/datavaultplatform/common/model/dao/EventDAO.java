@@ -1,15 +1,22 @@
 package org.datavaultplatform.common.model.dao;
 
+import java.util.Collection;
 import java.util.List;
 import org.datavaultplatform.common.event.Event;
+import org.datavaultplatform.common.response.EventInfo;
+import org.datavaultplatform.common.response.Page;
 
 public interface EventDAO {
     
     public void save(Event event);
     
+    public void saveBatch(Collection<?> updated, Collection<?> created);
+    
     public List<Event> list();
     
     public List<Event> list(String sort);
+    
+    public Page<EventInfo> page(String sort, String order, String after, int limit);
 
     public Event findById(String Id);
     
@@ -1,5 +1,8 @@
 package org.datavaultplatform.common.model.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
  
 import org.hibernate.Session;
@@ -9,6 +12,9 @@ import org.hibernate.Criteria;
 import org.hibernate.criterion.Restrictions;
 
 import org.datavaultplatform.common.event.Event;
+import org.datavaultplatform.common.model.Agent;
+import org.datavaultplatform.common.response.EventInfo;
+import org.datavaultplatform.common.response.Page;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 
@@ -29,6 +35,39 @@ public class EventDAOImpl implements EventDAO {
         session.close();
     }
     
+    /**
+     * Apply the changes made by a batch of events in one transaction. The updated entities are
+     * written before the created ones (e.g. the events themselves), so the created entities can
+     * refer to them, and the statements are sent to the database in JDBC batches.
+     * @param updated Detached entities which have been changed, at most one instance of each
+     * @param created New entities
+     */
+    @Override
+    public void saveBatch(Collection<?> updated, Collection<?> created) {
+        Session session = null;
+        Transaction tx = null;
+        try {
+            session = this.sessionFactory.openSession();
+            tx = session.beginTransaction();
+            for (Object entity : updated) {
+                session.update(entity);
+            }
+            for (Object entity : created) {
+                session.persist(entity);
+            }
+            tx.commit();
+        } catch (RuntimeException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     public List<Event> list() {        
@@ -57,6 +96,48 @@ public class EventDAOImpl implements EventDAO {
         return events;
     }
     
+    /**
+     * Get a page of events, built from the columns of the query rather than loading each event
+     * @param sort "id" or "timestamp" (the default)
+     * @param order "asc" or "dec"
+     * @param after The cursor of the previous page, or null for the first page
+     * @param limit The maximum number of events
+     * @return The page
+     */
+    @Override
+    public Page<EventInfo> page(String sort, String order, String after, int limit) {
+        String property = "id".equals(sort) ? "id" : "timestamp";
+        Keyset keyset = new Keyset(property, 1, order, after, limit);
+
+        Session session = this.sessionFactory.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Event.class);
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("id"))
+                    .add(Projections.property("timestamp"))
+                    .add(Projections.property("message"))
+                    .add(Projections.property("user.id"))
+                    .add(Projections.property("vault.id"))
+                    .add(Projections.property("eventClass"))
+                    .add(Projections.property("deposit.id"))
+                    .add(Projections.property("agent"))
+                    .add(Projections.property("agentType"))
+                    .add(Projections.property("remoteAddress"))
+                    .add(Projections.property("userAgent")));
+
+            List<EventInfo> events = new ArrayList<>();
+            for (Object[] row : keyset.list(criteria)) {
+                Agent.AgentType agentType = (Agent.AgentType)row[8];
+                events.add(new EventInfo((String)row[0], (Date)row[1], (String)row[2], (String)row[3],
+                        (String)row[4], (String)row[5], (String)row[6], (String)row[7],
+                        agentType != null ? agentType.toString() : null, (String)row[9], (String)row[10]));
+            }
+            return new Page<>(events, property, keyset.getOrder(), keyset.getNext());
+        } finally {
+            session.close();
+        }
+    }
+    
     @Override
     public Event findById(String Id) {
         Session session = this.sessionFactory.openSession();
@@ -70,6 +151,10 @@ public class EventDAOImpl implements EventDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Event.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Event.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 }
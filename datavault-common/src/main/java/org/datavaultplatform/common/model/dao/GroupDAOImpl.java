@@ -69,6 +69,10 @@ public class GroupDAOImpl implements GroupDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Group.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Group.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 }
@@ -74,6 +74,10 @@ public class JobDAOImpl implements JobDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Job.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Job.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 }
@@ -0,0 +1,108 @@
+package org.datavaultplatform.common.model.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * Pages through a table in the order of an indexed column, using the last row of each page as
+ * the starting point of the next so that the database never has to skip over earlier rows.
+ *
+ * The sort column must be unique when combined with the ID and must not be null. A cursor is the
+ * ID of the last row followed by its sort value, e.g. "ID,1466000000000" for a timestamp.
+ */
+class Keyset {
+
+    private final String property;
+    private final int column;
+    private final boolean asc;
+    private final String after;
+    private final int limit;
+
+    private String next = null;
+
+    /**
+     * @param property The sort property, either "id" or a timestamp
+     * @param column The position of the sort property in the projection, whose first column must be the ID
+     * @param order The sort order, "dec" for descending and otherwise ascending
+     * @param after The cursor of the last row of the previous page, or null for the first page
+     * @param limit The maximum number of rows in the page
+     */
+    Keyset(String property, int column, String order, String after, int limit) {
+        this.property = property;
+        this.column = column;
+        this.asc = !"dec".equals(order);
+        this.after = (after != null && !after.isEmpty()) ? after : null;
+        this.limit = limit;
+    }
+
+    /**
+     * Get a page of rows
+     * @param criteria The query, which must have a projection returning the ID first
+     * @return At most limit rows
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    @SuppressWarnings("unchecked")
+    List<Object[]> list(Criteria criteria) {
+
+        if (after != null) {
+            int separator = after.indexOf(',');
+            String id = (separator == -1) ? after : after.substring(0, separator);
+
+            if ("id".equals(property)) {
+                criteria.add(asc ? Restrictions.gt("id", id) : Restrictions.lt("id", id));
+            } else {
+                if (separator == -1) {
+                    throw new IllegalArgumentException("Invalid cursor: " + after);
+                }
+                Date value;
+                try {
+                    value = new Date(Long.parseLong(after.substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid cursor: " + after);
+                }
+                criteria.add(Restrictions.or(
+                        asc ? Restrictions.gt(property, value) : Restrictions.lt(property, value),
+                        Restrictions.and(Restrictions.eq(property, value),
+                                asc ? Restrictions.gt("id", id) : Restrictions.lt("id", id))));
+            }
+        }
+
+        criteria.addOrder(asc ? Order.asc(property) : Order.desc(property));
+        if (!"id".equals(property)) {
+            criteria.addOrder(asc ? Order.asc("id") : Order.desc("id"));
+        }
+
+        // Fetch one extra row to find out whether there is a next page
+        criteria.setMaxResults(limit + 1);
+        List<Object[]> rows = criteria.list();
+
+        if (rows.size() > limit) {
+            rows = rows.subList(0, limit);
+            Object[] last = rows.get(limit - 1);
+            if ("id".equals(property)) {
+                next = (String)last[0];
+            } else {
+                next = last[0] + "," + ((Date)last[column]).getTime();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The cursor of the last row of the page, or null if there are no more rows
+     */
+    String getNext() {
+        return next;
+    }
+
+    /**
+     * @return The sort order, "asc" or "dec"
+     */
+    String getOrder() {
+        return asc ? "asc" : "dec";
+    }
+}
@@ -32,6 +32,10 @@ public class RetentionPolicyDAOImpl implements RetentionPolicyDAO {
         Session session = this.sessionFactory.openSession();
         Transaction tx = session.beginTransaction();
         session.update(retentionPolicy);
+        // The vaults with this policy are checked again by the next retention policy check
+        session.createQuery("update versioned Vault set retentionPolicyLastChecked = null where retentionPolicy.id = :id")
+                .setString("id", retentionPolicy.getID())
+                .executeUpdate();
         tx.commit();
         session.close();
     }
@@ -62,25 +62,37 @@ public class RetrieveDAOImpl implements RetrieveDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int) (long) (Long) session.createCriteria(Retrieve.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int) (long) (Long) session.createCriteria(Retrieve.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
     public int queueCount() {
         Session session = this.sessionFactory.openSession();
-        Criteria criteria = session.createCriteria(Retrieve.class);
-        criteria.add(Restrictions.eq("status", Retrieve.Status.NOT_STARTED));
-        criteria.setProjection(Projections.rowCount());
-        return (int)(long)(Long)criteria.uniqueResult();
+        try {
+            Criteria criteria = session.createCriteria(Retrieve.class);
+            criteria.add(Restrictions.eq("status", Retrieve.Status.NOT_STARTED));
+            criteria.setProjection(Projections.rowCount());
+            return (int)(long)(Long)criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
     public int inProgressCount() {
         Session session = this.sessionFactory.openSession();
-        Criteria criteria = session.createCriteria(Retrieve.class);
-        criteria.add(Restrictions.and(Restrictions.ne("status", Retrieve.Status.NOT_STARTED), Restrictions.ne("status", Retrieve.Status.COMPLETE)));
-        criteria.setProjection(Projections.rowCount());
-        return (int)(long)(Long)criteria.uniqueResult();
+        try {
+            Criteria criteria = session.createCriteria(Retrieve.class);
+            criteria.add(Restrictions.and(Restrictions.ne("status", Retrieve.Status.NOT_STARTED), Restrictions.ne("status", Retrieve.Status.COMPLETE)));
+            criteria.setProjection(Projections.rowCount());
+            return (int)(long)(Long)criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
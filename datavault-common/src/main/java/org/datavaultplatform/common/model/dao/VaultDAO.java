@@ -1,7 +1,11 @@
 package org.datavaultplatform.common.model.dao;
 
+import java.util.Date;
 import java.util.List;
 import org.datavaultplatform.common.model.Vault;
+import org.datavaultplatform.common.response.Page;
+import org.datavaultplatform.common.response.VaultInfo;
+import org.datavaultplatform.common.retentionpolicy.VaultRetention;
  
 public interface VaultDAO {
 
@@ -13,11 +17,21 @@ public interface VaultDAO {
 
     public List<Vault> list(String sort, String order);
 
+    public Page<VaultInfo> page(String sort, String order, String after, int limit);
+
     public Vault findById(String Id);
 
+    public List<Vault> findByUser(String userID);
+
+    public List<Vault> findByGroup(String groupID);
+
     public List<Vault> search(String query, String sort, String order);
 
     public int count();
 
     public int getRetentionPolicyCount(int status);
+
+    public List<VaultRetention> findRetentionChanges(Date now);
+
+    public List<VaultRetention> updateRetention(List<VaultRetention> vaults, Date checked);
 }
@@ -1,19 +1,41 @@
 package org.datavaultplatform.common.model.dao;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.Criteria;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Subqueries;
+import org.hibernate.jdbc.Work;
+import org.hibernate.sql.JoinType;
 
+import org.datavaultplatform.common.model.Deposit;
+import org.datavaultplatform.common.model.Retrieve;
 import org.datavaultplatform.common.model.Vault;
+import org.datavaultplatform.common.response.Page;
+import org.datavaultplatform.common.response.VaultInfo;
+import org.datavaultplatform.common.retentionpolicy.RetentionPolicyStatus;
+import org.datavaultplatform.common.retentionpolicy.VaultRetention;
 
 public class VaultDAOImpl implements VaultDAO {
 
+    // The number of vaults whose deposits and retrieves are read in one query, and updated in one batch
+    private static final int RETENTION_CHUNK = 1000;
+
     private SessionFactory sessionFactory;
  
     public void setSessionFactory(SessionFactory sessionFactory) {
@@ -77,6 +99,50 @@ public class VaultDAOImpl implements VaultDAO {
         return vaults;
     }
 
+    /**
+     * Get a page of vaults, built from the columns of the query rather than loading each vault
+     * @param sort "id" or "creationTime" (the default)
+     * @param order "asc" or "dec"
+     * @param after The cursor of the previous page, or null for the first page
+     * @param limit The maximum number of vaults
+     * @return The page
+     */
+    @Override
+    public Page<VaultInfo> page(String sort, String order, String after, int limit) {
+        String property = "id".equals(sort) ? "id" : "creationTime";
+        Keyset keyset = new Keyset(property, 4, order, after, limit);
+
+        Session session = this.sessionFactory.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Vault.class);
+            criteria.createAlias("dataset", "dataset", JoinType.LEFT_OUTER_JOIN);
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("id"))
+                    .add(Projections.property("user.id"))
+                    .add(Projections.property("dataset.id"))
+                    .add(Projections.property("dataset.name"))
+                    .add(Projections.property("creationTime"))
+                    .add(Projections.property("name"))
+                    .add(Projections.property("description"))
+                    .add(Projections.property("retentionPolicy.id"))
+                    .add(Projections.property("group.id"))
+                    .add(Projections.property("vaultSize"))
+                    .add(Projections.property("retentionPolicyStatus"))
+                    .add(Projections.property("retentionPolicyExpiry"))
+                    .add(Projections.property("retentionPolicyLastChecked")));
+
+            List<VaultInfo> vaults = new ArrayList<>();
+            for (Object[] row : keyset.list(criteria)) {
+                vaults.add(new VaultInfo((String)row[0], (String)row[1], (String)row[2], (String)row[3],
+                        (Date)row[4], (String)row[5], (String)row[6], (String)row[7], (String)row[8],
+                        (Long)row[9], (Integer)row[10], (Date)row[11], (Date)row[12]));
+            }
+            return new Page<>(vaults, property, keyset.getOrder(), keyset.getNext());
+        } finally {
+            session.close();
+        }
+    }
+
     @Override
     public Vault findById(String Id) {
         Session session = this.sessionFactory.openSession();
@@ -87,6 +153,36 @@ public class VaultDAOImpl implements VaultDAO {
         return vault;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Vault> findByUser(String userID) {
+        Session session = this.sessionFactory.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Vault.class);
+            criteria.add(Restrictions.eq("user.id", userID));
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            criteria.addOrder(Order.asc("creationTime"));
+            return criteria.list();
+        } finally {
+            session.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<Vault> findByGroup(String groupID) {
+        Session session = this.sessionFactory.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Vault.class);
+            criteria.add(Restrictions.eq("group.id", groupID));
+            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            criteria.addOrder(Order.asc("creationTime"));
+            return criteria.list();
+        } finally {
+            session.close();
+        }
+    }
+
     @Override
     public List<Vault> search(String query, String sort, String order) {
         Session session = this.sessionFactory.openSession();
@@ -104,16 +200,24 @@ public class VaultDAOImpl implements VaultDAO {
     @Override
     public int count() {
         Session session = this.sessionFactory.openSession();
-        return (int)(long)(Long)session.createCriteria(Vault.class).setProjection(Projections.rowCount()).uniqueResult();
+        try {
+            return (int)(long)(Long)session.createCriteria(Vault.class).setProjection(Projections.rowCount()).uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     @Override
     public int getRetentionPolicyCount(int status) {
         Session session = this.sessionFactory.openSession();
-        Criteria criteria = session.createCriteria(Vault.class);
-        criteria.add(Restrictions.eq("retentionPolicyStatus", status));
-        criteria.setProjection(Projections.rowCount());
-        return (int)(long)(Long)criteria.uniqueResult();
+        try {
+            Criteria criteria = session.createCriteria(Vault.class);
+            criteria.add(Restrictions.eq("retentionPolicyStatus", status));
+            criteria.setProjection(Projections.rowCount());
+            return (int)(long)(Long)criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
     }
 
     private void order(String sort, String order, Criteria criteria) {
@@ -168,4 +272,143 @@ public class VaultDAOImpl implements VaultDAO {
             }
         }
     }
+
+    /**
+     * Find the vaults whose retention policy review date or status may have changed since they were
+     * last checked: vaults which have not been checked, or could not be, vaults which have become due
+     * for review, and vaults with deposits or retrieves made since the check. Changing the retention
+     * policy of a vault, or editing the policy, clears the time it was last checked. The dates of their last
+     * deposit and retrieve are read with one grouped query for each chunk of vaults.
+     * @param now The time of the check
+     * @return The vaults to check
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<VaultRetention> findRetentionChanges(Date now) {
+        Session session = this.sessionFactory.openSession();
+        try {
+            DetachedCriteria deposited = DetachedCriteria.forClass(Deposit.class, "d")
+                    .add(Restrictions.eqProperty("d.vault.id", "v.id"))
+                    .add(Restrictions.gtProperty("d.creationTime", "v.retentionPolicyLastChecked"))
+                    .setProjection(Projections.id());
+            DetachedCriteria retrieved = DetachedCriteria.forClass(Retrieve.class, "r")
+                    .createAlias("r.deposit", "rd")
+                    .add(Restrictions.eqProperty("rd.vault.id", "v.id"))
+                    .add(Restrictions.gtProperty("r.timestamp", "v.retentionPolicyLastChecked"))
+                    .setProjection(Projections.id());
+
+            Criteria criteria = session.createCriteria(Vault.class, "v");
+            criteria.createAlias("v.retentionPolicy", "policy");
+            criteria.add(Restrictions.or(
+                    Restrictions.isNull("v.retentionPolicyLastChecked"),
+                    Restrictions.not(Restrictions.in("v.retentionPolicyStatus",
+                            new Object[] { RetentionPolicyStatus.OK, RetentionPolicyStatus.REVIEW })),
+                    Restrictions.and(
+                            Restrictions.eq("v.retentionPolicyStatus", RetentionPolicyStatus.OK),
+                            Restrictions.le("v.retentionPolicyExpiry", now)),
+                    Subqueries.exists(deposited),
+                    Subqueries.exists(retrieved)));
+            criteria.setProjection(Projections.projectionList()
+                    .add(Projections.property("v.id"))
+                    .add(Projections.property("v.version"))
+                    .add(Projections.property("policy.engine"))
+                    .add(Projections.property("v.creationTime"))
+                    .add(Projections.property("v.retentionPolicyStatus"))
+                    .add(Projections.property("v.retentionPolicyExpiry")));
+
+            List<VaultRetention> vaults = new ArrayList<>();
+            for (Object[] row : (List<Object[]>)criteria.list()) {
+                vaults.add(new VaultRetention((String)row[0], (Long)row[1], (String)row[2], (Date)row[3], (Integer)row[4], (Date)row[5]));
+            }
+
+            for (int start = 0; start < vaults.size(); start += RETENTION_CHUNK) {
+                Map<String, VaultRetention> chunk = new HashMap<>();
+                for (VaultRetention vault : vaults.subList(start, Math.min(start + RETENTION_CHUNK, vaults.size()))) {
+                    chunk.put(vault.getVaultID(), vault);
+                }
+
+                Criteria deposits = session.createCriteria(Deposit.class);
+                deposits.add(Restrictions.in("vault.id", chunk.keySet()));
+                deposits.setProjection(Projections.projectionList()
+                        .add(Projections.groupProperty("vault.id"))
+                        .add(Projections.max("creationTime")));
+                for (Object[] row : (List<Object[]>)deposits.list()) {
+                    chunk.get(row[0]).setLastDeposit((Date)row[1]);
+                }
+
+                Criteria retrieves = session.createCriteria(Retrieve.class);
+                retrieves.createAlias("deposit", "deposit");
+                retrieves.add(Restrictions.in("deposit.vault.id", chunk.keySet()));
+                retrieves.setProjection(Projections.projectionList()
+                        .add(Projections.groupProperty("deposit.vault.id"))
+                        .add(Projections.max("timestamp")));
+                for (Object[] row : (List<Object[]>)retrieves.list()) {
+                    chunk.get(row[0]).setLastRetrieve((Date)row[1]);
+                }
+            }
+
+            return vaults;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Record the result of checking the retention policies of some vaults, in batches of updates
+     * in one transaction. A vault which has been changed since it was read is not updated, and is
+     * checked again on the next run.
+     * @param vaults The vaults, with their new status and review date
+     * @param checked The time of the check
+     * @return The vaults which were updated
+     */
+    @Override
+    public List<VaultRetention> updateRetention(final List<VaultRetention> vaults, final Date checked) {
+        final List<VaultRetention> updated = new ArrayList<>();
+        Session session = null;
+        Transaction tx = null;
+        try {
+            session = this.sessionFactory.openSession();
+            tx = session.beginTransaction();
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    PreparedStatement statement = connection.prepareStatement(
+                            "UPDATE Vaults SET retentionPolicyStatus = ?, retentionPolicyExpiry = ?, " +
+                            "retentionPolicyLastChecked = ?, version = version + 1 WHERE id = ? AND version = ?");
+                    try {
+                        for (int start = 0; start < vaults.size(); start += RETENTION_CHUNK) {
+                            List<VaultRetention> chunk = vaults.subList(start, Math.min(start + RETENTION_CHUNK, vaults.size()));
+                            for (VaultRetention vault : chunk) {
+                                statement.setInt(1, vault.getStatus());
+                                statement.setTimestamp(2, vault.getExpiry() != null ? new Timestamp(vault.getExpiry().getTime()) : null);
+                                statement.setTimestamp(3, new Timestamp(checked.getTime()));
+                                statement.setString(4, vault.getVaultID());
+                                statement.setLong(5, vault.getVersion());
+                                statement.addBatch();
+                            }
+                            int[] counts = statement.executeBatch();
+                            for (int i = 0; i < counts.length; i++) {
+                                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                                    updated.add(chunk.get(i));
+                                }
+                            }
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            tx.commit();
+            return updated;
+        } catch (RuntimeException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
 }
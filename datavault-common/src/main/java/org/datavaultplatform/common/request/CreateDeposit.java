@@ -21,6 +21,9 @@ public class CreateDeposit {
     @ApiObjectField(description = "The temporary upload location for files")
     private String fileUploadHandle;
     
+    @ApiObjectField(description = "Only store the files which have changed since the last deposit to the vault")
+    private boolean incremental;
+    
     public CreateDeposit() { }
     public CreateDeposit(String note, List<String> depositPaths, String vaultID, String fileUploadHandle) {
         this.note = note;
@@ -60,4 +63,12 @@ public class CreateDeposit {
     public void setFileUploadHandle(String fileUploadHandle) {
         this.fileUploadHandle = fileUploadHandle;
     }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
 }
@@ -0,0 +1,64 @@
+package org.datavaultplatform.common.response;
+
+import java.util.List;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.jsondoc.core.annotation.ApiObject;
+import org.jsondoc.core.annotation.ApiObjectField;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@ApiObject(name = "Page")
+public class Page<T> {
+
+    @ApiObjectField(description = "The items on this page")
+    private List<T> items;
+
+    @ApiObjectField(description = "The field which the items are sorted by")
+    private String sort;
+
+    @ApiObjectField(description = "The sort order (asc or dec)")
+    private String order;
+
+    @ApiObjectField(description = "The cursor to pass as 'after' to get the next page, or null if this is the last page")
+    private String next;
+
+    public Page() { }
+
+    public Page(List<T> items, String sort, String order, String next) {
+        this.items = items;
+        this.sort = sort;
+        this.order = order;
+        this.next = next;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public String getOrder() {
+        return order;
+    }
+
+    public void setOrder(String order) {
+        this.order = order;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+}
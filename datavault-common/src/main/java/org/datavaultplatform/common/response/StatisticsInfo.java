@@ -0,0 +1,158 @@
+package org.datavaultplatform.common.response;
+
+import java.util.Date;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.jsondoc.core.annotation.ApiObject;
+import org.jsondoc.core.annotation.ApiObjectField;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@ApiObject(name = "StatisticsInfo")
+public class StatisticsInfo {
+
+    @ApiObjectField(description = "The number of vaults")
+    private long vaultCount;
+
+    @ApiObjectField(description = "The total size of the deposits in bytes")
+    private long vaultSize;
+
+    @ApiObjectField(description = "The number of deposits")
+    private long depositCount;
+
+    @ApiObjectField(description = "The number of deposits which have not started")
+    private long depositQueueCount;
+
+    @ApiObjectField(description = "The number of deposits which have started but not completed")
+    private long depositInProgressCount;
+
+    @ApiObjectField(description = "The number of retrieves")
+    private long retrieveCount;
+
+    @ApiObjectField(description = "The number of retrieves which have not started")
+    private long retrieveQueueCount;
+
+    @ApiObjectField(description = "The number of retrieves which have started but not completed")
+    private long retrieveInProgressCount;
+
+    @ApiObjectField(description = "The number of events")
+    private long eventCount;
+
+    @ApiObjectField(description = "The number of users")
+    private long userCount;
+
+    @ApiObjectField(description = "The number of groups")
+    private long groupCount;
+
+    @ApiObjectField(description = "The number of vaults whose retention policy is due for review")
+    private long reviewCount;
+
+    @JsonFormat(shape=JsonFormat.Shape.STRING, pattern="yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+    @ApiObjectField(description = "The date and time when the statistics were last checked against the database")
+    private Date reconciled;
+
+    public StatisticsInfo() { }
+
+    public long getVaultCount() {
+        return vaultCount;
+    }
+
+    public void setVaultCount(long vaultCount) {
+        this.vaultCount = vaultCount;
+    }
+
+    public long getVaultSize() {
+        return vaultSize;
+    }
+
+    public void setVaultSize(long vaultSize) {
+        this.vaultSize = vaultSize;
+    }
+
+    public long getDepositCount() {
+        return depositCount;
+    }
+
+    public void setDepositCount(long depositCount) {
+        this.depositCount = depositCount;
+    }
+
+    public long getDepositQueueCount() {
+        return depositQueueCount;
+    }
+
+    public void setDepositQueueCount(long depositQueueCount) {
+        this.depositQueueCount = depositQueueCount;
+    }
+
+    public long getDepositInProgressCount() {
+        return depositInProgressCount;
+    }
+
+    public void setDepositInProgressCount(long depositInProgressCount) {
+        this.depositInProgressCount = depositInProgressCount;
+    }
+
+    public long getRetrieveCount() {
+        return retrieveCount;
+    }
+
+    public void setRetrieveCount(long retrieveCount) {
+        this.retrieveCount = retrieveCount;
+    }
+
+    public long getRetrieveQueueCount() {
+        return retrieveQueueCount;
+    }
+
+    public void setRetrieveQueueCount(long retrieveQueueCount) {
+        this.retrieveQueueCount = retrieveQueueCount;
+    }
+
+    public long getRetrieveInProgressCount() {
+        return retrieveInProgressCount;
+    }
+
+    public void setRetrieveInProgressCount(long retrieveInProgressCount) {
+        this.retrieveInProgressCount = retrieveInProgressCount;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public void setEventCount(long eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    public long getUserCount() {
+        return userCount;
+    }
+
+    public void setUserCount(long userCount) {
+        this.userCount = userCount;
+    }
+
+    public long getGroupCount() {
+        return groupCount;
+    }
+
+    public void setGroupCount(long groupCount) {
+        this.groupCount = groupCount;
+    }
+
+    public long getReviewCount() {
+        return reviewCount;
+    }
+
+    public void setReviewCount(long reviewCount) {
+        this.reviewCount = reviewCount;
+    }
+
+    public Date getReconciled() {
+        return reconciled;
+    }
+
+    public void setReconciled(Date reconciled) {
+        this.reconciled = reconciled;
+    }
+}
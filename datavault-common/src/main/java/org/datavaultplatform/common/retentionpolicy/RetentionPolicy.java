@@ -15,4 +15,12 @@ public interface RetentionPolicy {
      * Get the current review date of the policy
      */
     public Date getReviewDate(Vault v);
+
+    /**
+     * Get the review date of the policy from the dates it depends on, without loading the deposits of the vault
+     * @param creationTime When the vault was created
+     * @param lastDeposit When the last deposit was made, or null if there are no deposits
+     * @param lastRetrieve When the last retrieve was made, or null if there are no retrieves
+     */
+    public Date getReviewDate(Date creationTime, Date lastDeposit, Date lastRetrieve);
 }
@@ -0,0 +1,90 @@
+package org.datavaultplatform.common.retentionpolicy;
+
+import java.util.Date;
+
+/**
+ * The retention policy state of a vault and the dates its review date depends on, read without
+ * loading the vault or its deposits so that the policies of many vaults can be checked at once.
+ */
+public class VaultRetention {
+
+    private final String vaultID;
+    private final long version;
+    private final String engine;
+    private final Date creationTime;
+
+    private Date lastDeposit = null;
+    private Date lastRetrieve = null;
+
+    private int status;
+    private Date expiry;
+
+    public VaultRetention(String vaultID, long version, String engine, Date creationTime, int status, Date expiry) {
+        this.vaultID = vaultID;
+        this.version = version;
+        this.engine = engine;
+        this.creationTime = creationTime;
+        this.status = status;
+        this.expiry = expiry;
+    }
+
+    public String getVaultID() {
+        return vaultID;
+    }
+
+    /**
+     * @return The version of the vault when it was read, which must not have changed when it is updated
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The class name of the retention policy
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    public Date getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return When the last deposit was made, or null if there are no deposits
+     */
+    public Date getLastDeposit() {
+        return lastDeposit;
+    }
+
+    public void setLastDeposit(Date lastDeposit) {
+        this.lastDeposit = lastDeposit;
+    }
+
+    /**
+     * @return When the last retrieve was made, or null if there are no retrieves
+     */
+    public Date getLastRetrieve() {
+        return lastRetrieve;
+    }
+
+    public void setLastRetrieve(Date lastRetrieve) {
+        this.lastRetrieve = lastRetrieve;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public Date getExpiry() {
+        return expiry;
+    }
+
+    public void setExpiry(Date expiry) {
+        this.expiry = expiry;
+    }
+}
@@ -27,7 +27,11 @@ public class DefaultRetentionPolicy implements RetentionPolicy {
     }
 
     public Date getReviewDate(Vault v) {
-        Date check = v.getCreationTime();
+        return getReviewDate(v.getCreationTime(), null, null);
+    }
+
+    public Date getReviewDate(Date creationTime, Date lastDeposit, Date lastRetrieve) {
+        Date check = creationTime;
 
         // Add five years
         Calendar c = Calendar.getInstance();
@@ -34,11 +34,16 @@ public class CancerResearchRetentionPolicy implements RetentionPolicy {
     }
 
     public Date getReviewDate(Vault v) {
-        // Work from the date of last deposit
-        Date check = v.getCreationTime();
+        Date lastDeposit = null;
         if (!v.getDeposits().isEmpty()) {
-            check = v.getDeposits().get(v.getDeposits().size() - 1).getCreationTime();
+            lastDeposit = v.getDeposits().get(v.getDeposits().size() - 1).getCreationTime();
         }
+        return getReviewDate(v.getCreationTime(), lastDeposit, null);
+    }
+
+    public Date getReviewDate(Date creationTime, Date lastDeposit, Date lastRetrieve) {
+        // Work from the date of last deposit
+        Date check = (lastDeposit != null) ? lastDeposit : creationTime;
 
         // Add five years
         Calendar c = Calendar.getInstance();
@@ -30,7 +30,6 @@ public class EPSRCRetentionPolicy implements RetentionPolicy {
     }
 
     public Date getReviewDate(Vault v) {
-        Date check;
 
         // Get all the retrieve events
         ArrayList<Retrieve> retrieves = new ArrayList();
@@ -38,22 +37,35 @@ public class EPSRCRetentionPolicy implements RetentionPolicy {
             retrieves.addAll(d.getRetrieves());
         }
 
-        // Have their been any retrieves?
-        if (!retrieves.isEmpty()) {
-            check = retrieves.get(0).getTimestamp();
-            for (Retrieve r : retrieves) {
-                if (r.getTimestamp().after(check)) {
-                    check = r.getTimestamp();
-                }
+        Date lastRetrieve = null;
+        for (Retrieve r : retrieves) {
+            if (lastRetrieve == null || r.getTimestamp().after(lastRetrieve)) {
+                lastRetrieve = r.getTimestamp();
             }
         }
+
+        Date lastDeposit = null;
+        if (!v.getDeposits().isEmpty()) {
+            lastDeposit = v.getDeposits().get(v.getDeposits().size() - 1).getCreationTime();
+        }
+
+        return getReviewDate(v.getCreationTime(), lastDeposit, lastRetrieve);
+    }
+
+    public Date getReviewDate(Date creationTime, Date lastDeposit, Date lastRetrieve) {
+        Date check;
+
+        // Have their been any retrieves?
+        if (lastRetrieve != null) {
+            check = lastRetrieve;
+        }
         // No retrieves, so use date of last deposit
         else {
-            if (v.getDeposits().isEmpty()) {
+            if (lastDeposit == null) {
                 // No deposits, so use vault creation date
-                check = v.getCreationTime();
+                check = creationTime;
             } else {
-                check = v.getDeposits().get(v.getDeposits().size() - 1).getCreationTime();
+                check = lastDeposit;
             }
         }
 
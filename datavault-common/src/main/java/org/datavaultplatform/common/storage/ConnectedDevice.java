@@ -0,0 +1,17 @@
+package org.datavaultplatform.common.storage;
+
+// Interface for storage systems which connect to a server, and which can keep
+// the connection open between operations (e.g. while the device is pooled)
+
+public interface ConnectedDevice {
+
+    // Keep the connection open after each operation until the device is closed,
+    // rather than connecting and disconnecting for every operation
+    public void setKeepConnected(boolean keepConnected);
+
+    // Check whether the connection is open and can be used for the next operation
+    public boolean isConnected();
+
+    // Close the connection, the device connects again if it is used afterwards
+    public void close();
+}
@@ -0,0 +1,10 @@
+package org.datavaultplatform.common.storage;
+
+// Interface for storage systems which can create directories, so that a directory
+// tree can be stored one object at a time (e.g. as streams)
+
+public interface DirectoryDevice {
+
+    // Create a directory, including any missing parent directories
+    public void createDirectory(String path) throws Exception;
+}
@@ -0,0 +1,15 @@
+package org.datavaultplatform.common.storage;
+
+import org.datavaultplatform.common.io.Progress;
+import java.io.InputStream;
+
+// Interface for storage systems which can read part of an object
+// without transferring the whole object
+
+public interface RangedDevice {
+
+    // Open a byte range of a single object (file) for reading
+    // The stream ends after the given length, or at the end of the object if that comes first
+    // Progress information should be updated for monitoring as the stream is read
+    public InputStream retrieveRange(String path, long offset, long length, Progress progress) throws Exception;
+}
@@ -0,0 +1,18 @@
+package org.datavaultplatform.common.storage;
+
+import org.datavaultplatform.common.io.Progress;
+import java.io.InputStream;
+
+// Interface for storage systems which can transfer objects as streams
+// rather than via a copy in the working space
+
+public interface StreamingDevice {
+
+    // Open a single object (file) for reading
+    // Progress information should be updated for monitoring as the stream is read
+    public InputStream retrieveStream(String path, Progress progress) throws Exception;
+
+    // Copy a single object (file) from a stream of unknown length, reading until the end of the stream
+    // Progress information should be updated for monitoring as the copy occurs
+    public String storeStream(String path, String name, InputStream input, Progress progress) throws Exception;
+}
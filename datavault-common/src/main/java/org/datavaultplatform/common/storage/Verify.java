@@ -12,7 +12,7 @@ public class Verify {
     
     public static String getDigest(File file) throws Exception {
 
-        MessageDigest sha1 = MessageDigest.getInstance(algorithm);
+        MessageDigest sha1 = getMessageDigest();
         
         try (InputStream is = new FileInputStream(file)) {
             byte[] buffer = new byte[8192];
@@ -23,10 +23,20 @@ public class Verify {
                 len = is.read(buffer);
             }
             
-            return new HexBinaryAdapter().marshal(sha1.digest());
+            return getDigest(sha1);
         }
     }
     
+    // A new digest for the system algorithm, e.g. to update while a stream is written
+    public static MessageDigest getMessageDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(algorithm);
+    }
+    
+    // Complete a digest and encode it in the same form as getDigest(File)
+    public static String getDigest(MessageDigest digest) {
+        return new HexBinaryAdapter().marshal(digest.digest());
+    }
+    
     public static String getAlgorithm() {
         return algorithm;
     }
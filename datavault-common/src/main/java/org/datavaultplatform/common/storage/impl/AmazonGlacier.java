@@ -103,8 +103,7 @@ public class AmazonGlacier extends Device implements ArchiveStore {
                     
                     // If this was the first request then reset the timer (data is now flowing)
                     if (!transferStarted) {
-                        progress.startTime = System.currentTimeMillis();
-                        progress.timestamp = System.currentTimeMillis();
+                        progress.start();
                         transferStarted = true;
                     }
                     
@@ -127,11 +126,9 @@ public class AmazonGlacier extends Device implements ArchiveStore {
                 }
 
                 if (trackResponse) {
-                    progress.byteCount = responseByteCount;
-                    progress.timestamp = System.currentTimeMillis();
+                    progress.setByteCount(responseByteCount);
                 } else if (httpRequestInProgress) {
-                    progress.byteCount = requestByteCount;
-                    progress.timestamp = System.currentTimeMillis();
+                    progress.setByteCount(requestByteCount);
                 }
                 
                 /*
@@ -141,7 +138,7 @@ public class AmazonGlacier extends Device implements ArchiveStore {
                 System.out.println("Event Bytes: " + pe.getBytes());
                 System.out.println("Request Bytes So Far: " + requestByteCount);
                 System.out.println("Response Bytes So Far: " + responseByteCount);
-                System.out.println("Transferred Bytes: " + progress.byteCount);
+                System.out.println("Transferred Bytes: " + progress.getByteCount());
                 System.out.println("");
                 */
             }
@@ -0,0 +1,334 @@
+package org.datavaultplatform.common.storage.impl;
+
+import org.datavaultplatform.common.storage.Device;
+import org.datavaultplatform.common.storage.ArchiveStore;
+import org.datavaultplatform.common.storage.StreamingDevice;
+import org.datavaultplatform.common.storage.RangedDevice;
+import org.datavaultplatform.common.storage.impl.dedup.Chunker;
+import org.datavaultplatform.common.storage.impl.dedup.ChunkInputStream;
+import org.datavaultplatform.common.storage.impl.dedup.Recipe;
+import org.datavaultplatform.common.io.FileCopy;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.io.ProgressInputStream;
+import org.datavaultplatform.common.storage.Verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.*;
+
+// An archive store which splits archives into content-defined chunks and keeps a single copy
+// of each distinct chunk, so that similar archives (e.g. repeated deposits of a dataset with
+// small changes) share most of their storage.
+//
+// Layout under rootPath:
+//   chunks/ab/cd/abcd...   chunk data, named by hash and sharded on the first two bytes
+//   recipes/<archive>      the chunk hashes and lengths which make up each archive
+//   dedup.properties       the logical and stored byte counts used for the dedup ratio
+
+public class DedupFileSystem extends Device implements ArchiveStore, StreamingDevice, RangedDevice {
+
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(DedupFileSystem.class);
+
+    public static final String CHUNK_HASH_ALGORITHM = "SHA-256";
+
+    private static final String CHUNKS_DIR = "chunks";
+    private static final String RECIPES_DIR = "recipes";
+    private static final String STATS_FILE = "dedup.properties";
+
+    private static final int DEFAULT_AVERAGE_CHUNK_SIZE = 1024 * 1024;
+    private static final int DEFAULT_READ_AHEAD = 4;
+
+    // Serialises stats updates within this JVM, as file locks are held per process
+    private static final Object statsLock = new Object();
+
+    private final Path rootPath;
+    private final Path chunksPath;
+    private final Path recipesPath;
+    private final int averageChunkSize;
+    private final int readAhead;
+
+    public DedupFileSystem(String name, Map<String,String> config) throws Exception {
+        super(name, config);
+
+        // Unpack the config parameters (in an implementation-specific way)
+        rootPath = Paths.get(config.get("rootPath"));
+        averageChunkSize = config.containsKey("averageChunkSize") ?
+                Integer.highestOneBit(Integer.parseInt(config.get("averageChunkSize"))) : DEFAULT_AVERAGE_CHUNK_SIZE;
+        readAhead = config.containsKey("readAhead") ?
+                Integer.parseInt(config.get("readAhead")) : DEFAULT_READ_AHEAD;
+
+        // Verify parameters are correct.
+        if (!Files.isDirectory(rootPath)) {
+            throw new FileNotFoundException(rootPath.toString());
+        }
+
+        chunksPath = rootPath.resolve(CHUNKS_DIR);
+        recipesPath = rootPath.resolve(RECIPES_DIR);
+        Files.createDirectories(chunksPath);
+        Files.createDirectories(recipesPath);
+    }
+
+    @Override
+    public long getUsableSpace() throws Exception {
+        return rootPath.toFile().getUsableSpace();
+    }
+
+    @Override
+    public void retrieve(String path, File working, Progress progress) throws Exception {
+        try (InputStream input = retrieveStream(path, progress);
+             OutputStream output = new FileOutputStream(working)) {
+            IOUtils.copyLarge(input, output, new byte[(int)FileCopy.ONE_MB]);
+        }
+    }
+
+    @Override
+    public String store(String path, File working, Progress progress) throws Exception {
+        if (!working.isFile()) {
+            throw new IOException("Source '" + working + "' is not a file");
+        }
+
+        try (InputStream input = new FileInputStream(working)) {
+            return storeStream(path, working.getName(), input, progress);
+        }
+    }
+
+    @Override
+    public InputStream retrieveStream(String path, Progress progress) throws Exception {
+        Path recipeFile = getRecipePath(path);
+        if (!Files.isRegularFile(recipeFile)) {
+            throw new FileNotFoundException("No archive '" + path + "' in " + rootPath);
+        }
+
+        Recipe recipe = Recipe.read(recipeFile);
+        List<Path> chunkFiles = new ArrayList<>();
+        for (int i = 0; i < recipe.getChunkCount(); i++) {
+            chunkFiles.add(getChunkPath(recipe.getHash(i)));
+        }
+
+        progress.addFile();
+        return new ProgressInputStream(new ChunkInputStream(recipe, chunkFiles, readAhead), progress);
+    }
+
+    @Override
+    public InputStream retrieveRange(String path, long offset, long length, Progress progress) throws Exception {
+        Path recipeFile = getRecipePath(path);
+        if (!Files.isRegularFile(recipeFile)) {
+            throw new FileNotFoundException("No archive '" + path + "' in " + rootPath);
+        }
+
+        // Only read the chunks which overlap the range
+        Recipe recipe = Recipe.read(recipeFile);
+        Recipe range = new Recipe();
+        List<Path> chunkFiles = new ArrayList<>();
+        long chunkStart = 0;
+        long skip = -1;
+        for (int i = 0; i < recipe.getChunkCount() && chunkStart < offset + length; i++) {
+            long chunkEnd = chunkStart + recipe.getLength(i);
+            if (chunkEnd > offset) {
+                if (skip == -1) {
+                    skip = offset - chunkStart;
+                }
+                range.add(recipe.getHash(i), recipe.getLength(i));
+                chunkFiles.add(getChunkPath(recipe.getHash(i)));
+            }
+            chunkStart = chunkEnd;
+        }
+
+        InputStream input = new ChunkInputStream(range, chunkFiles, readAhead);
+        if (skip > 0) {
+            IOUtils.skipFully(input, skip);
+        }
+
+        progress.addFile();
+        return new ProgressInputStream(new BoundedInputStream(input, length), progress);
+    }
+
+    @Override
+    public String storeStream(String path, String name, InputStream input, Progress progress) throws Exception {
+        Path recipeFile = getRecipePath(name);
+
+        Chunker chunker = new Chunker(new ProgressInputStream(input, progress),
+                averageChunkSize / 4, averageChunkSize, averageChunkSize * 4);
+
+        Recipe recipe = new Recipe();
+        long storedBytes = 0;
+        int newChunks = 0;
+
+        while (chunker.next()) {
+            String hash = getChunkHash(chunker.getBuffer(), chunker.getOffset(), chunker.getLength());
+            if (storeChunk(hash, chunker.getBuffer(), chunker.getOffset(), chunker.getLength())) {
+                storedBytes += chunker.getLength();
+                newChunks += 1;
+            }
+            recipe.add(hash, chunker.getLength());
+        }
+
+        // Write the recipe last, so an archive only appears once all of its chunks are stored
+        Path tempRecipe = recipesPath.resolve("." + name + "." + UUID.randomUUID());
+        recipe.write(tempRecipe);
+
+        long replacedBytes = 0;
+        if (Files.exists(recipeFile)) {
+            replacedBytes = Recipe.read(recipeFile).getSize();
+        }
+        Files.move(tempRecipe, recipeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        double ratio = updateStats(recipe.getSize() - replacedBytes, storedBytes);
+
+        logger.info("Stored " + name + ": " + recipe.getSize() + " bytes in " + recipe.getChunkCount() + " chunks, "
+                + newChunks + " new (" + storedBytes + " bytes), store dedup ratio " + String.format("%.2f", ratio));
+
+        progress.addFile();
+        return name;
+    }
+
+    @Override
+    public Verify.Method getVerifyMethod() {
+        // Return the default verification method (copy back and check)
+        return verificationMethod;
+    }
+
+    /**
+     * Get the dedup ratio of the store, i.e. the total size of the stored archives
+     * divided by the space taken by their chunks
+     * @return The dedup ratio, or 1 if the store is empty
+     * @throws IOException if the store statistics could not be read
+     */
+    public double getDedupRatio() throws IOException {
+        synchronized (statsLock) {
+            try (FileChannel channel = openStats();
+                 FileLock lock = channel.lock()) {
+                Properties stats = readStats(channel);
+                return getRatio(stats);
+            }
+        }
+    }
+
+    /**
+     * Get the hash of a chunk, which is also its name in the store
+     * @param data A buffer holding the chunk
+     * @param offset The position of the chunk in the buffer
+     * @param length The length of the chunk
+     * @return The hash as lower case hex
+     */
+    public static String getChunkHash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(CHUNK_HASH_ALGORITHM);
+            digest.update(data, offset, length);
+            return new HexBinaryAdapter().marshal(digest.digest()).toLowerCase();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Store a chunk unless the store already has it, returning true if it was new
+    private boolean storeChunk(String hash, byte[] data, int offset, int length) throws IOException {
+        Path chunkFile = getChunkPath(hash);
+        if (Files.exists(chunkFile)) {
+            return false;
+        }
+
+        Files.createDirectories(chunkFile.getParent());
+
+        // Write to a temporary name first, so a partly written chunk is never used
+        Path tempFile = chunkFile.resolveSibling("." + hash + "." + UUID.randomUUID());
+        try (OutputStream output = Files.newOutputStream(tempFile)) {
+            output.write(data, offset, length);
+        }
+
+        try {
+            Files.move(tempFile, chunkFile);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // Another deposit stored the same chunk at the same time
+            Files.delete(tempFile);
+            return false;
+        }
+    }
+
+    private Path getChunkPath(String hash) {
+        return chunksPath.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private Path getRecipePath(String name) {
+        // Archives are stored in a flat namespace
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid archive name: " + name);
+        }
+        return recipesPath.resolve(name);
+    }
+
+    // Add to the store totals and return the new dedup ratio
+    private double updateStats(long logicalBytes, long storedBytes) throws IOException {
+        synchronized (statsLock) {
+            try (FileChannel channel = openStats();
+                 FileLock lock = channel.lock()) {
+                Properties stats = readStats(channel);
+                stats.setProperty("logicalBytes", Long.toString(getLong(stats, "logicalBytes") + logicalBytes));
+                stats.setProperty("storedBytes", Long.toString(getLong(stats, "storedBytes") + storedBytes));
+
+                channel.truncate(0);
+                channel.position(0);
+                Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1);
+                stats.store(writer, "Deduplication statistics");
+                writer.flush();
+
+                return getRatio(stats);
+            }
+        }
+    }
+
+    private FileChannel openStats() throws IOException {
+        return FileChannel.open(rootPath.resolve(STATS_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static Properties readStats(FileChannel channel) throws IOException {
+        Properties stats = new Properties();
+        channel.position(0);
+        Reader reader = Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1);
+        stats.load(reader);
+        return stats;
+    }
+
+    private static double getRatio(Properties stats) {
+        long logicalBytes = getLong(stats, "logicalBytes");
+        long storedBytes = getLong(stats, "storedBytes");
+        return storedBytes == 0 ? 1.0 : (double)logicalBytes / storedBytes;
+    }
+
+    private static long getLong(Properties stats, String key) {
+        return Long.parseLong(stats.getProperty(key, "0"));
+    }
+}
@@ -154,7 +154,7 @@ public class DropboxFileSystem extends Device implements UserStore {
                     get(progress, child.path, new File(localFile, child.name));
                 }
                 
-                progress.dirCount += 1;
+                progress.addDir();
             }
         }
     }
@@ -173,8 +173,7 @@ public class DropboxFileSystem extends Device implements UserStore {
                 count = size - pos > FILE_COPY_BUFFER_SIZE ? FILE_COPY_BUFFER_SIZE : size - pos;
                 long copied = IOUtils.copyLarge(is, fos, 0, count);
                 pos += copied;
-                progress.byteCount += copied;
-                progress.timestamp = System.currentTimeMillis();
+                progress.addBytes(copied);
             }
         } finally {
             fos.close();
@@ -182,7 +181,7 @@ public class DropboxFileSystem extends Device implements UserStore {
             downloader.close();
         }
         
-        progress.fileCount += 1;
+        progress.addFile();
     }
     
     public void put(Progress progress, String path, Path basePath, Path localPath) throws Exception {
@@ -205,7 +204,7 @@ public class DropboxFileSystem extends Device implements UserStore {
             if (entryFile.isDirectory()) {
                 dbxClient.createFolder(dropboxPath);
                 put(progress, path, basePath, entry);
-                progress.dirCount += 1;
+                progress.addDir();
             } else {
                 putFile(progress, dropboxPath, entryFile);
             }
@@ -226,8 +225,7 @@ public class DropboxFileSystem extends Device implements UserStore {
                 count = size - pos > FILE_COPY_BUFFER_SIZE ? FILE_COPY_BUFFER_SIZE : size - pos;
                 long copied = IOUtils.copyLarge(fis, os, 0, count);
                 pos += copied;
-                progress.byteCount += copied;
-                progress.timestamp = System.currentTimeMillis();
+                progress.addBytes(copied);
             }
             
             uploader.finish();
@@ -237,7 +235,7 @@ public class DropboxFileSystem extends Device implements UserStore {
             uploader.close();
         }
         
-        progress.fileCount += 1;
+        progress.addFile();
     }
     
     @Override
@@ -3,25 +3,39 @@ package org.datavaultplatform.common.storage.impl;
 import org.datavaultplatform.common.storage.Device;
 import org.datavaultplatform.common.storage.UserStore;
 import org.datavaultplatform.common.storage.ArchiveStore;
+import org.datavaultplatform.common.storage.StreamingDevice;
+import org.datavaultplatform.common.storage.RangedDevice;
+import org.datavaultplatform.common.storage.DirectoryDevice;
 import org.datavaultplatform.common.model.FileInfo;
 import org.datavaultplatform.common.io.Progress;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.datavaultplatform.common.io.FileCopy;
+import org.datavaultplatform.common.io.ProgressInputStream;
 import org.datavaultplatform.common.storage.Verify;
 
-public class LocalFileSystem extends Device implements UserStore, ArchiveStore {
+public class LocalFileSystem extends Device implements UserStore, ArchiveStore, StreamingDevice, RangedDevice, DirectoryDevice {
 
     private String rootPath = null;
     
@@ -60,10 +74,15 @@ public class LocalFileSystem extends Device implements UserStore, ArchiveStore {
                 // The API client can use this to request a sub-directory.
                 String entryKey = (basePath.toUri().relativize(entry.toUri())).getPath();
                 
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
                 FileInfo info = new FileInfo(entryKey,
                                              entryAbsolutePath,
                                              entryFileName,
-                                             Files.isDirectory(entry));
+                                             attrs.isDirectory());
+                if (attrs.isRegularFile()) {
+                    info.setSize(attrs.size());
+                    info.setModified(attrs.lastModifiedTime().toMillis());
+                }
                 files.add(info);
             }
 
@@ -145,6 +164,68 @@ public class LocalFileSystem extends Device implements UserStore, ArchiveStore {
         return working.getName();
     }
     
+    @Override
+    public InputStream retrieveStream(String path, Progress progress) throws Exception {
+        Path absolutePath = getAbsolutePath(path);
+        if (absolutePath == null) {
+            throw new IllegalArgumentException("Path invalid");
+        }
+        
+        File file = absolutePath.toFile();
+        if (!file.isFile()) {
+            throw new IOException("Source '" + file + "' is not a file");
+        }
+        
+        progress.addFile();
+        return new ProgressInputStream(new FileInputStream(file), progress);
+    }
+    
+    @Override
+    public InputStream retrieveRange(String path, long offset, long length, Progress progress) throws Exception {
+        Path absolutePath = getAbsolutePath(path);
+        if (absolutePath == null) {
+            throw new IllegalArgumentException("Path invalid");
+        }
+        
+        if (!Files.isRegularFile(absolutePath)) {
+            throw new IOException("Source '" + absolutePath + "' is not a file");
+        }
+        
+        // Read from the offset without reading the rest of the file
+        FileChannel channel = FileChannel.open(absolutePath, StandardOpenOption.READ);
+        channel.position(offset);
+        
+        progress.addFile();
+        return new ProgressInputStream(new BoundedInputStream(Channels.newInputStream(channel), length), progress);
+    }
+    
+    @Override
+    public String storeStream(String path, String name, InputStream input, Progress progress) throws Exception {
+        Path absolutePath = getAbsolutePath(path);
+        if (absolutePath == null) {
+            throw new IllegalArgumentException("Path invalid");
+        }
+        
+        File storeFile = absolutePath.resolve(name).toFile();
+        
+        try (OutputStream output = new FileOutputStream(storeFile)) {
+            IOUtils.copyLarge(new ProgressInputStream(input, progress), output, new byte[(int)FileCopy.ONE_MB]);
+        }
+        
+        progress.addFile();
+        return name;
+    }
+    
+    @Override
+    public void createDirectory(String path) throws Exception {
+        Path absolutePath = getAbsolutePath(path);
+        if (absolutePath == null) {
+            throw new IllegalArgumentException("Path invalid");
+        }
+        
+        Files.createDirectories(absolutePath);
+    }
+    
     @Override
     public Verify.Method getVerifyMethod() {
         // Return the default verification method (copy back and check)
@@ -1,7 +1,10 @@
 package org.datavaultplatform.common.storage.impl;
 
+import org.datavaultplatform.common.storage.ConnectedDevice;
 import org.datavaultplatform.common.storage.Device;
 import org.datavaultplatform.common.storage.UserStore;
+import org.datavaultplatform.common.storage.StreamingDevice;
+import org.datavaultplatform.common.storage.DirectoryDevice;
 import org.datavaultplatform.common.model.FileInfo;
 import org.datavaultplatform.common.io.Progress;
 import org.datavaultplatform.common.storage.impl.ssh.Utility;
@@ -12,6 +15,8 @@ import java.io.BufferedOutputStream;
 import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -20,7 +25,7 @@ import java.util.Vector;
 import com.jcraft.jsch.*;
 import org.slf4j.*;
 
-public class SFTPFileSystem extends Device implements UserStore {
+public class SFTPFileSystem extends Device implements UserStore, StreamingDevice, DirectoryDevice, ConnectedDevice {
 
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(SFTPFileSystem.class);
 
@@ -36,6 +41,10 @@ public class SFTPFileSystem extends Device implements UserStore {
     private int port;
     private final String PATH_SEPARATOR = "/";
     
+    // Keep the session open between operations, until the device is closed
+    private boolean keepConnected = false;
+    private static final int SERVER_ALIVE_INTERVAL = 60000;
+    
     private Utility.SFTPMonitor monitor = null;
     
     public SFTPFileSystem(String name, Map<String,String> config) throws Exception {
@@ -52,6 +61,18 @@ public class SFTPFileSystem extends Device implements UserStore {
     }
     
     private void Connect() throws Exception {
+        
+        // Reuse the open session, starting from the root path again
+        if (keepConnected && isConnected()) {
+            try {
+                channelSftp.cd(rootPath);
+                return;
+            } catch (SftpException e) {
+                logger.debug("Could not reuse SFTP session, reconnecting", e);
+                close();
+            }
+        }
+        
         JSch jsch = new JSch();
         session = jsch.getSession(username, host, port);
 
@@ -67,6 +88,10 @@ public class SFTPFileSystem extends Device implements UserStore {
         java.util.Properties properties = new java.util.Properties();
         properties.put("StrictHostKeyChecking", "no");
         session.setConfig(properties);
+        if (keepConnected) {
+            // Notice a session which has been dropped while it is kept open
+            session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
+        }
         session.connect();
         
         // Start a channel for SFTP
@@ -77,6 +102,26 @@ public class SFTPFileSystem extends Device implements UserStore {
     }
     
     private void Disconnect() {
+        // A session which is kept open is only closed if it has failed
+        if (keepConnected && isConnected()) {
+            return;
+        }
+        close();
+    }
+    
+    @Override
+    public void setKeepConnected(boolean keepConnected) {
+        this.keepConnected = keepConnected;
+    }
+    
+    @Override
+    public boolean isConnected() {
+        return session != null && session.isConnected() &&
+                channelSftp != null && channelSftp.isConnected();
+    }
+    
+    @Override
+    public void close() {
         if (channelSftp != null) {
             channelSftp.exit();
         }
@@ -84,6 +129,9 @@ public class SFTPFileSystem extends Device implements UserStore {
         if (session != null) {
             session.disconnect();
         }
+        
+        channelSftp = null;
+        session = null;
     }
 
     private String runCommand(String command) throws Exception {
@@ -160,11 +208,11 @@ public class SFTPFileSystem extends Device implements UserStore {
                                              "", // Absolute path - unused?
                                              entry.getFilename(),
                                              entry.getAttrs().isDir());
+                if (!entry.getAttrs().isDir()) {
+                    info.setSize(entry.getAttrs().getSize());
+                    info.setModified(entry.getAttrs().getMTime() * 1000L);
+                }
                 files.add(info);
-                
-                // Other useful properties:
-                // entry.getAttrs().getSize()
-                // entry.getAttrs().isDir()
             }
             
         } catch (Exception e) {
@@ -338,4 +386,97 @@ public class SFTPFileSystem extends Device implements UserStore {
         
         return path;
     }
+    
+    @Override
+    public InputStream retrieveStream(String path, Progress progress) throws Exception {
+        
+        // Strip any leading separators (we want a path relative to the current dir)
+        while (path.startsWith(PATH_SEPARATOR)) {
+            path = path.replaceFirst(PATH_SEPARATOR, "");
+        }
+        
+        try {
+            Connect();
+            
+            path = channelSftp.pwd() + "/" + path;
+            monitor = new Utility.SFTPMonitor(progress);
+            progress.addFile();
+            
+            // The session stays open until the caller closes the stream
+            return new FilterInputStream(channelSftp.get(path, monitor)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Disconnect();
+                    }
+                }
+            };
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            Disconnect();
+            throw e;
+        }
+    }
+    
+    @Override
+    public void createDirectory(String path) throws Exception {
+        
+        try {
+            Connect();
+            
+            // Create each missing directory in turn, relative to the root path
+            String dirPath = channelSftp.pwd();
+            for (String name : path.split(PATH_SEPARATOR)) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                dirPath = dirPath + PATH_SEPARATOR + name;
+                try {
+                    channelSftp.stat(dirPath);
+                } catch (SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                        throw e;
+                    }
+                    channelSftp.mkdir(dirPath);
+                }
+            }
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        } finally {
+            Disconnect();
+        }
+    }
+    
+    @Override
+    public String storeStream(String path, String name, InputStream input, Progress progress) throws Exception {
+        
+        // Strip any leading separators (we want a path relative to the current dir)
+        while (path.startsWith(PATH_SEPARATOR)) {
+            path = path.replaceFirst(PATH_SEPARATOR, "");
+        }
+        
+        try {
+            Connect();
+            
+            path = channelSftp.pwd() + "/" + path;
+            channelSftp.cd(path);
+            
+            monitor = new Utility.SFTPMonitor(progress);
+            channelSftp.put(input, name, monitor);
+            progress.addFile();
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        } finally {
+            Disconnect();
+        }
+        
+        return path + "/" + name;
+    }
 }
@@ -0,0 +1,151 @@
+package org.datavaultplatform.common.storage.impl.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.datavaultplatform.common.storage.impl.DedupFileSystem;
+
+/**
+ * Reassembles an archive from its chunks.
+ *
+ * The next few chunks are read (and their hashes checked) on a background thread while
+ * the current one is consumed, so the chunk files being scattered across the store does
+ * not hold up a sequential reader.
+ */
+public class ChunkInputStream extends InputStream {
+
+    private final Recipe recipe;
+    private final List<Path> chunkFiles;
+    private final int readAhead;
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private int nextChunk = 0;
+    private byte[] current = new byte[0];
+    private int position = 0;
+    private boolean closed = false;
+
+    /**
+     * ChunkInputStream constructor
+     * @param recipe The chunks which make up the archive
+     * @param chunkFiles The file holding each chunk in the recipe
+     * @param readAhead The number of chunks to read ahead of the reader
+     */
+    public ChunkInputStream(Recipe recipe, List<Path> chunkFiles, int readAhead) {
+        this.recipe = recipe;
+        this.chunkFiles = chunkFiles;
+        this.readAhead = Math.max(1, readAhead);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chunk-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (position == current.length) {
+            schedule();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                current = pending.remove().get();
+                position = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading chunks");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                throw new IOException("Failed to read chunk", e.getCause());
+            }
+        }
+
+        schedule();
+        return true;
+    }
+
+    // Keep the read-ahead queue full
+    private void schedule() {
+        while (pending.size() < readAhead && nextChunk < recipe.getChunkCount()) {
+            final int index = nextChunk++;
+            pending.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return readChunk(index);
+                }
+            }));
+        }
+    }
+
+    private byte[] readChunk(int index) throws Exception {
+        Path file = chunkFiles.get(index);
+        byte[] data = Files.readAllBytes(file);
+
+        if (data.length != recipe.getLength(index)) {
+            throw new IOException("Chunk " + file + " has length " + data.length + ", expected " + recipe.getLength(index));
+        }
+
+        // A damaged chunk may be shared by many archives, so check every chunk as it is read
+        String hash = DedupFileSystem.getChunkHash(data, 0, data.length);
+        if (!hash.equals(recipe.getHash(index))) {
+            throw new IOException("Chunk " + file + " is damaged (hash " + hash + ")");
+        }
+
+        return data;
+    }
+}
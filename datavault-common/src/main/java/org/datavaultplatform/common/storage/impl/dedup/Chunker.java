@@ -0,0 +1,163 @@
+package org.datavaultplatform.common.storage.impl.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks.
+ *
+ * Chunk boundaries are chosen with a gear rolling hash, so they depend only on the nearby
+ * content. Inserting or removing data in a stream only changes the chunks around the edit,
+ * and the rest of the stream produces the same chunks as before. Boundaries are found with
+ * a stricter mask below the average size and a looser one above it, which keeps the chunk
+ * sizes close to the average.
+ */
+public class Chunker {
+
+    // The gear table must never change, or previously stored chunks would no longer match
+    private static final long GEAR_SEED = 0x44617461566175L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream input;
+    private final int minSize;
+    private final int maxSize;
+    private final int averageSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    private final byte[] buffer;
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+    private boolean eof = false;
+
+    private int chunkOffset = 0;
+    private int chunkLength = 0;
+
+    /**
+     * Chunker constructor
+     * @param input The stream to split
+     * @param minSize The minimum chunk size in bytes
+     * @param averageSize The target average chunk size in bytes (a power of two)
+     * @param maxSize The maximum chunk size in bytes
+     */
+    public Chunker(InputStream input, int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes: " + minSize + "/" + averageSize + "/" + maxSize);
+        }
+
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+
+        this.input = input;
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        this.smallMask = highBits(bits + 1);
+        this.largeMask = highBits(bits - 1);
+        this.buffer = new byte[maxSize];
+    }
+
+    // The gear hash shifts left, so the high bits depend on the most bytes
+    private static long highBits(int count) {
+        return count <= 0 ? 0 : -1L << (64 - count);
+    }
+
+    /**
+     * Find the next chunk. The chunk data is only valid until the next call.
+     * @return True if there is another chunk, or false at the end of the stream
+     * @throws IOException if an IOException has occurred
+     */
+    public boolean next() throws IOException {
+
+        bufferStart += chunkLength;
+        chunkLength = 0;
+        fill();
+
+        int available = bufferEnd - bufferStart;
+        if (available == 0) {
+            return false;
+        }
+
+        chunkOffset = bufferStart;
+        chunkLength = findBoundary(buffer, bufferStart, available);
+        return true;
+    }
+
+    /**
+     * Get the buffer holding the current chunk
+     * @return The buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the position of the current chunk in the buffer
+     * @return The offset of the chunk
+     */
+    public int getOffset() {
+        return chunkOffset;
+    }
+
+    /**
+     * Get the size of the current chunk
+     * @return The chunk length in bytes
+     */
+    public int getLength() {
+        return chunkLength;
+    }
+
+    // Make sure the buffer holds a full chunk's worth of data, unless the stream has ended
+    private void fill() throws IOException {
+
+        if (bufferStart > 0) {
+            System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+            bufferEnd -= bufferStart;
+            bufferStart = 0;
+        }
+
+        while (!eof && bufferEnd < buffer.length) {
+            int n = input.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (n == -1) {
+                eof = true;
+            } else {
+                bufferEnd += n;
+            }
+        }
+    }
+
+    private int findBoundary(byte[] data, int offset, int length) {
+
+        if (length <= minSize) {
+            return length;
+        }
+
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, averageSize);
+        long hash = 0;
+        int i = minSize;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+}
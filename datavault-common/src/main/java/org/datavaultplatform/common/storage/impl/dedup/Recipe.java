@@ -0,0 +1,86 @@
+package org.datavaultplatform.common.storage.impl.dedup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list of chunks which make up a stored archive, in order.
+ *
+ * A recipe is stored as a text file with one line per chunk, holding the
+ * chunk hash and its length in bytes.
+ */
+public class Recipe {
+
+    private final List<String> hashes = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private long size = 0;
+
+    public void add(String hash, int length) {
+        hashes.add(hash);
+        lengths.add(length);
+        size += length;
+    }
+
+    public int getChunkCount() {
+        return hashes.size();
+    }
+
+    public String getHash(int index) {
+        return hashes.get(index);
+    }
+
+    public int getLength(int index) {
+        return lengths.get(index);
+    }
+
+    // The total size of the archive in bytes
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Write the recipe to a file
+     * @param file The recipe file
+     * @throws IOException if an IOException has occurred
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < hashes.size(); i++) {
+                writer.write(hashes.get(i));
+                writer.write(' ');
+                writer.write(Integer.toString(lengths.get(i)));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Read a recipe from a file
+     * @param file The recipe file
+     * @return The recipe
+     * @throws IOException if the file could not be read or is not a valid recipe
+     */
+    public static Recipe read(Path file) throws IOException {
+        Recipe recipe = new Recipe();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                if (fields.length != 2) {
+                    throw new IOException("Invalid recipe line in " + file + ": " + line);
+                }
+                recipe.add(fields[0], Integer.parseInt(fields[1]));
+            }
+        }
+        return recipe;
+    }
+}
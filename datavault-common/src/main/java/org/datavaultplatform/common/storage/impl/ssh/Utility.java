@@ -85,8 +85,7 @@ public class Utility {
         public boolean count(final long len) {
             
             // Inform the generic progress tracker
-            progressTracker.byteCount += len;
-            progressTracker.timestamp = System.currentTimeMillis();
+            progressTracker.addBytes(len);
             
             return true;
         }
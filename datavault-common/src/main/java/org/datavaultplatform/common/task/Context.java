@@ -10,6 +10,17 @@ public class Context {
     private Path tempDir;
     private Path metaDir;
     private EventStream eventStream;
+    private boolean streamingDeposit = false;
+    private int packagerThreads = 1;
+    private String packagerMode = "cpu";
+    private int identifierThreads = 0;
+    private String compression = "none";
+    private int compressionLevel = 6;
+    private int compressionThreads = 0;
+    private long segmentSize = 0;
+    private boolean incrementalHashCheck = false;
+    private boolean pipelinedRetrieve = false;
+    private boolean resumableJobs = false;
     
     public Context() {};
     public Context(Path tempDir, Path metaDir, EventStream eventStream) {
@@ -41,4 +52,92 @@ public class Context {
     public void setEventStream(EventStream eventStream) {
         this.eventStream = eventStream;
     }
+
+    public boolean isStreamingDeposit() {
+        return streamingDeposit;
+    }
+
+    public void setStreamingDeposit(boolean streamingDeposit) {
+        this.streamingDeposit = streamingDeposit;
+    }
+
+    public int getPackagerThreads() {
+        return packagerThreads;
+    }
+
+    public void setPackagerThreads(int packagerThreads) {
+        this.packagerThreads = packagerThreads;
+    }
+
+    public String getPackagerMode() {
+        return packagerMode;
+    }
+
+    public void setPackagerMode(String packagerMode) {
+        this.packagerMode = packagerMode;
+    }
+
+    public int getIdentifierThreads() {
+        return identifierThreads;
+    }
+
+    public void setIdentifierThreads(int identifierThreads) {
+        this.identifierThreads = identifierThreads;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isIncrementalHashCheck() {
+        return incrementalHashCheck;
+    }
+
+    public void setIncrementalHashCheck(boolean incrementalHashCheck) {
+        this.incrementalHashCheck = incrementalHashCheck;
+    }
+
+    public boolean isPipelinedRetrieve() {
+        return pipelinedRetrieve;
+    }
+
+    public void setPipelinedRetrieve(boolean pipelinedRetrieve) {
+        this.pipelinedRetrieve = pipelinedRetrieve;
+    }
+
+    public boolean isResumableJobs() {
+        return resumableJobs;
+    }
+
+    public void setResumableJobs(boolean resumableJobs) {
+        this.resumableJobs = resumableJobs;
+    }
 }
\ No newline at end of file
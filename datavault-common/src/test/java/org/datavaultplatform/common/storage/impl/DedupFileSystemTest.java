@@ -0,0 +1,95 @@
+package org.datavaultplatform.common.storage.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.datavaultplatform.common.io.Progress;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DedupFileSystemTest {
+
+    private static final int AVERAGE_CHUNK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DedupFileSystem store;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String,String> config = new HashMap<>();
+        config.put("rootPath", folder.getRoot().getAbsolutePath());
+        config.put("averageChunkSize", Integer.toString(AVERAGE_CHUNK_SIZE));
+        store = new DedupFileSystem("Dedup", config);
+
+        data = new byte[200 * 1024];
+        new Random(1).nextBytes(data);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertEquals("archive.tar", store("archive.tar", data));
+
+        assertArrayEquals(data, retrieve("archive.tar"));
+    }
+
+    @Test
+    public void testDuplicateChunksStoredOnce() throws Exception {
+        store("first.tar", data);
+        int chunks = countChunks();
+        assertEquals(1.0, store.getDedupRatio(), 0.001);
+
+        store("second.tar", data);
+
+        assertEquals(chunks, countChunks());
+        assertEquals(2.0, store.getDedupRatio(), 0.001);
+        assertArrayEquals(data, retrieve("second.tar"));
+    }
+
+    @Test
+    public void testRetrieveRange() throws Exception {
+        store("archive.tar", data);
+
+        // Ranges at the start, across several chunks and at the end
+        assertRange(0, 100);
+        assertRange(1000, 50000);
+        assertRange(data.length - 3000, 3000);
+        assertRange(data.length - 1, 1);
+    }
+
+    private void assertRange(int offset, int length) throws Exception {
+        byte[] range;
+        try (InputStream input = store.retrieveRange("archive.tar", offset, length, new Progress())) {
+            range = IOUtils.toByteArray(input);
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), range);
+    }
+
+    private String store(String name, byte[] bytes) throws Exception {
+        return store.storeStream("", name, new ByteArrayInputStream(bytes), new Progress());
+    }
+
+    private byte[] retrieve(String name) throws Exception {
+        try (InputStream input = store.retrieveStream(name, new Progress())) {
+            return IOUtils.toByteArray(input);
+        }
+    }
+
+    private int countChunks() {
+        return FileUtils.listFiles(new File(folder.getRoot(), "chunks"), null, true).size();
+    }
+}
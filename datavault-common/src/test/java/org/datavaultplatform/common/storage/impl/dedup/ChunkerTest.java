@@ -0,0 +1,89 @@
+package org.datavaultplatform.common.storage.impl.dedup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.datavaultplatform.common.storage.impl.DedupFileSystem;
+import org.junit.Test;
+
+public class ChunkerTest {
+
+    private static final int MIN_SIZE = 1024;
+    private static final int AVERAGE_SIZE = 4096;
+    private static final int MAX_SIZE = 16384;
+
+    @Test
+    public void testChunksMakeUpStream() throws Exception {
+        byte[] data = randomData(256 * 1024, 1);
+
+        Chunker chunker = new Chunker(new ByteArrayInputStream(data), MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        int chunks = 0;
+        while (chunker.next()) {
+            assertTrue(chunker.getLength() <= MAX_SIZE);
+            if (joined.size() + chunker.getLength() < data.length) {
+                // Only the last chunk may be shorter than the minimum
+                assertTrue(chunker.getLength() >= MIN_SIZE);
+            }
+            joined.write(chunker.getBuffer(), chunker.getOffset(), chunker.getLength());
+            chunks++;
+        }
+
+        assertArrayEquals(data, joined.toByteArray());
+        assertTrue(chunks > 1);
+        assertFalse(chunker.next());
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        Chunker chunker = new Chunker(new ByteArrayInputStream(new byte[0]), MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+        assertFalse(chunker.next());
+    }
+
+    @Test
+    public void testInsertOnlyChangesNearbyChunks() throws Exception {
+        byte[] data = randomData(256 * 1024, 2);
+
+        // Insert a few bytes near the start
+        byte[] edited = new byte[data.length + 10];
+        System.arraycopy(data, 0, edited, 0, 1000);
+        System.arraycopy(data, 1000, edited, 1010, data.length - 1000);
+
+        List<String> original = chunkHashes(data);
+        Set<String> shared = new HashSet<>(chunkHashes(edited));
+        shared.retainAll(original);
+
+        // All but the chunks around the edit are the same
+        assertTrue(shared.size() >= original.size() - 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSizes() {
+        new Chunker(new ByteArrayInputStream(new byte[0]), AVERAGE_SIZE, MIN_SIZE, MAX_SIZE);
+    }
+
+    private static List<String> chunkHashes(byte[] data) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        Chunker chunker = new Chunker(new ByteArrayInputStream(data), MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+        while (chunker.next()) {
+            hashes.add(DedupFileSystem.getChunkHash(chunker.getBuffer(), chunker.getOffset(), chunker.getLength()));
+        }
+        return hashes;
+    }
+
+    private static byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
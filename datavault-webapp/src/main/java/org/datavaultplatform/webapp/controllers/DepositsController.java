@@ -9,6 +9,7 @@ import org.datavaultplatform.webapp.services.RestService;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.util.UUID;
 
 /**
@@ -81,6 +82,12 @@ public class DepositsController {
         return restService.getDepositJobs(depositID);
     }
     
+    // Stream changes to the jobs related to a single deposit as server-sent events
+    @RequestMapping(value = "/vaults/{vaultid}/deposits/{depositid}/jobs/stream", method = RequestMethod.GET)
+    public SseEmitter streamDepositJobs(@PathVariable("vaultid") String vaultID, @PathVariable("depositid") String depositID) {
+        return restService.streamDepositJobs(depositID);
+    }
+    
     // Return a 'retrieve deposit' page
     @RequestMapping(value = "/vaults/{vaultid}/deposits/{depositid}/retrieve", method = RequestMethod.GET)
     public String retrieveDeposit(@ModelAttribute Retrieve retrieve, ModelMap model, @PathVariable("vaultid") String vaultID, @PathVariable("depositid") String depositID) {
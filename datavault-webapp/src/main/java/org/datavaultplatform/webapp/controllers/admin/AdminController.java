@@ -2,7 +2,7 @@ package org.datavaultplatform.webapp.controllers.admin;
 
 
 import org.apache.commons.io.FileUtils;
-import org.datavaultplatform.common.retentionpolicy.RetentionPolicyStatus;
+import org.datavaultplatform.common.response.StatisticsInfo;
 import org.datavaultplatform.webapp.services.RestService;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -25,20 +25,20 @@ public class AdminController {
 
     @RequestMapping(value = "/admin", method = RequestMethod.GET)
     public String adminIndex(ModelMap model) {
-        model.addAttribute("usercount", restService.getUsersCount());
-        model.addAttribute("groupcount", restService.getGroupsCount());
-        model.addAttribute("vaultcount", restService.getVaultsCount());
-        model.addAttribute("depositcount", restService.getDepositsCount());
-        model.addAttribute("retrievecount", restService.getRetrievesCount());
-        Long vaultSize = restService.getVaultsSize();
-        if (vaultSize == null) vaultSize = new Long(0);
-        model.addAttribute("vaultsize", FileUtils.byteCountToDisplaySize(vaultSize));
-        model.addAttribute("depositsinprogress", restService.getDepositsInProgressCount());
-        model.addAttribute("retrievesinprogress", restService.getRetrievesInProgressCount());
-        model.addAttribute("depositqueue", restService.getDepositsQueue());
-        model.addAttribute("retrievequeue", restService.getRetrievesQueue());
-        model.addAttribute("reviewcount", restService.getRetentionPolicyStatusCount(RetentionPolicyStatus.REVIEW));
-        model.addAttribute("eventcount", restService.getEventCount());
+        // The counts all come from one snapshot of the statistics
+        StatisticsInfo statistics = restService.getStatistics();
+        model.addAttribute("usercount", statistics.getUserCount());
+        model.addAttribute("groupcount", statistics.getGroupCount());
+        model.addAttribute("vaultcount", statistics.getVaultCount());
+        model.addAttribute("depositcount", statistics.getDepositCount());
+        model.addAttribute("retrievecount", statistics.getRetrieveCount());
+        model.addAttribute("vaultsize", FileUtils.byteCountToDisplaySize(statistics.getVaultSize()));
+        model.addAttribute("depositsinprogress", statistics.getDepositInProgressCount());
+        model.addAttribute("retrievesinprogress", statistics.getRetrieveInProgressCount());
+        model.addAttribute("depositqueue", statistics.getDepositQueueCount());
+        model.addAttribute("retrievequeue", statistics.getRetrieveQueueCount());
+        model.addAttribute("reviewcount", statistics.getReviewCount());
+        model.addAttribute("eventcount", statistics.getEventCount());
         model.addAttribute("policycount", restService.getRetentionPolicyListing().length);
         model.addAttribute("archivestorescount", restService.getArchiveStores().length);
 
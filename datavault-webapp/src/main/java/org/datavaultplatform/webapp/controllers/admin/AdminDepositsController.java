@@ -1,6 +1,8 @@
 package org.datavaultplatform.webapp.controllers.admin;
 
 
+import org.datavaultplatform.common.response.DepositInfo;
+import org.datavaultplatform.common.response.Page;
 import org.datavaultplatform.webapp.services.RestService;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -16,6 +18,8 @@ import org.springframework.web.bind.annotation.RequestParam;
 @Controller
 public class AdminDepositsController {
 
+    private static final int PAGE_SIZE = 100;
+
     private RestService restService;
 
     public void setRestService(RestService restService) {
@@ -25,13 +29,16 @@ public class AdminDepositsController {
     @RequestMapping(value = "/admin/deposits", method = RequestMethod.GET)
     public String getDepositsListing(ModelMap model,
                                      @RequestParam(value = "query", required = false) String query,
-                                     @RequestParam(value = "sort", required = false) String sort) {
+                                     @RequestParam(value = "sort", required = false) String sort,
+                                     @RequestParam(value = "order", required = false) String order,
+                                     @RequestParam(value = "after", required = false) String after) {
+        if (order == null) order = "asc";
+        
         if ((query == null) || ("".equals(query))) {
-            if ((sort == null) || ("".equals(sort))) {
-                model.addAttribute("deposits", restService.getDepositsListingAll());
-            } else {
-                model.addAttribute("deposits", restService.getDepositsListingAll(sort));
-            }
+            // Page through all of the deposits in the broker
+            Page<DepositInfo> deposits = restService.getDepositsPage(sort, order, after, PAGE_SIZE);
+            model.addAttribute("deposits", deposits.getItems());
+            model.addAttribute("next", deposits.getNext());
             model.addAttribute("query", "");
         } else {
             if ((sort == null) || ("".equals(sort))) {
@@ -42,6 +49,10 @@ public class AdminDepositsController {
             model.addAttribute("query", query);
         }
 
+        model.addAttribute("sort", (sort != null) ? sort : "");
+        model.addAttribute("order", order);
+        model.addAttribute("after", (after != null) ? after : "");
+
         return "admin/deposits/index";
     }
 }
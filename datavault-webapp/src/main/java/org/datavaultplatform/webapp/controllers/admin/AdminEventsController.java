@@ -1,6 +1,8 @@
 package org.datavaultplatform.webapp.controllers.admin;
 
 
+import org.datavaultplatform.common.response.EventInfo;
+import org.datavaultplatform.common.response.Page;
 import org.datavaultplatform.webapp.services.RestService;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -11,6 +13,8 @@ import org.springframework.web.bind.annotation.RequestParam;
 @Controller
 public class AdminEventsController {
 
+    private static final int PAGE_SIZE = 100;
+
     private RestService restService;
 
     public void setRestService(RestService restService) {
@@ -20,9 +24,18 @@ public class AdminEventsController {
     @RequestMapping(value = "/admin/events", method = RequestMethod.GET)
     public String getEventsListing(ModelMap model,
                                    @RequestParam(value = "query", required = false) String query,
-                                   @RequestParam(value = "sort", required = false) String sort) {
+                                   @RequestParam(value = "sort", required = false) String sort,
+                                   @RequestParam(value = "order", required = false) String order,
+                                   @RequestParam(value = "after", required = false) String after) {
+        if (sort == null) sort = "timestamp";
+        if (order == null) order = "asc";
         
-        model.addAttribute("events", restService.getEvents());
+        Page<EventInfo> events = restService.getEventsPage(sort, order, after, PAGE_SIZE);
+        model.addAttribute("events", events.getItems());
+        model.addAttribute("next", events.getNext());
+        model.addAttribute("sort", sort);
+        model.addAttribute("order", order);
+        model.addAttribute("after", (after != null) ? after : "");
         
         return "admin/events/index";
     }
@@ -1,6 +1,7 @@
 package org.datavaultplatform.webapp.controllers.admin;
 
 
+import org.datavaultplatform.common.response.Page;
 import org.datavaultplatform.common.response.VaultInfo;
 import org.datavaultplatform.webapp.services.RestService;
 import org.springframework.stereotype.Controller;
@@ -15,6 +16,8 @@ import org.springframework.web.bind.annotation.*;
 @Controller
 public class AdminVaultsController {
 
+    private static final int PAGE_SIZE = 100;
+
     private RestService restService;
 
     public void setRestService(RestService restService) {
@@ -25,14 +28,18 @@ public class AdminVaultsController {
     public String searchVaults(ModelMap model,
                                @RequestParam(value = "query", required = false) String query,
                                @RequestParam(value = "sort", required = false) String sort,
-                               @RequestParam(value = "order", required = false) String order) {
+                               @RequestParam(value = "order", required = false) String order,
+                               @RequestParam(value = "after", required = false) String after) {
         String theSort = sort;
         String theOrder = order;
         if (sort == null) theSort = "creationTime";
         if (order == null) theOrder = "asc";
 
         if ((query == null) || ("".equals(query))) {
-            model.addAttribute("vaults", restService.getVaultsListingAll(theSort, theOrder));
+            // Page through all of the vaults in the broker
+            Page<VaultInfo> vaults = restService.getVaultsPage(theSort, theOrder, after, PAGE_SIZE);
+            model.addAttribute("vaults", vaults.getItems());
+            model.addAttribute("next", vaults.getNext());
             model.addAttribute("query", "");
         } else {
             model.addAttribute("vaults", restService.searchVaults(query, theSort, theOrder));
@@ -42,6 +49,8 @@ public class AdminVaultsController {
         // Pass the sort and order
         if (sort == null) sort = "";
         model.addAttribute("sort", sort);
+        model.addAttribute("order", theOrder);
+        model.addAttribute("after", (after != null) ? after : "");
         model.addAttribute("orderid", "asc");
         model.addAttribute("ordername", "asc");
         model.addAttribute("orderdescription", "asc");
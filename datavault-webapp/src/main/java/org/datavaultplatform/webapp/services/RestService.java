@@ -10,7 +10,19 @@ import org.springframework.web.client.RestTemplate;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * User: Robin Taylor
@@ -24,6 +36,13 @@ public class RestService {
     private String brokerURL;
     private String brokerApiKey;
     
+    // Relays the event streams of the broker to the browser
+    private final ExecutorService streams = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "broker-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     public void setBrokerURL(String brokerURL) {
         this.brokerURL = brokerURL;
     }
@@ -32,9 +51,8 @@ public class RestService {
         this.brokerApiKey = brokerApiKey;
     }
     
-    private HttpEntity<?> exchange(String url, Class clazz, HttpMethod method, Object payload) {
+    private HttpHeaders headers() {
 
-        RestTemplate restTemplate = new RestTemplate();
         HttpHeaders headers = new HttpHeaders();
 
         // If we have a logged on user then pass that information.
@@ -43,6 +61,14 @@ public class RestService {
         }
 
         headers.set("X-Client-Key", brokerApiKey);
+        
+        return headers;
+    }
+    
+    private HttpEntity<?> exchange(String url, Class clazz, HttpMethod method, Object payload) {
+
+        RestTemplate restTemplate = new RestTemplate();
+        HttpHeaders headers = headers();
 
         HttpEntity entity;
         if (method == HttpMethod.GET) {
@@ -67,6 +93,24 @@ public class RestService {
         return exchange(url, clazz, HttpMethod.GET, null);
     }
 
+    // Get a page of a listing, whose item type is lost from a Class
+    private <T> Page<T> getPage(String url, String sort, String order, String after, int limit,
+                                ParameterizedTypeReference<Page<T>> type) {
+        
+        url = url + "?limit=" + limit;
+        try {
+            if (sort != null) url = url + "&sort=" + URLEncoder.encode(sort, "UTF-8");
+            if (order != null) url = url + "&order=" + URLEncoder.encode(order, "UTF-8");
+            if (after != null) url = url + "&after=" + URLEncoder.encode(after, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        logger.debug("Calling Broker with url:" + url + " Method:" + HttpMethod.GET);
+        
+        return new RestTemplate().exchange(url, HttpMethod.GET, new HttpEntity(headers()), type).getBody();
+    }
+
     public HttpEntity<?> put(String url, Class clazz, Object payload) {
         return exchange(url, clazz, HttpMethod.PUT, payload);
     }
@@ -234,12 +278,23 @@ public class RestService {
         return (Vault)response.getBody();
     }
 
+    public Page<VaultInfo> getVaultsPage(String sort, String order, String after, int limit) {
+        return getPage(brokerURL + "/admin/vaults/page", sort, order, after, limit,
+                new ParameterizedTypeReference<Page<VaultInfo>>() {});
+    }
+
     public int checkAllVaultRetentionPolicies() {
-        VaultInfo[] vaults = getVaultsListingAll();
-        for (VaultInfo vault : vaults) {
-            get(brokerURL + "/vaults/" + vault.getID() + "/checkretentionpolicy", Vault.class);
-        }
-        return vaults.length;
+        int count = 0;
+        String after = null;
+        do {
+            Page<VaultInfo> vaults = getVaultsPage("id", "asc", after, 1000);
+            for (VaultInfo vault : vaults.getItems()) {
+                get(brokerURL + "/vaults/" + vault.getID() + "/checkretentionpolicy", Vault.class);
+                count++;
+            }
+            after = vaults.getNext();
+        } while (after != null);
+        return count;
     }
 
     public int getRetentionPolicyStatusCount(int status) {
@@ -257,6 +312,11 @@ public class RestService {
         return (DepositInfo[])response.getBody();
     }
 
+    public Page<DepositInfo> getDepositsPage(String sort, String order, String after, int limit) {
+        return getPage(brokerURL + "/admin/deposits/page", sort, order, after, limit,
+                new ParameterizedTypeReference<Page<DepositInfo>>() {});
+    }
+
     public DepositInfo[] getDepositsListingAll(String sort) {
         HttpEntity<?> response = get(brokerURL + "/admin/deposits?sort=" + sort, DepositInfo[].class);
         return (DepositInfo[])response.getBody();
@@ -282,6 +342,73 @@ public class RestService {
         return (Job[])response.getBody();
     }
 
+    public SseEmitter streamDepositJobs(String depositID) {
+        return stream(brokerURL + "/deposits/" + depositID + "/jobs/stream");
+    }
+    
+    /**
+     * Relay a stream of server-sent events from the broker. The broker is read on a separate thread
+     * and each event is passed on unchanged until either side closes the stream.
+     * @param url The broker URL
+     * @return The stream to return to the browser
+     */
+    public SseEmitter stream(String url) {
+
+        // The user must be read on the request thread
+        final String userID = (SecurityContextHolder.getContext().getAuthentication() != null) ?
+                SecurityContextHolder.getContext().getAuthentication().getName() : null;
+        
+        // The broker stream times out first, so there is no timeout here
+        final SseEmitter emitter = new SseEmitter(0L);
+
+        logger.debug("Streaming from Broker with url:" + url);
+
+        streams.execute(() -> {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection)new URL(url).openConnection();
+                connection.setRequestProperty("Accept", "text/event-stream");
+                if (userID != null) {
+                    connection.setRequestProperty("X-UserID", userID);
+                }
+                connection.setRequestProperty("X-Client-Key", brokerApiKey);
+
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                    String name = null;
+                    StringBuilder data = new StringBuilder();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("event:")) {
+                            name = line.substring("event:".length()).trim();
+                        } else if (line.startsWith("data:")) {
+                            if (data.length() > 0) {
+                                data.append('\n');
+                            }
+                            data.append(line.substring("data:".length()));
+                        } else if (line.isEmpty() && data.length() > 0) {
+                            SseEmitter.SseEventBuilder event = SseEmitter.event().data(data.toString());
+                            emitter.send((name != null) ? event.name(name) : event);
+                            name = null;
+                            data.setLength(0);
+                        }
+                    }
+                }
+                emitter.complete();
+                
+            } catch (Exception e) {
+                logger.debug("Stream from Broker with url:" + url + " closed", e);
+                emitter.completeWithError(e);
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        });
+        
+        return emitter;
+    }
+
     public Retrieve[] getDepositRetrieves(String depositID) {
         HttpEntity<?> response = get(brokerURL + "/deposits/" + depositID + "/retrieves", Retrieve[].class);
         return (Retrieve[])response.getBody();
@@ -347,6 +474,16 @@ public class RestService {
         return (Dataset[])response.getBody();
     }
     
+    public Page<EventInfo> getEventsPage(String sort, String order, String after, int limit) {
+        return getPage(brokerURL + "/admin/events/page", sort, order, after, limit,
+                new ParameterizedTypeReference<Page<EventInfo>>() {});
+    }
+
+    public StatisticsInfo getStatistics() {
+        HttpEntity<?> response = get(brokerURL + "/statistics/snapshot", StatisticsInfo.class);
+        return (StatisticsInfo)response.getBody();
+    }
+
     public EventInfo[] getEvents() {
         HttpEntity<?> response = get(brokerURL + "/admin/events?sort=timestamp", EventInfo[].class);
         return (EventInfo[])response.getBody();
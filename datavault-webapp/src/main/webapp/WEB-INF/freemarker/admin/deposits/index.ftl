@@ -24,11 +24,11 @@
             <table class="table table-striped">
                 <thead>
                 <tr class="tr">
-                    <th><a href="?sort=note&query=${query?url}">Deposit</a></th>
-                    <th><a href="?sort=status&query=${query?url}">Status</a></th>
-                    <th><a href="?sort=filePath&query=${query?url}">File Path</a></th>
-                    <th><a href="?sort=depositSize&query=${query?url}">Size</a></th>
-                    <th><a href="?sort=creationTime&query=${query?url}">Timestamp</a></th>
+                    <th><#if query?has_content><a href="?sort=note&query=${query?url}">Deposit</a><#else>Deposit</#if></th>
+                    <th><#if query?has_content><a href="?sort=status&query=${query?url}">Status</a><#else>Status</#if></th>
+                    <th><#if query?has_content><a href="?sort=filePath&query=${query?url}">File Path</a><#else>File Path</#if></th>
+                    <th><#if query?has_content><a href="?sort=depositSize&query=${query?url}">Size</a><#else>Size</#if></th>
+                    <th><a href="?sort=creationTime&order=<#if sort == "creationTime" && order == "asc">dec<#else>asc</#if>&query=${query?url}">Timestamp</a></th>
                 </tr>
                 </thead>
 
@@ -47,5 +47,16 @@
         </div>
     </#if>
 
+    <#if next?? || after?has_content>
+        <ul class="pager">
+            <#if after?has_content>
+                <li class="previous"><a href="?sort=${sort}&order=${order}">First</a></li>
+            </#if>
+            <#if next??>
+                <li class="next"><a href="?sort=${sort}&order=${order}&after=${next?url}">Next</a></li>
+            </#if>
+        </ul>
+    </#if>
+
 </div>
 </@layout.vaultLayout>
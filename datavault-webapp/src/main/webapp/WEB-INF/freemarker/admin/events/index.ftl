@@ -18,12 +18,12 @@
                         <th>Agent</th>
                         <th>User</th>
                         <th>Event</th>
-                        <th>Timestamp</a></th>
+                        <th><a href="?sort=timestamp&order=<#if sort == "timestamp" && order == "asc">dec<#else>asc</#if>">Timestamp</a></th>
                         <th>Vault</th>
                         <th>Deposit</th>
                         <th>Remote Address</th>
                         <th>HTTP User Agent</th>
-                        <th>Event ID</th>
+                        <th><a href="?sort=id&order=<#if sort == "id" && order == "asc">dec<#else>asc</#if>">Event ID</a></th>
                     </tr>
                 </thead>
 
@@ -54,5 +54,16 @@
         </div>
     </#if>
 
+    <#if next?? || after?has_content>
+        <ul class="pager">
+            <#if after?has_content>
+                <li class="previous"><a href="?sort=${sort}&order=${order}">First</a></li>
+            </#if>
+            <#if next??>
+                <li class="next"><a href="?sort=${sort}&order=${order}&after=${next?url}">Next</a></li>
+            </#if>
+        </ul>
+    </#if>
+
 </div>
 </@layout.vaultLayout>
@@ -27,11 +27,11 @@
                 <thead>
                     <tr class="tr">
                         <th><a href="?sort=id&order=${orderid}&query=${query?url}">ID<#if sort == "id"><#if orderid == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
-                        <th><a href="?sort=name&order=${ordername}&query=${query?url}">Name<#if sort == "name"><#if ordername == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
-                        <th><a href="?sort=description&order=${orderdescription}&query=${query?url}">Description<#if sort == "description"><#if orderdescription == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
-                        <th><a href="?sort=user&order=${orderuser}&query=${query?url}">Owner<#if sort == "user"><#if orderuser == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
-                        <th><a href="?sort=vaultSize&order=${ordervaultsize}&query=${query?url}">Size<#if sort == "vaultSize"><#if ordervaultsize == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
-                        <th><a href="?sort=retentionPolicy&order=${orderpolicy}&query=${query?url}">Policy<#if sort == "retentionPolicy"><#if orderpolicy == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
+                        <th><#if query?has_content><a href="?sort=name&order=${ordername}&query=${query?url}">Name<#if sort == "name"><#if ordername == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a><#else>Name</#if></th>
+                        <th><#if query?has_content><a href="?sort=description&order=${orderdescription}&query=${query?url}">Description<#if sort == "description"><#if orderdescription == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a><#else>Description</#if></th>
+                        <th><#if query?has_content><a href="?sort=user&order=${orderuser}&query=${query?url}">Owner<#if sort == "user"><#if orderuser == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a><#else>Owner</#if></th>
+                        <th><#if query?has_content><a href="?sort=vaultSize&order=${ordervaultsize}&query=${query?url}">Size<#if sort == "vaultSize"><#if ordervaultsize == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a><#else>Size</#if></th>
+                        <th><#if query?has_content><a href="?sort=retentionPolicy&order=${orderpolicy}&query=${query?url}">Policy<#if sort == "retentionPolicy"><#if orderpolicy == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a><#else>Policy</#if></th>
                         <th><a href="?sort=creationTime&order=${ordercreationtime}&query=${query?url}">Timestamp<#if sort == "creationTime"><#if ordercreationtime == "dec"><span class="dropup"><span class="caret"></span></span><#else><span class="caret"></span></#if></#if></a></th>
                     </tr>
                 </thead>
@@ -55,5 +55,16 @@
         </div>
     </#if>
 
+    <#if next?? || after?has_content>
+        <ul class="pager">
+            <#if after?has_content>
+                <li class="previous"><a href="?sort=${sort}&order=${order}">First</a></li>
+            </#if>
+            <#if next??>
+                <li class="next"><a href="?sort=${sort}&order=${order}&after=${next?url}">Next</a></li>
+            </#if>
+        </ul>
+    </#if>
+
 </div>
 </@layout.vaultLayout>
@@ -292,7 +292,45 @@
             });
         }, updateInterval);
     }
-    load();
+
+    <!-- follow changes to the jobs as they are pushed, or poll for them if the browser cannot -->
+    function listen() {
+        var jobs = []
+        var source = new EventSource("${springMacroRequestContext.getContextPath()}/vaults/${vault.getID()}/deposits/${deposit.getID()}/jobs/stream")
+        
+        source.addEventListener('jobs', function (e) {
+            jobs = JSON.parse(e.data)
+            updateProgress(jobs)
+        });
+        
+        source.addEventListener('job', function (e) {
+            var changed = JSON.parse(e.data)
+            var found = false
+            for (var i = 0; i < jobs.length; i++) {
+                if (jobs[i].id == changed.id) {
+                    jobs[i] = changed
+                    found = true
+                }
+            }
+            if (!found) {
+                jobs.push(changed)
+            }
+            updateProgress(jobs)
+        });
+        
+        source.onerror = function () {
+            <!-- the browser reconnects by itself unless the stream could not be opened -->
+            if (source.readyState == EventSource.CLOSED) {
+                load()
+            }
+        };
+    }
+    
+    if (typeof(EventSource) !== "undefined") {
+        listen();
+    } else {
+        load();
+    }
 </script>
 
 <style>
@@ -4,6 +4,8 @@ import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ShutdownHookProcessDestroyer;
+import org.datavaultplatform.worker.queue.EventSender;
+import org.datavaultplatform.worker.queue.Receiver;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
@@ -27,6 +29,7 @@ import org.slf4j.LoggerFactory;
 public class WorkerManager {
 
     private String numberOfWorkers;
+    private boolean inProcess = false;
 
     /**
      * Setter for numberOfWorkers member
@@ -36,6 +39,14 @@ public class WorkerManager {
         this.numberOfWorkers = numberOfWorkers;
     }
 
+    /**
+     * Setter for inProcess member
+     * @param inProcess Whether to run the worker in this JVM rather than starting separate Worker instances
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
     /**
      * Initialise and monitor the worker instances and set up the manager logging 
      * if the relevant config file exists.
@@ -63,6 +74,20 @@ public class WorkerManager {
         ApplicationContext context = new ClassPathXmlApplicationContext(new String[] {"datavault-worker.xml"});
 
         WorkerManager workerManager = context.getBean(WorkerManager.class);
+        
+        if (workerManager.inProcess) {
+            // Run the jobs on threads in this JVM (the number of jobs is set on the receiver)
+            logger.info("Running worker in process");
+            EventSender eventSender = context.getBean(EventSender.class);
+            Receiver receiver = context.getBean(Receiver.class);
+            try {
+                receiver.receive(eventSender);
+            } catch (Exception e) {
+                logger.error("Error in receive", e);
+            }
+            return;
+        }
+        
         List<DefaultExecuteResultHandler> resultHandlers = workerManager.startWorkers();
         workerManager.checkResultHandlers(resultHandlers);
     }
@@ -0,0 +1,184 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.Device;
+import org.datavaultplatform.common.storage.RangedDevice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads byte ranges of a stored (uncompressed) archive without retrieving the whole archive.
+ *
+ * An archive in a device which supports ranged reads is read directly. A segmented archive is
+ * read from the segments which overlap the range, using ranged reads of the segments where the
+ * device supports them and otherwise retrieving only those segments.
+ */
+public class ArchiveRangeReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveRangeReader.class);
+
+    private final Device device;
+    private final String archiveId;
+    private final List<String> segmentIds;
+    private final long segmentSize;
+    private final File workDir;
+
+    private String cachedSegmentId = null;
+    private File cachedSegmentFile = null;
+
+    /**
+     * ArchiveRangeReader constructor
+     * @param device The archive store
+     * @param archiveId The archive ID
+     * @param segmentIds The segment IDs if the archive is segmented, otherwise null
+     * @param segmentSize The segment size if the archive is segmented
+     * @param workDir The directory for any segments which have to be retrieved whole
+     */
+    public ArchiveRangeReader(Device device, String archiveId, List<String> segmentIds, long segmentSize, File workDir) {
+        this.device = device;
+        this.archiveId = archiveId;
+        this.segmentIds = segmentIds;
+        this.segmentSize = segmentSize;
+        this.workDir = workDir;
+    }
+
+    /**
+     * Check whether ranges of an archive can be read without retrieving the whole archive
+     * @param device The archive store
+     * @param segmentIds The segment IDs if the archive is segmented, otherwise null
+     * @param compression The compression format of the archive, or null if not compressed
+     * @return True if ranges can be read
+     */
+    public static boolean canRead(Device device, List<String> segmentIds, String compression) {
+        // Index offsets are positions in the uncompressed tar stream
+        if (Compression.isCompressed(compression)) {
+            return false;
+        }
+        return (device instanceof RangedDevice) || (segmentIds != null && !segmentIds.isEmpty());
+    }
+
+    /**
+     * Open a byte range of the archive for reading
+     * @param offset The position of the range in the archive
+     * @param length The length of the range
+     * @param progress Progress information, updated as the range is read
+     * @return The range
+     * @throws Exception if the range could not be opened
+     */
+    public InputStream open(long offset, long length, Progress progress) throws Exception {
+
+        if (segmentIds == null || segmentIds.isEmpty()) {
+            return ((RangedDevice)device).retrieveRange(archiveId, offset, length, progress);
+        }
+
+        // The parts of the range held in each segment, read one after another
+        List<long[]> parts = new ArrayList<>();
+        long end = offset + length;
+        for (long position = offset; position < end; ) {
+            int index = (int)(position / segmentSize);
+            if (index >= segmentIds.size()) {
+                throw new IOException("Range " + offset + "+" + length + " is beyond the end of the archive");
+            }
+            long segmentEnd = Math.min((long)(index + 1) * segmentSize, end);
+            parts.add(new long[] {index, position - (long)index * segmentSize, segmentEnd - position});
+            position = segmentEnd;
+        }
+
+        final Iterator<long[]> iterator = parts.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long[] part = iterator.next();
+                try {
+                    return openSegment(segmentIds.get((int)part[0]), part[1], part[2], progress);
+                } catch (Exception e) {
+                    // Surfaces as a read error of the sequence
+                    return new FailedInputStream(e);
+                }
+            }
+        });
+    }
+
+    private InputStream openSegment(String segmentId, long offset, long length, Progress progress) throws Exception {
+
+        if (device instanceof RangedDevice) {
+            return ((RangedDevice)device).retrieveRange(segmentId, offset, length, progress);
+        }
+
+        // Retrieve the whole segment and read the part of it in the range. Ranges are read in
+        // archive order, so the last segment is kept for the ranges which follow in it.
+        if (!segmentId.equals(cachedSegmentId)) {
+            close();
+            logger.debug("Retrieving segment " + segmentId + " for a range read");
+            File segmentFile = File.createTempFile("segment-", ".part", workDir);
+            try {
+                device.retrieve(segmentId, segmentFile, progress);
+            } catch (Exception e) {
+                segmentFile.delete();
+                throw e;
+            }
+            cachedSegmentId = segmentId;
+            cachedSegmentFile = segmentFile;
+        }
+
+        FileChannel channel = FileChannel.open(cachedSegmentFile.toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    /**
+     * Delete any segment retrieved for range reads
+     */
+    @Override
+    public void close() {
+        if (cachedSegmentFile != null) {
+            cachedSegmentFile.delete();
+            cachedSegmentFile = null;
+            cachedSegmentId = null;
+        }
+    }
+
+    // Reports a failure to open a part of a range when it is read
+    private static class FailedInputStream extends InputStream {
+
+        private final Exception cause;
+
+        FailedInputStream(Exception cause) {
+            this.cause = cause;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Failed to read archive range: " + cause.getMessage(), cause);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return read();
+        }
+    }
+}
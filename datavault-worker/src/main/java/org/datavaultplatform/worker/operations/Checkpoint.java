@@ -0,0 +1,304 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress of a job, kept in the job's temporary directory so that a job which is
+ * redelivered after the worker stopped part way through can carry on from its last
+ * checkpoint instead of starting again.
+ *
+ * A checkpoint records the stages which have completed, the inputs which have been copied
+ * (with their sizes, to check that the copies are still intact), values computed by the
+ * completed stages, and the archives and archive segments which have been stored. The
+ * checkpoint file is replaced atomically each time it is saved.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    public static final String FILE_NAME = "checkpoint.json";
+
+    private String jobId;
+    private List<String> stages = new ArrayList<>();
+    private Map<String, Long> files = new LinkedHashMap<>();
+    private Map<String, String> values = new HashMap<>();
+    private Map<String, String> archiveIds = new HashMap<>();
+    private Map<String, Map<Integer, String>> segments = new HashMap<>();
+
+    // The checkpoint file, or null if checkpoints are not saved
+    private Path file = null;
+
+    public Checkpoint() {}
+
+    /**
+     * Open the checkpoint of a job, or start a new one if the job has no checkpoint
+     * @param dir The temporary directory of the job
+     * @param jobId The job ID
+     * @param enabled Whether to save checkpoints, if not the checkpoint is only kept in memory
+     * @return The checkpoint
+     */
+    public static Checkpoint open(Path dir, String jobId, boolean enabled) {
+
+        Checkpoint checkpoint = null;
+        Path file = dir.resolve(FILE_NAME);
+
+        if (enabled && Files.exists(file)) {
+            try {
+                checkpoint = new ObjectMapper().readValue(file.toFile(), Checkpoint.class);
+                if (!jobId.equals(checkpoint.jobId)) {
+                    logger.warn("Ignoring checkpoint of another job: " + checkpoint.jobId);
+                    checkpoint = null;
+                }
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable checkpoint " + file, e);
+                checkpoint = null;
+            }
+        }
+
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint();
+            checkpoint.jobId = jobId;
+        }
+        if (enabled) {
+            checkpoint.file = file;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Save the checkpoint, if checkpoints are enabled. The file is written in full and synced
+     * before it replaces the previous checkpoint, so a crash leaves one or the other.
+     * @throws IOException if the checkpoint could not be saved
+     */
+    public synchronized void save() throws IOException {
+
+        if (file == null) {
+            return;
+        }
+
+        File tempFile = file.resolveSibling(FILE_NAME + ".tmp").toFile();
+        try (FileOutputStream output = new FileOutputStream(tempFile)) {
+            output.write(new ObjectMapper().writeValueAsBytes(this));
+            output.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return True if the checkpoint records any completed work
+     */
+    @JsonIgnore
+    public synchronized boolean isResumed() {
+        return !stages.isEmpty() || !files.isEmpty() || !archiveIds.isEmpty() || !segments.isEmpty();
+    }
+
+    /**
+     * @param stage The stage name
+     * @return True if the stage has completed
+     */
+    public synchronized boolean isDone(String stage) {
+        return stages.contains(stage);
+    }
+
+    /**
+     * Record that a stage has completed and save the checkpoint
+     * @param stage The stage name
+     * @throws IOException if the checkpoint could not be saved
+     */
+    public synchronized void done(String stage) throws IOException {
+        if (!stages.contains(stage)) {
+            stages.add(stage);
+        }
+        save();
+    }
+
+    /**
+     * Record that a stage has to be done again, which is saved with the next checkpoint
+     * @param stage The stage name
+     */
+    public synchronized void undo(String stage) {
+        stages.remove(stage);
+    }
+
+    /**
+     * Forget all of the completed work and save the checkpoint
+     * @throws IOException if the checkpoint could not be saved
+     */
+    public synchronized void reset() throws IOException {
+        stages.clear();
+        files.clear();
+        values.clear();
+        clearArchives();
+        save();
+    }
+
+    /**
+     * @param path An input of the job
+     * @return The size of the input when it was copied, or null if it has not been copied
+     */
+    public synchronized Long getFile(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Record that an input has been copied and save the checkpoint
+     * @param path The input
+     * @param size The size of the copy
+     * @throws IOException if the checkpoint could not be saved
+     */
+    public synchronized void fileDone(String path, long size) throws IOException {
+        files.put(path, size);
+        save();
+    }
+
+    /**
+     * @param key The value name
+     * @return A value recorded by a completed stage, or null
+     */
+    public synchronized String getValue(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Record a value computed by a stage, which is saved with the next checkpoint
+     * @param key The value name
+     * @param value The value
+     */
+    public synchronized void setValue(String key, String value) {
+        values.put(key, value);
+    }
+
+    /**
+     * @param archiveStoreId The archive store ID
+     * @return The ID of the archive stored in the archive store, or null if it has not been stored
+     */
+    public synchronized String getArchiveId(String archiveStoreId) {
+        return archiveIds.get(archiveStoreId);
+    }
+
+    /**
+     * @param archiveStoreId The archive store ID
+     * @return The IDs of the segments stored in the archive store, in order
+     */
+    public synchronized ArrayList<String> getSegmentIds(String archiveStoreId) {
+        Map<Integer, String> stored = segments.get(archiveStoreId);
+        return (stored == null) ? null : new ArrayList<>(new TreeMap<>(stored).values());
+    }
+
+    /**
+     * Record that an archive has been stored and save the checkpoint
+     * @param archiveStoreId The archive store ID
+     * @param archiveId The archive ID
+     * @throws IOException if the checkpoint could not be saved
+     */
+    public synchronized void archiveDone(String archiveStoreId, String archiveId) throws IOException {
+        archiveIds.put(archiveStoreId, archiveId);
+        save();
+    }
+
+    /**
+     * Forget the stored archives and segments, e.g. when the archive has to be created again
+     */
+    public synchronized void clearArchives() {
+        archiveIds.clear();
+        segments.clear();
+    }
+
+    /**
+     * Get a log of the segments stored in an archive store, so that an interrupted segmented
+     * store only stores the segments which are missing
+     * @param archiveStoreId The archive store ID
+     * @return The segment log
+     */
+    public SegmentedArchive.SegmentLog getSegmentLog(final String archiveStoreId) {
+        return new SegmentedArchive.SegmentLog() {
+            @Override
+            public String getSegmentId(int index) {
+                synchronized (Checkpoint.this) {
+                    Map<Integer, String> stored = segments.get(archiveStoreId);
+                    return (stored == null) ? null : stored.get(index);
+                }
+            }
+
+            @Override
+            public void segmentStored(int index, String segmentId) throws IOException {
+                synchronized (Checkpoint.this) {
+                    Map<Integer, String> stored = segments.get(archiveStoreId);
+                    if (stored == null) {
+                        stored = new HashMap<>();
+                        segments.put(archiveStoreId, stored);
+                    }
+                    stored.put(index, segmentId);
+                    save();
+                }
+            }
+        };
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public List<String> getStages() {
+        return stages;
+    }
+
+    public void setStages(List<String> stages) {
+        this.stages = stages;
+    }
+
+    public Map<String, Long> getFiles() {
+        return files;
+    }
+
+    public void setFiles(Map<String, Long> files) {
+        this.files = files;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public void setValues(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public Map<String, String> getArchiveIds() {
+        return archiveIds;
+    }
+
+    public void setArchiveIds(Map<String, String> archiveIds) {
+        this.archiveIds = archiveIds;
+    }
+
+    public Map<String, Map<Integer, String>> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(Map<String, Map<Integer, String>> segments) {
+        this.segments = segments;
+    }
+}
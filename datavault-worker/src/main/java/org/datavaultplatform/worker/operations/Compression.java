@@ -0,0 +1,130 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression formats for deposit archives
+ */
+public class Compression {
+
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    // Files smaller than this are compressed whatever their type, as switching level ends a compressed block
+    public static final long STORE_MIN_SIZE = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+
+    // Media types (as detected by Identifier) which are already compressed
+    private static final Set<String> compressedTypes = new HashSet<>(Arrays.asList(
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/x-lzma",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/zip",
+            "application/java-archive",
+            "application/zstd",
+            "application/x-compress",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text",
+            "application/vnd.oasis.opendocument.spreadsheet",
+            "image/jpeg",
+            "image/png",
+            "image/gif",
+            "image/webp",
+            "image/jp2"));
+
+    // Families of media types which are almost always compressed
+    private static final String[] compressedPrefixes = {"audio/", "video/"};
+
+    /**
+     * Check whether a compression format is supported
+     * @param compression The compression format
+     * @return True if the format is supported
+     */
+    public static boolean isSupported(String compression) {
+        return compression == null || NONE.equals(compression) || GZIP.equals(compression);
+    }
+
+    /**
+     * Check whether a compression format actually compresses the archive
+     * @param compression The compression format, or null
+     * @return True unless the format is null or "none"
+     */
+    public static boolean isCompressed(String compression) {
+        return compression != null && !NONE.equals(compression);
+    }
+
+    /**
+     * Check whether a media type is for data which is already compressed
+     * @param mediaType The media type detected by Identifier, or null
+     * @return True if compressing the data again is unlikely to save space
+     */
+    public static boolean isCompressedType(String mediaType) {
+        if (mediaType == null) {
+            return false;
+        }
+        if (compressedTypes.contains(mediaType)) {
+            return true;
+        }
+        for (String prefix : compressedPrefixes) {
+            // Uncompressed audio is still worth compressing
+            if (mediaType.startsWith(prefix) && !mediaType.contains("wav")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the archive file name extension for a compression format
+     * @param compression The compression format, or null
+     * @return The extension which follows ".tar"
+     */
+    public static String getFileExtension(String compression) {
+        return GZIP.equals(compression) ? ".gz" : "";
+    }
+
+    /**
+     * Compress an archive as it is written
+     * @param output The stream the compressed archive is written to
+     * @param compression The compression format
+     * @param level The compression level
+     * @param threads The number of compression threads, or 0 for one per core
+     * @return A stream which compresses the data written to it, or the output stream if not compressing
+     */
+    public static OutputStream compress(OutputStream output, String compression, int level, int threads) {
+        if (GZIP.equals(compression)) {
+            return new ParallelGzipOutputStream(output, level, threads);
+        }
+        return output;
+    }
+
+    /**
+     * Decompress an archive as it is read
+     * @param input The compressed archive
+     * @param compression The compression format, or null
+     * @return A stream of the decompressed archive, or the input stream if not compressed
+     * @throws IOException if the format is not supported or the stream is not valid
+     */
+    public static InputStream decompress(InputStream input, String compression) throws IOException {
+        if (!isCompressed(compression)) {
+            return input;
+        } else if (GZIP.equals(compression)) {
+            // GZIPInputStream reads all of the members of a multi-member file
+            return new GZIPInputStream(input, 64 * 1024);
+        }
+        throw new IOException("Unsupported compression: " + compression);
+    }
+}
@@ -0,0 +1,136 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.StreamingDevice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a single read of a stream in several devices at once.
+ *
+ * Each device reads the data from its own pipe on its own thread. If one device fails, it is
+ * dropped and the others carry on, so the failure can be handled for that device alone. The
+ * pipes are bounded, so the stream is read at the pace of the slowest device.
+ */
+public class FanOutUpload {
+
+    private static final Logger logger = LoggerFactory.getLogger(FanOutUpload.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Map<String, PipedUpload> uploads = new LinkedHashMap<>();
+    private final Map<String, String> storedIds = new HashMap<>();
+    private final Map<String, Exception> errors = new HashMap<>();
+
+    /**
+     * Add a device to store the stream in
+     * @param id An identifier for the device, used for the results
+     * @param device The device
+     * @param path The path to store the stream under
+     * @param name The name of the stored object
+     * @throws IOException if the pipe could not be created
+     */
+    public void add(String id, StreamingDevice device, String path, String name) throws IOException {
+        uploads.put(id, new PipedUpload(device, path, name));
+    }
+
+    /**
+     * Get the progress of the upload to a device
+     * @param id The device identifier
+     * @return The progress object updated by the device
+     */
+    public Progress getProgress(String id) {
+        return uploads.get(id).getProgress();
+    }
+
+    /**
+     * Read the stream once and store it in each device, waiting for every device to finish
+     * @param input The stream to store
+     * @throws IOException if the stream could not be read (in which case nothing is stored)
+     * @throws InterruptedException if interrupted while waiting for the devices
+     */
+    public void run(InputStream input) throws IOException, InterruptedException {
+
+        Map<String, OutputStream> outputs = new LinkedHashMap<>();
+        for (String id : uploads.keySet()) {
+            PipedUpload upload = uploads.get(id);
+            upload.start();
+            outputs.put(id, upload.getOutputStream());
+        }
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while (!outputs.isEmpty() && (n = input.read(buffer)) != -1) {
+                for (String id : new ArrayList<>(outputs.keySet())) {
+                    try {
+                        outputs.get(id).write(buffer, 0, n);
+                    } catch (IOException e) {
+                        // The device has stopped reading, carry on with the others
+                        logger.warn("Upload " + id + " stopped: " + e.getMessage());
+                        drop(id, outputs, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Without the complete stream none of the devices can succeed
+            for (PipedUpload upload : uploads.values()) {
+                upload.abort();
+            }
+            throw e;
+        }
+
+        for (String id : new ArrayList<>(outputs.keySet())) {
+            try {
+                outputs.get(id).close();
+            } catch (IOException e) {
+                drop(id, outputs, e);
+            }
+        }
+
+        for (String id : uploads.keySet()) {
+            try {
+                String storedId = uploads.get(id).await();
+                if (outputs.containsKey(id)) {
+                    storedIds.put(id, storedId);
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                // The device's own error explains the failure better than the broken pipe
+                errors.put(id, e);
+            }
+        }
+    }
+
+    private void drop(String id, Map<String, OutputStream> outputs, IOException e) {
+        outputs.remove(id);
+        uploads.get(id).abort();
+        errors.put(id, e);
+    }
+
+    /**
+     * Get the identifiers returned by the devices which stored the stream
+     * @return The stored identifier for each device which succeeded
+     */
+    public Map<String, String> getStoredIds() {
+        return storedIds;
+    }
+
+    /**
+     * Get the errors of the devices which failed
+     * @return The error for each device which failed
+     */
+    public Map<String, Exception> getErrors() {
+        return errors;
+    }
+}
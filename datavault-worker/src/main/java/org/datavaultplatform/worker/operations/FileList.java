@@ -0,0 +1,174 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The full list of payload files in a deposit, with the size, modification time and hash
+ * of each file, and the bag which holds its content.
+ *
+ * An incremental deposit only stores the files which have changed since its base deposit.
+ * Its file list still describes every file, with the unchanged files referring to the bag
+ * they were originally stored in, so that the full deposit can be rebuilt on retrieval and
+ * later deposits can be compared with it.
+ *
+ * The list is stored as a tab-separated metadata file, with one line per file:
+ * hash, size, modification time (ms), bag ID, path (relative to the bag payload directory).
+ */
+public class FileList {
+
+    private static final String HEADER = "# hash\tsize\tmodified\tbag\tpath";
+
+    /**
+     * A file in the deposit
+     */
+    public static class Entry {
+
+        private final String path;
+        private final String hash;
+        private final long size;
+        private final long modified;
+        private final String bagId;
+
+        public Entry(String path, String hash, long size, long modified, String bagId) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.bagId = bagId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getBagId() {
+            return bagId;
+        }
+    }
+
+    // Entries in path order
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public void add(Entry entry) {
+        entries.put(entry.getPath(), entry);
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the bags which hold the content of the files
+     * @return The bag IDs
+     */
+    public Set<String> getBagIds() {
+        Set<String> bagIds = new TreeSet<>();
+        for (Entry entry : entries.values()) {
+            bagIds.add(entry.getBagId());
+        }
+        return bagIds;
+    }
+
+    /**
+     * Add the payload files of a bag, using the hashes from its payload manifest
+     * @param bagDir The bag
+     * @param bagId The bag ID
+     * @throws IOException if the manifest could not be read
+     */
+    public void addPayload(File bagDir, String bagId) throws IOException {
+
+        Path bagPath = bagDir.toPath();
+        String prefix = Packager.dataDirName + "/";
+
+        try (BufferedReader reader = Files.newBufferedReader(bagPath.resolve(Packager.manifestFileName), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator == -1) {
+                    continue;
+                }
+                String hash = line.substring(0, separator);
+                String manifestPath = line.substring(separator).replaceFirst("^\\s+", "");
+                if (!manifestPath.startsWith(prefix)) {
+                    continue;
+                }
+
+                File file = bagPath.resolve(manifestPath).toFile();
+                add(new Entry(manifestPath.substring(prefix.length()), hash, file.length(), file.lastModified(), bagId));
+            }
+        }
+    }
+
+    /**
+     * Write the file list
+     * @param file The file to write
+     * @throws IOException if an IOException has occurred
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(entry.getHash() + "\t" + entry.getSize() + "\t" + entry.getModified() + "\t"
+                        + entry.getBagId() + "\t" + entry.getPath());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Read a file list
+     * @param file The file to read
+     * @return The file list
+     * @throws IOException if the file could not be read or is not a valid file list
+     */
+    public static FileList read(Path file) throws IOException {
+        FileList fileList = new FileList();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // The path is last so that it may contain tabs
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("Invalid file list line in " + file + ": " + line);
+                }
+                fileList.add(new Entry(fields[4], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+            }
+        }
+        return fileList;
+    }
+}
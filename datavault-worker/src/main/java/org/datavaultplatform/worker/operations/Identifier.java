@@ -1,88 +1,231 @@
 package org.datavaultplatform.worker.operations;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.nio.file.DirectoryStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.apache.commons.io.IOUtils;
 import org.apache.tika.config.TikaConfig;
-import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.detect.Detector;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 /**
  * A set of methods to indentify file / directory types
+ * 
+ * A single detector is shared by all threads. The Tika detectors do not keep any state
+ * between calls, so loading the MIME type registry once is enough for every file.
  */
 public class Identifier {
     
+    private static final Logger logger = LoggerFactory.getLogger(Identifier.class);
+    
+    // Only the start of each file is read, which is enough for the magic byte patterns
+    private static final int HEADER_SIZE = 64 * 1024;
+    
+    // Number of files queued for detection per thread, so the directory walk does not run ahead
+    private static final int QUEUED_FILES_PER_THREAD = 16;
+    
+    private static class DetectorHolder {
+        private static final Detector detector = TikaConfig.getDefaultConfig().getDetector();
+    }
+    
+    /**
+     * Get the shared detector, which is loaded on first use
+     * @return The detector
+     */
+    public static Detector getDetector() {
+        return DetectorHolder.detector;
+    }
+    
     /**
      * Identify the type of the passed in file
      * @param file The file we want to identify
      * @return The MediaType or null if an exception occured
      */
     public static String detectFile(File file) {
-        InputStream is = null;
-        try {
-            TikaConfig tika = new TikaConfig();
+        try (InputStream is = new FileInputStream(file)) {
+            // Read the header in one go rather than letting the detector read the stream
+            byte[] header = new byte[HEADER_SIZE];
+            int length = IOUtils.read(is, header);
+            
             Metadata metadata = new Metadata();
             metadata.set(Metadata.RESOURCE_NAME_KEY, file.toString());
-            is = TikaInputStream.get(file);
-            MediaType mediaType = tika.getDetector().detect(is, metadata);
+            MediaType mediaType = getDetector().detect(new ByteArrayInputStream(header, 0, length), metadata);
             return mediaType.toString();
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.warn("Unable to identify " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Identify the type of a file from a stream, for files which are not stored locally.
+     * The stream must support mark/reset so that the bytes read by the detector can be read again.
+     * @param stream The stream positioned at the start of the file
+     * @param name The file name, which is used as a hint by the detector
+     * @return The MediaType or null if an exception occured
+     */
+    public static String detectStream(InputStream stream, String name) {
+        try {
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+            MediaType mediaType = getDetector().detect(stream, metadata);
+            return mediaType.toString();
+        } catch (Exception e) {
+            logger.warn("Unable to identify " + name + ": " + e.getMessage());
             return null;
-        } finally {
-            if (is != null) {
-                try { is.close(); } catch (Exception e) {}
-            }
         }
     }
     
     /**
-     * Identify the types of the files in a passed in directory, the method calls itself if the top level dir contains other dirs.
-     * @param basePath The base dir path
-     * @param path The path to the dir
-     * @param result Map containing the results the key is an id to each file and the value is the identified file type
+     * Identify the types of the files in a directory using a pool of threads. Each result is
+     * passed to the consumer as soon as it is available, one at a time, in no particular order.
+     * @param path The path to the directory
+     * @param threads The number of detection threads, or 0 for one per core
+     * @param consumer Receives the key of each file (its path relative to the directory) and the MediaType or null
+     * @throws Exception if the directory could not be read or the consumer failed
      */
-    private static void detectDirectory(Path basePath, Path path, HashMap<String, String> result) {
+    public static void detectDirectory(Path path, int threads, BiConsumer<String, String> consumer) throws Exception {
         
-        DirectoryStream<Path> stream = null;
+        int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        Semaphore queued = new Semaphore(poolSize * QUEUED_FILES_PER_THREAD);
+        Exception[] consumerError = new Exception[1];
         
         try {
-            stream = Files.newDirectoryStream(path);
-
-            for (Path entry : stream) {
+            // Follow links to directories, as File.isDirectory did
+            Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
                 
-                String entryKey = (basePath.toUri().relativize(entry.toUri())).getPath();
-                File entryFile = entry.toFile();
+                @Override
+                public FileVisitResult visitFile(Path entry, BasicFileAttributes attrs) throws IOException {
+                    String entryKey = (path.toUri().relativize(entry.toUri())).getPath();
+                    
+                    try {
+                        queued.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while identifying files", e);
+                    }
+                    
+                    executor.execute(() -> {
+                        try {
+                            String detected = detectFile(entry.toFile());
+                            synchronized (consumer) {
+                                if (consumerError[0] == null) {
+                                    consumer.accept(entryKey, detected);
+                                }
+                            }
+                        } catch (Exception e) {
+                            synchronized (consumer) {
+                                consumerError[0] = e;
+                            }
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                    
+                    return FileVisitResult.CONTINUE;
+                }
                 
-                if (entryFile.isDirectory()) {
-                    detectDirectory(basePath, entry, result);
-                } else {
-                    String detected = detectFile(entryFile);
-                    result.put(entryKey, detected);
+                @Override
+                public FileVisitResult visitFileFailed(Path entry, IOException e) {
+                    logger.warn("Unable to read " + entry + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
                 }
-            }
-            
-        } catch (Exception e) {
-            e.printStackTrace();
+            });
         } finally {
-            if (stream != null) {
-                try { stream.close(); } catch (Exception e) {}
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        
+        synchronized (consumer) {
+            if (consumerError[0] != null) {
+                throw consumerError[0];
             }
         }
     }
     
+    /**
+     * Identify the types of the files in a directory and write them to a JSON file as they
+     * are identified, without holding the results in memory.
+     * @param path The path to the directory
+     * @param threads The number of detection threads, or 0 for one per core
+     * @param output The JSON file, which contains an object with a key for each file and the MediaType or null
+     * @return The number of files identified
+     * @throws Exception if anything unexpected happens
+     */
+    public static long detectDirectory(Path path, int threads, File output) throws Exception {
+        return detectDirectory(path, threads, output, null);
+    }
+    
+    /**
+     * Identify the types of the files in a directory and write them to a JSON file as they
+     * are identified, also passing each result to a consumer, e.g. to keep the ones needed later.
+     * @param path The path to the directory
+     * @param threads The number of detection threads, or 0 for one per core
+     * @param output The JSON file, which contains an object with a key for each file and the MediaType or null
+     * @param consumer Also receives the key and MediaType of each file, one at a time, or null
+     * @return The number of files identified
+     * @throws Exception if anything unexpected happens
+     */
+    public static long detectDirectory(Path path, int threads, File output, BiConsumer<String, String> consumer) throws Exception {
+        
+        long[] count = new long[1];
+        
+        try (OutputStream os = new FileOutputStream(output);
+             JsonGenerator json = new JsonFactory().createGenerator(os, JsonEncoding.UTF8)) {
+            
+            json.writeStartObject();
+            detectDirectory(path, threads, (key, type) -> {
+                try {
+                    json.writeStringField(key, type);
+                    count[0]++;
+                    if (consumer != null) {
+                        consumer.accept(key, type);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            json.writeEndObject();
+        }
+        
+        return count[0];
+    }
+    
     /**
      * Identify the types of the files in a passed in directory
      * @param path The pass to the directory
      * @return Map containing a key to each file and the value is the Media type or null
+     * @throws Exception if anything unexpected happens
      */
-    public static HashMap<String, String> detectDirectory(Path path) {
+    public static HashMap<String, String> detectDirectory(Path path) throws Exception {
         HashMap<String, String> result = new HashMap<>();
-        detectDirectory(path, path, result);
+        detectDirectory(path, 0, result::put);
         return result;
     }
 }
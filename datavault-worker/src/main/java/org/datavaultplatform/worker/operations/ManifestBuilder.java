@@ -0,0 +1,247 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Computes the MD5 payload manifest of a directory tree using a work-stealing pool.
+ *
+ * Each directory is listed by its own task and its files are hashed in small batches,
+ * so idle threads can steal work from large directories as well as deep trees.
+ *
+ * In CPU mode the pool has one thread per core. In IO mode the pool is larger and each
+ * file read is run as a managed blocking operation, so the pool can keep more reads in
+ * flight on storage with a high latency or a deep queue (e.g. NVMe or network storage).
+ */
+public class ManifestBuilder implements AutoCloseable {
+
+    public enum Mode {CPU, IO};
+
+    // Files hashed by a single task before the remainder of a directory is split off
+    private static final int BATCH_SIZE = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int IO_THREADS_PER_CORE = 4;
+
+    private final ForkJoinPool pool;
+    private final Mode mode;
+
+    private final LongAdder byteCount = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+
+    /**
+     * ManifestBuilder constructor
+     * @param threads The number of hashing threads, or 0 to choose a number for the mode
+     * @param mode Whether hashing is expected to be limited by the CPU or by I/O
+     */
+    public ManifestBuilder(int threads, Mode mode) {
+        this.mode = mode;
+        this.pool = new ForkJoinPool(threads > 0 ? threads : defaultThreads(mode));
+    }
+
+    /**
+     * Get the default number of threads for a mode
+     * @param mode The hashing mode
+     * @return The number of threads
+     */
+    public static int defaultThreads(Mode mode) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return (mode == Mode.IO) ? cores * IO_THREADS_PER_CORE : cores;
+    }
+
+    /**
+     * Parse a mode from a configuration value
+     * @param value "cpu" or "io" (case insensitive)
+     * @return The mode, CPU if the value is not recognised
+     */
+    public static Mode parseMode(String value) {
+        if (value != null && value.trim().equalsIgnoreCase("io")) {
+            return Mode.IO;
+        }
+        return Mode.CPU;
+    }
+
+    /**
+     * Hash every file in a directory tree. Symbolic links to files are followed
+     * and hashed, as they are by BagCreator.
+     * @param dir The directory to hash
+     * @return Map of file paths to MD5 hashes, ordered by path
+     * @throws IOException if a file could not be listed or read
+     */
+    public Map<Path, String> hashDirectory(Path dir) throws IOException {
+
+        ConcurrentHashMap<Path, String> hashes = new ConcurrentHashMap<>();
+
+        try {
+            pool.invoke(new DirectoryTask(dir, hashes));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return new TreeMap<>(hashes);
+    }
+
+    /**
+     * Get the number of bytes hashed so far
+     * @return The total size of the hashed files
+     */
+    public long getByteCount() {
+        return byteCount.sum();
+    }
+
+    /**
+     * Get the number of files hashed so far
+     * @return The number of hashed files
+     */
+    public long getFileCount() {
+        return fileCount.sum();
+    }
+
+    /**
+     * Stop the hashing threads
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private String hash(Path file) throws IOException {
+        if (mode == Mode.IO) {
+            // Let the pool add a thread while this one waits for the storage
+            HashBlocker blocker = new HashBlocker(file);
+            try {
+                ForkJoinPool.managedBlock(blocker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing " + file, e);
+            }
+            if (blocker.error != null) {
+                throw blocker.error;
+            }
+            return blocker.result;
+        }
+        return md5(file);
+    }
+
+    private String md5(Path file) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = Files.newInputStream(file)) {
+            int len;
+            while ((len = input.read(buffer)) != -1) {
+                md5.update(buffer, 0, len);
+                size += len;
+            }
+        }
+
+        byteCount.add(size);
+        fileCount.increment();
+        return Hex.encodeHexString(md5.digest());
+    }
+
+    private class HashBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final Path file;
+        private String result = null;
+        private IOException error = null;
+
+        HashBlocker(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                result = md5(file);
+            } catch (IOException e) {
+                error = e;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return result != null || error != null;
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+
+        private final Path dir;
+        private final Map<Path, String> hashes;
+
+        DirectoryTask(Path dir, Map<Path, String> hashes) {
+            this.dir = dir;
+            this.hashes = hashes;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new DirectoryTask(entry, hashes));
+                    } else if (Files.isRegularFile(entry)) {
+                        files.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                tasks.add(new FileBatchTask(files.subList(i, Math.min(i + BATCH_SIZE, files.size())), hashes));
+            }
+
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileBatchTask extends RecursiveAction {
+
+        private final List<Path> files;
+        private final Map<Path, String> hashes;
+
+        FileBatchTask(List<Path> files, Map<Path, String> hashes) {
+            this.files = files;
+            this.hashes = hashes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (Path file : files) {
+                    hashes.put(file, hash(file));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.datavaultplatform.worker.operations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.commons.io.FileUtils;
+import org.datavaultplatform.common.event.UpdateProgress;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.worker.queue.EventSender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks several transfers of the same data which run at once, e.g. uploads of an archive to
+ * each archive store. The progress bar follows the slowest transfer, as the job can only move
+ * on once every transfer is complete, and the message shows the progress of each one.
+ *
+ * The progress is reported by the worker's shared ProgressReporter between start and stop.
+ */
+public class MultiProgressTracker implements Runnable {
+
+    private ScheduledFuture<?> scheduled = null;
+    private TransferRate rate = null;
+    private long lastTotalCount = -1;
+    private final long expectedBytes;
+
+    private final Map<String, Progress> progressMap = new LinkedHashMap<>();
+    private final String jobId;
+    private final String depositId;
+    private final EventSender eventSender;
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiProgressTracker.class);
+
+    /**
+     * MultiProgressTracker constructor
+     * @param jobId Identifier for the job
+     * @param depositId Identifier for the deposit
+     * @param expectedBytes The expected size of each transfer
+     * @param eventSender The event sender
+     */
+    public MultiProgressTracker(String jobId, String depositId, long expectedBytes, EventSender eventSender) {
+        this.jobId = jobId;
+        this.depositId = depositId;
+        this.expectedBytes = expectedBytes;
+        this.eventSender = eventSender;
+    }
+
+    /**
+     * Add a transfer to track, before the tracker is started
+     * @param name The name shown for the transfer
+     * @param progress The progress of the transfer
+     */
+    public void add(String name, Progress progress) {
+        progressMap.put(name, progress);
+    }
+
+    /**
+     * Start reporting progress
+     */
+    public synchronized void start() {
+        rate = new TransferRate(ProgressReporter.getSmoothing(), 0, System.currentTimeMillis());
+        scheduled = ProgressReporter.schedule(this);
+    }
+
+    /**
+     * Stop reporting progress, after reporting the final counts
+     */
+    public void stop() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        run();
+    }
+
+    /**
+     * Update progress to the logs and broker
+     */
+    synchronized void reportProgress() {
+
+        long slowest = Long.MAX_VALUE;
+        long total = 0;
+        StringBuilder details = new StringBuilder();
+
+        for (Map.Entry<String, Progress> entry : progressMap.entrySet()) {
+            long byteCount = entry.getValue().getByteCount();
+            slowest = Math.min(slowest, byteCount);
+            total += byteCount;
+
+            if (details.length() > 0) {
+                details.append(", ");
+            }
+            int percent = expectedBytes > 0 ? (int)(100 * Math.min(byteCount, expectedBytes) / expectedBytes) : 100;
+            details.append(entry.getKey()).append(" ").append(percent).append("%");
+        }
+
+        if (progressMap.isEmpty()) {
+            return;
+        }
+
+        // The estimated time remaining follows the slowest transfer
+        if (rate == null) {
+            rate = new TransferRate(ProgressReporter.getSmoothing(), slowest, System.currentTimeMillis());
+        }
+        rate.update(slowest, System.currentTimeMillis());
+
+        if (total == lastTotalCount) {
+            return;
+        }
+
+        long secondsRemaining = rate.getSecondsRemaining(expectedBytes - slowest);
+        if (secondsRemaining >= 0) {
+            details.append(", ").append(TransferRate.formatDuration(secondsRemaining)).append(" remaining");
+        }
+
+        String message = "Transferred " +
+                         FileUtils.byteCountToDisplaySize(slowest) +
+                         " of " +
+                         FileUtils.byteCountToDisplaySize(expectedBytes) +
+                         " to each store (" + details + ")";
+
+        logger.info(message);
+
+        // Signal progress to the broker
+        eventSender.send(new UpdateProgress(jobId, depositId, slowest, expectedBytes, message));
+        lastTotalCount = total;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     *
+     * Run by the shared reporter at each reporting interval
+     */
+    @Override
+    public void run() {
+        try {
+            reportProgress();
+        } catch (Exception e) {
+            logger.error("Error in progress tracker", e);
+        }
+    }
+}
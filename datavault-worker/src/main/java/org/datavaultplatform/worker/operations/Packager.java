@@ -4,12 +4,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -43,6 +52,14 @@ public class Packager {
     public static final String vaultMetaFileName = "vault.json";
     public static final String fileTypeMetaFileName = "filetype.json";
     public static final String externalMetaFileName = "external.txt";
+    public static final String fileListMetaFileName = "filelist.txt";
+    public static final String tarIndexMetaFileName = "tarindex.txt";
+    
+    public static final String dataDirName = "data";
+    public static final String bagitFileName = "bagit.txt";
+    public static final String bagInfoFileName = "bag-info.txt";
+    public static final String manifestFileName = "manifest-md5.txt";
+    public static final String tagManifestFileName = "tagmanifest-md5.txt";
     
     /**
      * Create a bag from an existing directory
@@ -57,6 +74,173 @@ public class Packager {
                 true); // include hidden files
     }
     
+    /**
+     * Create a bag from an existing directory, hashing the payload files in parallel.
+     * The bag has the same layout as one created by createBag (including hidden files).
+     * @param dir The existing directory
+     * @param threads The number of hashing threads, or 0 to choose a number for the mode
+     * @param mode Whether hashing is expected to be limited by the CPU or by I/O
+     * @return True
+     * @throws Exception if anything unexpected happens
+     */
+    public static boolean createBag(File dir, int threads, ManifestBuilder.Mode mode) throws Exception {
+        
+        Path bagPath = dir.toPath();
+        
+        // Move the contents into a new payload directory (via a temporary name in case the
+        // directory already contains an entry called "data")
+        Path tempDataPath = Files.createTempDirectory(bagPath, ".payload");
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(bagPath)) {
+            for (Path entry : stream) {
+                if (!entry.equals(tempDataPath)) {
+                    Files.move(entry, tempDataPath.resolve(entry.getFileName()));
+                }
+            }
+        }
+        Path dataPath = Files.move(tempDataPath, bagPath.resolve(dataDirName));
+        
+        // Hash the payload and write the manifest in path order
+        Map<Path, String> hashes;
+        long payloadBytes;
+        long payloadFiles;
+        
+        try (ManifestBuilder builder = new ManifestBuilder(threads, mode)) {
+            hashes = builder.hashDirectory(dataPath);
+            payloadBytes = builder.getByteCount();
+            payloadFiles = builder.getFileCount();
+        }
+        
+        try (Writer manifest = Files.newBufferedWriter(bagPath.resolve(manifestFileName), StandardCharsets.UTF_8)) {
+            for (Map.Entry<Path, String> entry : hashes.entrySet()) {
+                manifest.write(entry.getValue() + "  " + dataDirName + "/" + getManifestPath(dataPath, entry.getKey()) + "\n");
+            }
+        }
+        
+        writeTagFiles(dir, payloadBytes, payloadFiles);
+        
+        return true;
+    }
+    
+    /**
+     * Undo an interrupted createBag(File, int, Mode), moving the payload back to the top of the
+     * directory and removing any tag files, so that the directory can be bagged again without
+     * copying the payload again.
+     * @param dir The directory which was being bagged
+     * @param payloadNames The names at the top of the directory before it was bagged
+     * @throws IOException if the payload could not be restored
+     */
+    public static void restorePayload(File dir, Collection<String> payloadNames) throws IOException {
+        
+        Path bagPath = dir.toPath();
+        Path dataPath = bagPath.resolve(dataDirName);
+        
+        if (getNames(bagPath).equals(new HashSet<>(payloadNames))) {
+            // Bagging had not started
+            return;
+        }
+        
+        List<Path> payloadDirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(bagPath, ".payload*")) {
+            for (Path entry : stream) {
+                payloadDirs.add(entry);
+            }
+        }
+        
+        if (Files.isDirectory(dataPath) && payloadDirs.isEmpty()) {
+            // The payload was moved, so anything else at the top level should be a tag file
+            List<Path> tagFiles = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(bagPath)) {
+                for (Path entry : stream) {
+                    String name = entry.getFileName().toString();
+                    if (entry.equals(dataPath)) {
+                        continue;
+                    }
+                    if (!name.equals(bagitFileName) && !name.equals(bagInfoFileName) && !name.equals(metadataDirName)
+                            && !(name.startsWith("manifest-") && name.endsWith(".txt"))
+                            && !(name.startsWith("tagmanifest-") && name.endsWith(".txt"))) {
+                        throw new IOException("Cannot restore the payload of " + dir + ": unexpected entry " + name);
+                    }
+                    tagFiles.add(entry);
+                }
+            }
+            for (Path tagFile : tagFiles) {
+                FileUtils.forceDelete(tagFile.toFile());
+            }
+            Path tempDataPath = Files.move(dataPath, Files.createTempDirectory(bagPath, ".payload").resolve(dataDirName));
+            payloadDirs.add(tempDataPath.getParent());
+            payloadDirs.add(tempDataPath);
+        }
+        
+        // Move the payload back up, innermost first
+        for (int i = payloadDirs.size() - 1; i >= 0; i--) {
+            Path payloadDir = payloadDirs.get(i);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(payloadDir)) {
+                for (Path entry : stream) {
+                    Files.move(entry, bagPath.resolve(entry.getFileName()));
+                }
+            }
+            Files.delete(payloadDir);
+        }
+        
+        if (!getNames(bagPath).equals(new HashSet<>(payloadNames))) {
+            throw new IOException("Cannot restore the payload of " + dir);
+        }
+    }
+    
+    /**
+     * Get the names of the entries at the top of a directory
+     * @param dir The directory
+     * @return The names
+     * @throws IOException if an IOException has occurred
+     */
+    public static Set<String> getNames(Path dir) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                names.add(entry.getFileName().toString());
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Write the bag declaration, the bag info and the tag manifest for a bag which
+     * already has a payload manifest.
+     * @param bagDir The bag
+     * @param payloadBytes The total size of the payload files
+     * @param payloadFiles The number of payload files
+     * @throws IOException if an IOException has occurred
+     */
+    public static void writeTagFiles(File bagDir, long payloadBytes, long payloadFiles) throws IOException {
+        
+        // Bag declaration and the same bag-info fields as BagCreator
+        String bagitText = "BagIt-Version: 0.97\n" +
+                           "Tag-File-Character-Encoding: UTF-8\n";
+        FileUtils.writeStringToFile(new File(bagDir, bagitFileName), bagitText, StandardCharsets.UTF_8);
+        
+        String bagInfoText = "Bagging-Date: " + new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "\n" +
+                             "Payload-Oxum: " + payloadBytes + "." + payloadFiles + "\n";
+        FileUtils.writeStringToFile(new File(bagDir, bagInfoFileName), bagInfoText, StandardCharsets.UTF_8);
+        
+        File tagManifest = new File(bagDir, tagManifestFileName);
+        for (String tagFileName : new String[] {bagitFileName, bagInfoFileName, manifestFileName}) {
+            String hash = computeFileHash(new File(bagDir, tagFileName), StandardSupportedAlgorithms.MD5);
+            FileUtils.writeStringToFile(tagManifest, hash + "  " + tagFileName + "\n", StandardCharsets.UTF_8, true);
+        }
+    }
+    
+    private static String getManifestPath(Path dataPath, Path file) {
+        // Manifest paths always use forward slashes
+        StringBuilder path = new StringBuilder();
+        for (Path name : dataPath.relativize(file)) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+    
     /**
      * A bag is invalid if a defined exception is thrown in the isValid method
      * of BagVerifier.
@@ -133,6 +317,109 @@ public class Packager {
         return result;
     }
     
+    /**
+     * Add vault/deposit metadata, with the file type metadata in an existing file
+     * (e.g. written by Identifier as the files were identified)
+     * @param bagDir The bag
+     * @param depositMetadata The depost metadata
+     * @param vaultMetadata The vault metadata
+     * @param fileTypeMetadataFile The file type metadata file, which is moved into the bag
+     * @param externalMetadata The external metadata
+     * @return True if the metadata is added without any exception
+     */
+    public static boolean addMetadata(File bagDir,
+                                      String depositMetadata,
+                                      String vaultMetadata,
+                                      File fileTypeMetadataFile,
+                                      String externalMetadata) {
+        
+        boolean result = false;
+        
+        try {
+            Path bagPath = bagDir.toPath();
+            
+            Path metadataDirPath = bagPath.resolve(metadataDirName);
+            File metadataDir = metadataDirPath.toFile();
+            metadataDir.mkdir();
+            
+            File tagManifest = bagPath.resolve(tagManifestFileName).toFile();
+            SupportedAlgorithm alg = StandardSupportedAlgorithms.MD5;
+            
+            // Create metadata files and compute/store hashes
+            addMetaFile(tagManifest, metadataDirPath, depositMetaFileName, depositMetadata, alg);
+            addMetaFile(tagManifest, metadataDirPath, vaultMetaFileName, vaultMetadata, alg);
+            
+            File metadataFile = metadataDirPath.resolve(fileTypeMetaFileName).toFile();
+            Files.move(fileTypeMetadataFile.toPath(), metadataFile.toPath());
+            addMetaFileHash(tagManifest, metadataFile, fileTypeMetaFileName, alg);
+            
+            addMetaFile(tagManifest, metadataDirPath, externalMetaFileName, externalMetadata, alg);
+            
+            // Metadata files created
+            result = true;
+            
+        } catch (IOException e) {
+            log.error("Failed to add metadata to " + bagDir, e);
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Add the deposit file list to the bag metadata
+     * @param bagDir The bag
+     * @param fileListFile The file list, which is moved into the bag
+     * @throws IOException if an IOException has occurred
+     */
+    public static void addFileList(File bagDir, File fileListFile) throws IOException {
+        
+        Path metadataDirPath = bagDir.toPath().resolve(metadataDirName);
+        metadataDirPath.toFile().mkdir();
+        
+        File tagManifest = bagDir.toPath().resolve(tagManifestFileName).toFile();
+        File metadataFile = metadataDirPath.resolve(fileListMetaFileName).toFile();
+        Files.move(fileListFile.toPath(), metadataFile.toPath());
+        addMetaFileHash(tagManifest, metadataFile, fileListMetaFileName, StandardSupportedAlgorithms.MD5);
+    }
+    
+    /**
+     * Rewrite the payload manifest of a bag to list every file in a file list, e.g. once the
+     * files held in the base deposits of an incremental deposit have been added to its payload.
+     * The bag info and tag manifest are rewritten to match.
+     * @param bagDir The bag
+     * @param fileList The files which are now in the payload
+     * @throws IOException if an IOException has occurred
+     */
+    public static void rewriteManifests(File bagDir, FileList fileList) throws IOException {
+        
+        Path bagPath = bagDir.toPath();
+        long payloadBytes = 0;
+        
+        try (Writer manifest = Files.newBufferedWriter(bagPath.resolve(manifestFileName), StandardCharsets.UTF_8)) {
+            for (FileList.Entry entry : fileList.getEntries()) {
+                manifest.write(entry.getHash() + "  " + dataDirName + "/" + entry.getPath() + "\n");
+                payloadBytes += entry.getSize();
+            }
+        }
+        
+        // Keep the metadata files, which are listed after the standard tag files
+        List<String> metadataLines = new ArrayList<>();
+        File tagManifest = bagPath.resolve(tagManifestFileName).toFile();
+        for (String line : FileUtils.readLines(tagManifest, StandardCharsets.UTF_8)) {
+            if (line.contains(metadataDirName + "/")) {
+                metadataLines.add(line);
+            }
+        }
+        tagManifest.delete();
+        
+        writeTagFiles(bagDir, payloadBytes, fileList.size());
+        
+        for (String line : metadataLines) {
+            FileUtils.writeStringToFile(tagManifest, line + "\r\n", StandardCharsets.UTF_8, true);
+        }
+    }
+    
     /**
      * Add a metadata file to the bag metadata directory
      * Also adds tag information to the tag manifest
@@ -148,12 +435,24 @@ public class Packager {
         
         File metadataFile = metadataDirPath.resolve(metadataFileName).toFile();
         FileUtils.writeStringToFile(metadataFile, metadata, StandardCharsets.UTF_8);
-        String hash = computeFileHash(metadataFile, alg);
-        FileUtils.writeStringToFile(tagManifest, hash + "  " + metadataDirName + "/" + metadataFileName + "\r\n", true);
+        addMetaFileHash(tagManifest, metadataFile, metadataFileName, alg);
         
         return true;
     }
     
+    /**
+     * Add the hash of a file in the bag metadata directory to the tag manifest
+     * @param tagManifest The tag manifest file
+     * @param metadataFile The metadata file
+     * @param metadataFileName The metadata file name
+     * @param alg The algorithm applied to the bag
+     * @throws IOException if an IOException has occurred
+     */
+    private static void addMetaFileHash(File tagManifest, File metadataFile, String metadataFileName, SupportedAlgorithm alg) throws IOException {
+        String hash = computeFileHash(metadataFile, alg);
+        FileUtils.writeStringToFile(tagManifest, hash + "  " + metadataDirName + "/" + metadataFileName + "\r\n", true);
+    }
+    
     /**
      * Compute a hash value for file contents
      * @param file The file we want to hash
@@ -0,0 +1,184 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip output stream which compresses blocks of the data on a pool of threads.
+ *
+ * Each block is written as an independent gzip member, so the output is a standard
+ * multi-member gzip file which can be read by GZIPInputStream or gunzip. The blocks
+ * are written in order, and the number of blocks in flight is bounded so that memory
+ * use does not depend on the size of the data.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    // Blocks queued or being compressed per thread
+    private static final int BLOCKS_PER_THREAD = 2;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+    private int blockLength = 0;
+    private int level;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    /**
+     * ParallelGzipOutputStream constructor
+     * @param out The stream the compressed data is written to
+     * @param level The initial compression level (0-9)
+     * @param threads The number of compression threads, or 0 for one per core
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+        this(out, level, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * ParallelGzipOutputStream constructor
+     * @param out The stream the compressed data is written to
+     * @param level The initial compression level (0-9)
+     * @param threads The number of compression threads, or 0 for one per core
+     * @param blockSize The amount of data compressed as a single gzip member
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads, int blockSize) {
+        int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        this.out = out;
+        this.executor = Executors.newFixedThreadPool(poolSize);
+        this.blockSize = blockSize;
+        this.maxPending = poolSize * BLOCKS_PER_THREAD;
+        this.block = new byte[blockSize];
+        this.level = level;
+    }
+
+    /**
+     * Change the compression level of the data written from now on, e.g. to store data
+     * which is already compressed. The current block is ended if the level changes.
+     * @param level The compression level (0-9)
+     * @throws IOException if an IOException has occurred
+     */
+    public void setLevel(int level) throws IOException {
+        if (level != this.level) {
+            submitBlock();
+            this.level = level;
+        }
+    }
+
+    /**
+     * Get the current compression level
+     * @return The compression level (0-9)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte)b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compress and write the data written so far. This ends the current block,
+     * so flushing frequently reduces the compression ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // An empty stream is still a valid gzip file
+            if (empty && blockLength == 0) {
+                submit(new byte[0], 0);
+            }
+            flush();
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        submit(block, blockLength);
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void submit(final byte[] data, final int length) throws IOException {
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+
+        final int blockLevel = level;
+        pending.add(executor.submit(() -> compress(data, length, blockLevel)));
+        empty = false;
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.remove().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length, final int level) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, Math.max(512, length)) {
+                {
+                    def.setLevel(level);
+                }
+            }) {
+            gzip.write(data, 0, length);
+        }
+        return member.toByteArray();
+    }
+}
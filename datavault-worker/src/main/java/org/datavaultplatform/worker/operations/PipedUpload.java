@@ -0,0 +1,111 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.StreamingDevice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a stream in a device from a separate thread. The data is written to the
+ * output stream of a pipe and read by the device until the output stream is closed.
+ */
+public class PipedUpload implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipedUpload.class);
+
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
+    private final StreamingDevice device;
+    private final String path;
+    private final String name;
+    private final Progress progress = new Progress();
+
+    private final PipedInputStream input;
+    private final PipedOutputStream output;
+    private final Thread thread;
+
+    private volatile String storedId = null;
+    private volatile Exception error = null;
+
+    /**
+     * PipedUpload constructor
+     * @param device The device to store the stream in
+     * @param path The path to store the stream under
+     * @param name The name of the stored object
+     * @throws IOException if the pipe could not be created
+     */
+    public PipedUpload(StreamingDevice device, String path, String name) throws IOException {
+        this.device = device;
+        this.path = path;
+        this.name = name;
+        this.output = new PipedOutputStream();
+        this.input = new PipedInputStream(output, PIPE_BUFFER_SIZE);
+        this.thread = new Thread(this, "upload-" + name);
+    }
+
+    /**
+     * Get the stream to write the uploaded data to, which must be closed once all of the data is written
+     * @return The output stream of the pipe
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Get the progress of the upload
+     * @return The progress object updated by the device
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Start reading from the pipe
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the upload early so that the device does not store an incomplete stream as if it were complete
+     */
+    public void abort() {
+        IOUtils.closeQuietly(input);
+    }
+
+    /**
+     * Wait for the device to finish storing the stream
+     * @return The identifier returned by the device
+     * @throws Exception if the upload failed
+     */
+    public String await() throws Exception {
+        thread.join();
+        if (error != null) {
+            throw error;
+        }
+        return storedId;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try {
+            storedId = device.storeStream(path, name, input, progress);
+        } catch (Exception e) {
+            logger.error("Error in piped upload", e);
+            error = e;
+        } finally {
+            // Unblock the writer if the device stopped reading early
+            IOUtils.closeQuietly(input);
+        }
+    }
+}
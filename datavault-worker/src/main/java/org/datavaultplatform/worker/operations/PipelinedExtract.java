@@ -0,0 +1,197 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.DirectoryDevice;
+import org.datavaultplatform.common.storage.StreamingDevice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts a (possibly compressed) TAR stream straight into a device, validating the bag
+ * as it goes, without staging the archive or the extracted files on disk.
+ *
+ * Three stages run at once, connected by bounded pipes: the archive is read on its own
+ * thread; it is hashed, decompressed, untarred and validated on the calling thread; and
+ * each file is stored in the device on a writer thread. Reading therefore runs at the pace
+ * of the slowest stage, with at most a pipe buffer of data held between stages.
+ */
+public class PipelinedExtract implements TarValidator.Target {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedExtract.class);
+
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final String PATH_SEPARATOR = "/";
+
+    private final StreamingDevice device;
+    private final String path;
+    private final Progress progress = new Progress();
+    private final Set<String> directories = new HashSet<>();
+    private final ExecutorService writer;
+
+    /**
+     * PipelinedExtract constructor
+     * @param device The device to extract to, which must also be a DirectoryDevice
+     * @param path The directory to extract to
+     */
+    public PipelinedExtract(StreamingDevice device, String path) {
+        this.device = device;
+        this.path = path.endsWith(PATH_SEPARATOR) ? path.substring(0, path.length() - 1) : path;
+        this.writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "extract-writer"));
+    }
+
+    /**
+     * Get the progress of storing the files in the device
+     * @return The progress object updated by the device
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Read an archive, storing its files in the device and validating the bag it holds
+     * @param archive The archive stream, which is read to the end and closed
+     * @param compression The compression format of the archive, or null if not compressed
+     * @param digest The digest to update with the whole archive
+     * @return The result of the validation, which must be checked along with the digest
+     * @throws Exception if the archive could not be read or a file could not be stored
+     */
+    public TarValidator.Result run(InputStream archive, String compression, MessageDigest digest) throws Exception {
+
+        PipedOutputStream readOutput = new PipedOutputStream();
+        PipedInputStream readInput = new PipedInputStream(readOutput, READ_BUFFER_SIZE);
+        Exception[] readError = new Exception[1];
+
+        // Read the archive on its own thread, so the transfer overlaps the extraction
+        Thread reader = new Thread(() -> {
+            try (InputStream input = archive; OutputStream output = readOutput) {
+                IOUtils.copyLarge(input, output, new byte[WRITE_BUFFER_SIZE]);
+            } catch (Exception e) {
+                readError[0] = e;
+            }
+        }, "extract-reader");
+        reader.start();
+
+        try {
+            TarValidator.Result result = TarValidator.validate(new DigestInputStream(readInput, digest), compression, this);
+            reader.join();
+            if (readError[0] != null) {
+                throw readError[0];
+            }
+            return result;
+        } catch (Exception e) {
+            // A read error explains the failure better than the broken pipe
+            IOUtils.closeQuietly(readInput);
+            reader.join();
+            if (readError[0] != null && e instanceof IOException) {
+                throw readError[0];
+            }
+            throw e;
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Override
+    public void addDirectory(String name) throws Exception {
+        createDirectory(getPath(name));
+    }
+
+    @Override
+    public OutputStream addFile(String name, long size) throws Exception {
+
+        String filePath = getPath(name);
+        int separator = filePath.lastIndexOf(PATH_SEPARATOR);
+        String parent = (separator == -1) ? "" : filePath.substring(0, separator);
+        String fileName = filePath.substring(separator + 1);
+        createDirectory(parent);
+
+        PipedOutputStream output = new PipedOutputStream();
+        PipedInputStream input = new PipedInputStream(output, (int)Math.max(1, Math.min(size, WRITE_BUFFER_SIZE)));
+        Future<String> stored = writer.submit(() -> {
+            try {
+                return device.storeStream(parent, fileName, input, progress);
+            } finally {
+                // Unblock the extraction if the device stopped reading early
+                IOUtils.closeQuietly(input);
+            }
+        });
+
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    output.write(b);
+                } catch (IOException e) {
+                    throw storeError(stored, e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    output.write(b, off, len);
+                } catch (IOException e) {
+                    throw storeError(stored, e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                output.close();
+                try {
+                    stored.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while storing " + fileName);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to store " + fileName + ": " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        };
+    }
+
+    // Get the error from the device when writing to it failed
+    private static IOException storeError(Future<String> stored, IOException e) {
+        if (stored.isDone()) {
+            try {
+                stored.get();
+            } catch (ExecutionException failed) {
+                return new IOException("Failed to store file: " + failed.getCause().getMessage(), failed.getCause());
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return e;
+    }
+
+    private String getPath(String name) {
+        while (name.endsWith(PATH_SEPARATOR)) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return path + PATH_SEPARATOR + name;
+    }
+
+    private void createDirectory(String directory) throws Exception {
+        if (directories.add(directory)) {
+            logger.debug("Creating directory " + directory);
+            ((DirectoryDevice)device).createDirectory(directory);
+        }
+    }
+}
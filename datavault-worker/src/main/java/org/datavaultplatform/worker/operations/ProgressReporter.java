@@ -0,0 +1,59 @@
+package org.datavaultplatform.worker.operations;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the progress reports of every transfer in this worker on one shared scheduler thread,
+ * rather than a polling thread for each transfer.
+ */
+public class ProgressReporter {
+
+    // How often each transfer is reported (ms)
+    private static volatile long interval = 250;
+
+    // The time over which transfer rates are averaged (ms)
+    private static volatile long smoothing = 10000;
+
+    private static ScheduledExecutorService scheduler = null;
+
+    /**
+     * Set the reporting cadence, before any jobs are started
+     * @param interval How often each transfer is reported, in milliseconds
+     * @param smoothing The time over which transfer rates are averaged, in milliseconds
+     */
+    public static void configure(long interval, long smoothing) {
+        ProgressReporter.interval = Math.max(1, interval);
+        ProgressReporter.smoothing = Math.max(1, smoothing);
+    }
+
+    /**
+     * @return The time over which transfer rates are averaged, in milliseconds
+     */
+    public static long getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Run a progress report at the reporting interval until the returned future is cancelled
+     * @param report The report, which must not throw
+     * @return The scheduled report
+     */
+    static synchronized ScheduledFuture<?> schedule(Runnable report) {
+
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "progress-reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler.scheduleWithFixedDelay(report, interval, interval, TimeUnit.MILLISECONDS);
+    }
+}
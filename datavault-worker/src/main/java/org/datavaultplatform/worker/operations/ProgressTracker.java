@@ -1,5 +1,7 @@
 package org.datavaultplatform.worker.operations;
 
+import java.util.concurrent.ScheduledFuture;
+
 import org.apache.commons.io.FileUtils;
 import org.datavaultplatform.common.event.UpdateProgress;
 import org.datavaultplatform.common.io.Progress;
@@ -10,11 +12,13 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A class to track the progress of a deposit (or maybe any Task not sure)
+ * 
+ * The progress is reported by the worker's shared ProgressReporter between start and stop.
  */
 public class ProgressTracker implements Runnable {
     
-    private static final int SLEEP_INTERVAL_MS = 250;
-    private boolean active = true;
+    private ScheduledFuture<?> scheduled = null;
+    private TransferRate rate = null;
     private long lastByteCount = 0;
     private long expectedBytes = 0;
     
@@ -42,38 +46,50 @@ public class ProgressTracker implements Runnable {
     }
     
     /**
-     * Stop method for threading
+     * Start reporting progress
+     */
+    public synchronized void start() {
+        progress.start();
+        rate = new TransferRate(ProgressReporter.getSmoothing(), progress.getByteCount(), progress.getStartTime());
+        scheduled = ProgressReporter.schedule(this);
+    }
+    
+    /**
+     * Stop reporting progress, after reporting the final counts
      */
     public void stop() {
-        active = false;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        run();
     }
     
     /**
      * Update progress to the logs and broker
      */
-    void reportProgress() {
+    synchronized void reportProgress() {
         
-        long dirCount = progress.dirCount;
-        long fileCount = progress.fileCount;
-        long byteCount = progress.byteCount;
-        long eventTime = progress.timestamp;
-        long startTime = progress.startTime;
+        long byteCount = progress.getByteCount();
+        long now = System.currentTimeMillis();
+        
+        if (rate == null) {
+            rate = new TransferRate(ProgressReporter.getSmoothing(), byteCount, now);
+        }
+        rate.update(byteCount, now);
         
         if (byteCount != lastByteCount) {
             
-            // Calcuate the transfer rate and the estimate time remaining
-            long msElapsed = (eventTime - startTime);
-            double secondsElapsed = (double)msElapsed / 1000.0;
-            long bytesPerSec = 0;
-            if (secondsElapsed > 0) {
-                bytesPerSec = (long)((double)byteCount / secondsElapsed);
-            }
+            // The smoothed transfer rate and the estimated time remaining
+            long bytesPerSec = rate.getBytesPerSec();
+            long secondsRemaining = rate.getSecondsRemaining(expectedBytes - byteCount);
             
             String message = "Transferred " +
                              FileUtils.byteCountToDisplaySize(byteCount) +
                              " of " +
                              FileUtils.byteCountToDisplaySize(expectedBytes) +
-                             " (" + FileUtils.byteCountToDisplaySize(bytesPerSec) + "/sec)";
+                             " (" + FileUtils.byteCountToDisplaySize(bytesPerSec) + "/sec" +
+                             (secondsRemaining >= 0 ? ", " + TransferRate.formatDuration(secondsRemaining) + " remaining" : "") +
+                             ")";
             
             logger.info(message);
             
@@ -87,23 +103,15 @@ public class ProgressTracker implements Runnable {
     
     /* (non-Javadoc)
      * @see java.lang.Runnable#run()
+     * 
+     * Run by the shared reporter at each reporting interval
      */
     @Override
     public void run() {
-        
-        progress.startTime = System.currentTimeMillis();
-        
         try {
-            while(active) {
-                reportProgress();
-                Thread.sleep(SLEEP_INTERVAL_MS);
-            }
-            
-            // Report final counts before exiting
             reportProgress();
-            
         } catch (Exception e) {
             logger.error("Error in progress tracker", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,382 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.Device;
+import org.datavaultplatform.common.storage.StreamingDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores an archive in an archive store as a set of fixed-size segments, and reassembles it.
+ *
+ * Segments are transferred concurrently, up to a parallelism limit which is shared by all of
+ * the transfers to the same archive store, and each segment is retried on its own if it fails.
+ * A segment manifest listing the stored segments is also stored, and its identifier is used as
+ * the identifier of the archive.
+ */
+public class SegmentedArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedArchive.class);
+
+    // Archive store property to limit the number of concurrent segment transfers
+    public static final String PARALLELISM_PROPERTY = "segmentParallelism";
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public static final String MANIFEST_SUFFIX = ".segments";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 5000;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Transfer limits for each archive store, shared by all jobs in this worker
+    private static final Map<String, Semaphore> storeLimits = new ConcurrentHashMap<>();
+
+    private final Device device;
+    private final int parallelism;
+    private final Semaphore storeLimit;
+    private final long segmentSize;
+    private final File workDir;
+
+    private String manifestId = null;
+
+    /**
+     * SegmentedArchive constructor
+     * @param archiveStoreId The ID of the archive store, used to share its parallelism limit
+     * @param properties The archive store properties, which may set the parallelism limit
+     * @param device The archive store device
+     * @param segmentSize The size of each segment (except the last) in bytes
+     * @param workDir A temporary directory for segments, if the device can only transfer files
+     */
+    public SegmentedArchive(String archiveStoreId, Map<String, String> properties, Device device, long segmentSize, File workDir) {
+        this.device = device;
+        this.parallelism = getParallelism(properties);
+        this.storeLimit = storeLimits.computeIfAbsent(archiveStoreId, id -> new Semaphore(parallelism));
+        this.segmentSize = segmentSize;
+        this.workDir = workDir;
+    }
+
+    /**
+     * Get the segment transfer limit of an archive store
+     * @param properties The archive store properties
+     * @return The maximum number of concurrent segment transfers
+     */
+    public static int getParallelism(Map<String, String> properties) {
+        if (properties != null && properties.containsKey(PARALLELISM_PROPERTY)) {
+            return Math.max(1, Integer.parseInt(properties.get(PARALLELISM_PROPERTY).trim()));
+        }
+        return DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Get the identifier of the segment manifest stored by the last call to store
+     * @return The manifest identifier
+     */
+    public String getManifestId() {
+        return manifestId;
+    }
+
+    /**
+     * Records the segments of an archive as they are stored, so that a store which is
+     * interrupted can be resumed without storing the same segments again
+     */
+    public interface SegmentLog {
+
+        /**
+         * @param index The index of the segment
+         * @return The identifier of the segment if it has already been stored, otherwise null
+         */
+        String getSegmentId(int index);
+
+        /**
+         * Record that a segment has been stored
+         * @param index The index of the segment
+         * @param segmentId The identifier of the segment
+         * @throws IOException if the segment could not be recorded
+         */
+        void segmentStored(int index, String segmentId) throws IOException;
+    }
+
+    /**
+     * Store an archive file as segments, followed by the segment manifest
+     * @param archiveFile The archive file
+     * @param progress Progress information, updated as each segment completes
+     * @return The identifiers of the stored segments, in order
+     * @throws Exception if a segment could not be stored after retrying
+     */
+    public ArrayList<String> store(File archiveFile, Progress progress) throws Exception {
+        return store(archiveFile, progress, null);
+    }
+
+    /**
+     * Store an archive file as segments, followed by the segment manifest, skipping any
+     * segments which the log records as already stored
+     * @param archiveFile The archive file
+     * @param progress Progress information, updated as each segment completes
+     * @param log The segments already stored, updated as each segment completes (or null)
+     * @return The identifiers of the stored segments, in order
+     * @throws Exception if a segment could not be stored after retrying
+     */
+    public ArrayList<String> store(File archiveFile, Progress progress, SegmentLog log) throws Exception {
+
+        long length = archiveFile.length();
+        int count = (int)Math.max(1, (length + segmentSize - 1) / segmentSize);
+        String[] segmentIds = new String[count];
+
+        logger.info("Storing " + count + " segments of " + archiveFile.getName() + ", up to " + parallelism + " at a time");
+
+        runSegments(count, index -> {
+            long offset = index * segmentSize;
+            long size = Math.min(segmentSize, length - offset);
+            String name = getSegmentName(archiveFile.getName(), index);
+            String stored = (log != null) ? log.getSegmentId(index) : null;
+            if (stored != null) {
+                // Stored before the job was interrupted
+                segmentIds[index] = stored;
+                addProgress(progress, size);
+                return;
+            }
+            segmentIds[index] = storeSegment(archiveFile, offset, size, name, progress);
+            if (log != null) {
+                log.segmentStored(index, segmentIds[index]);
+            }
+        });
+
+        ArrayList<String> segments = new ArrayList<>();
+        for (String segmentId : segmentIds) {
+            segments.add(segmentId);
+        }
+
+        // Store the manifest last, so it only exists for a complete set of segments
+        File manifest = new File(workDir, archiveFile.getName() + MANIFEST_SUFFIX);
+        StringBuilder manifestText = new StringBuilder();
+        manifestText.append("Segment-Size: ").append(segmentSize).append("\n");
+        manifestText.append("Archive-Size: ").append(length).append("\n");
+        for (String segmentId : segments) {
+            manifestText.append(segmentId).append("\n");
+        }
+        Files.write(manifest.toPath(), manifestText.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+            manifestId = device.store("/", manifest, new Progress());
+        } finally {
+            manifest.delete();
+        }
+
+        return segments;
+    }
+
+    /**
+     * Retrieve the segments of an archive and reassemble them into a file
+     * @param segmentIds The identifiers of the segments, in order
+     * @param archiveFile The file to reassemble the archive in
+     * @param progress Progress information, updated as each segment completes
+     * @throws Exception if a segment could not be retrieved after retrying
+     */
+    public void retrieve(List<String> segmentIds, File archiveFile, Progress progress) throws Exception {
+
+        logger.info("Retrieving " + segmentIds.size() + " segments of " + archiveFile.getName() + ", up to " + parallelism + " at a time");
+
+        // Segments are written in place, so create the file before the transfers start
+        Files.newOutputStream(archiveFile.toPath()).close();
+
+        runSegments(segmentIds.size(), index -> {
+            boolean last = (index == segmentIds.size() - 1);
+            retrieveSegment(segmentIds.get(index), archiveFile, index * segmentSize, last, progress);
+        });
+    }
+
+    private interface SegmentTask {
+        void run(int index) throws Exception;
+    }
+
+    private void runSegments(int count, SegmentTask task) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, count));
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(executor.submit(() -> {
+                    runWithRetry(task, index);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        } finally {
+            // Stop the remaining segments if one has failed
+            executor.shutdownNow();
+        }
+    }
+
+    private void runWithRetry(SegmentTask task, int index) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                storeLimit.acquire();
+                try {
+                    task.run(index);
+                } finally {
+                    storeLimit.release();
+                }
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new Exception("Segment " + index + " failed after " + attempt + " attempts: " + e.getMessage(), e);
+                }
+                logger.warn("Segment " + index + " failed (attempt " + attempt + "), retrying: " + e.getMessage());
+                Thread.sleep(RETRY_DELAY * attempt);
+            }
+        }
+    }
+
+    private String storeSegment(File archiveFile, long offset, long size, String name, Progress progress) throws Exception {
+
+        Progress segmentProgress = new Progress();
+        String segmentId;
+
+        if (device instanceof StreamingDevice) {
+            // Read the segment straight from the archive file
+            try (FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)) {
+                channel.position(offset);
+                InputStream input = new BoundedInputStream(Channels.newInputStream(channel), size);
+                segmentId = ((StreamingDevice)device).storeStream("/", name, input, segmentProgress);
+            }
+        } else {
+            // Copy the segment to a temporary file for the device to store
+            File segmentFile = new File(workDir, name);
+            try {
+                try (FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+                     FileChannel segmentChannel = FileChannel.open(segmentFile.toPath(),
+                             StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += channel.transferTo(offset + copied, size - copied, segmentChannel);
+                    }
+                }
+                segmentId = device.store("/", segmentFile, segmentProgress);
+            } finally {
+                segmentFile.delete();
+            }
+        }
+
+        addProgress(progress, size);
+        return segmentId;
+    }
+
+    private void retrieveSegment(String segmentId, File archiveFile, long offset, boolean last, Progress progress) throws Exception {
+
+        Progress segmentProgress = new Progress();
+        long size = 0;
+
+        try (FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE)) {
+            if (device instanceof StreamingDevice) {
+                // Write the segment straight into place in the archive file
+                try (InputStream input = ((StreamingDevice)device).retrieveStream(segmentId, segmentProgress)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int len;
+                    while ((len = input.read(buffer)) != -1) {
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+                        while (data.hasRemaining()) {
+                            size += channel.write(data, offset + size);
+                        }
+                    }
+                }
+            } else {
+                // Retrieve the segment to a temporary file and copy it into place
+                File segmentFile = new File(workDir, archiveFile.getName() + ".segment-" + offset);
+                try {
+                    device.retrieve(segmentId, segmentFile, segmentProgress);
+                    try (FileChannel segmentChannel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+                        long segmentLength = segmentChannel.size();
+                        while (size < segmentLength) {
+                            size += segmentChannel.transferTo(size, segmentLength - size, new PositionedChannel(channel, offset + size));
+                        }
+                    }
+                } finally {
+                    segmentFile.delete();
+                }
+            }
+        }
+
+        // Only the last segment may be short
+        if (size == 0 || size > segmentSize || (!last && size != segmentSize)) {
+            throw new IOException("Segment " + segmentId + " has an unexpected size: " + size + " bytes");
+        }
+
+        addProgress(progress, size);
+    }
+
+    private static void addProgress(Progress progress, long bytes) {
+        progress.addBytes(bytes);
+        progress.addFile();
+    }
+
+    /**
+     * Get the name of a segment of an archive
+     * @param archiveName The name of the archive file
+     * @param index The index of the segment
+     * @return The segment name
+     */
+    public static String getSegmentName(String archiveName, int index) {
+        return archiveName + "." + String.format("%05d", index);
+    }
+
+    // Writes to a file channel at a fixed position, so that several segments can be written concurrently
+    private static class PositionedChannel implements java.nio.channels.WritableByteChannel {
+
+        private final FileChannel channel;
+        private long position;
+
+        PositionedChannel(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = channel.write(src, position);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The channel is closed by its owner
+        }
+    }
+}
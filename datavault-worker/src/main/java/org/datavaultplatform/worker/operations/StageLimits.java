@@ -0,0 +1,83 @@
+package org.datavaultplatform.worker.operations;
+
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of jobs in this worker which are in each kind of stage at once, so that
+ * running several jobs concurrently does not overload the CPU with hashing and compression or
+ * the network and disks with transfers.
+ *
+ * A job holds a permit for the length of a stage, e.g.
+ * <pre>
+ * try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.CPU)) {
+ *     ...
+ * }
+ * </pre>
+ * Stages must not be nested, as a job waiting for a second permit may hold up the others.
+ */
+public class StageLimits {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageLimits.class);
+
+    /**
+     * The kind of work done by a stage
+     */
+    public enum Stage {
+        // Hashing, packaging, compression and validation
+        CPU,
+        // Transfers to and from the user and archive storage
+        IO
+    }
+
+    // Shared by all jobs in this worker, null for no limit
+    private static volatile Semaphore cpuLimit = null;
+    private static volatile Semaphore ioLimit = null;
+
+    /**
+     * A permit to run a stage, released when it is closed
+     */
+    public static class Permit implements AutoCloseable {
+
+        private final Semaphore limit;
+
+        private Permit(Semaphore limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void close() {
+            if (limit != null) {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * Set the limits, before any jobs are started
+     * @param cpuStages The number of jobs which may be in a CPU stage at once (0 for no limit)
+     * @param ioStages The number of jobs which may be in an I/O stage at once (0 for no limit)
+     */
+    public static void configure(int cpuStages, int ioStages) {
+        cpuLimit = (cpuStages > 0) ? new Semaphore(cpuStages, true) : null;
+        ioLimit = (ioStages > 0) ? new Semaphore(ioStages, true) : null;
+    }
+
+    /**
+     * Wait until a stage may be started
+     * @param stage The kind of stage
+     * @return The permit, which must be closed when the stage is finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static Permit enter(Stage stage) throws InterruptedException {
+
+        Semaphore limit = (stage == Stage.CPU) ? cpuLimit : ioLimit;
+        if (limit != null && !limit.tryAcquire()) {
+            logger.info("Waiting to start a " + stage + " stage");
+            limit.acquire();
+        }
+        return new Permit(limit);
+    }
+}
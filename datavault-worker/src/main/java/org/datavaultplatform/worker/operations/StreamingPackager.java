@@ -0,0 +1,206 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes a bag directly to a TAR stream, without staging the payload on disk.
+ *
+ * Payload files are hashed and identified as they pass into the TAR stream. Only the
+ * tag files (bagit.txt, bag-info.txt, the manifests and the metadata directory) are
+ * written to the tag directory, and are added to the end of the TAR stream once the
+ * payload is complete. The tag directory has the same layout as a bag created by
+ * Packager (with an empty data directory) so Packager.extractMetadata can be used on it.
+ * The position of each file in the TAR stream is recorded in an index.
+ */
+public class StreamingPackager {
+
+    // Enough for the detector to see the file header without re-reading it
+    private static final int DETECT_BUFFER_SIZE = 64 * 1024;
+
+    private static final String dataDirName = Packager.dataDirName;
+    private static final String manifestFileName = Packager.manifestFileName;
+    private static final String tagManifestFileName = Packager.tagManifestFileName;
+    private static final String bagitFileName = Packager.bagitFileName;
+    private static final String bagInfoFileName = Packager.bagInfoFileName;
+
+    private final OutputStream output;
+    private final ParallelGzipOutputStream compressor;
+    private final TarArchiveOutputStream tar;
+    private final CountingOutputStream tarCount;
+    private final TarIndex index = new TarIndex();
+    private final String bagName;
+    private final File tagDir;
+    private final Writer manifest;
+    private final File fileTypeFile;
+    private final JsonGenerator fileTypes;
+
+    private long payloadBytes = 0;
+    private long payloadFiles = 0;
+
+    /**
+     * Start a new bag in a TAR stream. If the stream is a ParallelGzipOutputStream then
+     * large files which are already compressed are stored without compressing them again.
+     * @param output The stream the TAR archive is written to
+     * @param bagName The name of the top level directory of the bag
+     * @param tagDir The directory used to stage the tag files
+     * @throws IOException if an IOException has occurred
+     */
+    public StreamingPackager(OutputStream output, String bagName, File tagDir) throws IOException {
+        this.output = output;
+        this.compressor = (output instanceof ParallelGzipOutputStream) ? (ParallelGzipOutputStream)output : null;
+        this.bagName = bagName;
+        this.tagDir = tagDir;
+
+        tagDir.mkdir();
+        new File(tagDir, dataDirName).mkdir();
+
+        manifest = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(tagDir, manifestFileName)), StandardCharsets.UTF_8));
+
+        // File types are written out as they are identified and moved into the bag metadata at the end
+        fileTypeFile = new File(tagDir.getParentFile(), tagDir.getName() + "-" + Packager.fileTypeMetaFileName);
+        fileTypes = new JsonFactory().createGenerator(fileTypeFile, JsonEncoding.UTF8);
+        fileTypes.writeStartObject();
+
+        tarCount = new CountingOutputStream(output);
+        tar = new TarArchiveOutputStream(tarCount);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+
+        // The top level directory must be the first entry (see Tar.unTar)
+        addDirectoryEntry(bagName + "/");
+        addDirectoryEntry(bagName + "/" + dataDirName + "/");
+    }
+
+    /**
+     * Add a directory to the bag payload
+     * @param path The path of the directory relative to the payload directory
+     * @throws IOException if an IOException has occurred
+     */
+    public void addDirectory(String path) throws IOException {
+        addDirectoryEntry(bagName + "/" + dataDirName + "/" + path + "/");
+    }
+
+    /**
+     * Add a file to the bag payload, recording its hash in the payload manifest
+     * and its detected type in the file type metadata.
+     * @param path The path of the file relative to the payload directory
+     * @param input The file contents, which are read to the end but not closed
+     * @param size The size of the file in bytes
+     * @throws Exception if anything unexpected happens
+     */
+    public void addFile(String path, InputStream input, long size) throws Exception {
+
+        TarArchiveEntry entry = new TarArchiveEntry(bagName + "/" + dataDirName + "/" + path);
+        entry.setSize(size);
+        long headerOffset = tarCount.getByteCount();
+        tar.putArchiveEntry(entry);
+        index.add(new TarIndex.Entry(dataDirName + "/" + path, headerOffset, tarCount.getByteCount(), size));
+
+        // The digest sees each byte once, the buffer lets the detector read ahead and reset
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        InputStream buffered = new BufferedInputStream(new DigestInputStream(input, md5), DETECT_BUFFER_SIZE);
+        String type = Identifier.detectStream(buffered, path);
+        fileTypes.writeStringField(path, type);
+
+        int level = (compressor != null) ? compressor.getLevel() : 0;
+        boolean store = (compressor != null) && (size >= Compression.STORE_MIN_SIZE) && Compression.isCompressedType(type);
+        if (store) {
+            compressor.setLevel(0);
+        }
+
+        IOUtils.copyLarge(buffered, tar);
+        tar.closeArchiveEntry();
+
+        if (store) {
+            compressor.setLevel(level);
+        }
+
+        manifest.write(Hex.encodeHexString(md5.digest()) + "  " + dataDirName + "/" + path + "\n");
+
+        payloadBytes += size;
+        payloadFiles += 1;
+    }
+
+    /**
+     * Write the tag files, add them to the TAR stream and close it.
+     * @param depositMetadata The deposit metadata
+     * @param vaultMetadata The vault metadata
+     * @param externalMetadata The external metadata
+     * @throws Exception if anything unexpected happens
+     */
+    public void finish(String depositMetadata, String vaultMetadata, String externalMetadata) throws Exception {
+
+        manifest.close();
+        fileTypes.writeEndObject();
+        fileTypes.close();
+
+        // Bag declaration, bag info and tag manifest
+        Packager.writeTagFiles(tagDir, payloadBytes, payloadFiles);
+        File tagManifest = new File(tagDir, tagManifestFileName);
+
+        // Add vault/deposit/type metadata to the bag
+        if (!Packager.addMetadata(tagDir, depositMetadata, vaultMetadata, fileTypeFile, externalMetadata)) {
+            throw new IOException("Failed to add metadata to bag");
+        }
+
+        // The tag manifest is written last as it covers all of the other tag files
+        String base = bagName + "/";
+        Tar.addFileToTar(tar, new File(tagDir, bagitFileName), base, tarCount, index);
+        Tar.addFileToTar(tar, new File(tagDir, bagInfoFileName), base, tarCount, index);
+        Tar.addFileToTar(tar, new File(tagDir, manifestFileName), base, tarCount, index);
+        Tar.addFileToTar(tar, new File(tagDir, Packager.metadataDirName), base, tarCount, index);
+        Tar.addFileToTar(tar, tagManifest, base, tarCount, index);
+
+        tar.finish();
+        tar.close();
+    }
+
+    /**
+     * Get the index of the files added to the TAR stream
+     * @return The index
+     */
+    public TarIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Close the TAR stream without completing the bag, e.g. after an error.
+     */
+    public void abort() {
+        IOUtils.closeQuietly(manifest);
+        IOUtils.closeQuietly(fileTypes);
+        fileTypeFile.delete();
+        IOUtils.closeQuietly(tar);
+        
+        // Closing the TAR stream fails if an entry is incomplete
+        IOUtils.closeQuietly(output);
+    }
+
+    private void addDirectoryEntry(String name) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+    }
+}
@@ -5,11 +5,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 
 /**
  * Set of methods to tar a dir / manipulate a tarred dir
@@ -25,16 +30,106 @@ public class Tar {
      */
     public static boolean createTar(File dir, File output) throws Exception {
 
+        createTar(dir, output, null);
+        
+        return true;
+    }
+    
+    /**
+     * Create a TAR archive of a directory, computing the digest of the archive as it is written
+     * so that the archive does not need to be read back to checksum it.
+     * @param dir The dir to be tarred
+     * @param output The tarred file
+     * @param digest The digest to update with the archive contents, or null
+     * @return The size of the archive in bytes
+     * @throws Exception if anything unexpected happens
+     */
+    public static long createTar(File dir, File output, MessageDigest digest) throws Exception {
+        return createTar(dir, output, digest, Compression.NONE, Compression.DEFAULT_LEVEL, 0);
+    }
+    
+    /**
+     * Create a (possibly compressed) TAR archive of a directory, computing the digest of the
+     * archive as it is written. Large files which are already compressed, according to their
+     * detected type, are stored in the compressed archive without compressing them again.
+     * @param dir The dir to be tarred
+     * @param output The tarred file
+     * @param digest The digest to update with the (compressed) archive contents, or null
+     * @param compression The compression format, see Compression
+     * @param level The compression level
+     * @param threads The number of compression threads, or 0 for one per core
+     * @return The size of the (compressed) archive in bytes
+     * @throws Exception if anything unexpected happens
+     */
+    public static long createTar(File dir, File output, MessageDigest digest, String compression, int level, int threads) throws Exception {
+        return createTar(dir, output, digest, compression, level, threads, null);
+    }
+    
+    /**
+     * Create a (possibly compressed) TAR archive of a directory, computing the digest of the
+     * archive and recording the position of each file in an index as it is written.
+     * @param dir The dir to be tarred
+     * @param output The tarred file
+     * @param digest The digest to update with the (compressed) archive contents, or null
+     * @param compression The compression format, see Compression
+     * @param level The compression level
+     * @param threads The number of compression threads, or 0 for one per core
+     * @param index The index to add the files to, or null
+     * @return The size of the (compressed) archive in bytes
+     * @throws Exception if anything unexpected happens
+     */
+    public static long createTar(File dir, File output, MessageDigest digest, String compression, int level, int threads,
+                                 TarIndex index) throws Exception {
+        return createTar(dir, output, digest, compression, level, threads, index, null);
+    }
+    
+    /**
+     * Create a (possibly compressed) TAR archive of a directory, using the file types which have
+     * already been detected to decide which files are stored without compressing them again.
+     * @param dir The dir to be tarred
+     * @param output The tarred file
+     * @param digest The digest to update with the (compressed) archive contents, or null
+     * @param compression The compression format, see Compression
+     * @param level The compression level
+     * @param threads The number of compression threads, or 0 for one per core
+     * @param index The index to add the files to, or null
+     * @param types The detected types of the files, by path relative to the dir, or null to detect them
+     *              here. Files which are not in the map are compressed.
+     * @return The size of the (compressed) archive in bytes
+     * @throws Exception if anything unexpected happens
+     */
+    public static long createTar(File dir, File output, MessageDigest digest, String compression, int level, int threads,
+                                 TarIndex index, Map<String, String> types) throws Exception {
+
         FileOutputStream fos = new FileOutputStream(output);
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
-        TarArchiveOutputStream tar = new TarArchiveOutputStream(bos);
+        OutputStream os = (digest != null) ? new DigestOutputStream(fos, digest) : fos;
+        CountingOutputStream cos = new CountingOutputStream(os);
+        
+        OutputStream tarOutput;
+        ParallelGzipOutputStream gzip = null;
+        if (Compression.isCompressed(compression)) {
+            // The compressor buffers whole blocks itself
+            tarOutput = Compression.compress(new BufferedOutputStream(cos), compression, level, threads);
+            if (tarOutput instanceof ParallelGzipOutputStream) {
+                gzip = (ParallelGzipOutputStream)tarOutput;
+            }
+        } else {
+            tarOutput = new BufferedOutputStream(cos);
+        }
+        
+        // Count the uncompressed tar stream for the index offsets
+        CountingOutputStream tarCount = new CountingOutputStream(tarOutput);
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(tarCount);
         tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
         tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-        addFileToTar(tar, dir, "");
-        tar.finish();
-        tar.close();
+        try {
+            addFileToTar(tar, dir, "", gzip, tarCount, index, types);
+            tar.finish();
+        } finally {
+            tar.close();
+        }
         
-        return true;
+        return cos.getByteCount();
     }
     
     /**
@@ -44,27 +139,84 @@ public class Tar {
      * @param base The base path
      * @throws Exception if anything unexpected happens
      */
-    private static void addFileToTar(TarArchiveOutputStream tar, File f, String base) throws Exception {
+    static void addFileToTar(TarArchiveOutputStream tar, File f, String base) throws Exception {
+        addFileToTar(tar, f, base, null, null, null, null);
+    }
+    
+    /**
+     * Recursively add a file or directory to a TAR archive, recording the position of each file in an index.
+     * @param tar The Tar stream
+     * @param f The file to be added
+     * @param base The base path
+     * @param tarCount The count of bytes written by the Tar stream
+     * @param index The index to add files to
+     * @throws Exception if anything unexpected happens
+     */
+    static void addFileToTar(TarArchiveOutputStream tar, File f, String base, CountingOutputStream tarCount, TarIndex index) throws Exception {
+        addFileToTar(tar, f, base, null, tarCount, index, null);
+    }
+    
+    /**
+     * Recursively add a file or directory to a compressed TAR archive.
+     * @param tar The Tar stream
+     * @param f The file to be added
+     * @param base The base path
+     * @param gzip The compressor the Tar stream writes to, or null if not compressed
+     * @param tarCount The count of bytes written by the Tar stream, or null if not indexed
+     * @param index The index to add files to, or null
+     * @param types The detected types of the files, by path below the top dir, or null to detect them
+     * @throws Exception if anything unexpected happens
+     */
+    private static void addFileToTar(TarArchiveOutputStream tar, File f, String base, ParallelGzipOutputStream gzip,
+                                     CountingOutputStream tarCount, TarIndex index, Map<String, String> types) throws Exception {
         String entryName = base + f.getName();
         TarArchiveEntry tarEntry = new TarArchiveEntry(f, entryName);
+        
+        // The tar stream writes whole records, so the count is at the start of the header
+        long headerOffset = (index != null) ? tarCount.getByteCount() : 0;
         tar.putArchiveEntry(tarEntry);
+        
+        if (index != null && f.isFile() && entryName.indexOf('/') != -1) {
+            index.add(new TarIndex.Entry(entryName.substring(entryName.indexOf('/') + 1),
+                    headerOffset, tarCount.getByteCount(), f.length()));
+        }
 
         if (f.isFile()) {
+            int level = (gzip != null) ? gzip.getLevel() : 0;
+            boolean store = (gzip != null) && (f.length() >= Compression.STORE_MIN_SIZE)
+                    && Compression.isCompressedType(detectedType(f, entryName, types));
+            if (store) {
+                gzip.setLevel(0);
+            }
+            
             FileInputStream in = new FileInputStream(f);
             IOUtils.copy(in, tar);
             in.close();
             tar.closeArchiveEntry();
+            
+            if (store) {
+                gzip.setLevel(level);
+            }
         } else {
             tar.closeArchiveEntry();
             File[] children = f.listFiles();
             if (children != null){
                 for (File child : children) {
-                    addFileToTar(tar, child, entryName + "/");
+                    addFileToTar(tar, child, entryName + "/", gzip, tarCount, index, types);
                 }
             }
         }
     }
     
+    // The type of a file from the types detected earlier, keyed by the path below the top dir, or detected now
+    private static String detectedType(File f, String entryName, Map<String, String> types) {
+        if (types == null) {
+            return Identifier.detectFile(f);
+        }
+        int slash = entryName.indexOf('/');
+        return (slash != -1) ? types.get(entryName.substring(slash + 1)) : null;
+    }
+    
     /**
      * Extract the contents of a TAR archive to a directory.
      * @param input The tar archive
@@ -73,10 +225,22 @@ public class Tar {
      * @throws Exception if anything unexpected happens
      */
     public static File unTar(File input, Path outputDir) throws Exception {
+        return unTar(input, outputDir, null);
+    }
+    
+    /**
+     * Extract the contents of a (possibly compressed) TAR archive to a directory.
+     * @param input The tar archive
+     * @param outputDir The extract dir
+     * @param compression The compression format of the archive, or null if not compressed
+     * @return The top dir of the extract
+     * @throws Exception if anything unexpected happens
+     */
+    public static File unTar(File input, Path outputDir, String compression) throws Exception {
 
         FileInputStream fis = new FileInputStream(input);
         BufferedInputStream bis = new BufferedInputStream(fis);
-        TarArchiveInputStream tar = new TarArchiveInputStream(bis);
+        TarArchiveInputStream tar = new TarArchiveInputStream(Compression.decompress(bis, compression));
         
         File topDir = null;
         
@@ -0,0 +1,143 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The position of each file in a TAR archive, so that single files or directories can be
+ * read from an archive without reading the rest of it.
+ *
+ * Offsets are positions in the uncompressed tar stream. For an uncompressed archive they can
+ * be used for ranged reads of the stored archive (or of its segments).
+ *
+ * The index is stored as a tab-separated metadata file, with one line per file:
+ * header offset, data offset, size, path (relative to the top level directory of the bag).
+ */
+public class TarIndex {
+
+    private static final String HEADER = "# header\tdata\tsize\tpath";
+
+    /**
+     * A file in the archive
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long headerOffset;
+        private final long dataOffset;
+        private final long size;
+
+        public Entry(String path, long headerOffset, long dataOffset, long size) {
+            this.path = path;
+            this.headerOffset = headerOffset;
+            this.dataOffset = dataOffset;
+            this.size = size;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    // Entries in path order
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public void add(Entry entry) {
+        entries.put(entry.getPath(), entry);
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Select the files at or under the given paths
+     * @param paths Paths of files or directories, relative to the top level directory of the bag
+     * @return The selected entries, in archive order
+     */
+    public List<Entry> select(Collection<String> paths) {
+        List<Entry> selected = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            for (String path : paths) {
+                String prefix = path.endsWith("/") ? path : path + "/";
+                if (entry.getPath().equals(path) || entry.getPath().startsWith(prefix)) {
+                    selected.add(entry);
+                    break;
+                }
+            }
+        }
+        selected.sort((a, b) -> Long.compare(a.getHeaderOffset(), b.getHeaderOffset()));
+        return selected;
+    }
+
+    /**
+     * Write the index
+     * @param file The file to write
+     * @throws IOException if an IOException has occurred
+     */
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(entry.getHeaderOffset() + "\t" + entry.getDataOffset() + "\t" + entry.getSize() + "\t"
+                        + entry.getPath());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Read an index
+     * @param file The file to read
+     * @return The index
+     * @throws IOException if the file could not be read or is not a valid index
+     */
+    public static TarIndex read(Path file) throws IOException {
+        TarIndex index = new TarIndex();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // The path is last so that it may contain tabs
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Invalid tar index line in " + file + ": " + line);
+                }
+                index.add(new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,371 @@
+package org.datavaultplatform.worker.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates a bag held in a TAR archive in a single sequential read, without extracting it.
+ *
+ * Each file is hashed as it passes through the stream, and the manifests are read from the
+ * same stream. Once the whole archive has been read the hashes are checked against the
+ * payload manifest and the tag manifest, wherever the manifests appear in the archive.
+ */
+public class TarValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(TarValidator.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The outcome of validating a bag
+     */
+    public static class Result {
+
+        private final List<String> missing = new ArrayList<>();
+        private final List<String> extra = new ArrayList<>();
+        private final List<String> corrupt = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        private String bagName;
+
+        /**
+         * @return The files listed in a manifest which are not in the archive
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return The payload files in the archive which are not listed in the payload manifest
+         */
+        public List<String> getExtra() {
+            return extra;
+        }
+
+        /**
+         * @return The files whose hash does not match their manifest entry
+         */
+        public List<String> getCorrupt() {
+            return corrupt;
+        }
+
+        /**
+         * @return Any other problems with the bag, e.g. a missing manifest
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return The name of the top level directory of the bag
+         */
+        public String getBagName() {
+            return bagName;
+        }
+
+        public boolean isValid() {
+            return missing.isEmpty() && extra.isEmpty() && corrupt.isEmpty() && errors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            if (isValid()) {
+                return "valid";
+            }
+            StringBuilder message = new StringBuilder();
+            append(message, "missing", missing);
+            append(message, "extra", extra);
+            append(message, "corrupt", corrupt);
+            append(message, "errors", errors);
+            return message.toString();
+        }
+
+        private static void append(StringBuilder message, String label, List<String> paths) {
+            if (paths.isEmpty()) {
+                return;
+            }
+            if (message.length() > 0) {
+                message.append("; ");
+            }
+            message.append(label).append(": ").append(paths);
+        }
+    }
+
+    /**
+     * Receives the entries of a TAR stream as it is validated
+     */
+    public interface Target {
+
+        /**
+         * Add a directory
+         * @param name The name of the tar entry
+         * @throws Exception if the directory could not be added
+         */
+        void addDirectory(String name) throws Exception;
+
+        /**
+         * Add a file, whose contents are written to the returned stream before it is closed
+         * @param name The name of the tar entry
+         * @param size The size of the file
+         * @return The stream to write the file contents to
+         * @throws Exception if the file could not be added
+         */
+        OutputStream addFile(String name, long size) throws Exception;
+    }
+
+    // Extracts the entries to a directory
+    private static class DirectoryTarget implements Target {
+
+        private final Path outputDir;
+
+        DirectoryTarget(Path outputDir) {
+            this.outputDir = outputDir;
+        }
+
+        @Override
+        public void addDirectory(String name) {
+            outputDir.resolve(name).toFile().mkdir();
+        }
+
+        @Override
+        public OutputStream addFile(String name, long size) throws IOException {
+            return new FileOutputStream(outputDir.resolve(name).toFile());
+        }
+    }
+
+    /**
+     * Validate the bag held in a (possibly compressed) TAR archive
+     * @param tarFile The tar archive
+     * @param compression The compression format of the archive, or null if not compressed
+     * @return True if the bag is valid
+     * @throws Exception if the archive could not be read
+     */
+    public static boolean validateBag(File tarFile, String compression) throws Exception {
+        try (InputStream input = new FileInputStream(tarFile)) {
+            Result result = validate(input, compression);
+            if (!result.isValid()) {
+                logger.warn("Bag " + tarFile + " is invalid: " + result);
+            }
+            return result.isValid();
+        }
+    }
+
+    /**
+     * Validate the bag held in a (possibly compressed) TAR stream
+     * @param input The tar stream, which is read to the end but not closed
+     * @param compression The compression format of the stream, or null if not compressed
+     * @return The result of the validation
+     * @throws Exception if the stream could not be read
+     */
+    public static Result validate(InputStream input, String compression) throws Exception {
+        return validate(input, compression, (Target)null);
+    }
+
+    /**
+     * Validate the bag held in a (possibly compressed) TAR stream, extracting it to a directory
+     * in the same read. The extracted bag is left in place whether or not it is valid.
+     * @param input The tar stream, which is read to the end but not closed
+     * @param compression The compression format of the stream, or null if not compressed
+     * @param outputDir The extract dir, or null to validate without extracting
+     * @return The result of the validation
+     * @throws Exception if the stream could not be read or the bag could not be extracted
+     */
+    public static Result validate(InputStream input, String compression, Path outputDir) throws Exception {
+        return validate(input, compression, (outputDir != null) ? new DirectoryTarget(outputDir) : null);
+    }
+
+    /**
+     * Validate the bag held in a (possibly compressed) TAR stream, passing each entry to a target
+     * in the same read. The entries are passed on whether or not the bag is valid.
+     * @param input The tar stream, which is read to the end but not closed
+     * @param compression The compression format of the stream, or null if not compressed
+     * @param target The target for the entries, or null to validate without extracting
+     * @return The result of the validation
+     * @throws Exception if the stream could not be read or the target failed
+     */
+    public static Result validate(InputStream input, String compression, Target target) throws Exception {
+
+        Result result = new Result();
+
+        // Hashes of the files in the archive, keyed on their path within the bag
+        Map<String, String> hashes = new HashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        String manifest = null;
+        String tagManifest = null;
+        String bagInfo = null;
+
+        BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+        TarArchiveInputStream tar = new TarArchiveInputStream(Compression.decompress(buffered, compression));
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+
+            String name = entry.getName();
+            int separator = name.indexOf('/');
+            if (result.bagName == null) {
+                result.bagName = (separator == -1) ? name : name.substring(0, separator);
+            }
+
+            if (target != null && entry.isDirectory()) {
+                target.addDirectory(name);
+            }
+            if (!entry.isFile()) {
+                continue;
+            }
+
+            if (separator == -1 || !name.substring(0, separator).equals(result.bagName)) {
+                result.errors.add("entry outside the bag: " + name);
+                continue;
+            }
+            String path = name.substring(separator + 1);
+
+            // The manifests and bag info are small, so keep them to read once the stream is done
+            boolean keep = path.equals(Packager.manifestFileName) || path.equals(Packager.tagManifestFileName)
+                    || path.equals(Packager.bagInfoFileName);
+            ByteArrayOutputStream kept = keep ? new ByteArrayOutputStream() : null;
+            OutputStream extracted = (target != null) ? target.addFile(name, entry.getSize()) : null;
+
+            try {
+                md5.reset();
+                int n;
+                while ((n = tar.read(buffer)) != -1) {
+                    md5.update(buffer, 0, n);
+                    if (kept != null) {
+                        kept.write(buffer, 0, n);
+                    }
+                    if (extracted != null) {
+                        extracted.write(buffer, 0, n);
+                    }
+                }
+            } finally {
+                if (extracted != null) {
+                    extracted.close();
+                }
+            }
+
+            hashes.put(path, Hex.encodeHexString(md5.digest()));
+            sizes.put(path, entry.getSize());
+
+            if (path.equals(Packager.manifestFileName)) {
+                manifest = new String(kept.toByteArray(), StandardCharsets.UTF_8);
+            } else if (path.equals(Packager.tagManifestFileName)) {
+                tagManifest = new String(kept.toByteArray(), StandardCharsets.UTF_8);
+            } else if (path.equals(Packager.bagInfoFileName)) {
+                bagInfo = new String(kept.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+
+        // Read any padding after the end of the archive, so a digest of the stream covers all of it
+        while (buffered.read(buffer) != -1) {
+            // Discard
+        }
+
+        if (result.bagName == null) {
+            result.errors.add("empty archive");
+            return result;
+        }
+        if (!hashes.containsKey(Packager.bagitFileName)) {
+            result.errors.add("no " + Packager.bagitFileName);
+        }
+        if (manifest == null) {
+            result.errors.add("no " + Packager.manifestFileName);
+            return result;
+        }
+
+        // Every payload file must be listed in the payload manifest
+        Map<String, String> payload = readManifest(manifest, result);
+        checkManifest(payload, hashes, result);
+
+        long payloadBytes = 0;
+        long payloadFiles = 0;
+        for (String path : hashes.keySet()) {
+            if (path.startsWith(Packager.dataDirName + "/")) {
+                payloadBytes += sizes.get(path);
+                payloadFiles += 1;
+                if (!payload.containsKey(path)) {
+                    result.extra.add(path);
+                }
+            }
+        }
+
+        // Tag files need not be listed, but any which are must match
+        if (tagManifest != null) {
+            checkManifest(readManifest(tagManifest, result), hashes, result);
+        }
+
+        if (bagInfo != null) {
+            checkPayloadOxum(bagInfo, payloadBytes, payloadFiles, result);
+        }
+
+        return result;
+    }
+
+    // Read the "hash  path" lines of a manifest into a map of path to hash
+    private static Map<String, String> readManifest(String manifest, Result result) throws IOException {
+        Map<String, String> entries = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(manifest))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int separator = line.indexOf(' ');
+                if (separator == -1) {
+                    result.errors.add("invalid manifest line: " + line);
+                    continue;
+                }
+                entries.put(line.substring(separator).replaceFirst("^\\s+", ""), line.substring(0, separator).toLowerCase());
+            }
+        }
+        return entries;
+    }
+
+    private static void checkManifest(Map<String, String> manifest, Map<String, String> hashes, Result result) {
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            String hash = hashes.get(entry.getKey());
+            if (hash == null) {
+                result.missing.add(entry.getKey());
+            } else if (!hash.equals(entry.getValue())) {
+                result.corrupt.add(entry.getKey());
+            }
+        }
+    }
+
+    // Compare the payload totals with the "Payload-Oxum: bytes.count" field, if the bag has one
+    private static void checkPayloadOxum(String bagInfo, long payloadBytes, long payloadFiles, Result result) {
+        for (String line : bagInfo.split("\\r?\\n")) {
+            if (!line.startsWith("Payload-Oxum:")) {
+                continue;
+            }
+            String oxum = line.substring("Payload-Oxum:".length()).trim();
+            if (!oxum.equals(payloadBytes + "." + payloadFiles)) {
+                result.errors.add("Payload-Oxum " + oxum + " != " + payloadBytes + "." + payloadFiles);
+            }
+        }
+    }
+}
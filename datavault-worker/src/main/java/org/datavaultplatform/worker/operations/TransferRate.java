@@ -0,0 +1,83 @@
+package org.datavaultplatform.worker.operations;
+
+/**
+ * Estimates the rate of a transfer as an exponentially weighted moving average of the rate
+ * between samples, so that short stalls and bursts do not make the rate and the estimated
+ * time remaining jump about.
+ */
+public class TransferRate {
+
+    private final long window;
+    private double bytesPerSec = -1;
+    private long lastBytes;
+    private long lastTime;
+
+    /**
+     * TransferRate constructor
+     * @param window The time over which the rate is averaged, in milliseconds
+     * @param bytes The byte count at the start
+     * @param time The time at the start, in milliseconds
+     */
+    public TransferRate(long window, long bytes, long time) {
+        this.window = window;
+        this.lastBytes = bytes;
+        this.lastTime = time;
+    }
+
+    /**
+     * Add a sample of the byte count. Samples are weighted by the time since the last one,
+     * so the average does not depend on how often it is sampled.
+     * @param bytes The byte count
+     * @param time The time of the sample, in milliseconds
+     */
+    public void update(long bytes, long time) {
+
+        long elapsed = time - lastTime;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        double rate = (double)(bytes - lastBytes) * 1000.0 / elapsed;
+        if (bytesPerSec < 0) {
+            bytesPerSec = rate;
+        } else {
+            double alpha = 1.0 - Math.exp(-(double)elapsed / window);
+            bytesPerSec += alpha * (rate - bytesPerSec);
+        }
+
+        lastBytes = bytes;
+        lastTime = time;
+    }
+
+    /**
+     * @return The average rate in bytes per second
+     */
+    public long getBytesPerSec() {
+        return (long)Math.max(0, bytesPerSec);
+    }
+
+    /**
+     * @param remainingBytes The number of bytes still to transfer
+     * @return The estimated time remaining in seconds, or -1 if it cannot be estimated yet
+     */
+    public long getSecondsRemaining(long remainingBytes) {
+        if (bytesPerSec <= 0) {
+            return -1;
+        }
+        return (long)Math.ceil(Math.max(0, remainingBytes) / bytesPerSec);
+    }
+
+    /**
+     * @param seconds A duration in seconds
+     * @return The duration in a short readable form, e.g. "1h 05m" or "3m 20s"
+     */
+    public static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%dh %02dm", seconds / 3600, (seconds % 3600) / 60);
+        } else if (seconds >= 60) {
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        } else {
+            return seconds + "s";
+        }
+    }
+}
@@ -1,5 +1,17 @@
 package org.datavaultplatform.worker.queue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Connection;
@@ -7,6 +19,7 @@ import com.rabbitmq.client.Channel;
 
 import org.datavaultplatform.common.event.Event;
 import org.datavaultplatform.common.event.EventStream;
+import org.datavaultplatform.common.event.UpdateProgress;
 import org.datavaultplatform.common.model.Agent;
 import org.datavaultplatform.worker.WorkerInstance;
 import org.slf4j.Logger;
@@ -14,6 +27,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A class to add Events to the event queue
+ *
+ * Events are encoded by the sending thread and put on a bounded in-memory queue. A publisher thread
+ * takes them off the queue in batches and publishes them on a single long-lived channel, waiting for
+ * the broker to confirm each batch and republishing it on a new connection if it is not confirmed.
+ * Within a batch only the latest progress update of each job is published, as it supersedes the
+ * earlier ones. Progress updates which change the state of a job are always published.
  */
 public class EventSender implements EventStream {
 
@@ -23,8 +42,41 @@ public class EventSender implements EventStream {
     private String eventQueueName;
     private String queueUser;
     private String queuePassword;
+    private int queueCapacity = 10000;
+    private int batchSize = 100;
+    private long confirmTimeout = 30000;
+    private long flushTimeout = 60000;
+    
+    // The next sequence number of each job, events which are not part of a job share the "" entry
+    private final ConcurrentMap<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+    
+    private final ObjectMapper mapper = new ObjectMapper();
+    
+    // Events waiting to be published, and the publisher thread, created by the first send
+    private BlockingQueue<Message> queue = null;
+    private Thread publisher = null;
+    
+    // Counts of the events which have been queued and which have been published (or superseded)
+    private final AtomicLong queued = new AtomicLong(0);
+    private long published = 0;
+    
+    // Only used by the publisher thread
+    private Connection connection = null;
+    private Channel channel = null;
     
-    private int sequence = 0;
+    // An encoded event
+    static class Message {
+        
+        final String jobId;
+        final boolean progress;
+        final byte[] body;
+        
+        Message(String jobId, boolean progress, byte[] body) {
+            this.jobId = jobId;
+            this.progress = progress;
+            this.body = body;
+        }
+    }
 
     /**
      * Setter for the queue server
@@ -57,51 +109,273 @@ public class EventSender implements EventStream {
     public void setQueuePassword(String queuePassword) {
         this.queuePassword = queuePassword;
     }
+
+    /**
+     * Setter for the number of events which may wait to be published. Once it is full progress
+     * updates are dropped and other events wait for space.
+     * @param queueCapacity the queueCapacity value
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Setter for the largest number of events published before waiting for the broker to confirm them
+     * @param batchSize the batchSize value
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Setter for how long to wait for the broker to confirm a batch of events (in milliseconds)
+     * @param confirmTimeout the confirmTimeout value
+     */
+    public void setConfirmTimeout(long confirmTimeout) {
+        this.confirmTimeout = confirmTimeout;
+    }
+
+    /**
+     * Setter for how long to wait for the queued events to be published when a job finishes (in milliseconds)
+     * @param flushTimeout the flushTimeout value
+     */
+    public void setFlushTimeout(long flushTimeout) {
+        this.flushTimeout = flushTimeout;
+    }
     
     /* (non-Javadoc)
      * @see org.datavaultplatform.common.event.EventStream#send(org.datavaultplatform.common.event.Event)
      * 
-     * Add a sequence to the event to allow ordering where the timestamp is equal, create a connection to the queue
-     * then encode the event as json, declare the queue and publish the message.
+     * Add a sequence to the event to allow ordering where the timestamp is equal, encode the event as json
+     * and queue it to be published.
      * 
-     * Finally close the connection.
+     * If the queue is full a progress update is dropped (as a later one will supersede it), any other
+     * event, including a progress update which changes the state of the job, waits for space.
      * 
      * @param event An event object
      */
     @Override
     public void send(Event event) {
         
-        // Add sequence for event ordering (where timestamp is equal)
-        event.setSequence(sequence);
-        sequence += 1;
+        // Add sequence for event ordering (where timestamp is equal), counted separately for each job
+        String jobId = (event.getJobId() != null) ? event.getJobId() : "";
+        AtomicLong sequence = sequences.get(jobId);
+        if (sequence == null) {
+            AtomicLong added = new AtomicLong(0);
+            sequence = sequences.putIfAbsent(jobId, added);
+            if (sequence == null) {
+                sequence = added;
+            }
+        }
+        event.setSequence((int)sequence.getAndIncrement());
         
         // Set common event properties
         event.setAgentType(Agent.AgentType.WORKER);
         event.setAgent(WorkerInstance.getWorkerName());
         
         try {
-            // TODO: should create queue once and keep open?
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost(queueServer);
-            factory.setUsername(queueUser);
-            factory.setPassword(queuePassword);
-
-            Connection connection = factory.newConnection();
-            Channel channel = connection.createChannel();
-
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonEvent = mapper.writeValueAsString(event);
-
-            channel.queueDeclare(eventQueueName, false, false, false, null);
-            channel.basicPublish("", eventQueueName, null, jsonEvent.getBytes());
-            logger.debug("Sent " + jsonEvent.length() + " bytes");
-            logger.debug("Sent message body '" + jsonEvent + "'");
-
-            channel.close();
-            connection.close();
+            // Encode now, the caller may go on to change the event
+            Message message = encode(event);
+            
+            BlockingQueue<Message> queue = start();
+            if (message.progress) {
+                if (!queue.offer(message)) {
+                    logger.debug("Event queue is full, dropping progress update for job " + jobId);
+                    return;
+                }
+            } else {
+                queue.put(message);
+            }
+            queued.incrementAndGet();
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while queueing event", e);
         } catch (Exception e) {
             logger.error("Error sending message", e);
         }
     }
+    
+    // Encode an event. A progress update which changes the state of the job is not superseded by later
+    // ones, so it is not treated as a progress update.
+    Message encode(Event event) throws Exception {
+        
+        String jobId = (event.getJobId() != null) ? event.getJobId() : "";
+        boolean progress = (event instanceof UpdateProgress) && event.nextState == null;
+        return new Message(jobId, progress, mapper.writeValueAsBytes(event));
+    }
+    
+    /**
+     * Wait until the events queued so far have been published and confirmed, e.g. before the message
+     * for a job is acknowledged
+     * @return True if the events were published, false if the wait timed out or was interrupted
+     */
+    public boolean flush() {
+        
+        long target = queued.get();
+        long deadline = System.currentTimeMillis() + flushTimeout;
+        
+        synchronized (this) {
+            while (published < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn("Timed out waiting for " + (target - published) + " events to be published");
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Forget the sequence of a job once it has finished
+     * @param jobId The job ID
+     */
+    public void endJob(String jobId) {
+        if (jobId != null) {
+            sequences.remove(jobId);
+        }
+    }
+    
+    /**
+     * Publish any queued events and close the connection to the queue
+     */
+    public void close() {
+        
+        Thread stopping;
+        synchronized (this) {
+            stopping = publisher;
+            if (stopping == null) {
+                return;
+            }
+        }
+        
+        flush();
+        stopping.interrupt();
+        try {
+            stopping.join(confirmTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Create the queue and start the publisher thread, if not already started
+    private synchronized BlockingQueue<Message> start() {
+        
+        if (publisher == null) {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            publisher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    publish();
+                }
+            }, "event-publisher");
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+        return queue;
+    }
+    
+    // Publish batches of events until interrupted
+    private void publish() {
+        
+        List<Message> batch = new ArrayList<>();
+        
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                
+                List<Message> messages = coalesce(batch);
+                while (!publish(messages)) {
+                    Thread.sleep(confirmTimeout / 10);
+                }
+                
+                synchronized (this) {
+                    published += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Event publisher stopped");
+        } finally {
+            disconnect();
+        }
+    }
+    
+    // Drop the progress updates which are followed by a later progress update of the same job
+    static List<Message> coalesce(List<Message> batch) {
+        
+        List<Message> messages = new ArrayList<>(batch.size());
+        Set<String> updated = new HashSet<>();
+        
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Message message = batch.get(i);
+            if (!message.progress || updated.add(message.jobId)) {
+                messages.add(message);
+            }
+        }
+        
+        Collections.reverse(messages);
+        return messages;
+    }
+    
+    // Publish a batch of events and wait for the broker to confirm them
+    private boolean publish(List<Message> messages) {
+        
+        try {
+            if (channel == null || !channel.isOpen()) {
+                connect();
+            }
+            
+            for (Message message : messages) {
+                channel.basicPublish("", eventQueueName, null, message.body);
+            }
+            channel.waitForConfirmsOrDie(confirmTimeout);
+            
+            logger.debug("Sent " + messages.size() + " events");
+            return true;
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("Error sending " + messages.size() + " events, retrying", e);
+            disconnect();
+            return false;
+        }
+    }
+    
+    private void connect() throws Exception {
+        
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(queueServer);
+        factory.setUsername(queueUser);
+        factory.setPassword(queuePassword);
+        
+        connection = factory.newConnection();
+        channel = connection.createChannel();
+        channel.queueDeclare(eventQueueName, false, false, false, null);
+        channel.confirmSelect();
+    }
+    
+    private void disconnect() {
+        
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (Exception e) {
+            logger.debug("Error closing event connection", e);
+        }
+        connection = null;
+        channel = null;
+    }
 }
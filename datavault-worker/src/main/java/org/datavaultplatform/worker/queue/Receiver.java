@@ -6,6 +6,9 @@ import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.QueueingConsumer;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
@@ -13,6 +16,8 @@ import org.apache.commons.io.FileUtils;
 import org.datavaultplatform.common.task.Task;
 import org.datavaultplatform.common.task.Context;
 import org.datavaultplatform.worker.WorkerInstance;
+import org.datavaultplatform.worker.operations.ProgressReporter;
+import org.datavaultplatform.worker.operations.StageLimits;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +34,23 @@ public class Receiver {
     private String queuePassword;
     private String tempDir;
     private String metaDir;
+    private boolean streamingDeposit;
+    private int packagerThreads = 1;
+    private String packagerMode = "cpu";
+    private int identifierThreads = 0;
+    private String compression = "none";
+    private int compressionLevel = 6;
+    private int compressionThreads = 0;
+    private long segmentSize = 0;
+    private boolean incrementalHashCheck = false;
+    private boolean pipelinedRetrieve = false;
+    private boolean resumableJobs = false;
+    private int concurrentJobs = 1;
+    private int prefetch = 0;
+    private int cpuStages = 0;
+    private int ioStages = 0;
+    private long progressInterval = 250;
+    private long progressSmoothing = 10000;
 
     /**
      * Set the queue server
@@ -77,6 +99,142 @@ public class Receiver {
     public void setMetaDir(String metaDir) {
         this.metaDir = metaDir;
     }
+    
+    /**
+     * Set whether deposits are streamed to the archive rather than staged in the temp dir
+     * @param streamingDeposit the streamingDeposit value
+     */
+    public void setStreamingDeposit(boolean streamingDeposit) {
+        this.streamingDeposit = streamingDeposit;
+    }
+    
+    /**
+     * Set the number of threads used to hash files when creating a bag (1 to use the bagit library, 0 for automatic)
+     * @param packagerThreads the packagerThreads value
+     */
+    public void setPackagerThreads(int packagerThreads) {
+        this.packagerThreads = packagerThreads;
+    }
+    
+    /**
+     * Set whether hashing files is expected to be limited by the CPU ("cpu") or by I/O ("io")
+     * @param packagerMode the packagerMode value
+     */
+    public void setPackagerMode(String packagerMode) {
+        this.packagerMode = packagerMode;
+    }
+    
+    /**
+     * Set the number of threads used to identify file types (0 for one per core)
+     * @param identifierThreads the identifierThreads value
+     */
+    public void setIdentifierThreads(int identifierThreads) {
+        this.identifierThreads = identifierThreads;
+    }
+    
+    /**
+     * Set the compression format of new deposit archives ("none" or "gzip")
+     * @param compression the compression value
+     */
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * Set the compression level of new deposit archives (1-9)
+     * @param compressionLevel the compressionLevel value
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Set the number of threads used to compress deposit archives (0 for one per core)
+     * @param compressionThreads the compressionThreads value
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+    
+    /**
+     * Set the size of the segments large archives are stored in (0 to store archives in one piece)
+     * @param segmentSize the segmentSize value
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+    
+    /**
+     * Set whether incremental deposits hash files whose size matches the base deposit but whose modification time does not
+     * @param incrementalHashCheck the incrementalHashCheck value
+     */
+    public void setIncrementalHashCheck(boolean incrementalHashCheck) {
+        this.incrementalHashCheck = incrementalHashCheck;
+    }
+    
+    /**
+     * Set whether retrieves stream the archive straight into the user storage, rather than staging it in the temporary directory
+     * @param pipelinedRetrieve the pipelinedRetrieve value
+     */
+    public void setPipelinedRetrieve(boolean pipelinedRetrieve) {
+        this.pipelinedRetrieve = pipelinedRetrieve;
+    }
+    
+    /**
+     * Set whether jobs keep a checkpoint in the temp dir, so that a redelivered job resumes rather than failing
+     * @param resumableJobs the resumableJobs value
+     */
+    public void setResumableJobs(boolean resumableJobs) {
+        this.resumableJobs = resumableJobs;
+    }
+    
+    /**
+     * Set the number of jobs this worker runs at once
+     * @param concurrentJobs the concurrentJobs value
+     */
+    public void setConcurrentJobs(int concurrentJobs) {
+        this.concurrentJobs = Math.max(1, concurrentJobs);
+    }
+    
+    /**
+     * Set the number of messages taken from the queue before they are acknowledged (0 for one per concurrent job)
+     * @param prefetch the prefetch value
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+    
+    /**
+     * Set the number of jobs which may be in a CPU heavy stage (hashing, packaging, compression) at once (0 for no limit)
+     * @param cpuStages the cpuStages value
+     */
+    public void setCpuStages(int cpuStages) {
+        this.cpuStages = cpuStages;
+    }
+    
+    /**
+     * Set the number of jobs which may be transferring data to or from storage at once (0 for no limit)
+     * @param ioStages the ioStages value
+     */
+    public void setIoStages(int ioStages) {
+        this.ioStages = ioStages;
+    }
+    
+    /**
+     * Set how often the progress of each transfer is reported (in milliseconds)
+     * @param progressInterval the progressInterval value
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+    
+    /**
+     * Set the time over which transfer rates are averaged for progress reports (in milliseconds)
+     * @param progressSmoothing the progressSmoothing value
+     */
+    public void setProgressSmoothing(long progressSmoothing) {
+        this.progressSmoothing = progressSmoothing;
+    }
 
     /**
      * Setup a connection to the queue then wait for messages to arrive.  When we recieve a message delivery
@@ -87,6 +245,9 @@ public class Receiver {
      * 
      * Once the task is complete we clean up and acknowledge the message
      * 
+     * Up to concurrentJobs tasks are run at once, each on its own thread with its own tmp dir. A message is
+     * only taken from the consumer once a thread is free to run it.
+     * 
      * @param events an EventSender object
      * @throws IOException if an IOException occurs
      * @throws InterruptedException if an InterruptedException occurs to a thread
@@ -107,52 +268,113 @@ public class Receiver {
         
         QueueingConsumer consumer = new QueueingConsumer(channel);
 
-        channel.basicQos(1);
+        channel.basicQos(prefetch > 0 ? prefetch : concurrentJobs);
         channel.basicConsume(queueName, false, consumer);
+        
+        StageLimits.configure(cpuStages, ioStages);
+        ProgressReporter.configure(progressInterval, progressSmoothing);
+        ExecutorService jobs = Executors.newFixedThreadPool(concurrentJobs);
+        Semaphore freeJobs = new Semaphore(concurrentJobs);
 
         while (true) {
-            QueueingConsumer.Delivery delivery = consumer.nextDelivery();
-            String message = new String(delivery.getBody());
-            
-            // Note that the message body might contain keys/credentials
-            logger.info("Received " + message.length() + " bytes");
-            logger.info("Received message body '" + message + "'");
+            freeJobs.acquire();
             
-            // Decode and begin the job ...
+            QueueingConsumer.Delivery delivery = consumer.nextDelivery();
             
-            try {
-                ObjectMapper mapper = new ObjectMapper();
-                Task commonTask = mapper.readValue(message, Task.class);
-                
-                Class<?> clazz = Class.forName(commonTask.getTaskClass());
-                Task concreteTask = (Task)(mapper.readValue(message, clazz));
-
-                // Is the message a redelivery?
-                if (delivery.getEnvelope().isRedeliver()) {
-                    concreteTask.setIsRedeliver(true);
+            jobs.execute(() -> {
+                try {
+                    process(delivery, events);
+                    
+                    // Make sure the events of the job have reached the broker before the job is acknowledged,
+                    // so that its completion or error cannot be lost. Until they have, the message is left
+                    // unacknowledged and this job's thread is not freed.
+                    while (!events.flush()) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            logger.error("Interrupted before the events of the job were sent, leaving the message unacknowledged");
+                            return;
+                        }
+                        logger.warn("The events of the job have not been sent yet, still waiting before acknowledging the message");
+                    }
+                    
+                    // The channel is shared by the job threads
+                    synchronized (channel) {
+                        channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    }
+                } catch (IOException e) {
+                    logger.error("Error acknowledging message", e);
+                } finally {
+                    freeJobs.release();
                 }
-
-                // Set up the worker temporary directory
-                Path tempDirPath = Paths.get(tempDir, WorkerInstance.getWorkerName());
-                tempDirPath.toFile().mkdir();
-                
-                Path metaDirPath = Paths.get(metaDir);
-                
-                Context context = new Context(tempDirPath, metaDirPath, events);
-                concreteTask.performAction(context);
-                
-                // Clean up the temporary directory
-                FileUtils.deleteDirectory(tempDirPath.toFile());
-                
-            } catch (Exception e) {
-                logger.error("Error decoding message", e);
-            }
-
-            channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+            });
         }
         
         // Unreachable - the receiver never terminates
         // channel.close();
         // connection.close();
     }
+
+    /**
+     * Decode a message and perform its task, in a tmp dir of its own
+     * @param delivery The message delivery
+     * @param events an EventSender object
+     */
+    private void process(QueueingConsumer.Delivery delivery, EventSender events) {
+        
+        String message = new String(delivery.getBody());
+        
+        // Note that the message body might contain keys/credentials
+        logger.info("Received " + message.length() + " bytes");
+        logger.info("Received message body '" + message + "'");
+        
+        // Decode and begin the job ...
+        
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            Task commonTask = mapper.readValue(message, Task.class);
+            
+            Class<?> clazz = Class.forName(commonTask.getTaskClass());
+            Task concreteTask = (Task)(mapper.readValue(message, clazz));
+
+            // Is the message a redelivery?
+            if (delivery.getEnvelope().isRedeliver()) {
+                concreteTask.setIsRedeliver(true);
+            }
+
+            // Set up the worker temporary directory. A resumable job uses a directory named after the
+            // job, so that if it is redelivered (to this or another worker) it can find its checkpoint.
+            // Concurrent jobs in the same worker each have their own directory.
+            Path tempDirPath;
+            if (resumableJobs && concreteTask.getJobID() != null) {
+                tempDirPath = Paths.get(tempDir, concreteTask.getJobID());
+            } else if (concurrentJobs > 1) {
+                tempDirPath = Paths.get(tempDir, WorkerInstance.getWorkerName() + "-" + Thread.currentThread().getId());
+            } else {
+                tempDirPath = Paths.get(tempDir, WorkerInstance.getWorkerName());
+            }
+            tempDirPath.toFile().mkdir();
+            
+            Path metaDirPath = Paths.get(metaDir);
+            
+            Context context = new Context(tempDirPath, metaDirPath, events);
+            context.setStreamingDeposit(streamingDeposit);
+            context.setPackagerThreads(packagerThreads);
+            context.setPackagerMode(packagerMode);
+            context.setIdentifierThreads(identifierThreads);
+            context.setCompression(compression);
+            context.setCompressionLevel(compressionLevel);
+            context.setCompressionThreads(compressionThreads);
+            context.setSegmentSize(segmentSize);
+            context.setIncrementalHashCheck(incrementalHashCheck);
+            context.setPipelinedRetrieve(pipelinedRetrieve);
+            context.setResumableJobs(resumableJobs);
+            concreteTask.performAction(context);
+            events.endJob(concreteTask.getJobID());
+            
+            // Clean up the temporary directory
+            FileUtils.deleteDirectory(tempDirPath.toFile());
+            
+        } catch (Exception e) {
+            logger.error("Error decoding message", e);
+        }
+    }
 }
\ No newline at end of file
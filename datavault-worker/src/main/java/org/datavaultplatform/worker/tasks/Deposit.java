@@ -1,16 +1,34 @@
 package org.datavaultplatform.worker.tasks;
 
 import java.util.Map;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 
 import org.datavaultplatform.common.task.Context;
 import org.datavaultplatform.common.task.Task;
@@ -23,7 +41,11 @@ import org.datavaultplatform.common.event.deposit.TransferComplete;
 import org.datavaultplatform.common.event.deposit.PackageComplete;
 import org.datavaultplatform.common.event.deposit.Complete;
 import org.datavaultplatform.common.event.deposit.ComputedDigest;
+import org.datavaultplatform.common.event.deposit.ComputedCompression;
+import org.datavaultplatform.common.io.FileCopy;
 import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.io.ProgressInputStream;
+import org.datavaultplatform.common.model.FileInfo;
 import org.datavaultplatform.common.storage.*;
 import org.datavaultplatform.worker.WorkerInstance;
 import org.datavaultplatform.worker.operations.*;
@@ -39,6 +61,12 @@ public class Deposit extends Task {
 
     private static final Logger logger = LoggerFactory.getLogger(Deposit.class);
     
+    // Checkpointed stages of a staged deposit
+    private static final String TRANSFERRED = "transferred";
+    private static final String PACKAGED = "packaged";
+    private static final String STORED = "stored";
+    private static final String VERIFIED = "verified";
+    
     EventSender eventStream;
     HashMap<String, UserStore> userStores;
 
@@ -49,11 +77,21 @@ public class Deposit extends Task {
 
     // Maps the model ArchiveStore Id to the generated Archive Id
     HashMap<String, String> archiveIds = new HashMap<>();
+    
+    // Maps the model ArchiveStore Id to the segment Ids of a segmented archive
+    HashMap<String, ArrayList<String>> archiveSegments = new HashMap<>();
+    long segmentSize = 0;
+    
+    // The compression format of the archive
+    String archiveCompression = Compression.NONE;
 
     String depositId;
     String bagID;
     String userID;
     
+    // The progress of the deposit, so that it can be resumed if the job is redelivered
+    Checkpoint checkpoint;
+    
     /* (non-Javadoc)
      * @see org.datavaultplatform.common.task.Task#performAction(org.datavaultplatform.common.task.Context)
      */
@@ -69,10 +107,19 @@ public class Deposit extends Task {
         bagID = properties.get("bagId");
         userID = properties.get("userId");
         
+        checkpoint = Checkpoint.open(context.getTempDir(), jobID, context.isResumableJobs());
+        
         if (this.isRedeliver()) {
-            eventStream.send(new Error(jobID, depositId, "Deposit stopped: the message had been redelivered, please investigate")
-                .withUserId(userID));
-            return;
+            if (!context.isResumableJobs()) {
+                eventStream.send(new Error(jobID, depositId, "Deposit stopped: the message had been redelivered, please investigate")
+                    .withUserId(userID));
+                return;
+            }
+            if (checkpoint.isResumed()) {
+                logger.info("Deposit redelivered, resuming after: " + checkpoint.getStages());
+            } else {
+                logger.info("Deposit redelivered, no checkpoint so starting again");
+            }
         }
         
         // Deposit and Vault metadata to be stored in the bag
@@ -183,14 +230,76 @@ public class Deposit extends Task {
         eventStream.send(new ComputedSize(jobID, depositId, depositTotalSize)
             .withUserId(userID));
         
+        archiveCompression = context.getCompression();
+        if (!Compression.isSupported(archiveCompression)) {
+            String msg = "Deposit failed: unsupported compression " + archiveCompression;
+            logger.error(msg);
+            eventStream.send(new Error(jobID, depositId, msg)
+                .withUserId(userID));
+            return;
+        }
+        
+        // An incremental deposit only copies the files which have changed since its base deposit
+        FileList baseFiles = null;
+        String baseBagId = properties.get("baseBagId");
+        if (baseBagId != null) {
+            baseFiles = loadBaseFileList(context, baseBagId);
+        }
+        
+        // Incremental deposits are staged, as only the changed files are copied
+        if (context.isStreamingDeposit() && isStreamingSupported() && baseFiles == null) {
+            try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                streamDeposit(context, depositTotalSize, depositMetadata, vaultMetadata, externalMetadata);
+            } catch (InterruptedException e) {
+                String msg = "Deposit failed: interrupted while waiting to transfer the data";
+                logger.error(msg, e);
+                eventStream.send(new Error(jobID, depositId, msg)
+                    .withUserId(userID));
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        
         // Create a new directory based on the broker-generated UUID
         Path bagPath = context.getTempDir().resolve(bagID);
         File bagDir = bagPath.toFile();
         bagDir.mkdir();
         
+        String tarFileName = bagID + ".tar" + Compression.getFileExtension(archiveCompression);
+        File tarFile = context.getTempDir().resolve(tarFileName).toFile();
+        
+        try {
+            prepareResume(bagDir, tarFile);
+        } catch (Exception e) {
+            String msg = "Deposit failed: could not resume the deposit: " + e.getMessage();
+            logger.error(msg, e);
+            eventStream.send(new Error(jobID, depositId, msg)
+                .withUserId(userID));
+            return;
+        }
+        
         Long depositIndex = 0L;
         
+        // Files which are unchanged since the base deposit, saved as each path is checked
+        FileList unchangedFiles = new FileList();
+        Path unchangedPath = context.getTempDir().resolve(bagID + "-unchanged.txt");
+        if (baseFiles != null && Files.exists(unchangedPath)) {
+            try {
+                unchangedFiles = FileList.read(unchangedPath);
+            } catch (Exception e) {
+                String msg = "Deposit failed: could not resume the deposit: " + e.getMessage();
+                logger.error(msg, e);
+                eventStream.send(new Error(jobID, depositId, msg)
+                    .withUserId(userID));
+                return;
+            }
+        }
+        
         for (String filePath: fileStorePaths) {
+            
+            if (checkpoint.isDone(TRANSFERRED)) {
+                break;
+            }
         
             String storageID = filePath.substring(0, filePath.indexOf('/'));
             String storagePath = filePath.substring(filePath.indexOf('/')+1);
@@ -210,6 +319,13 @@ public class Deposit extends Task {
             }
             
             try {
+                File outputFile = depositPath.resolve(userStore.getName(storagePath)).toFile();
+                Long copiedSize = checkpoint.getFile(filePath);
+                if (copiedSize != null && outputFile.exists() && FileUtils.sizeOf(outputFile) == copiedSize) {
+                    logger.info("Already copied: " + filePath);
+                    continue;
+                }
+                
                 if (userStore.exists(storagePath)) {
 
                     // Copy the target file to the bag directory
@@ -217,8 +333,19 @@ public class Deposit extends Task {
                         .withUserId(userID)
                         .withNextState(1));
 
+                    // Remove anything left by an interrupted copy
+                    FileUtils.deleteQuietly(outputFile);
+
                     logger.info("Copying target to bag directory ...");
-                    copyFromUserStorage(userStore, storagePath, depositPath);
+                    try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                        if (baseFiles != null) {
+                            copyChangedFromUserStorage(context, userStore, storagePath, depositPath, bagPath, baseFiles, unchangedFiles);
+                            unchangedFiles.write(unchangedPath);
+                        } else {
+                            copyFromUserStorage(userStore, storagePath, depositPath);
+                        }
+                    }
+                    checkpoint.fileDone(filePath, outputFile.exists() ? FileUtils.sizeOf(outputFile) : 0);
                     
                 } else {
                     logger.error("File does not exist.");
@@ -235,87 +362,487 @@ public class Deposit extends Task {
         
         try {
 
-            // Add any directly uploaded files (direct move from temp dir)            
-            for (String path : fileUploadPaths) {
-                moveFromUserUploads(context.getTempDir(), bagPath, userID, path);
+            if (!checkpoint.isDone(TRANSFERRED)) {
+                // Add any directly uploaded files (direct move from temp dir)            
+                for (String path : fileUploadPaths) {
+                    moveFromUserUploads(context.getTempDir(), bagPath, userID, path);
+                }
+                
+                checkpoint.setValue("payload", String.join("/", Packager.getNames(bagPath)));
+                checkpoint.done(TRANSFERRED);
             }
             
             // Bag the directory in-place
             eventStream.send(new TransferComplete(jobID, depositId)
                 .withUserId(userID)
                 .withNextState(2));
-
-            logger.info("Creating bag ...");
-            Packager.createBag(bagDir);
-
-            // Identify the deposit file types
-            logger.info("Identifying file types ...");
-            Path bagDataPath = bagDir.toPath().resolve("data");
-            HashMap<String, String> fileTypes = Identifier.detectDirectory(bagDataPath);
-            ObjectMapper mapper = new ObjectMapper();
-            String fileTypeMetadata = mapper.writeValueAsString(fileTypes);
-
-            // Add vault/deposit/type metadata to the bag
-            Packager.addMetadata(bagDir, depositMetadata, vaultMetadata, fileTypeMetadata, externalMetadata);
-
-            // Tar the bag directory
-            logger.info("Creating tar file ...");
-            String tarFileName = bagID + ".tar";
-            Path tarPath = context.getTempDir().resolve(tarFileName);
-            File tarFile = tarPath.toFile();
-            Tar.createTar(bagDir, tarFile);
-            String tarHash = Verify.getDigest(tarFile);
+            
+            String tarHash;
             String tarHashAlgorithm = Verify.getAlgorithm();
+            long archiveSize;
+            
+            if (checkpoint.isDone(PACKAGED)) {
+                tarHash = checkpoint.getValue("tarHash");
+                archiveSize = Long.parseLong(checkpoint.getValue("archiveSize"));
+                logger.info("Already packaged: " + tarFile.getName() + ", " + archiveSize + " bytes");
+                
+                eventStream.send(new UpdateProgress(jobID, depositId)
+                    .withUserId(userID)
+                    .withNextState(3));
+            } else {
+                TarIndex tarIndex = new TarIndex();
+                
+                try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.CPU)) {
+                    logger.info("Creating bag ...");
+                    if (context.getPackagerThreads() == 1) {
+                        Packager.createBag(bagDir);
+                    } else {
+                        Packager.createBag(bagDir, context.getPackagerThreads(),
+                                ManifestBuilder.parseMode(context.getPackagerMode()));
+                    }
 
+                    // List every file in the deposit, including the unchanged files held by the base deposit
+                    FileList fileList = new FileList();
+                    fileList.addPayload(bagDir, bagID);
+                    for (FileList.Entry entry : unchangedFiles.getEntries()) {
+                        fileList.add(entry);
+                    }
+                    File fileListFile = context.getTempDir().resolve(bagID + "-" + Packager.fileListMetaFileName).toFile();
+                    fileList.write(fileListFile.toPath());
+                    if (baseFiles != null) {
+                        logger.info("Incremental deposit: " + (fileList.size() - unchangedFiles.size()) + " new or changed files, "
+                                + unchangedFiles.size() + " unchanged files");
+                    }
+
+                    // Identify the deposit file types
+                    logger.info("Identifying file types ...");
+                    Path bagDataPath = bagDir.toPath().resolve("data");
+                    File fileTypeFile = context.getTempDir().resolve(bagID + "-" + Packager.fileTypeMetaFileName).toFile();
+                    
+                    // Keep the types of the large, already compressed files, which the tar stores without
+                    // compressing them again, so that the files are not identified twice. The types of the
+                    // other files are not needed, as they are compressed anyway.
+                    Map<String, String> storedTypes = new HashMap<>();
+                    boolean compressed = Compression.isCompressed(archiveCompression);
+                    long identified = Identifier.detectDirectory(bagDataPath, context.getIdentifierThreads(), fileTypeFile,
+                            (key, type) -> {
+                                if (compressed && Compression.isCompressedType(type)
+                                        && bagDataPath.resolve(key).toFile().length() >= Compression.STORE_MIN_SIZE) {
+                                    storedTypes.put("data/" + key, type);
+                                }
+                            });
+                    logger.info("Identified: " + identified + " files");
+
+                    // Add vault/deposit/type metadata to the bag
+                    Packager.addMetadata(bagDir, depositMetadata, vaultMetadata, fileTypeFile, externalMetadata);
+                    Packager.addFileList(bagDir, fileListFile);
+
+                    // Tar the bag directory
+                    logger.info("Creating tar file ...");
+                    MessageDigest tarDigest = Verify.getMessageDigest();
+                    archiveSize = Tar.createTar(bagDir, tarFile, tarDigest,
+                            archiveCompression, context.getCompressionLevel(), context.getCompressionThreads(), tarIndex, storedTypes);
+                    tarHash = Verify.getDigest(tarDigest);
+                }
+
+                eventStream.send(new PackageComplete(jobID, depositId)
+                    .withUserId(userID)
+                    .withNextState(3));
+
+                logger.info("Tar file: " + archiveSize + " bytes");
+                logger.info("Checksum algorithm: " + tarHashAlgorithm);
+                logger.info("Checksum: " + tarHash);
+
+                eventStream.send(new ComputedDigest(jobID, depositId, tarHash, tarHashAlgorithm)
+                    .withUserId(userID));
+                
+                sendCompression(context);
+
+                // Create the meta directory for the bag information
+                Path metaPath = context.getMetaDir().resolve(bagID);
+                File metaDir = metaPath.toFile();
+                metaDir.mkdir();
+
+                // Copy bag meta files to the meta directory
+                logger.info("Copying meta files ...");
+                Packager.extractMetadata(bagDir, metaDir);
+                
+                // Index the files in the archive for partial retrieval
+                tarIndex.write(metaPath.resolve(Packager.tarIndexMetaFileName));
+                
+                checkpoint.setValue("tarHash", tarHash);
+                checkpoint.setValue("archiveSize", Long.toString(archiveSize));
+                checkpoint.setValue("tarFileSize", Long.toString(tarFile.length()));
+                checkpoint.done(PACKAGED);
+            }
+
+            // Copy the resulting tar file to the archive area
+            if (checkpoint.isDone(STORED)) {
+                loadStoredArchives();
+            } else {
+                logger.info("Copying tar file to archive ...");
+                try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                    copyToArchiveStorage(context, tarFile, tarHash);
+                }
+                checkpoint.done(STORED);
+            }
+
+            // Cleanup
+            logger.info("Cleaning up ...");
+            FileUtils.deleteDirectory(bagDir);
+
+            eventStream.send(new UpdateProgress(jobID, depositId)
+                .withUserId(userID)
+                .withNextState(4));
+
+            if (!checkpoint.isDone(VERIFIED)) {
+                logger.info("Verifying archive package ...");
+                try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                    verifyArchive(context, tarFile, tarHash);
+                }
+                checkpoint.done(VERIFIED);
+            }
+
+            logger.info("Deposit complete");
+
+            eventStream.send(new Complete(jobID, depositId, archiveIds, archiveSegments, segmentSize, archiveSize)
+                .withUserId(userID)
+                .withNextState(5));
+        } catch (Exception e) {
+            String msg = "Deposit failed: " + e.getMessage();
+            logger.error(msg, e);
+            eventStream.send(new Error(jobID, depositId, msg)
+                .withUserId(userID));
+        }
+        
+        // TODO: Disconnect from user and archive storage system?
+    }
+    
+    /**
+     * Check the checkpoint of a redelivered deposit against the files in the temp dir, and undo
+     * any stage which was interrupted so that it can be done again. If the copied files cannot
+     * be used the deposit starts again.
+     * @param bagDir The bag directory
+     * @param tarFile The tar file
+     * @throws Exception if the checkpoint could not be updated
+     */
+    private void prepareResume(File bagDir, File tarFile) throws Exception {
+        
+        if (checkpoint.isDone(PACKAGED) && !checkpoint.isDone(STORED)
+                && tarFile.length() != Long.parseLong(checkpoint.getValue("tarFileSize"))) {
+            // The tar file is still needed to store it, so package the deposit again
+            logger.warn("The tar file is missing or incomplete, packaging the deposit again");
+            checkpoint.undo(PACKAGED);
+        }
+        
+        if (checkpoint.isDone(TRANSFERRED) && !checkpoint.isDone(PACKAGED)) {
+            // Undo any bagging which was interrupted
+            String payload = checkpoint.getValue("payload");
+            try {
+                Packager.restorePayload(bagDir, payload.isEmpty() ? new ArrayList<String>() : Arrays.asList(payload.split("/")));
+            } catch (IOException e) {
+                logger.warn("Copying the deposit again: " + e.getMessage());
+                FileUtils.deleteDirectory(bagDir);
+                bagDir.mkdir();
+                checkpoint.reset();
+            }
+            tarFile.delete();
+            
+            // Anything stored was a copy of the previous tar file
+            checkpoint.clearArchives();
+            checkpoint.save();
+        }
+    }
+    
+    /**
+     * Check whether all of the user and archive storage for this deposit can transfer data as streams
+     * @return True if the deposit can be streamed
+     */
+    private boolean isStreamingSupported() {
+        
+        for (UserStore userStore : userStores.values()) {
+            if (!(userStore instanceof StreamingDevice)) {
+                return false;
+            }
+        }
+        
+        for (ArchiveStore archiveStore : archiveStores.values()) {
+            if (!(archiveStore instanceof StreamingDevice)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Deposit the selected files in a single pass, without staging a copy of the data.
+     * 
+     * The files are read from the user storage once and written into a bag in a tar stream.
+     * The payload manifest, file types and archive digest are computed as the data passes through
+     * and the tar stream is stored in each archive store as it is written. Only the bag tag files
+     * are written to the temp dir.
+     * 
+     * @param context
+     * @param depositTotalSize
+     * @param depositMetadata
+     * @param vaultMetadata
+     * @param externalMetadata
+     */
+    private void streamDeposit(Context context, long depositTotalSize, String depositMetadata, String vaultMetadata, String externalMetadata) {
+        
+        logger.info("Streaming deposit ...");
+        
+        String tarFileName = bagID + ".tar" + Compression.getFileExtension(archiveCompression);
+        File tarFile = context.getTempDir().resolve(tarFileName).toFile();
+        
+        // The tag files are staged in a directory based on the broker-generated UUID
+        File tagDir = context.getTempDir().resolve(bagID).toFile();
+        
+        HashMap<String, PipedUpload> uploads = new HashMap<>();
+        StreamingPackager packager = null;
+        
+        try {
+            // Start storing the tar stream in each archive store
+            OutputStream archiveOutput = null;
+            for (String archiveStoreId : archiveStores.keySet()) {
+                PipedUpload upload = new PipedUpload((StreamingDevice)archiveStores.get(archiveStoreId), "/", tarFileName);
+                uploads.put(archiveStoreId, upload);
+                upload.start();
+                
+                if (archiveOutput == null) {
+                    archiveOutput = upload.getOutputStream();
+                } else {
+                    archiveOutput = new TeeOutputStream(archiveOutput, upload.getOutputStream());
+                }
+            }
+            
+            // Compute the archive size and digest as the tar stream is written
+            MessageDigest tarDigest = Verify.getMessageDigest();
+            CountingOutputStream tarCounter = new CountingOutputStream(new DigestOutputStream(archiveOutput, tarDigest));
+            OutputStream packageOutput;
+            if (Compression.isCompressed(archiveCompression)) {
+                packageOutput = Compression.compress(tarCounter, archiveCompression, context.getCompressionLevel(), context.getCompressionThreads());
+            } else {
+                packageOutput = new BufferedOutputStream(tarCounter, (int)FileCopy.ONE_MB);
+            }
+            packager = new StreamingPackager(packageOutput, bagID, tagDir);
+            
+            eventStream.send(new UpdateProgress(jobID, depositId, 0, depositTotalSize, "Starting transfer ...")
+                .withUserId(userID)
+                .withNextState(1));
+            
+            // Progress tracking
+            Progress progress = new Progress();
+            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, depositTotalSize, eventStream);
+            tracker.start();
+            
+            try {
+                Long depositIndex = 0L;
+                
+                for (String filePath: fileStorePaths) {
+                    
+                    String storageID = filePath.substring(0, filePath.indexOf('/'));
+                    String storagePath = filePath.substring(filePath.indexOf('/')+1);
+                    
+                    logger.info("Deposit file: " + filePath);
+                    
+                    UserStore userStore = userStores.get(storageID);
+                    
+                    String depositPath = "";
+                    // If there are multiple deposits then create a sub-directory for each one
+                    if (fileStorePaths.size() > 1) {
+                        depositIndex += 1;
+                        depositPath = depositIndex.toString() + "/";
+                        packager.addDirectory(depositIndex.toString());
+                    }
+                    
+                    if (!userStore.exists(storagePath)) {
+                        throw new Exception("file not found");
+                    }
+                    
+                    streamFromUserStorage(packager, userStore, storagePath, depositPath + userStore.getName(storagePath), progress);
+                }
+                
+                // Add any directly uploaded files
+                for (String path : fileUploadPaths) {
+                    streamFromUserUploads(packager, context.getTempDir(), userID, path, progress);
+                }
+            } finally {
+                // Stop progress tracking
+                tracker.stop();
+            }
+            
+            logger.info("Read: " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+            
+            eventStream.send(new TransferComplete(jobID, depositId)
+                .withUserId(userID)
+                .withNextState(2));
+            
+            // Write the tag files and complete the tar stream
+            logger.info("Completing bag ...");
+            packager.finish(depositMetadata, vaultMetadata, externalMetadata);
+            
+            String tarHash = Verify.getDigest(tarDigest);
+            String tarHashAlgorithm = Verify.getAlgorithm();
+            long archiveSize = tarCounter.getByteCount();
+            
             eventStream.send(new PackageComplete(jobID, depositId)
                 .withUserId(userID)
                 .withNextState(3));
-
-            long archiveSize = tarFile.length();
-            logger.info("Tar file: " + archiveSize + " bytes");
+            
+            logger.info("Tar stream: " + archiveSize + " bytes");
             logger.info("Checksum algorithm: " + tarHashAlgorithm);
             logger.info("Checksum: " + tarHash);
-
+            
             eventStream.send(new ComputedDigest(jobID, depositId, tarHash, tarHashAlgorithm)
                 .withUserId(userID));
-
+            
+            sendCompression(context);
+            
+            // Wait for the archive stores to finish
+            logger.info("Completing archive storage ...");
+            for (String archiveStoreId : uploads.keySet()) {
+                PipedUpload upload = uploads.get(archiveStoreId);
+                archiveIds.put(archiveStoreId, upload.await());
+                logger.info("Stored: " + upload.getProgress().getByteCount() + " bytes in archive store " + archiveStoreId);
+            }
+            
             // Create the meta directory for the bag information
             Path metaPath = context.getMetaDir().resolve(bagID);
             File metaDir = metaPath.toFile();
             metaDir.mkdir();
-
+            
             // Copy bag meta files to the meta directory
             logger.info("Copying meta files ...");
-            Packager.extractMetadata(bagDir, metaDir);
-
-            // Copy the resulting tar file to the archive area
-            logger.info("Copying tar file to archive ...");
-            copyToArchiveStorage(tarFile);
-
+            Packager.extractMetadata(tagDir, metaDir);
+            
+            // Index the files in the archive for partial retrieval
+            packager.getIndex().write(metaPath.resolve(Packager.tarIndexMetaFileName));
+            
             // Cleanup
             logger.info("Cleaning up ...");
-            FileUtils.deleteDirectory(bagDir);
-
+            FileUtils.deleteDirectory(tagDir);
+            for (String path : fileUploadPaths) {
+                deleteUserUploads(context.getTempDir(), userID, path);
+            }
+            
             eventStream.send(new UpdateProgress(jobID, depositId)
                 .withUserId(userID)
                 .withNextState(4));
-
+            
             logger.info("Verifying archive package ...");
             verifyArchive(context, tarFile, tarHash);
-
+            
             logger.info("Deposit complete");
-
-            eventStream.send(new Complete(jobID, depositId, archiveIds, archiveSize)
+            
+            eventStream.send(new Complete(jobID, depositId, archiveIds, archiveSegments, segmentSize, archiveSize)
                 .withUserId(userID)
                 .withNextState(5));
         } catch (Exception e) {
             String msg = "Deposit failed: " + e.getMessage();
             logger.error(msg, e);
+            
+            // Stop the archive stores from keeping an incomplete tar stream
+            for (PipedUpload upload : uploads.values()) {
+                upload.abort();
+            }
+            if (packager != null) {
+                packager.abort();
+            }
+            
             eventStream.send(new Error(jobID, depositId, msg)
                 .withUserId(userID));
         }
+    }
+    
+    /**
+     * Add a file or directory from the user storage to a streamed bag
+     * @param packager
+     * @param userStore
+     * @param filePath
+     * @param bagPath The path in the bag payload
+     * @param progress
+     * @throws Exception
+     */
+    private void streamFromUserStorage(StreamingPackager packager, UserStore userStore, String filePath, String bagPath, Progress progress) throws Exception {
         
-        // TODO: Disconnect from user and archive storage system?
+        if (userStore.isDirectory(filePath)) {
+            packager.addDirectory(bagPath);
+            progress.addDir();
+            
+            List<FileInfo> entries = userStore.list(filePath);
+            for (FileInfo entry : entries) {
+                streamFromUserStorage(packager, userStore, entry.getKey(), bagPath + "/" + entry.getName(), progress);
+            }
+        } else {
+            long size = userStore.getSize(filePath);
+            try (InputStream input = ((StreamingDevice)userStore).retrieveStream(filePath, progress)) {
+                packager.addFile(bagPath, input, size);
+            }
+        }
+    }
+    
+    /**
+     * Add any directly uploaded files to a streamed bag
+     * @param packager
+     * @param tempPath
+     * @param userID
+     * @param uploadPath
+     * @param progress
+     * @throws Exception
+     */
+    private void streamFromUserUploads(StreamingPackager packager, Path tempPath, String userID, String uploadPath, Progress progress) throws Exception {
+        
+        // TODO: this is a bit of a hack to escape the per-worker temp directory
+        File uploadDir = tempPath.getParent().resolve("uploads").resolve(userID).resolve(uploadPath).toFile();
+        if (uploadDir.exists()) {
+            logger.info("Streaming user uploads to bag");
+            streamFromDirectory(packager, uploadDir, "uploads", progress);
+        }
+    }
+    
+    /**
+     * @param packager
+     * @param dir
+     * @param bagPath
+     * @param progress
+     * @throws Exception
+     */
+    private void streamFromDirectory(StreamingPackager packager, File dir, String bagPath, Progress progress) throws Exception {
+        
+        packager.addDirectory(bagPath);
+        progress.addDir();
+        
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                String childPath = bagPath + "/" + child.getName();
+                if (child.isDirectory()) {
+                    streamFromDirectory(packager, child, childPath, progress);
+                } else {
+                    try (InputStream input = new ProgressInputStream(new FileInputStream(child), progress)) {
+                        packager.addFile(childPath, input, child.length());
+                    }
+                    progress.addFile();
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param tempPath
+     * @param userID
+     * @param uploadPath
+     * @throws Exception
+     */
+    private void deleteUserUploads(Path tempPath, String userID, String uploadPath) throws Exception {
+        
+        // TODO: this is a bit of a hack to escape the per-worker temp directory
+        File uploadDir = tempPath.getParent().resolve("uploads").resolve(userID).resolve(uploadPath).toFile();
+        if (uploadDir.exists()) {
+            FileUtils.deleteDirectory(uploadDir);
+        }
     }
     
     /**
@@ -338,22 +865,185 @@ public class Deposit extends Task {
         
         logger.info("Size: " + expectedBytes + " bytes (" +  FileUtils.byteCountToDisplaySize(expectedBytes) + ")");
         
-        // Progress tracking (threaded)
+        // Progress tracking
         Progress progress = new Progress();
         ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, expectedBytes, eventStream);
-        Thread trackerThread = new Thread(tracker);
-        trackerThread.start();
+        tracker.start();
         
         try {
             // Ask the driver to copy files to our working directory
             ((Device)userStore).retrieve(filePath, outputFile, progress);
         } finally {
-            // Stop the tracking thread
+            // Stop progress tracking
             tracker.stop();
-            trackerThread.join();
         }
     }
     
+    /**
+     * Load the file list of the base deposit of an incremental deposit from the meta directory
+     * @param context
+     * @param baseBagId The bag ID of the base deposit
+     * @return The file list, or null if the base deposit has no file list (so all files should be deposited)
+     */
+    private FileList loadBaseFileList(Context context, String baseBagId) {
+        
+        Path fileListPath = context.getMetaDir().resolve(baseBagId)
+                .resolve(Packager.metadataDirName).resolve(Packager.fileListMetaFileName);
+        
+        if (!Files.exists(fileListPath)) {
+            logger.warn("No file list for base deposit " + baseBagId + ", depositing all files");
+            return null;
+        }
+        
+        try {
+            FileList baseFiles = FileList.read(fileListPath);
+            logger.info("Incremental deposit based on " + baseBagId + ": " + baseFiles.size() + " files");
+            return baseFiles;
+        } catch (Exception e) {
+            logger.warn("Could not read the file list of base deposit " + baseBagId + ", depositing all files", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Copy the files which are new or have changed since the base deposit to the bag directory
+     * @param context
+     * @param userStore
+     * @param filePath
+     * @param depositPath The directory to copy to
+     * @param bagPath The bag directory
+     * @param baseFiles The files in the base deposit
+     * @param unchangedFiles Updated with the files which have not changed
+     * @throws Exception
+     */
+    private void copyChangedFromUserStorage(Context context, UserStore userStore, String filePath, Path depositPath,
+                                            Path bagPath, FileList baseFiles, FileList unchangedFiles) throws Exception {
+        
+        Path outputPath = depositPath.resolve(userStore.getName(filePath));
+        
+        // Compute bytes to check
+        long expectedBytes = userStore.getSize(filePath);
+        
+        // Display progress bar
+        eventStream.send(new UpdateProgress(jobID, depositId, 0, expectedBytes, "Starting transfer ...")
+            .withUserId(userID));
+        
+        // Progress tracking
+        Progress progress = new Progress();
+        ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, expectedBytes, eventStream);
+        tracker.start();
+        
+        try {
+            copyChanged(userStore, filePath, userStore.isDirectory(filePath), null, null, outputPath,
+                    bagPath, baseFiles, unchangedFiles, context.isIncrementalHashCheck(), progress);
+        } finally {
+            // Stop progress tracking
+            tracker.stop();
+        }
+        
+        logger.info("Checked: " + progress.getDirCount() + " directories, " + progress.getByteCount() + " bytes, copied " + progress.getFileCount() + " files");
+    }
+    
+    /**
+     * Copy a file or directory if it is new or has changed since the base deposit
+     * @param userStore
+     * @param filePath
+     * @param isDirectory
+     * @param size The file size from the directory listing, or null if not known
+     * @param modified The file modification time from the directory listing, or null if not known
+     * @param outputPath The path to copy to
+     * @param bagPath The bag directory
+     * @param baseFiles The files in the base deposit
+     * @param unchangedFiles Updated with the files which have not changed
+     * @param hashCheck Whether to compare the hash of a file when only its modification time has changed
+     * @param progress
+     * @throws Exception
+     */
+    static void copyChanged(UserStore userStore, String filePath, boolean isDirectory, Long size, Long modified, Path outputPath,
+                            Path bagPath, FileList baseFiles, FileList unchangedFiles, boolean hashCheck, Progress progress) throws Exception {
+        
+        if (isDirectory) {
+            Files.createDirectories(outputPath);
+            progress.addDir();
+            
+            for (FileInfo entry : userStore.list(filePath)) {
+                copyChanged(userStore, entry.getKey(), entry.getIsDirectory(), entry.getSize(), entry.getModified(),
+                        outputPath.resolve(entry.getName()), bagPath, baseFiles, unchangedFiles, hashCheck, progress);
+            }
+            return;
+        }
+        
+        String path = getBagRelativePath(bagPath, outputPath);
+        FileList.Entry base = baseFiles.get(path);
+        File outputFile = outputPath.toFile();
+        boolean copied = false;
+        
+        if (size == null) {
+            size = userStore.getSize(filePath);
+        }
+        
+        if (base != null && base.getSize() == size) {
+            
+            if (modified != null && modified == base.getModified()) {
+                // Unchanged, no need to read the file
+                unchangedFiles.add(base);
+                progress.addBytes(size);
+                return;
+            }
+            
+            if (hashCheck) {
+                // Only the modification time differs, so compare the content
+                String hash;
+                if (userStore instanceof StreamingDevice) {
+                    try (InputStream input = ((StreamingDevice)userStore).retrieveStream(filePath, progress)) {
+                        hash = DigestUtils.md5Hex(input);
+                    }
+                } else {
+                    ((Device)userStore).retrieve(filePath, outputFile, progress);
+                    copied = true;
+                    try (InputStream input = new FileInputStream(outputFile)) {
+                        hash = DigestUtils.md5Hex(input);
+                    }
+                }
+                
+                if (hash.equals(base.getHash())) {
+                    if (copied) {
+                        outputFile.delete();
+                    }
+                    unchangedFiles.add(new FileList.Entry(path, base.getHash(), size,
+                            modified != null ? modified : base.getModified(), base.getBagId()));
+                    return;
+                }
+            }
+        }
+        
+        // New or changed
+        if (!copied) {
+            ((Device)userStore).retrieve(filePath, outputFile, progress);
+        }
+        if (modified != null) {
+            // Record the source modification time for comparison by the next incremental deposit
+            outputFile.setLastModified(modified);
+        }
+    }
+    
+    /**
+     * Get the path of a file in the bag payload, as used in the manifest
+     * @param bagPath The bag directory (before the payload is moved into the data directory)
+     * @param file The file
+     * @return The path relative to the payload directory, with forward slashes
+     */
+    private static String getBagRelativePath(Path bagPath, Path file) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : bagPath.relativize(file)) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+    
     /**
      * @param tempPath
      * @param userID
@@ -391,33 +1081,173 @@ public class Deposit extends Task {
     }
 
     /**
+     * Store the tar file in every archive store at once. Stores which can read a stream share a
+     * single read of the tar file, and the others read it on their own threads. A store which fails
+     * is retried on its own once the others have finished.
+     * @param context
      * @param tarFile
-     * @throws Exception
+     * @param tarHash The digest of the tar file computed when it was written
+     * @throws Exception if the tar file could not be stored in every archive store
      */
-    private void copyToArchiveStorage(File tarFile) throws Exception {
+    private void copyToArchiveStorage(Context context, File tarFile, String tarHash) throws Exception {
 
-        for (String archiveStoreId : archiveStores.keySet() ) {
+        // Large archives are split into segments which are stored in parallel
+        if (context.getSegmentSize() > 0 && tarFile.length() > context.getSegmentSize()) {
+            segmentSize = context.getSegmentSize();
+        }
+        checkpoint.setValue("segmentSize", Long.toString(segmentSize));
+
+        // Any stores completed before the job was interrupted are not stored again
+        loadStoredArchives();
+
+        FanOutUpload fanOut = new FanOutUpload();
+        HashMap<String, Progress> fileStoreProgress = new HashMap<>();
+        MultiProgressTracker tracker = new MultiProgressTracker(jobID, depositId, tarFile.length(), eventStream);
+
+        for (String archiveStoreId : archiveStores.keySet()) {
             ArchiveStore archiveStore = archiveStores.get(archiveStoreId);
+            if (archiveIds.containsKey(archiveStoreId)) {
+                logger.info("Already stored in archive store " + getArchiveStoreLabel(archiveStoreId));
+                continue;
+            }
+            if (segmentSize == 0 && archiveStore instanceof StreamingDevice) {
+                fanOut.add(archiveStoreId, (StreamingDevice)archiveStore, "/", tarFile.getName());
+                tracker.add(getArchiveStoreLabel(archiveStoreId), fanOut.getProgress(archiveStoreId));
+            } else {
+                Progress progress = new Progress();
+                fileStoreProgress.put(archiveStoreId, progress);
+                tracker.add(getArchiveStoreLabel(archiveStoreId), progress);
+            }
+        }
 
-            // Progress tracking (threaded)
-            Progress progress = new Progress();
-            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, tarFile.length(), eventStream);
-            Thread trackerThread = new Thread(tracker);
-            trackerThread.start();
+        HashMap<String, Exception> errors = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, fileStoreProgress.size()));
+
+        // Progress tracking
+        tracker.start();
+
+        try {
+            HashMap<String, Future<String>> futures = new HashMap<>();
+            for (String archiveStoreId : fileStoreProgress.keySet()) {
+                futures.put(archiveStoreId, executor.submit(() ->
+                        storeInArchive(context, archiveStoreId, tarFile, tarHash, fileStoreProgress.get(archiveStoreId))));
+            }
+
+            // Digest the shared read to check the uploads match the tar file as written
+            MessageDigest uploadDigest = Verify.getMessageDigest();
+            try (InputStream input = new DigestInputStream(new FileInputStream(tarFile), uploadDigest)) {
+                fanOut.run(input);
+            }
+            if (!fanOut.getStoredIds().isEmpty()) {
+                checkDigest(Verify.getDigest(uploadDigest), tarHash);
+            }
+            archiveIds.putAll(fanOut.getStoredIds());
+            for (String archiveStoreId : fanOut.getStoredIds().keySet()) {
+                checkpoint.archiveDone(archiveStoreId, fanOut.getStoredIds().get(archiveStoreId));
+            }
+            errors.putAll(fanOut.getErrors());
 
-            String archiveId;
+            for (String archiveStoreId : futures.keySet()) {
+                try {
+                    archiveIds.put(archiveStoreId, futures.get(archiveStoreId).get());
+                } catch (ExecutionException e) {
+                    errors.put(archiveStoreId, (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+
+            // Stop progress tracking
+            tracker.stop();
+        }
+
+        // Retry each failed store on its own, so one store's failure does not affect the others
+        ArrayList<String> failedStores = new ArrayList<>();
+        for (String archiveStoreId : errors.keySet()) {
+            String label = getArchiveStoreLabel(archiveStoreId);
+            logger.warn("Storing in archive store " + label + " failed, retrying: " + errors.get(archiveStoreId).getMessage(),
+                    errors.get(archiveStoreId));
+
+            Progress progress = new Progress();
+            ProgressTracker retryTracker = new ProgressTracker(progress, jobID, depositId, tarFile.length(), eventStream);
+            retryTracker.start();
 
             try {
-                archiveId = ((Device) archiveStore).store("/", tarFile, progress);
+                archiveIds.put(archiveStoreId, storeInArchive(context, archiveStoreId, tarFile, tarHash, progress));
+            } catch (Exception e) {
+                logger.error("Storing in archive store " + label + " failed", e);
+                failedStores.add(label);
             } finally {
-                // Stop the tracking thread
-                tracker.stop();
-                trackerThread.join();
+                retryTracker.stop();
+            }
+        }
+
+        if (!failedStores.isEmpty()) {
+            throw new Exception("could not store the archive in " + String.join(", ", failedStores));
+        }
+
+        for (String archiveStoreId : archiveStores.keySet()) {
+            logger.info("Stored in archive store " + getArchiveStoreLabel(archiveStoreId) + ": " + archiveIds.get(archiveStoreId));
+        }
+    }
+
+    /**
+     * Store the tar file in a single archive store
+     * @param context
+     * @param archiveStoreId
+     * @param tarFile
+     * @param tarHash The digest of the tar file computed when it was written
+     * @param progress
+     * @return The archive ID returned by the archive store
+     * @throws Exception
+     */
+    private String storeInArchive(Context context, String archiveStoreId, File tarFile, String tarHash, Progress progress) throws Exception {
+
+        ArchiveStore archiveStore = archiveStores.get(archiveStoreId);
+        String archiveId;
+
+        if (segmentSize > 0) {
+            SegmentedArchive segmented = new SegmentedArchive(archiveStoreId, getArchiveStoreProperties(archiveStoreId),
+                    (Device)archiveStore, segmentSize, context.getTempDir().toFile());
+            ArrayList<String> segments = segmented.store(tarFile, progress, checkpoint.getSegmentLog(archiveStoreId));
+            synchronized (archiveSegments) {
+                archiveSegments.put(archiveStoreId, segments);
+            }
+            archiveId = segmented.getManifestId();
+        } else if (archiveStore instanceof StreamingDevice) {
+            // Digest the bytes as they are sent to check the upload matches the tar file as written
+            MessageDigest uploadDigest = Verify.getMessageDigest();
+            try (InputStream input = new DigestInputStream(new FileInputStream(tarFile), uploadDigest)) {
+                archiveId = ((StreamingDevice) archiveStore).storeStream("/", tarFile.getName(), input, progress);
             }
+            checkDigest(Verify.getDigest(uploadDigest), tarHash);
+        } else {
+            archiveId = ((Device) archiveStore).store("/", tarFile, progress);
+        }
 
-            logger.info("Copied: " + progress.dirCount + " directories, " + progress.fileCount + " files, " + progress.byteCount + " bytes");
+        logger.info("Copied: " + progress.getDirCount() + " directories, " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+        checkpoint.archiveDone(archiveStoreId, archiveId);
+        return archiveId;
+    }
 
-            archiveIds.put(archiveStoreId, archiveId);
+    /**
+     * Use the archives which the checkpoint records as stored before the job was interrupted
+     */
+    private void loadStoredArchives() {
+        
+        String storedSegmentSize = checkpoint.getValue("segmentSize");
+        if (storedSegmentSize != null) {
+            segmentSize = Long.parseLong(storedSegmentSize);
+        }
+        
+        for (String archiveStoreId : archiveStores.keySet()) {
+            String archiveId = checkpoint.getArchiveId(archiveStoreId);
+            if (archiveId != null) {
+                archiveIds.put(archiveStoreId, archiveId);
+                if (segmentSize > 0) {
+                    archiveSegments.put(archiveStoreId, checkpoint.getSegmentIds(archiveStoreId));
+                }
+            }
         }
     }
 
@@ -441,8 +1271,13 @@ public class Deposit extends Task {
 
             if ((archiveStore.getVerifyMethod() == Verify.Method.LOCAL_ONLY) && (!alreadyVerified)){
 
-                // Verify the contents of the temporary file
-                verifyTarFile(context.getTempDir(), tarFile, null);
+                if (tarFile.exists()) {
+                    // Verify the contents of the temporary file
+                    verifyTarFile(context.getTempDir(), tarFile, null);
+                } else {
+                    // A streamed deposit has no temporary file to verify
+                    logger.info("No local copy of the archive to verify");
+                }
 
             } else if (archiveStore.getVerifyMethod() == Verify.Method.COPY_BACK) {
 
@@ -451,11 +1286,20 @@ public class Deposit extends Task {
                 // Delete the existing temporary file
                 tarFile.delete();
 
-                // Copy file back from the archive storage
-                copyBackFromArchive(archiveStore, archiveId, tarFile);
+                if (!archiveSegments.containsKey(archiveStoreId) && archiveStore instanceof StreamingDevice) {
+                    // Validate the archive as it is read back, without a temporary copy
+                    Progress progress = new Progress();
+                    try (InputStream input = ((StreamingDevice)archiveStore).retrieveStream(archiveId, progress)) {
+                        verifyTarStream(input, tarHash);
+                    }
+                    logger.info("Read back: " + progress.getByteCount() + " bytes");
+                } else {
+                    // Copy file back from the archive storage
+                    copyBackFromArchive(context, archiveStoreId, archiveStore, archiveId, tarFile);
 
-                // Verify the contents
-                verifyTarFile(context.getTempDir(), tarFile, tarHash);
+                    // Verify the contents
+                    verifyTarFile(context.getTempDir(), tarFile, tarHash);
+                }
             }
         }
     }
@@ -464,54 +1308,128 @@ public class Deposit extends Task {
      * Not sure what this does yet the comment below suggests it copies an archive to the tmp dir
      * why are deposit would do this I'm not sure
      * 
+     * @param context
+     * @param archiveStoreId
      * @param archiveStore
      * @param archiveId
      * @param tarFile
      * @throws Exception
      */
-    private void copyBackFromArchive(ArchiveStore archiveStore, String archiveId, File tarFile) throws Exception {
+    private void copyBackFromArchive(Context context, String archiveStoreId, ArchiveStore archiveStore, String archiveId, File tarFile) throws Exception {
 
-        // Ask the driver to copy files to the temp directory
         Progress progress = new Progress();
-        ((Device)archiveStore).retrieve(archiveId, tarFile, progress);
-        logger.info("Copied: " + progress.dirCount + " directories, " + progress.fileCount + " files, " + progress.byteCount + " bytes");
+        
+        if (archiveSegments.containsKey(archiveStoreId)) {
+            // Reassemble the segments in the temp directory
+            SegmentedArchive segmented = new SegmentedArchive(archiveStoreId, getArchiveStoreProperties(archiveStoreId),
+                    (Device)archiveStore, segmentSize, context.getTempDir().toFile());
+            segmented.retrieve(archiveSegments.get(archiveStoreId), tarFile, progress);
+        } else {
+            // Ask the driver to copy files to the temp directory
+            ((Device)archiveStore).retrieve(archiveId, tarFile, progress);
+        }
+        
+        logger.info("Copied: " + progress.getDirCount() + " directories, " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+    }
+    
+    /**
+     * Get the configured properties of an archive store
+     * @param archiveStoreId
+     * @return The properties of the archive store
+     */
+    private Map<String, String> getArchiveStoreProperties(String archiveStoreId) {
+        for (org.datavaultplatform.common.model.ArchiveStore archiveFileStore : archiveFileStores) {
+            if (archiveFileStore.getID().equals(archiveStoreId)) {
+                return archiveFileStore.getProperties();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Get the name of an archive store to show in progress messages
+     * @param archiveStoreId
+     * @return The label of the archive store, or its ID if it has no label
+     */
+    private String getArchiveStoreLabel(String archiveStoreId) {
+        for (org.datavaultplatform.common.model.ArchiveStore archiveFileStore : archiveFileStores) {
+            if (archiveFileStore.getID().equals(archiveStoreId) && archiveFileStore.getLabel() != null) {
+                return archiveFileStore.getLabel();
+            }
+        }
+        return archiveStoreId;
+    }
+    
+    /**
+     * Record the compression of the archive with the deposit, so that it can be decompressed on retrieval
+     * @param context
+     */
+    private void sendCompression(Context context) {
+        if (Compression.isCompressed(archiveCompression)) {
+            logger.info("Compression: " + archiveCompression + " level " + context.getCompressionLevel());
+            eventStream.send(new ComputedCompression(jobID, depositId, archiveCompression, context.getCompressionLevel())
+                .withUserId(userID));
+        }
+    }
+    
+    /**
+     * Compare a computed digest with the original digest of the tar file
+     * @param tarHash The computed digest
+     * @param origTarHash The original digest
+     * @throws Exception if the digests do not match
+     */
+    private void checkDigest(String tarHash, String origTarHash) throws Exception {
+        logger.info("Checksum: " + tarHash);
+        if (!tarHash.equals(origTarHash)) {
+            throw new Exception("checksum failed: " + tarHash + " != " + origTarHash);
+        }
     }
     
     /**
      * Compare the SHA hash of the passed in tar file and the passed in original hash.
      * 
-     * First compare the tar file then the bag then clean up
+     * The tar file is read once, checking its hash and validating the bag inside it as it
+     * is read, and then cleaned up.
      * 
      * If the verification fails at either check throw an exception (maybe we could throw separate exceptions here)
      * @param tempPath Path to the temp storage location
      * @param tarFile File 
-     * @param origTarHash String representing the orig hash
+     * @param origTarHash String representing the orig hash, or null if the hash is already checked
      * @throws Exception
      */
     private void verifyTarFile(Path tempPath, File tarFile, String origTarHash) throws Exception {
 
+        try (InputStream input = new FileInputStream(tarFile)) {
+            verifyTarStream(input, origTarHash);
+        }
+        
+        // Cleanup
+        logger.info("Cleaning up ...");
+        tarFile.delete();
+    }
+    
+    /**
+     * Validate the bag in a tar stream without extracting it, comparing the SHA hash of the
+     * stream with the original hash in the same read.
+     * @param input The tar stream
+     * @param origTarHash String representing the orig hash, or null if the hash is already checked
+     * @throws Exception if the hash does not match or the bag is invalid
+     */
+    private void verifyTarStream(InputStream input, String origTarHash) throws Exception {
+
+        MessageDigest digest = Verify.getMessageDigest();
+        TarValidator.Result result = TarValidator.validate(new DigestInputStream(input, digest), archiveCompression);
+        
         if (origTarHash != null) {
             // Compare the SHA hash
-            String tarHash = Verify.getDigest(tarFile);
-            logger.info("Checksum: " + tarHash);
-            if (!tarHash.equals(origTarHash)) {
-                throw new Exception("checksum failed: " + tarHash + " != " + origTarHash);
-            }
+            checkDigest(Verify.getDigest(digest), origTarHash);
         }
         
-        // Decompress to the temporary directory
-        File bagDir = Tar.unTar(tarFile, tempPath);
-        
         // Validate the bagit directory
-        if (!Packager.validateBag(bagDir)) {
-            throw new Exception("Bag is invalid");
+        if (!result.isValid()) {
+            throw new Exception("Bag is invalid: " + result);
         } else {
             logger.info("Bag is valid");
         }
-        
-        // Cleanup
-        logger.info("Cleaning up ...");
-        FileUtils.deleteDirectory(bagDir);
-        tarFile.delete();
     }
-}
\ No newline at end of file
+}
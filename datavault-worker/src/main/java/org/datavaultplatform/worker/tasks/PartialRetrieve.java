@@ -0,0 +1,512 @@
+package org.datavaultplatform.worker.tasks;
+
+import java.util.Map;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.datavaultplatform.common.event.retrieve.RetrieveComplete;
+import org.datavaultplatform.common.event.retrieve.RetrieveStart;
+import org.datavaultplatform.common.model.ArchiveStore;
+import org.datavaultplatform.common.task.Context;
+import org.datavaultplatform.common.task.Task;
+import org.datavaultplatform.worker.queue.EventSender;
+import org.datavaultplatform.common.event.Error;
+import org.datavaultplatform.common.event.InitStates;
+import org.datavaultplatform.common.event.UpdateProgress;
+
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.Device;
+import org.datavaultplatform.common.storage.StreamingDevice;
+import org.datavaultplatform.common.storage.UserStore;
+import org.datavaultplatform.worker.operations.ArchiveRangeReader;
+import org.datavaultplatform.worker.operations.Compression;
+import org.datavaultplatform.worker.operations.FileList;
+import org.datavaultplatform.worker.operations.Packager;
+import org.datavaultplatform.worker.operations.ProgressTracker;
+import org.datavaultplatform.worker.operations.SegmentedArchive;
+import org.datavaultplatform.worker.operations.TarIndex;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class that extends Task which is used to retrieve selected files or directories from a deposit
+ */
+public class PartialRetrieve extends Task {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartialRetrieve.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * A file to retrieve, with its position in the archive which holds it
+     */
+    private static class Selected {
+        final TarIndex.Entry entry;
+        final String hash;
+        final Long modified;
+
+        Selected(TarIndex.Entry entry, String hash, Long modified) {
+            this.entry = entry;
+            this.hash = hash;
+            this.modified = modified;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.datavaultplatform.common.task.Task#performAction(org.datavaultplatform.common.task.Context)
+     *
+     * Connect to the user's file store, find the selected files in the archive index, read only those files
+     * from the archive and transfer them to the user's file store. Each file is checked against the hash
+     * recorded when it was deposited.
+     *
+     * @param context
+     */
+    @Override
+    public void performAction(Context context) {
+
+        EventSender eventStream = (EventSender)context.getEventStream();
+
+        logger.info("Partial retrieve job - performAction()");
+
+        Map<String, String> properties = getProperties();
+        String depositId = properties.get("depositId");
+        String retrieveId = properties.get("retrieveId");
+        String bagID = properties.get("bagId");
+        String retrievePath = properties.get("retrievePath");
+        String userID = properties.get("userId");
+
+        if (this.isRedeliver()) {
+            if (!context.isResumableJobs()) {
+                eventStream.send(new Error(jobID, depositId, "Retrieve stopped: the message had been redelivered, please investigate")
+                    .withUserId(userID));
+                return;
+            }
+            // Only the selected files are read, so the retrieve starts again
+            logger.info("Retrieve redelivered, starting again");
+        }
+
+        ArrayList<String> states = new ArrayList<>();
+        states.add("Computing free space");    // 0
+        states.add("Retrieving from archive"); // 1
+        states.add("Transferring files");      // 2
+        states.add("Data retrieve complete");  // 3
+        eventStream.send(new InitStates(jobID, depositId, states)
+            .withUserId(userID));
+
+        eventStream.send(new RetrieveStart(jobID, depositId, retrieveId)
+            .withUserId(userID)
+            .withNextState(0));
+
+        logger.info("bagID: " + bagID);
+        logger.info("retrievePath: " + retrievePath);
+
+        Device userFs = null;
+        UserStore userStore = null;
+        Device archiveFs = null;
+
+        for (String storageID : userFileStoreClasses.keySet()) {
+
+            String storageClass = userFileStoreClasses.get(storageID);
+            Map<String, String> storageProperties = userFileStoreProperties.get(storageID);
+
+            // Connect to the first user storage device (we only expect one for a retrieval)
+            try {
+                Class<?> clazz = Class.forName(storageClass);
+                Constructor<?> constructor = clazz.getConstructor(String.class, Map.class);
+                Object instance = constructor.newInstance(storageClass, storageProperties);
+                userFs = (Device)instance;
+                userStore = (UserStore)userFs;
+                logger.info("Connected to user store: " + storageID + ", class: " + storageClass);
+                break;
+            } catch (Exception e) {
+                String msg = "Retrieve failed: could not access user filesystem";
+                logger.error(msg, e);
+                eventStream.send(new Error(jobID, depositId, msg)
+                    .withUserId(userID));
+                return;
+            }
+        }
+
+        // We get passed a list because it is a parameter common to deposits and retrieves, but for retrieve there should only be one.
+        ArchiveStore archiveFileStore = archiveFileStores.get(0);
+
+        // Connect to the archive storage
+        try {
+            Class<?> clazz = Class.forName(archiveFileStore.getStorageClass());
+            Constructor<?> constructor = clazz.getConstructor(String.class, Map.class);
+            Object instance = constructor.newInstance(archiveFileStore.getStorageClass(), archiveFileStore.getProperties());
+            archiveFs = (Device)instance;
+        } catch (Exception e) {
+            String msg = "Retrieve failed: could not access archive filesystem";
+            logger.error(msg, e);
+            eventStream.send(new Error(jobID, depositId, msg)
+                .withUserId(userID));
+            return;
+        }
+
+        try {
+            if (!userStore.exists(retrievePath) || !userStore.isDirectory(retrievePath)) {
+                // Target path must exist and be a directory
+                String msg = "Retrieve failed: target directory not found";
+                logger.error(msg);
+                eventStream.send(new Error(jobID, depositId, msg)
+                    .withUserId(userID));
+                return;
+            }
+
+            // Find the selected files in the archive indexes
+            ObjectMapper mapper = new ObjectMapper();
+            List<String> selectedPaths = mapper.readValue(properties.get("selectedPaths"), new TypeReference<List<String>>() {});
+            Map<String, List<Selected>> selection = select(context, bagID, selectedPaths);
+
+            long selectedSize = 0;
+            int selectedCount = 0;
+            for (List<Selected> files : selection.values()) {
+                for (Selected file : files) {
+                    selectedSize += file.entry.getSize();
+                    selectedCount += 1;
+                }
+            }
+            logger.info("Selected: " + selectedCount + " files, " + selectedSize + " bytes");
+
+            // Check that there's enough free space ...
+            try {
+                long freespace = userFs.getUsableSpace();
+                logger.info("Free space: " + freespace + " bytes (" +  FileUtils.byteCountToDisplaySize(freespace) + ")");
+                if (freespace < selectedSize) {
+                    eventStream.send(new Error(jobID, depositId, "Not enough free space to retrieve data!")
+                        .withUserId(userID));
+                    return;
+                }
+            } catch (Exception e) {
+                logger.error("Unable to determine free space", e);
+                eventStream.send(new Error(jobID, depositId, "Unable to determine free space")
+                    .withUserId(userID));
+                return;
+            }
+
+            // The archives of the base deposits of an incremental deposit
+            Map<String, Map<String, String>> archives = new HashMap<>();
+            archives.put(bagID, properties);
+            if (properties.get("baseArchives") != null) {
+                List<Map<String, String>> bases = mapper.readValue(properties.get("baseArchives"),
+                        new TypeReference<List<Map<String, String>>>() {});
+                for (Map<String, String> base : bases) {
+                    archives.put(base.get("bagId"), base);
+                }
+            }
+
+            eventStream.send(new UpdateProgress(jobID, depositId, 0, selectedSize, "Starting transfer ...")
+                .withUserId(userID)
+                .withNextState(1));
+
+            // Read the selected files into a bag directory in the temporary area
+            File bagDir = context.getTempDir().resolve(bagID).toFile();
+            Path dataPath = bagDir.toPath().resolve(Packager.dataDirName);
+            Files.createDirectories(dataPath);
+
+            // Progress tracking
+            Progress progress = new Progress();
+            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, selectedSize, eventStream);
+            tracker.start();
+
+            try {
+                for (String archiveBagId : selection.keySet()) {
+                    Map<String, String> archive = archives.get(archiveBagId);
+                    if (archive == null) {
+                        throw new Exception("No archive for the base deposit " + archiveBagId);
+                    }
+                    extractFiles(context, archiveFs, archiveFileStore, archive, archiveBagId,
+                            selection.get(archiveBagId), bagDir, progress);
+                }
+            } catch (Exception e) {
+                FileUtils.deleteDirectory(bagDir);
+                throw e;
+            } finally {
+                // Stop progress tracking
+                tracker.stop();
+            }
+
+            logger.info("Read: " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+
+            // Copy the selected files to the target retrieve area
+            logger.info("Copying to user directory ...");
+            eventStream.send(new UpdateProgress(jobID, depositId, 0, selectedSize, "Starting transfer ...")
+                .withUserId(userID)
+                .withNextState(2));
+
+            // Progress tracking
+            progress = new Progress();
+            tracker = new ProgressTracker(progress, jobID, depositId, selectedSize, eventStream);
+            tracker.start();
+
+            try {
+                // Ask the driver to copy files to the user directory
+                userFs.store(retrievePath, bagDir, progress);
+            } finally {
+                // Stop progress tracking
+                tracker.stop();
+            }
+
+            logger.info("Copied: " + progress.getDirCount() + " directories, " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+
+            // Cleanup
+            logger.info("Cleaning up ...");
+            FileUtils.deleteDirectory(bagDir);
+
+            logger.info("Data retrieve complete: " + retrievePath);
+            eventStream.send(new RetrieveComplete(jobID, depositId, retrieveId).withNextState(3)
+                .withUserId(userID));
+
+        } catch (Exception e) {
+            String msg = "Data retrieve failed: " + e.getMessage();
+            logger.error(msg, e);
+            eventStream.send(new Error(jobID, depositId, msg)
+                .withUserId(userID));
+        }
+    }
+
+    /**
+     * Find the selected files in the archive index of the deposit, or for an incremental deposit in the
+     * archive indexes of the deposits which hold their content
+     * @param context
+     * @param bagID
+     * @param selectedPaths Paths of files or directories, relative to the payload directory
+     * @return The selected files, grouped by the bag which holds them
+     * @throws Exception if a path does not match any files or an archive index is missing
+     */
+    private Map<String, List<Selected>> select(Context context, String bagID, List<String> selectedPaths) throws Exception {
+
+        List<String> indexPaths = new ArrayList<>();
+        for (String path : selectedPaths) {
+            while (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            indexPaths.add(path.isEmpty() ? Packager.dataDirName : Packager.dataDirName + "/" + path);
+        }
+
+        Map<String, List<Selected>> selection = new LinkedHashMap<>();
+        Map<String, TarIndex> indexes = new HashMap<>();
+        Path metaPath = context.getMetaDir().resolve(bagID);
+        Path fileListPath = metaPath.resolve(Packager.metadataDirName).resolve(Packager.fileListMetaFileName);
+
+        if (Files.exists(fileListPath)) {
+            // The file list describes every file in the deposit and the bag which holds it
+            String prefix = Packager.dataDirName + "/";
+            for (FileList.Entry file : FileList.read(fileListPath).getEntries()) {
+                if (!isSelected(prefix + file.getPath(), indexPaths)) {
+                    continue;
+                }
+
+                TarIndex index = indexes.get(file.getBagId());
+                if (index == null) {
+                    index = readIndex(context, file.getBagId());
+                    indexes.put(file.getBagId(), index);
+                }
+                TarIndex.Entry entry = index.get(prefix + file.getPath());
+                if (entry == null) {
+                    throw new Exception("File " + file.getPath() + " is not in the archive of " + file.getBagId());
+                }
+
+                if (!selection.containsKey(file.getBagId())) {
+                    selection.put(file.getBagId(), new ArrayList<Selected>());
+                }
+                selection.get(file.getBagId()).add(new Selected(entry, file.getHash(), file.getModified()));
+            }
+        } else {
+            Map<String, String> hashes = readManifest(metaPath.resolve(Packager.manifestFileName));
+            List<Selected> files = new ArrayList<>();
+            for (TarIndex.Entry entry : readIndex(context, bagID).select(indexPaths)) {
+                if (hashes.containsKey(entry.getPath())) {
+                    files.add(new Selected(entry, hashes.get(entry.getPath()), null));
+                }
+            }
+            if (!files.isEmpty()) {
+                selection.put(bagID, files);
+            }
+        }
+
+        if (selection.isEmpty()) {
+            throw new Exception("No files found for " + selectedPaths);
+        }
+
+        // Read each archive in order
+        for (List<Selected> files : selection.values()) {
+            files.sort((a, b) -> Long.compare(a.entry.getHeaderOffset(), b.entry.getHeaderOffset()));
+        }
+
+        return selection;
+    }
+
+    private static boolean isSelected(String path, List<String> indexPaths) {
+        for (String indexPath : indexPaths) {
+            if (path.equals(indexPath) || path.startsWith(indexPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TarIndex readIndex(Context context, String bagId) throws Exception {
+        Path indexPath = context.getMetaDir().resolve(bagId).resolve(Packager.tarIndexMetaFileName);
+        if (!Files.exists(indexPath)) {
+            throw new Exception("No archive index for " + bagId + ", the whole deposit must be retrieved");
+        }
+        return TarIndex.read(indexPath);
+    }
+
+    private static Map<String, String> readManifest(Path manifestPath) throws Exception {
+        Map<String, String> hashes = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator != -1) {
+                    hashes.put(line.substring(separator).replaceFirst("^\\s+", ""), line.substring(0, separator));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Read the selected files from an archive into the bag directory. Only the selected entries are read
+     * if the archive store supports ranged reads, otherwise the archive is read through once.
+     * @param context
+     * @param archiveFs
+     * @param archiveFileStore
+     * @param archive The archive properties, in the same form as the retrieve properties
+     * @param archiveBagId The bag held in the archive
+     * @param files The files to read, in archive order
+     * @param bagDir The bag directory to read the files into
+     * @param progress
+     * @throws Exception if a file could not be read or does not match its hash
+     */
+    private void extractFiles(Context context, Device archiveFs, ArchiveStore archiveFileStore, Map<String, String> archive,
+                              String archiveBagId, List<Selected> files, File bagDir, Progress progress) throws Exception {
+
+        String archiveId = archive.get("archiveId");
+        String archiveCompression = archive.get("archiveCompression");
+        List<String> segmentIds = null;
+        long segmentSize = 0;
+        if (archive.get("archiveSegments") != null) {
+            segmentIds = new ObjectMapper().readValue(archive.get("archiveSegments"), new TypeReference<List<String>>() {});
+            segmentSize = Long.parseLong(archive.get("archiveSegmentSize"));
+        }
+
+        if (ArchiveRangeReader.canRead(archiveFs, segmentIds, archiveCompression)) {
+            logger.info("Reading " + files.size() + " files from " + archiveBagId + " by range");
+            try (ArchiveRangeReader reader = new ArchiveRangeReader(archiveFs, archiveId, segmentIds, segmentSize,
+                    context.getTempDir().toFile())) {
+                for (Selected file : files) {
+                    Progress rangeProgress = new Progress();
+                    try (InputStream input = reader.open(file.entry.getDataOffset(), file.entry.getSize(), rangeProgress)) {
+                        extractFile(input, file, bagDir, progress);
+                    }
+                }
+            }
+            return;
+        }
+
+        // Read through the whole archive, keeping only the selected files
+        logger.info("Reading " + files.size() + " files from " + archiveBagId + " by reading the archive");
+        Map<String, Selected> remaining = new HashMap<>();
+        for (Selected file : files) {
+            remaining.put(file.entry.getPath(), file);
+        }
+
+        File tarFile = null;
+        InputStream archiveInput;
+        if (segmentIds == null && archiveFs instanceof StreamingDevice) {
+            archiveInput = ((StreamingDevice)archiveFs).retrieveStream(archiveId, new Progress());
+        } else {
+            tarFile = context.getTempDir().resolve(archiveBagId + ".tar").toFile();
+            if (segmentIds != null) {
+                SegmentedArchive segmented = new SegmentedArchive(archiveFileStore.getID(), archiveFileStore.getProperties(),
+                        archiveFs, segmentSize, context.getTempDir().toFile());
+                segmented.retrieve(segmentIds, tarFile, new Progress());
+            } else {
+                archiveFs.retrieve(archiveId, tarFile, new Progress());
+            }
+            archiveInput = new FileInputStream(tarFile);
+        }
+
+        try (InputStream input = archiveInput) {
+            TarArchiveInputStream tar = new TarArchiveInputStream(Compression.decompress(input, archiveCompression));
+            TarArchiveEntry tarEntry;
+            while (!remaining.isEmpty() && (tarEntry = tar.getNextTarEntry()) != null) {
+                String name = tarEntry.getName();
+                Selected file = remaining.remove(name.substring(name.indexOf('/') + 1));
+                if (file != null && tarEntry.isFile()) {
+                    extractFile(tar, file, bagDir, progress);
+                }
+            }
+        } finally {
+            if (tarFile != null) {
+                tarFile.delete();
+            }
+        }
+
+        if (!remaining.isEmpty()) {
+            throw new Exception("Files missing from the archive of " + archiveBagId + ": " + remaining.keySet());
+        }
+    }
+
+    /**
+     * Write a file into the bag directory, checking its hash as it is written
+     * @param input The file contents
+     * @param file The selected file
+     * @param bagDir
+     * @param progress
+     * @throws Exception if the file does not match its hash
+     */
+    private void extractFile(InputStream input, Selected file, File bagDir, Progress progress) throws Exception {
+
+        Path target = bagDir.toPath().resolve(file.entry.getPath());
+        Files.createDirectories(target.getParent());
+
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        long size = 0;
+        try (OutputStream output = Files.newOutputStream(target)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                md5.update(buffer, 0, n);
+                output.write(buffer, 0, n);
+                size += n;
+                progress.addBytes(n);
+            }
+        }
+
+        String hash = Hex.encodeHexString(md5.digest());
+        if (size != file.entry.getSize() || !hash.equalsIgnoreCase(file.hash)) {
+            throw new Exception("checksum failed for " + file.entry.getPath() + ": " + hash + " != " + file.hash);
+        }
+
+        if (file.modified != null) {
+            target.toFile().setLastModified(file.modified);
+        }
+        progress.addFile();
+    }
+}
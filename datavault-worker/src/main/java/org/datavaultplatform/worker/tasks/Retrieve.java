@@ -2,12 +2,23 @@ package org.datavaultplatform.worker.tasks;
 
 import java.util.Map;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import org.datavaultplatform.common.event.retrieve.RetrieveComplete;
 import org.datavaultplatform.common.event.retrieve.RetrieveStart;
 import org.datavaultplatform.common.model.ArchiveStore;
@@ -19,12 +30,20 @@ import org.datavaultplatform.common.event.InitStates;
 import org.datavaultplatform.common.event.UpdateProgress;
 
 import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.io.ProgressInputStream;
 import org.datavaultplatform.common.storage.Device;
+import org.datavaultplatform.common.storage.DirectoryDevice;
+import org.datavaultplatform.common.storage.StreamingDevice;
 import org.datavaultplatform.common.storage.UserStore;
 import org.datavaultplatform.common.storage.Verify;
+import org.datavaultplatform.worker.operations.Checkpoint;
+import org.datavaultplatform.worker.operations.FileList;
+import org.datavaultplatform.worker.operations.PipelinedExtract;
 import org.datavaultplatform.worker.operations.ProgressTracker;
-import org.datavaultplatform.worker.operations.Tar;
+import org.datavaultplatform.worker.operations.TarValidator;
 import org.datavaultplatform.worker.operations.Packager;
+import org.datavaultplatform.worker.operations.SegmentedArchive;
+import org.datavaultplatform.worker.operations.StageLimits;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +55,10 @@ public class Retrieve extends Task {
     
     private static final Logger logger = LoggerFactory.getLogger(Retrieve.class);
     
+    // Checkpointed stages of a staged retrieve
+    private static final String RETRIEVED = "retrieved";
+    private static final String EXTRACTED = "extracted";
+    
     /* (non-Javadoc)
      * @see org.datavaultplatform.common.task.Task#performAction(org.datavaultplatform.common.task.Context)
      * 
@@ -63,13 +86,25 @@ public class Retrieve extends Task {
         String userID = properties.get("userId");
         String archiveDigest = properties.get("archiveDigest");
         String archiveDigestAlgorithm = properties.get("archiveDigestAlgorithm");
+        String archiveCompression = properties.get("archiveCompression");
+        String archiveSegments = properties.get("archiveSegments");
         
         long archiveSize = Long.parseLong(properties.get("archiveSize"));
 
+        // The progress of the retrieve, so that it can be resumed if the job is redelivered
+        Checkpoint checkpoint = Checkpoint.open(context.getTempDir(), jobID, context.isResumableJobs());
+        
         if (this.isRedeliver()) {
-            eventStream.send(new Error(jobID, depositId, "Retrieve stopped: the message had been redelivered, please investigate")
-                .withUserId(userID));
-            return;
+            if (!context.isResumableJobs()) {
+                eventStream.send(new Error(jobID, depositId, "Retrieve stopped: the message had been redelivered, please investigate")
+                    .withUserId(userID));
+                return;
+            }
+            if (checkpoint.isResumed()) {
+                logger.info("Retrieve redelivered, resuming after: " + checkpoint.getStages());
+            } else {
+                logger.info("Retrieve redelivered, no checkpoint so starting again");
+            }
         }
         
         ArrayList<String> states = new ArrayList<>();
@@ -153,6 +188,19 @@ public class Retrieve extends Task {
                     .withUserId(userID));
             }
 
+            if (context.isPipelinedRetrieve() && properties.get("baseArchives") == null
+                    && userFs instanceof StreamingDevice && userFs instanceof DirectoryDevice) {
+                // Check, extract and store the archive in the user storage as it is read
+                try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                    pipelinedRetrieve(context, eventStream, archiveFs, archiveFileStore, (StreamingDevice)userFs, retrievePath);
+                }
+                
+                logger.info("Data retrieve complete: " + retrievePath);
+                eventStream.send(new RetrieveComplete(jobID, depositId, retrieveId).withNextState(4)
+                    .withUserId(userID));
+                return;
+            }
+
             // Retrieve the archived data
             String tarFileName = bagID + ".tar";
             
@@ -160,54 +208,57 @@ public class Retrieve extends Task {
             Path tarPath = context.getTempDir().resolve(tarFileName);
             File tarFile = tarPath.toFile();
             
-            eventStream.send(new UpdateProgress(jobID, depositId, 0, archiveSize, "Starting transfer ...")
-                .withUserId(userID)
-                .withNextState(1));
+            File bagDir;
             
-            // Progress tracking (threaded)
-            Progress progress = new Progress();
-            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, archiveSize, eventStream);
-            Thread trackerThread = new Thread(tracker);
-            trackerThread.start();
+            if (checkpoint.isDone(EXTRACTED)) {
+                bagDir = context.getTempDir().resolve(checkpoint.getValue("bagName")).toFile();
+                logger.info("Already retrieved and validated: " + bagDir.getName());
+            } else {
+                if (checkpoint.isDone(RETRIEVED) && tarFile.length() == Long.parseLong(checkpoint.getValue("tarFileSize"))) {
+                    logger.info("Already retrieved: " + tarFile.getName());
+                } else {
+                    eventStream.send(new UpdateProgress(jobID, depositId, 0, archiveSize, "Starting transfer ...")
+                        .withUserId(userID)
+                        .withNextState(1));
+                    
+                    // Progress tracking
+                    Progress progress = new Progress();
+                    ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, archiveSize, eventStream);
+                    tracker.start();
 
-            try {
-                // Ask the driver to copy files to the temp directory
-                archiveFs.retrieve(archiveId, tarFile, progress);
-            } finally {
-                // Stop the tracking thread
-                tracker.stop();
-                trackerThread.join();
-            }
-            
-            logger.info("Copied: " + progress.dirCount + " directories, " + progress.fileCount + " files, " + progress.byteCount + " bytes");
-            
-            logger.info("Validating data ...");
-            eventStream.send(new UpdateProgress(jobID, depositId).withNextState(2)
-                .withUserId(userID));
-            
-            // Verify integrity with deposit checksum
-            String systemAlgorithm = Verify.getAlgorithm();
-            if (!systemAlgorithm.equals(archiveDigestAlgorithm)) {
-                throw new Exception("Unsupported checksum algorithm: " + archiveDigestAlgorithm);
-            }
-            
-            String tarHash = Verify.getDigest(tarFile);
-            logger.info("Checksum algorithm: " + archiveDigestAlgorithm);
-            logger.info("Checksum: " + tarHash);
-            
-            if (!tarHash.equals(archiveDigest)) {
-                throw new Exception("checksum failed: " + tarHash + " != " + archiveDigest);
+                    try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
+                        retrieveArchive(context, archiveFs, archiveFileStore, archiveId,
+                                archiveSegments, properties.get("archiveSegmentSize"), tarFile, progress);
+                    } finally {
+                        // Stop progress tracking
+                        tracker.stop();
+                    }
+                    
+                    logger.info("Copied: " + progress.getDirCount() + " directories, " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
+                    
+                    checkpoint.setValue("tarFileSize", Long.toString(tarFile.length()));
+                    checkpoint.done(RETRIEVED);
+                }
+                
+                logger.info("Validating data ...");
+                eventStream.send(new UpdateProgress(jobID, depositId).withNextState(2)
+                    .withUserId(userID));
+                
+                try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.CPU)) {
+                    // Verify integrity with deposit checksum and validate the bag as it is decompressed to the temporary directory
+                    bagDir = extractArchive(context, tarFile, archiveDigest, archiveDigestAlgorithm, archiveCompression);
+                    tarFile.delete();
+                    
+                    // Add the unchanged files held by the base deposits of an incremental deposit
+                    addBaseFiles(context, archiveFs, archiveFileStore, bagDir, bagID, properties.get("baseArchives"));
+                }
+                
+                checkpoint.setValue("bagName", bagDir.getName());
+                checkpoint.done(EXTRACTED);
             }
             
-            // Decompress to the temporary directory
-            File bagDir = Tar.unTar(tarFile, context.getTempDir());
             long bagDirSize = FileUtils.sizeOfDirectory(bagDir);
             
-            // Validate the bagit directory
-            if (!Packager.validateBag(bagDir)) {
-                throw new Exception("Bag is invalid");
-            }
-            
             // Get the payload data directory
             // File payloadDir = bagDir.toPath().resolve("data").toFile();
             // long payloadSize = FileUtils.sizeOfDirectory(payloadDir);
@@ -218,27 +269,24 @@ public class Retrieve extends Task {
                 .withUserId(userID)
                 .withNextState(3));
             
-            // Progress tracking (threaded)
-            progress = new Progress();
-            tracker = new ProgressTracker(progress, jobID, depositId, bagDirSize, eventStream);
-            trackerThread = new Thread(tracker);
-            trackerThread.start();
+            // Progress tracking
+            Progress progress = new Progress();
+            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, bagDirSize, eventStream);
+            tracker.start();
             
-            try {
+            try (StageLimits.Permit permit = StageLimits.enter(StageLimits.Stage.IO)) {
                 // Ask the driver to copy files to the user directory
                 userFs.store(retrievePath, bagDir, progress);
             } finally {
-                // Stop the tracking thread
+                // Stop progress tracking
                 tracker.stop();
-                trackerThread.join();
             }
             
-            logger.info("Copied: " + progress.dirCount + " directories, " + progress.fileCount + " files, " + progress.byteCount + " bytes");
+            logger.info("Copied: " + progress.getDirCount() + " directories, " + progress.getFileCount() + " files, " + progress.getByteCount() + " bytes");
             
             // Cleanup
             logger.info("Cleaning up ...");
             FileUtils.deleteDirectory(bagDir);
-            tarFile.delete();
             
             logger.info("Data retrieve complete: " + retrievePath);
             eventStream.send(new RetrieveComplete(jobID, depositId, retrieveId).withNextState(4)
@@ -251,4 +299,268 @@ public class Retrieve extends Task {
                 .withUserId(userID));
         }
     }
+    
+    /**
+     * Retrieve an archive straight into the user storage. The archive is hashed, decompressed, untarred and
+     * validated as it is read, and each file is stored as soon as it is extracted. An archive which cannot be
+     * read as a stream (e.g. a segmented archive) is copied to the temp directory first.
+     * 
+     * The retrieve only succeeds once the archive digest and the bag manifests have been checked.
+     * @param context
+     * @param eventStream
+     * @param archiveFs
+     * @param archiveFileStore
+     * @param userFs
+     * @param retrievePath
+     * @throws Exception if the archive could not be retrieved or is not valid
+     */
+    private void pipelinedRetrieve(Context context, EventSender eventStream, Device archiveFs, ArchiveStore archiveFileStore,
+                                   StreamingDevice userFs, String retrievePath) throws Exception {
+        
+        Map<String, String> properties = getProperties();
+        String depositId = properties.get("depositId");
+        String userID = properties.get("userId");
+        String bagID = properties.get("bagId");
+        String archiveId = properties.get("archiveId");
+        String archiveDigest = properties.get("archiveDigest");
+        String archiveDigestAlgorithm = properties.get("archiveDigestAlgorithm");
+        String archiveCompression = properties.get("archiveCompression");
+        String archiveSegments = properties.get("archiveSegments");
+        long archiveSize = Long.parseLong(properties.get("archiveSize"));
+        
+        String systemAlgorithm = Verify.getAlgorithm();
+        if (!systemAlgorithm.equals(archiveDigestAlgorithm)) {
+            throw new Exception("Unsupported checksum algorithm: " + archiveDigestAlgorithm);
+        }
+        
+        File tarFile = null;
+        InputStream archive;
+        
+        if (archiveSegments == null && archiveFs instanceof StreamingDevice) {
+            archive = ((StreamingDevice)archiveFs).retrieveStream(archiveId, new Progress());
+        } else {
+            eventStream.send(new UpdateProgress(jobID, depositId, 0, archiveSize, "Starting transfer ...")
+                .withUserId(userID)
+                .withNextState(1));
+            
+            // Progress tracking
+            Progress progress = new Progress();
+            ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, archiveSize, eventStream);
+            tracker.start();
+            
+            tarFile = context.getTempDir().resolve(bagID + ".tar").toFile();
+            try {
+                retrieveArchive(context, archiveFs, archiveFileStore, archiveId,
+                        archiveSegments, properties.get("archiveSegmentSize"), tarFile, progress);
+            } finally {
+                // Stop progress tracking
+                tracker.stop();
+            }
+            archive = new FileInputStream(tarFile);
+        }
+        
+        logger.info("Transferring files ...");
+        eventStream.send(new UpdateProgress(jobID, depositId, 0, archiveSize, "Starting transfer ...")
+            .withUserId(userID)
+            .withNextState(3));
+        
+        // Progress tracking
+        Progress progress = new Progress();
+        ProgressTracker tracker = new ProgressTracker(progress, jobID, depositId, archiveSize, eventStream);
+        tracker.start();
+        
+        MessageDigest digest = Verify.getMessageDigest();
+        PipelinedExtract extract = new PipelinedExtract(userFs, retrievePath);
+        TarValidator.Result result;
+        
+        try {
+            result = extract.run(new ProgressInputStream(archive, progress), archiveCompression, digest);
+        } finally {
+            // Stop progress tracking
+            tracker.stop();
+            
+            if (tarFile != null) {
+                tarFile.delete();
+            }
+        }
+        
+        logger.info("Copied: " + extract.getProgress().getFileCount() + " files, " + extract.getProgress().getByteCount() + " bytes");
+        
+        // Verify integrity with deposit checksum and the bag manifests
+        String tarHash = Verify.getDigest(digest);
+        logger.info("Checksum algorithm: " + archiveDigestAlgorithm);
+        logger.info("Checksum: " + tarHash);
+        
+        if (!tarHash.equals(archiveDigest)) {
+            throw new Exception("checksum failed: " + tarHash + " != " + archiveDigest
+                    + " (the retrieved files in " + retrievePath + " are not valid)");
+        }
+        if (!result.isValid()) {
+            throw new Exception("Bag is invalid: " + result + " (the retrieved files in " + retrievePath + " are not valid)");
+        }
+    }
+    
+    /**
+     * Copy an archive from the archive storage to the temp directory
+     * @param context
+     * @param archiveFs
+     * @param archiveFileStore
+     * @param archiveId
+     * @param archiveSegments The segment IDs (as JSON) if the archive is segmented, otherwise null
+     * @param archiveSegmentSize The segment size if the archive is segmented
+     * @param tarFile
+     * @param progress
+     * @throws Exception
+     */
+    private void retrieveArchive(Context context, Device archiveFs, ArchiveStore archiveFileStore, String archiveId,
+                                 String archiveSegments, String archiveSegmentSize, File tarFile, Progress progress) throws Exception {
+        
+        if (archiveSegments != null) {
+            // Fetch the segments in parallel and reassemble them in the temp directory
+            long segmentSize = Long.parseLong(archiveSegmentSize);
+            List<String> segmentIds = new ObjectMapper().readValue(archiveSegments, new TypeReference<List<String>>() {});
+            SegmentedArchive segmented = new SegmentedArchive(archiveFileStore.getID(), archiveFileStore.getProperties(),
+                    archiveFs, segmentSize, context.getTempDir().toFile());
+            segmented.retrieve(segmentIds, tarFile, progress);
+        } else {
+            // Ask the driver to copy files to the temp directory
+            archiveFs.retrieve(archiveId, tarFile, progress);
+        }
+    }
+    
+    /**
+     * Extract a retrieved archive to the temp directory, comparing its digest with the digest recorded
+     * when it was deposited and validating the bag in the same read of the archive
+     * @param context
+     * @param tarFile
+     * @param archiveDigest
+     * @param archiveDigestAlgorithm
+     * @param archiveCompression The compression format of the archive, or null if not compressed
+     * @return The extracted bag
+     * @throws Exception if the digests do not match or the bag is invalid
+     */
+    private File extractArchive(Context context, File tarFile, String archiveDigest, String archiveDigestAlgorithm,
+                                String archiveCompression) throws Exception {
+        
+        String systemAlgorithm = Verify.getAlgorithm();
+        if (!systemAlgorithm.equals(archiveDigestAlgorithm)) {
+            throw new Exception("Unsupported checksum algorithm: " + archiveDigestAlgorithm);
+        }
+        
+        MessageDigest digest = Verify.getMessageDigest();
+        TarValidator.Result result;
+        try (InputStream input = new DigestInputStream(new FileInputStream(tarFile), digest)) {
+            result = TarValidator.validate(input, archiveCompression, context.getTempDir());
+        }
+        File bagDir = (result.getBagName() != null) ? context.getTempDir().resolve(result.getBagName()).toFile() : null;
+        
+        String tarHash = Verify.getDigest(digest);
+        logger.info("Checksum algorithm: " + archiveDigestAlgorithm);
+        logger.info("Checksum: " + tarHash);
+        
+        try {
+            if (!tarHash.equals(archiveDigest)) {
+                throw new Exception("checksum failed: " + tarHash + " != " + archiveDigest);
+            }
+            if (!result.isValid()) {
+                throw new Exception("Bag is invalid: " + result);
+            }
+        } catch (Exception e) {
+            if (bagDir != null) {
+                FileUtils.deleteDirectory(bagDir);
+            }
+            throw e;
+        }
+        
+        return bagDir;
+    }
+    
+    /**
+     * Rebuild the full contents of an incremental deposit by adding the unchanged files from the
+     * archives of its base deposits. Each file is checked against the hash in the deposit file list,
+     * and the bag manifests are rewritten to cover the full payload.
+     * @param context
+     * @param archiveFs
+     * @param archiveFileStore
+     * @param bagDir The retrieved bag
+     * @param bagID
+     * @param baseArchives The archive properties of the base deposits (as JSON), or null
+     * @throws Exception
+     */
+    private void addBaseFiles(Context context, Device archiveFs, ArchiveStore archiveFileStore,
+                              File bagDir, String bagID, String baseArchives) throws Exception {
+        
+        Path fileListPath = bagDir.toPath().resolve(Packager.metadataDirName).resolve(Packager.fileListMetaFileName);
+        if (!Files.exists(fileListPath)) {
+            return;
+        }
+        
+        FileList fileList = FileList.read(fileListPath);
+        Set<String> baseBagIds = fileList.getBagIds();
+        baseBagIds.remove(bagID);
+        if (baseBagIds.isEmpty()) {
+            return;
+        }
+        
+        if (baseArchives == null) {
+            throw new Exception("No archives for the base deposits " + baseBagIds);
+        }
+        
+        List<Map<String, String>> bases = new ObjectMapper().readValue(baseArchives, new TypeReference<List<Map<String, String>>>() {});
+        Path dataPath = bagDir.toPath().resolve(Packager.dataDirName);
+        
+        for (Map<String, String> base : bases) {
+            String baseBagId = base.get("bagId");
+            if (!baseBagIds.remove(baseBagId)) {
+                // None of the files are held in this deposit
+                continue;
+            }
+            
+            logger.info("Retrieving base deposit " + baseBagId + " ...");
+            File baseTarFile = context.getTempDir().resolve(baseBagId + ".tar").toFile();
+            Progress progress = new Progress();
+            retrieveArchive(context, archiveFs, archiveFileStore, base.get("archiveId"),
+                    base.get("archiveSegments"), base.get("archiveSegmentSize"), baseTarFile, progress);
+            File baseBagDir = extractArchive(context, baseTarFile, base.get("archiveDigest"),
+                    base.get("archiveDigestAlgorithm"), base.get("archiveCompression"));
+            baseTarFile.delete();
+            
+            try {
+                Path baseDataPath = baseBagDir.toPath().resolve(Packager.dataDirName);
+                int count = 0;
+                
+                for (FileList.Entry entry : fileList.getEntries()) {
+                    if (!entry.getBagId().equals(baseBagId)) {
+                        continue;
+                    }
+                    
+                    Path source = baseDataPath.resolve(entry.getPath());
+                    String hash;
+                    try (InputStream input = new FileInputStream(source.toFile())) {
+                        hash = DigestUtils.md5Hex(input);
+                    }
+                    if (!hash.equals(entry.getHash())) {
+                        throw new Exception("checksum failed for " + entry.getPath() + " in base deposit " + baseBagId + ": "
+                                + hash + " != " + entry.getHash());
+                    }
+                    
+                    Path target = dataPath.resolve(entry.getPath());
+                    Files.createDirectories(target.getParent());
+                    Files.move(source, target);
+                    target.toFile().setLastModified(entry.getModified());
+                    count += 1;
+                }
+                
+                logger.info("Added " + count + " unchanged files from base deposit " + baseBagId);
+            } finally {
+                FileUtils.deleteDirectory(baseBagDir);
+            }
+        }
+        
+        if (!baseBagIds.isEmpty()) {
+            throw new Exception("No archives for the base deposits " + baseBagIds);
+        }
+        
+        Packager.rewriteManifests(bagDir, fileList);
+    }
 }
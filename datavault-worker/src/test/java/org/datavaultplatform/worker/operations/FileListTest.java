@@ -0,0 +1,95 @@
+package org.datavaultplatform.worker.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileListTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        FileList fileList = new FileList();
+        fileList.add(new FileList.Entry("dir/second.txt", "b026324c6904b2a9cb4b88d6d61c81d1", 2, 1500000001000L, "bag-1"));
+        fileList.add(new FileList.Entry("first.txt", "26ab0db90d72e28ad0ba1e22ee510510", 1, 1500000000000L, "bag-2"));
+        // The path is the last field, so it may contain tabs
+        fileList.add(new FileList.Entry("with\ttab.txt", "6d7fce9fee471194aa8b5b6e47267f03", 3, 1500000002000L, "bag-2"));
+
+        Path file = folder.getRoot().toPath().resolve("filelist.txt");
+        fileList.write(file);
+        FileList read = FileList.read(file);
+
+        assertEquals(3, read.size());
+        for (FileList.Entry entry : fileList.getEntries()) {
+            assertEntry(entry, read.get(entry.getPath()));
+        }
+        assertEquals(Arrays.asList("dir/second.txt", "first.txt", "with\ttab.txt"), paths(read));
+        assertEquals(Arrays.asList("bag-1", "bag-2"), new ArrayList<>(read.getBagIds()));
+    }
+
+    @Test
+    public void testReadEmpty() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("filelist.txt");
+        new FileList().write(file);
+
+        assertEquals(0, FileList.read(file).size());
+        assertNull(FileList.read(file).get("first.txt"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalid() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("filelist.txt");
+        Files.write(file, "not a file list\n".getBytes(StandardCharsets.UTF_8));
+
+        FileList.read(file);
+    }
+
+    @Test
+    public void testAddPayload() throws Exception {
+        File bagDir = folder.newFolder("bag");
+        File data = new File(bagDir, Packager.dataDirName);
+        data.mkdirs();
+        Files.write(new File(data, "first.txt").toPath(), "1\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(bagDir, Packager.manifestFileName).toPath(),
+                ("26ab0db90d72e28ad0ba1e22ee510510  " + Packager.dataDirName + "/first.txt\n").getBytes(StandardCharsets.UTF_8));
+
+        FileList fileList = new FileList();
+        fileList.addPayload(bagDir, "bag-1");
+
+        assertEquals(1, fileList.size());
+        FileList.Entry entry = fileList.get("first.txt");
+        assertEquals("26ab0db90d72e28ad0ba1e22ee510510", entry.getHash());
+        assertEquals(2, entry.getSize());
+        assertEquals("bag-1", entry.getBagId());
+    }
+
+    private static void assertEntry(FileList.Entry expected, FileList.Entry actual) {
+        assertEquals(expected.getPath(), actual.getPath());
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getModified(), actual.getModified());
+        assertEquals(expected.getBagId(), actual.getBagId());
+    }
+
+    private static List<String> paths(FileList fileList) {
+        List<String> paths = new ArrayList<>();
+        for (FileList.Entry entry : fileList.getEntries()) {
+            paths.add(entry.getPath());
+        }
+        return paths;
+    }
+}
@@ -175,6 +175,48 @@ public class PackagerTest {
         }
     } 
     
+    @Test
+    public void testCreateBagParallel() {
+        final String TEST_FILE1 = "item.pdf";
+        final String TEST_FILE2 = "banjo.jpg";
+        final String HIDDEN_FILE = ".hidden";
+        final String CHILD_DIR_NAME = "childdir";
+        
+        for (ManifestBuilder.Mode mode : ManifestBuilder.Mode.values()) {
+            File parentDir =  new File(testDir, "createbagparallel-" + mode);
+            File childDir =  new File(parentDir, CHILD_DIR_NAME);
+            File test1file = new File(packagerResources, TEST_FILE1);
+            File test2file = new File(packagerResources, TEST_FILE2);
+            
+            try {
+                // the output of a previous run would already be a bag
+                FileUtils.deleteDirectory(parentDir);
+                parentDir.mkdir();
+                FileUtils.copyFileToDirectory(test1file, parentDir);
+                FileUtils.copyFileToDirectory(test2file, childDir);
+                FileUtils.copyFile(test1file, new File(parentDir, HIDDEN_FILE));
+                
+                assertTrue(Packager.createBag(parentDir, 2, mode));
+                assertTrue(Packager.validateBag(parentDir));
+                
+                List<String> lines = FileUtils.readLines(
+                        new File(parentDir.getAbsolutePath() + File.separator + "manifest-md5.txt"));
+                assertEquals(3, lines.size());
+                assertTrue(lines.contains(this.getChecksum(test1file) + "  data/" + TEST_FILE1));
+                assertTrue(lines.contains(this.getChecksum(test2file) + "  data/" + CHILD_DIR_NAME + "/" + TEST_FILE2));
+                assertTrue(lines.contains(this.getChecksum(test1file) + "  data/" + HIDDEN_FILE));
+                
+                // metadata added to a parallel bag must also validate
+                Packager.addMetadata(parentDir, "deposit", "vault", "types", "external");
+                assertTrue(Packager.validateBag(parentDir));
+            }
+            catch(Exception ex) {
+                ex.printStackTrace();
+                fail(ex.getMessage());
+            }
+        }
+    }
+    
     @Test
     public void testAddMetadata() {
         final String TEST_FILE = "item.pdf";
@@ -0,0 +1,75 @@
+package org.datavaultplatform.worker.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelPackagerTest {
+
+    private static final int FILE_COUNT = 50;
+    private static final int FILES_PER_DIR = 10;
+    private static final int FILE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testParallelBagMatchesBagit() throws Exception {
+        File bagitDir = temp.newFolder("bagit");
+        createFiles(bagitDir);
+        Packager.createBag(bagitDir);
+        assertTrue(Packager.validateBag(bagitDir));
+        Map<String, String> expected = readManifest(bagitDir);
+        assertEquals(FILE_COUNT, expected.size());
+
+        for (ManifestBuilder.Mode mode : ManifestBuilder.Mode.values()) {
+            File parallelDir = temp.newFolder(mode.toString());
+            createFiles(parallelDir);
+            Packager.createBag(parallelDir, 4, mode);
+            assertTrue(Packager.validateBag(parallelDir));
+            assertEquals(expected, readManifest(parallelDir));
+        }
+    }
+
+    // The same files are created in each directory
+    private static void createFiles(File dir) throws IOException {
+        Random random = new Random(FILE_COUNT);
+        byte[] data = new byte[FILE_SIZE];
+
+        for (int i = 0; i < FILE_COUNT; i++) {
+            File subDir = new File(dir, "dir" + (i / FILES_PER_DIR));
+            subDir.mkdirs();
+            random.nextBytes(data);
+            try (OutputStream output = new FileOutputStream(new File(subDir, "file" + i))) {
+                output.write(data);
+            }
+        }
+    }
+
+    // The checksum of each file, by path
+    private static Map<String, String> readManifest(File bagDir) throws IOException {
+        Map<String, String> checksums = new HashMap<>();
+        File manifest = new File(bagDir, Packager.manifestFileName);
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                String[] parts = line.split("\\s+", 2);
+                checksums.put(parts[1], parts[0]);
+            }
+        }
+        return checksums;
+    }
+}
@@ -0,0 +1,150 @@
+package org.datavaultplatform.worker.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Test;
+
+public class TarValidatorTest {
+
+    private static final String BAG = "bag";
+    private static final String FIRST = "data/first.txt";
+    private static final String SECOND = "data/dir/second.txt";
+
+    @Test
+    public void testValidBag() throws Exception {
+        TarValidator.Result result = validateBag(payload());
+
+        assertTrue(result.toString(), result.isValid());
+        assertEquals(BAG, result.getBagName());
+    }
+
+    @Test
+    public void testCorruptPayload() throws Exception {
+        Map<String, byte[]> payload = payload();
+        Map<String, byte[]> files = bag(payload, manifest(payload), oxum(payload));
+        // The same size, so only the checksum differs
+        files.put(FIRST, bytes("Frist file"));
+
+        TarValidator.Result result = validate(files);
+
+        assertFalse(result.isValid());
+        assertEquals(Collections.singletonList(FIRST), result.getCorrupt());
+        assertTrue(result.getMissing().isEmpty());
+        assertTrue(result.getExtra().isEmpty());
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        Map<String, byte[]> payload = payload();
+        String manifest = manifest(payload);
+        String oxum = oxum(payload);
+        payload.remove(SECOND);
+
+        TarValidator.Result result = validate(bag(payload, manifest, oxum));
+
+        assertFalse(result.isValid());
+        assertEquals(Collections.singletonList(SECOND), result.getMissing());
+        assertTrue(result.getCorrupt().isEmpty());
+    }
+
+    @Test
+    public void testExtraFile() throws Exception {
+        Map<String, byte[]> payload = payload();
+        String manifest = manifest(payload);
+        payload.put("data/extra.txt", bytes("Not in the manifest"));
+
+        TarValidator.Result result = validate(bag(payload, manifest, oxum(payload)));
+
+        assertFalse(result.isValid());
+        assertEquals(Collections.singletonList("data/extra.txt"), result.getExtra());
+        assertTrue(result.getMissing().isEmpty());
+        assertTrue(result.getCorrupt().isEmpty());
+    }
+
+    @Test
+    public void testPayloadOxumMismatch() throws Exception {
+        Map<String, byte[]> payload = payload();
+
+        TarValidator.Result result = validate(bag(payload, manifest(payload), "1.1"));
+
+        assertFalse(result.isValid());
+        assertEquals(1, result.getErrors().size());
+        assertTrue(result.getErrors().get(0).startsWith("Payload-Oxum 1.1"));
+        assertTrue(result.getCorrupt().isEmpty());
+    }
+
+    private static Map<String, byte[]> payload() {
+        Map<String, byte[]> payload = new LinkedHashMap<>();
+        payload.put(FIRST, bytes("First file"));
+        payload.put(SECOND, bytes("Second file, in a sub-directory"));
+        return payload;
+    }
+
+    private static TarValidator.Result validateBag(Map<String, byte[]> payload) throws Exception {
+        return validate(bag(payload, manifest(payload), oxum(payload)));
+    }
+
+    // The files of a bag, by path within the bag
+    private static Map<String, byte[]> bag(Map<String, byte[]> payload, String manifest, String oxum) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(Packager.bagitFileName, bytes("BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n"));
+        files.put(Packager.bagInfoFileName, bytes("Payload-Oxum: " + oxum + "\n"));
+        files.putAll(payload);
+        files.put(Packager.manifestFileName, bytes(manifest));
+        return files;
+    }
+
+    private static String manifest(Map<String, byte[]> payload) {
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, byte[]> file : payload.entrySet()) {
+            manifest.append(DigestUtils.md5Hex(file.getValue())).append("  ").append(file.getKey()).append("\n");
+        }
+        return manifest.toString();
+    }
+
+    private static String oxum(Map<String, byte[]> payload) {
+        long bytes = 0;
+        for (byte[] data : payload.values()) {
+            bytes += data.length;
+        }
+        return bytes + "." + payload.size();
+    }
+
+    private static TarValidator.Result validate(Map<String, byte[]> files) throws Exception {
+        return TarValidator.validate(new ByteArrayInputStream(tar(files)), null);
+    }
+
+    private static byte[] tar(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(output)) {
+            tar.putArchiveEntry(new TarArchiveEntry(BAG + "/"));
+            tar.closeArchiveEntry();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                TarArchiveEntry entry = new TarArchiveEntry(BAG + "/" + file.getKey());
+                entry.setSize(file.getValue().length);
+                tar.putArchiveEntry(entry);
+                tar.write(file.getValue());
+                tar.closeArchiveEntry();
+            }
+            tar.finish();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
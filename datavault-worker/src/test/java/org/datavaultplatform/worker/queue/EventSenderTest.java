@@ -0,0 +1,40 @@
+package org.datavaultplatform.worker.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.datavaultplatform.common.event.UpdateProgress;
+import org.junit.Test;
+
+public class EventSenderTest {
+
+    @Test
+    public void testCoalesceDropsSupersededProgress() throws Exception {
+        EventSender sender = new EventSender();
+
+        EventSender.Message first = sender.encode(new UpdateProgress("job", "deposit", 1, 10, "First"));
+        EventSender.Message second = sender.encode(new UpdateProgress("job", "deposit", 2, 10, "Second"));
+
+        List<EventSender.Message> messages = EventSender.coalesce(Arrays.asList(first, second));
+
+        assertEquals(1, messages.size());
+        assertSame(second, messages.get(0));
+    }
+
+    @Test
+    public void testCoalesceKeepsStateChange() throws Exception {
+        EventSender sender = new EventSender();
+
+        EventSender.Message state = sender.encode(new UpdateProgress("job", "deposit").withNextState(2));
+        EventSender.Message progress = sender.encode(new UpdateProgress("job", "deposit", 0, 10, "Starting transfer ..."));
+
+        List<EventSender.Message> messages = EventSender.coalesce(Arrays.asList(state, progress));
+
+        assertEquals(2, messages.size());
+        assertSame(state, messages.get(0));
+        assertSame(progress, messages.get(1));
+    }
+}
@@ -0,0 +1,127 @@
+package org.datavaultplatform.worker.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.datavaultplatform.common.io.Progress;
+import org.datavaultplatform.common.storage.impl.LocalFileSystem;
+import org.datavaultplatform.worker.operations.FileList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalDepositTest {
+
+    private static final String BASE_BAG = "base-bag";
+    private static final long MODIFIED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalFileSystem userStore;
+    private Path bagPath;
+    private FileList baseFiles;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String,String> config = new HashMap<>();
+        config.put("rootPath", folder.getRoot().getAbsolutePath());
+        userStore = new LocalFileSystem("Local", config);
+        bagPath = folder.newFolder("bag").toPath();
+        folder.newFolder("src");
+
+        baseFiles = new FileList();
+
+        // In the base deposit and not changed since
+        addBaseFile("unchanged.txt", "Unchanged", MODIFIED);
+        writeSource("unchanged.txt", "Unchanged", MODIFIED);
+
+        // Touched since the base deposit, with the same content
+        addBaseFile("touched.txt", "Touched", MODIFIED);
+        writeSource("touched.txt", "Touched", MODIFIED + 60000);
+
+        // The same size but different content
+        addBaseFile("modified.txt", "Modified", MODIFIED);
+        writeSource("modified.txt", "Mudified", MODIFIED + 60000);
+
+        // A different size
+        addBaseFile("resized.txt", "Resized", MODIFIED);
+        writeSource("resized.txt", "Resized again", MODIFIED);
+
+        // Not in the base deposit
+        writeSource("new.txt", "New", MODIFIED);
+    }
+
+    @Test
+    public void testClassifyWithHashCheck() throws Exception {
+        FileList unchangedFiles = copyChanged(true);
+
+        assertEquals(2, unchangedFiles.size());
+        assertUnchanged(unchangedFiles, "unchanged.txt", MODIFIED);
+        assertUnchanged(unchangedFiles, "touched.txt", MODIFIED + 60000);
+
+        assertCopied("modified.txt", "Mudified");
+        assertCopied("resized.txt", "Resized again");
+        assertCopied("new.txt", "New");
+    }
+
+    @Test
+    public void testClassifyWithoutHashCheck() throws Exception {
+        FileList unchangedFiles = copyChanged(false);
+
+        // Without the hash check, a changed modification time counts as modified
+        assertEquals(1, unchangedFiles.size());
+        assertUnchanged(unchangedFiles, "unchanged.txt", MODIFIED);
+
+        assertCopied("touched.txt", "Touched");
+        assertCopied("modified.txt", "Mudified");
+        assertCopied("resized.txt", "Resized again");
+        assertCopied("new.txt", "New");
+    }
+
+    private FileList copyChanged(boolean hashCheck) throws Exception {
+        FileList unchangedFiles = new FileList();
+        Deposit.copyChanged(userStore, "src", true, null, null, bagPath.resolve("src"),
+                bagPath, baseFiles, unchangedFiles, hashCheck, new Progress());
+        return unchangedFiles;
+    }
+
+    private void assertUnchanged(FileList unchangedFiles, String name, long modified) {
+        FileList.Entry entry = unchangedFiles.get("src/" + name);
+        FileList.Entry base = baseFiles.get("src/" + name);
+        assertEquals(base.getHash(), entry.getHash());
+        assertEquals(base.getSize(), entry.getSize());
+        assertEquals(BASE_BAG, entry.getBagId());
+        assertEquals(modified, entry.getModified());
+
+        // Unchanged files are held by the base deposit, so are not copied
+        assertFalse(bagPath.resolve("src").resolve(name).toFile().exists());
+    }
+
+    private void assertCopied(String name, String content) throws Exception {
+        File copied = bagPath.resolve("src").resolve(name).toFile();
+        assertTrue(copied.isFile());
+        assertEquals(content, new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private void addBaseFile(String name, String content, long modified) {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        baseFiles.add(new FileList.Entry("src/" + name, DigestUtils.md5Hex(data), data.length, modified, BASE_BAG));
+    }
+
+    private void writeSource(String name, String content, long modified) throws Exception {
+        File file = new File(new File(folder.getRoot(), "src"), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(modified);
+    }
+}